@@ -273,6 +273,26 @@ public class JChannel extends Channel {
         return ps != null? ps.printProtocolSpec(include_properties) : null;
     }
 
+    @ManagedOperation(description="Inserts a TIME protocol above each protocol to measure per-protocol latencies")
+    public void instrument() {
+        ProtocolStack ps=getProtocolStack();
+        if(ps != null)
+            ps.instrument();
+    }
+
+    @ManagedOperation(description="Removes all TIME protocols from the stack")
+    public void uninstrument() {
+        ProtocolStack ps=getProtocolStack();
+        if(ps != null)
+            ps.uninstrument();
+    }
+
+    @ManagedOperation(description="Prints the latencies of each protocol (requires instrument() to be called first)")
+    public String printLatencies() {
+        ProtocolStack ps=getProtocolStack();
+        return ps != null? ps.printLatencies() : null;
+    }
+
 
     @ManagedOperation(description="Connects the channel to a group")
     public synchronized void connect(String cluster_name) throws Exception {
@@ -734,13 +754,19 @@ public class JChannel extends Channel {
         }
 
 
-        // If UpHandler is installed, pass all events to it and return (UpHandler is e.g. a building block)
-        if(up_handler != null)
-            return up_handler.up(evt);
+        try {
+            // If UpHandler is installed, pass all events to it and return (UpHandler is e.g. a building block)
+            if(up_handler != null)
+                return up_handler.up(evt);
 
-        if(receiver != null)
-            return invokeCallback(evt.getType(), evt.getArg());
-        return null;
+            if(receiver != null)
+                return invokeCallback(evt.getType(), evt.getArg());
+            return null;
+        }
+        finally {
+            if(evt.getType() == Event.MSG) // the message has been delivered: return a pooled buffer (if any)
+                ((Message)evt.getArg()).release();
+        }
     }
 
 
@@ -772,6 +798,7 @@ public class JChannel extends Channel {
                     log.error(Util.getMessage("ReceiverFailure"), t);
                 }
             }
+            msg.release();
         }
     }
 
@@ -5,8 +5,10 @@ package org.jgroups;
 import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.util.*;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.io.InputStream;
 import java.util.Map;
 
 /**
@@ -41,6 +43,12 @@ public class Message implements Streamable {
 
     protected volatile byte    transient_flags; // transient_flags is neither marshalled nor copied
 
+    /** Set if buf was acquired from a {@link BufferPool}; neither marshalled nor copied */
+    protected BufferPool.Ref   buf_ref;
+
+    /** Set instead of buf if the payload is a list of segments (e.g. fragments); buf is created from it on demand */
+    protected CompositeBuffer  composite;
+
 
 
     static final byte DEST_SET         =  1;
@@ -224,6 +232,7 @@ public class Message implements Streamable {
     * Even if offset and length are used: we return the <em>entire</em> buffer, not a subset.
     */
    public byte[] getRawBuffer() {
+        materialize();
         return buf;
     }
 
@@ -233,6 +242,7 @@ public class Message implements Streamable {
     * @return byte array with a copy of the buffer.
     */
     final public byte[] getBuffer() {
+        materialize();
         if(buf == null)
             return null;
         if(offset == 0 && length == buf.length)
@@ -252,6 +262,7 @@ public class Message implements Streamable {
      * </em>
      */
     final public Message setBuffer(byte[] b) {
+        composite=null;
         buf=b;
         if(buf != null) {
             offset=0;
@@ -275,6 +286,7 @@ public class Message implements Streamable {
      * @param length The number of bytes
      */
     final public Message setBuffer(byte[] b, int offset, int length) {
+        composite=null;
         buf=b;
         if(buf != null) {
             if(offset < 0 || offset > buf.length)
@@ -298,6 +310,7 @@ public class Message implements Streamable {
      */
     public final Message setBuffer(Buffer buf) {
         if(buf != null) {
+            composite=null;
             this.buf=buf.getBuf();
             this.offset=buf.getOffset();
             this.length=buf.getLength();
@@ -305,6 +318,84 @@ public class Message implements Streamable {
         return this;
     }
 
+    /**
+     * Sets the buffer to a subset of a buffer acquired from a {@link BufferPool}. The message takes over the reference
+     * (it doesn't increment the reference count); {@link #release()} returns the buffer to the pool.
+     */
+    public Message setPooledBuffer(BufferPool.Ref ref, int offset, int length) {
+        setBuffer(ref != null? ref.buf() : null, offset, length);
+        buf_ref=ref;
+        return this;
+    }
+
+    /**
+     * Sets the payload to a list of segments, which are neither copied nor combined into a single buffer. The
+     * message takes over the references of pooled segments. {@link #getInputStream()} reads the segments in order,
+     * and marshalling the message writes them one after the other. Methods accessing the payload as a byte[]
+     * buffer, e.g. {@link #getRawBuffer()} or {@link #getObject()}, copy the segments into a single buffer first.
+     */
+    public Message setBuffer(CompositeBuffer cb) {
+        setBuffer((byte[])null);
+        if(cb != null) {
+            composite=cb;
+            length=cb.length();
+        }
+        return this;
+    }
+
+    /** Returns the segments of the payload if it was set with {@link #setBuffer(CompositeBuffer)} and has not yet
+     * been copied into a single buffer, or null */
+    public CompositeBuffer getCompositeBuffer() {
+        return composite;
+    }
+
+    /** Returns a stream over the payload (or null if there's no payload). Doesn't copy the segments of a
+     * composite payload into a single buffer */
+    public InputStream getInputStream() {
+        CompositeBuffer cb=composite;
+        if(cb != null)
+            return cb.getInputStream();
+        return buf != null? new ByteArrayInputStream(buf, offset, length) : null;
+    }
+
+    /** Returns the reference to the pooled buffer (if the buffer was set with {@link #setPooledBuffer}), or null */
+    public BufferPool.Ref getPooledBuffer() {
+        return buf_ref;
+    }
+
+    /**
+     * Increments the reference count of a pooled buffer. Needs to be called by protocols which hold on to a message
+     * after it has been delivered, e.g. for retransmission. A no-op if the buffer is not pooled.
+     */
+    public Message retain() {
+        CompositeBuffer cb=composite;
+        if(cb != null)
+            cb.retain();
+        BufferPool.Ref ref=buf_ref;
+        if(ref != null)
+            ref.retain();
+        return this;
+    }
+
+    /**
+     * Called when a message has been delivered (or consumed, e.g. by a fragmentation protocol). Decrements the
+     * reference count of a pooled buffer and returns it to the pool when it drops to 0; the buffer must not be
+     * accessed after that. A no-op if the buffer is not pooled, or if this message was already released.
+     * @return True if the buffer was returned to the pool
+     */
+    public boolean release() {
+        CompositeBuffer cb=composite;
+        if(cb != null) {
+            composite=null;
+            cb.release();
+        }
+        BufferPool.Ref ref=buf_ref;
+        if(ref == null)
+            return false;
+        buf_ref=null;
+        return ref.release();
+    }
+
     /**
      *
      * Returns the offset into the buffer at which the data starts
@@ -376,6 +467,7 @@ public class Message implements Streamable {
      * @return the object
      */
     final public Object getObject(ClassLoader loader) {
+        materialize();
         try {
             return Util.objectFromByteBuffer(buf, offset, length, loader);
         }
@@ -572,10 +664,18 @@ public class Message implements Streamable {
         retval.flags=flags;
         retval.transient_flags=transient_flags;
 
-        if(copy_buffer && buf != null) {
+        CompositeBuffer cb=composite;
+        if(copy_buffer && cb != null) {
+            retval.setBuffer(cb); // the segments are shared, and retained as below
+            retain();
+        }
+        else if(copy_buffer && buf != null) {
 
             // change bela Feb 26 2004: we don't resolve the reference
             retval.setBuffer(buf, offset, length);
+
+            // the copy shares a pooled buffer, but may outlive this message: never return the buffer to the pool
+            retain();
         }
 
         retval.headers=copy_headers && headers != null? headers.copy() : createHeaders(3);
@@ -637,7 +737,7 @@ public class Message implements Streamable {
             ret.append(" (").append(size).append(" headers)");
 
         ret.append(", size=");
-        if(buf != null && length > 0)
+        if(hasPayload() && length > 0)
             ret.append(length);
         else
             ret.append('0');
@@ -655,7 +755,7 @@ public class Message implements Streamable {
 
     /** Tries to read an object from the message's buffer and prints it */
     public String toStringAsObject() {
-        if(buf == null) return null;
+        if(!hasPayload()) return null;
         try {
             Object obj=getObject();
             return obj != null ? obj.toString() : "";
@@ -691,7 +791,7 @@ public class Message implements Streamable {
         if(src_addr != null)
             leading=Util.setFlag(leading, SRC_SET);
 
-        if(buf != null)
+        if(hasPayload())
             leading=Util.setFlag(leading, BUF_SET);
 
         // 1. write the leading byte first
@@ -721,10 +821,7 @@ public class Message implements Streamable {
         }
 
         // 6. buf
-        if(buf != null) {
-            out.writeInt(length);
-            out.write(buf, offset, length);
-        }
+        writePayload(out);
     }
 
    /**
@@ -744,7 +841,7 @@ public class Message implements Streamable {
         if(write_src_addr)
             leading=Util.setFlag(leading, SRC_SET);
 
-        if(buf != null)
+        if(hasPayload())
             leading=Util.setFlag(leading, BUF_SET);
 
         // 1. write the leading byte first
@@ -772,14 +869,16 @@ public class Message implements Streamable {
         }
 
         // 6. buf
-        if(buf != null) {
-            out.writeInt(length);
-            out.write(buf, offset, length);
-        }
+        writePayload(out);
     }
 
 
     public void readFrom(DataInput in) throws Exception {
+        readFrom(in, null);
+    }
+
+    /** Reads the message, acquiring the payload from pool (if non-null) rather than allocating a new buffer */
+    public void readFrom(DataInput in, BufferPool pool) throws Exception {
 
         // 1. read the leading byte first
         byte leading=in.readByte();
@@ -812,9 +911,16 @@ public class Message implements Streamable {
         // 6. buf
         if(Util.isFlagSet(leading, BUF_SET)) {
             len=in.readInt();
-            buf=new byte[len];
-            in.readFully(buf, 0, len);
-            length=len;
+            if(pool != null && len > 0) {
+                BufferPool.Ref ref=pool.acquire(len);
+                in.readFully(ref.buf(), 0, len);
+                setPooledBuffer(ref, 0, len);
+            }
+            else {
+                buf=new byte[len];
+                in.readFully(buf, 0, len);
+                length=len;
+            }
         }
     }
 
@@ -880,7 +986,7 @@ public class Message implements Streamable {
         retval+=Global.SHORT_SIZE;  // number of headers
         retval+=headers.marshalledSize();
 
-        if(buf != null)
+        if(hasPayload())
             retval+=Global.INT_SIZE // length (integer)
               + length;       // number of bytes in the buffer
         return retval;
@@ -890,6 +996,35 @@ public class Message implements Streamable {
 
     /* ----------------------------------- Private methods ------------------------------- */
 
+    protected boolean hasPayload() {
+        return buf != null || composite != null;
+    }
+
+    protected void writePayload(DataOutput out) throws Exception {
+        CompositeBuffer cb=composite;
+        if(cb != null) {
+            out.writeInt(length);
+            cb.writeTo(out);
+        }
+        else if(buf != null) {
+            out.writeInt(length);
+            out.write(buf, offset, length);
+        }
+    }
+
+    /** Copies the segments of a composite payload into a single buffer and releases them */
+    protected void materialize() {
+        CompositeBuffer cb=composite;
+        if(cb == null)
+            return;
+        byte[] tmp=cb.toByteArray();
+        composite=null;
+        buf=tmp;
+        offset=0;
+        length=tmp.length;
+        cb.release();
+    }
+
     public static String flagsToString(short flags) {
         StringBuilder sb=new StringBuilder();
         boolean first=true;
@@ -0,0 +1,157 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.annotations.GuardedBy;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests which are dispatched asynchronously (see {@link AsyncRequestHandler}) and whose
+ * responses have not yet been sent, in total and per sender. A request is in flight from the time it is passed to
+ * the handler until its response is sent via {@link Response}. Requests which don't expect a response are not
+ * counted, as there is no way of knowing when the handler is done with them.
+ * <p/>
+ * When a limit is reached, the thread delivering the request blocks for up to timeout ms. This pushes back on the
+ * senders: blocking delivery of a sender's messages holds back the credits of flow control (UFC, MFC), so the
+ * sender eventually blocks, too. If the timeout is 0 or elapses, the request is rejected: the caller receives a
+ * {@link java.util.concurrent.RejectedExecutionException} and can back off or try a different member.
+ * @author agent
+ * @since  3.6.4
+ */
+public class AdmissionControl {
+    protected final int                max_in_flight;            // 0: unlimited
+    protected final int                max_in_flight_per_sender; // 0: unlimited
+    protected long                     timeout;                  // ms
+    protected final Lock               lock=new ReentrantLock();
+    protected final Condition          released=lock.newCondition();
+
+    @GuardedBy("lock")
+    protected int                      in_flight;
+
+    @GuardedBy("lock")
+    protected final Map<Address,int[]> senders=new HashMap<>(); // entries are removed when their count drops to 0
+
+    protected final AtomicLong         num_rejected=new AtomicLong(), num_blocked=new AtomicLong();
+
+
+    /**
+     * Creates an instance
+     * @param max_in_flight The max number of requests in flight. 0 means unlimited
+     * @param max_in_flight_per_sender The max number of requests in flight from a single sender. 0 means unlimited
+     */
+    public AdmissionControl(int max_in_flight, int max_in_flight_per_sender) {
+        if(max_in_flight < 0 || max_in_flight_per_sender < 0)
+            throw new IllegalArgumentException("limits must be >= 0");
+        this.max_in_flight=max_in_flight;
+        this.max_in_flight_per_sender=max_in_flight_per_sender;
+    }
+
+    public int              maxInFlight()          {return max_in_flight;}
+    public int              maxInFlightPerSender() {return max_in_flight_per_sender;}
+    public long             timeout()              {return timeout;}
+    /** Sets the max time (ms) to block when a limit has been reached, before rejecting the request */
+    public AdmissionControl timeout(long timeout)  {this.timeout=timeout; return this;}
+    public long             numRejected()          {return num_rejected.get();}
+    public long             numBlocked()           {return num_blocked.get();}
+
+    public int inFlight() {
+        lock.lock();
+        try {
+            return in_flight;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public int inFlight(Address sender) {
+        lock.lock();
+        try {
+            int[] count=senders.get(sender);
+            return count != null? count[0] : 0;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
+    /**
+     * Admits a request from sender, blocking for up to timeout ms if a limit has been reached
+     * @return True if the request was admitted; {@link #release(Address)} must be called when it completes.
+     *         False if it was rejected
+     */
+    public boolean acquire(Address sender) {
+        lock.lock();
+        try {
+            int[] count=senders.get(sender);
+            if(!full(count)) {
+                admit(sender, count);
+                return true;
+            }
+            num_blocked.incrementAndGet();
+            long wait_time=TimeUnit.MILLISECONDS.toNanos(timeout);
+            while(wait_time > 0) {
+                try {
+                    wait_time=released.awaitNanos(wait_time);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+                count=senders.get(sender);
+                if(!full(count)) {
+                    admit(sender, count);
+                    return true;
+                }
+            }
+            num_rejected.incrementAndGet();
+            return false;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Called when the response to a request admitted by {@link #acquire(Address)} has been sent */
+    public void release(Address sender) {
+        lock.lock();
+        try {
+            if(in_flight > 0)
+                in_flight--;
+            int[] count=senders.get(sender);
+            if(count != null && --count[0] <= 0)
+                senders.remove(sender);
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        return String.format("in flight=%d (max=%d, per sender=%d), blocked=%d, rejected=%d", inFlight(),
+                             max_in_flight, max_in_flight_per_sender, numBlocked(), numRejected());
+    }
+
+    @GuardedBy("lock")
+    protected boolean full(int[] count) {
+        return (max_in_flight > 0 && in_flight >= max_in_flight)
+          || (max_in_flight_per_sender > 0 && count != null && count[0] >= max_in_flight_per_sender);
+    }
+
+    @GuardedBy("lock")
+    protected void admit(Address sender, int[] count) {
+        in_flight++;
+        if(count == null)
+            senders.put(sender, new int[]{1});
+        else
+            count[0]++;
+    }
+}
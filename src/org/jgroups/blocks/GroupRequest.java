@@ -8,12 +8,12 @@ import org.jgroups.annotations.GuardedBy;
 import org.jgroups.protocols.relay.SiteAddress;
 import org.jgroups.util.Rsp;
 import org.jgroups.util.RspList;
+import org.jgroups.util.TimeScheduler;
+import org.jgroups.util.Util;
 
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
@@ -48,15 +48,37 @@ import java.util.concurrent.TimeoutException;
  * <p>
  * <b>Requirements</b>: lossless delivery, e.g. acknowledgment-based message
  * confirmation.
+ * <p>
+ * If {@link RequestOptions#getNumTargets()} is set, the request is sent to the first num_targets destinations only;
+ * the remaining destinations are spares: when a target is suspected, the request is sent to the next spare. If hedging
+ * is enabled ({@link RequestOptions#isHedged()}), the request is also sent to the next spare when the required
+ * responses have not been received after a percentile of the round-trip times of previous requests. When the request
+ * completes, the responses of the slower targets are discarded.
  * 
  * @author Bela Ban
  */
 public class GroupRequest<T> extends Request {
 
-    /** Correlates requests and responses */
+    /** Correlates requests and responses. Only contains the destinations to which the request has been sent */
     @GuardedBy("lock")
     private final Map<Address,Rsp<T>> requests;
 
+    /** Destinations to which the request hasn't (yet) been sent, used for failover and hedging */
+    @GuardedBy("lock")
+    protected final List<Address>     spares;
+
+    @GuardedBy("lock")
+    protected int                     num_hedges; // number of hedged requests sent
+
+    protected volatile Future<?>      hedge_task;
+
+    /** Times (ns) at which the request was sent to spares, null if not sent to any spare */
+    @GuardedBy("lock")
+    protected Map<Address,Long>       spare_send_times;
+
+    @GuardedBy("lock")
+    protected boolean                 latencies_updated;
+
     @GuardedBy("lock")
     int num_valid;       // the number of valid responses (values or exceptions that passed the response filter)
 
@@ -77,15 +99,26 @@ public class GroupRequest<T> extends Request {
      */
     public GroupRequest(Message msg, RequestCorrelator corr, Collection<Address> targets, RequestOptions options) {
         super(msg, corr, options);
-        int size=targets.size();
-        requests=new HashMap<>(size);
-        setTargets(targets);
+        int size=targets.size(), num_targets=options.getNumTargets();
+        if(num_targets > 0 && num_targets < size) {
+            List<Address> tmp=options.getAdaptiveSelection() && corr != null?
+              corr.getMemberLatencies().sort(targets) : new ArrayList<>(targets);
+            requests=Util.createConcurrentMap(size); // modified when sending to a spare
+            setTargets(tmp.subList(0, num_targets));
+            spares=new ArrayList<>(tmp.subList(num_targets, size));
+        }
+        else {
+            requests=new HashMap<>(size);
+            setTargets(targets);
+            spares=Collections.emptyList();
+        }
     }
 
     public GroupRequest(Message msg, RequestCorrelator corr, Address target, RequestOptions options) {
         super(msg, corr, options);
         requests=new HashMap<>(1);
         setTarget(target);
+        spares=Collections.emptyList();
     }
 
 
@@ -100,7 +133,25 @@ public class GroupRequest<T> extends Request {
 
 
     public void sendRequest() throws Exception {
-        sendRequest(requests.keySet(), req_id);
+        if(trackLatencies()) {
+            MemberLatencies latencies=corr.getMemberLatencies();
+            for(Address mbr: requests.keySet())
+                latencies.sent(mbr);
+        }
+        sendRequest(new ArrayList<>(requests.keySet()), req_id);
+        if(options.isHedged() && !spares.isEmpty() && options.getMode() != ResponseMode.GET_NONE)
+            scheduleHedge();
+    }
+
+    /** Returns the number of hedged requests sent */
+    public int getNumHedges() {
+        lock.lock();
+        try {
+            return num_hedges;
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     /* ---------------------- Interface RspCollector -------------------------- */
@@ -123,8 +174,11 @@ public class GroupRequest<T> extends Request {
         lock.lock();
         try {
             if(!rsp.wasReceived()) {
-                if(!(rsp.wasSuspected() || rsp.wasUnreachable()))
+                if(!(rsp.wasSuspected() || rsp.wasUnreachable())) {
                     num_received++;
+                    if(!latencies_updated && trackLatencies())
+                        corr.getMemberLatencies().received(sender, System.nanoTime() - sendTime(sender));
+                }
                 if((responseReceived=(rsp_filter == null) || rsp_filter.isAcceptable(response_value, sender))) {
                     if(is_exception && response_value instanceof Throwable)
                         rsp.setException((Throwable)response_value);
@@ -143,6 +197,8 @@ public class GroupRequest<T> extends Request {
         finally {
             lock.unlock();
         }
+        if(done)
+            cancelHedge();
         if(responseReceived || done)
             checkCompletion(this);
     }
@@ -159,14 +215,17 @@ public class GroupRequest<T> extends Request {
             return;
 
         boolean changed=false;
+        Address spare=null;
         Rsp<T> rsp=requests.get(suspected_member);
         if(rsp !=  null) {
             if(rsp.setSuspected()) {
                 changed=true;
                 lock.lock();
                 try {
-                    if(!(rsp.wasReceived() || rsp.wasUnreachable()))
+                    if(!(rsp.wasReceived() || rsp.wasUnreachable())) {
                         num_received++;
+                        spare=nextSpare();
+                    }
                     cond.signal(true);
                 }
                 finally {
@@ -175,6 +234,8 @@ public class GroupRequest<T> extends Request {
             }
         }
 
+        if(spare != null)
+            corr.resendRequest(request_msg, spare);
         if(changed)
             checkCompletion(this);
     }
@@ -236,17 +297,26 @@ public class GroupRequest<T> extends Request {
             return;
 
         boolean changed=false;
+        List<Address> failover=null;
 
         lock.lock();
         try {
-            for(Map.Entry<Address,Rsp<T>> entry: requests.entrySet()) {
+            spares.retainAll(mbrs);
+            for(Map.Entry<Address,Rsp<T>> entry: new ArrayList<>(requests.entrySet())) {
                 Address mbr=entry.getKey();
                 // SiteAddresses are not checked as they might be in a different cluster
                 if(!(mbr instanceof SiteAddress) && !mbrs.contains(mbr)) {
                     Rsp<T> rsp=entry.getValue();
                     if(rsp.setSuspected()) {
-                        if(!(rsp.wasReceived() || rsp.wasUnreachable()))
+                        if(!(rsp.wasReceived() || rsp.wasUnreachable())) {
                             num_received++;
+                            Address spare=nextSpare();
+                            if(spare != null) {
+                                if(failover == null)
+                                    failover=new ArrayList<>(2);
+                                failover.add(spare);
+                            }
+                        }
                         changed=true;
                     }
                 }
@@ -257,6 +327,9 @@ public class GroupRequest<T> extends Request {
         finally {
             lock.unlock();
         }
+        if(failover != null)
+            for(Address spare: failover)
+                corr.resendRequest(request_msg, spare);
         if(changed)
             checkCompletion(this);
     }
@@ -341,6 +414,86 @@ public class GroupRequest<T> extends Request {
 
     /* --------------------------------- Private Methods -------------------------------------*/
 
+    /** Removes the next spare and adds it to the targets. Returns null if there are no spares, or we're done */
+    @GuardedBy("lock")
+    protected Address nextSpare() {
+        if(spares.isEmpty() || done || options.getMode() == ResponseMode.GET_NONE)
+            return null;
+        Address spare=spares.remove(0);
+        requests.put(spare, new Rsp<T>(spare));
+        if(trackLatencies() && !latencies_updated) {
+            if(spare_send_times == null)
+                spare_send_times=new HashMap<>(spares.size() + 1);
+            spare_send_times.put(spare, System.nanoTime());
+            corr.getMemberLatencies().sent(spare);
+        }
+        return spare;
+    }
+
+    @GuardedBy("lock")
+    protected long sendTime(Address mbr) {
+        Long time=spare_send_times != null? spare_send_times.get(mbr) : null;
+        return time != null? time : start_time;
+    }
+
+    protected void updateLatencies(long now) {
+        if(!trackLatencies())
+            return;
+        MemberLatencies latencies=corr.getMemberLatencies();
+        lock.lock();
+        try {
+            if(latencies_updated)
+                return;
+            latencies_updated=true;
+            for(Rsp<T> rsp: requests.values()) {
+                if(rsp.wasReceived())
+                    continue;
+                Address mbr=rsp.getSender();
+                boolean failed=rsp.wasSuspected() || rsp.wasUnreachable();
+                latencies.abandoned(mbr, failed? 0 : now - sendTime(mbr));
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    protected void scheduleHedge() {
+        TimeScheduler timer=corr != null? corr.getTimer() : null;
+        if(timer == null)
+            return;
+        long delay=TimeUnit.MICROSECONDS.toMillis(corr.getRpcTimes().percentile(options.getHedgePercentile()));
+        hedge_task=timer.schedule(new Runnable() {
+            public void run() {hedge();}
+            public String toString() {return "hedge for req_id=" + req_id;}
+        }, Math.max(delay, options.getHedgeDelay()), TimeUnit.MILLISECONDS);
+    }
+
+    /** Sends the request to the next spare if it hasn't completed yet */
+    protected void hedge() {
+        Address spare;
+        boolean more;
+        lock.lock();
+        try {
+            if(done || responsesComplete() || num_hedges >= options.getMaxHedges() || (spare=nextSpare()) == null)
+                return;
+            num_hedges++;
+            more=num_hedges < options.getMaxHedges() && !spares.isEmpty();
+        }
+        finally {
+            lock.unlock();
+        }
+        corr.resendRequest(request_msg, spare);
+        if(more)
+            scheduleHedge();
+    }
+
+    protected void cancelHedge() {
+        Future<?> task=hedge_task;
+        if(task != null)
+            task.cancel(false);
+    }
+
     private void setTarget(Address mbr) {
         requests.put(mbr, new Rsp<T>(mbr));
     }
@@ -362,6 +515,7 @@ public class GroupRequest<T> extends Request {
         catch(Exception ex) {
             if(corr != null)
                 corr.done(requestId);
+            updateLatencies(System.nanoTime()); // no-op if already done by corr.done()
             throw ex;
         }
     }
@@ -372,7 +526,9 @@ public class GroupRequest<T> extends Request {
         if(done)
             return true;
 
-        final int num_total=requests.size();
+        final int num_total=requests.size(), num_responses=options.getNumResponses();
+        if(num_responses > 0 && options.getMode() != ResponseMode.GET_NONE)
+            return num_valid >= num_responses || num_received >= num_total;
 
         switch(options.getMode()) {
             case GET_FIRST:
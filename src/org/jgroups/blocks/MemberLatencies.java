@@ -0,0 +1,173 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.util.Util;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Maintains a score per member, based on the round-trip times of requests sent to it and the number of requests
+ * to it which are still outstanding. Used to send requests to the members which currently respond fastest, and
+ * to steer requests away from members which are slow or overloaded (e.g. because of a GC pause).
+ * <p/>
+ * The latency of a member is an exponentially weighted moving average (EWMA) of its round-trip times, which decays
+ * (halves every half_life ms) when no new samples are added, so that a member which was slow once will eventually be
+ * tried again. The score of a member is (latency + 1) * (outstanding + 1), so a member which has many outstanding
+ * requests (e.g. because it stopped responding) gets a high score quickly, even before its latency is updated.
+ * <p/>
+ * The lower the score, the better; members for which no samples are available have the lowest score.
+ * @author agent
+ * @since  3.6.4
+ */
+public class MemberLatencies {
+    protected final ConcurrentMap<Address,Stats> stats=Util.createConcurrentMap();
+
+    /** The weight of a new sample (0-1) */
+    protected double alpha=0.25;
+
+    /** The time (ns) after which the latency of a member without new samples is halved */
+    protected long   half_life=TimeUnit.SECONDS.toNanos(5);
+
+
+    public double          alpha()                 {return alpha;}
+    public MemberLatencies alpha(double a)         {this.alpha=a; return this;}
+    public long            halfLife()              {return TimeUnit.NANOSECONDS.toMillis(half_life);}
+    public MemberLatencies halfLife(long ms)       {this.half_life=TimeUnit.MILLISECONDS.toNanos(ms); return this;}
+
+
+    /** Called when a request expecting a response is sent to mbr */
+    public void sent(Address mbr) {
+        get(mbr).outstanding.incrementAndGet();
+    }
+
+    /** Called when a response from mbr has been received, rtt (ns) after sending the request */
+    public void received(Address mbr, long rtt) {
+        Stats s=get(mbr);
+        s.decrement();
+        s.add(TimeUnit.NANOSECONDS.toMicros(rtt), alpha, false);
+    }
+
+    /**
+     * Called when a request to mbr completed without a response from mbr (e.g. because other members responded
+     * first, or the request timed out), elapsed ns after sending it. Since the actual round-trip time is at least
+     * elapsed, the latency is only updated if it is lower than elapsed. Elapsed is 0 if mbr was suspected.
+     */
+    public void abandoned(Address mbr, long elapsed) {
+        Stats s=get(mbr);
+        s.decrement();
+        if(elapsed > 0)
+            s.add(TimeUnit.NANOSECONDS.toMicros(elapsed), alpha, true);
+    }
+
+    /** Returns the latency (us) of mbr, decayed by the time since the last sample, or 0 if not known */
+    public double latency(Address mbr) {
+        Stats s=stats.get(mbr);
+        return s != null? s.latency(System.nanoTime(), half_life) : 0;
+    }
+
+    public int outstanding(Address mbr) {
+        Stats s=stats.get(mbr);
+        return s != null? s.outstanding.get() : 0;
+    }
+
+    /** Returns the score of mbr; the lower the better */
+    public double score(Address mbr) {
+        Stats s=stats.get(mbr);
+        return s != null? s.score(System.nanoTime(), half_life) : 1;
+    }
+
+    /** Returns the members ordered by their score (best first). Members with the same score keep their order */
+    public List<Address> sort(Collection<Address> mbrs) {
+        int size=mbrs.size(), i=0;
+        final Address[] tmp=mbrs.toArray(new Address[size]);
+        final double[] scores=new double[size];
+        long now=System.nanoTime();
+        for(Address mbr: tmp) {
+            Stats s=stats.get(mbr);
+            scores[i++]=s != null? s.score(now, half_life) : 1;
+        }
+        Integer[] indices=new Integer[size];
+        for(i=0; i < size; i++)
+            indices[i]=i;
+        Arrays.sort(indices, new Comparator<Integer>() { // stable
+            public int compare(Integer o1, Integer o2) {return Double.compare(scores[o1], scores[o2]);}
+        });
+        List<Address> retval=new ArrayList<>(size);
+        for(Integer index: indices)
+            retval.add(tmp[index]);
+        return retval;
+    }
+
+    /** Removes the stats of members which are not in mbrs, e.g. on a view change */
+    public void retainAll(Collection<Address> mbrs) {
+        stats.keySet().retainAll(mbrs);
+    }
+
+    public void clear() {
+        stats.clear();
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        long now=System.nanoTime();
+        for(Map.Entry<Address,Stats> entry: stats.entrySet()) {
+            Stats s=entry.getValue();
+            sb.append(String.format("%s: latency=%.2f us, outstanding=%d, score=%.2f\n", entry.getKey(),
+                                    s.latency(now, half_life), s.outstanding.get(), s.score(now, half_life)));
+        }
+        return sb.toString();
+    }
+
+
+    protected Stats get(Address mbr) {
+        Stats s=stats.get(mbr);
+        if(s == null) {
+            Stats tmp=stats.putIfAbsent(mbr, s=new Stats());
+            if(tmp != null)
+                s=tmp;
+        }
+        return s;
+    }
+
+
+    protected static class Stats {
+        protected final AtomicInteger outstanding=new AtomicInteger();
+        protected double              latency;     // EWMA of the round-trip times (us), guarded by this
+        protected long                last_update; // ns, guarded by this
+
+        /** Decrements outstanding unless it's 0 (e.g. when the stats were removed and re-created meanwhile) */
+        protected void decrement() {
+            for(;;) {
+                int num=outstanding.get();
+                if(num <= 0 || outstanding.compareAndSet(num, num-1))
+                    return;
+            }
+        }
+
+        /** Adds a sample. If lower_bound is true, the sample is only added if it's greater than the latency */
+        protected synchronized void add(double sample, double alpha, boolean lower_bound) {
+            long now=System.nanoTime();
+            if(last_update == 0)
+                latency=sample;
+            else if(lower_bound && sample <= latency)
+                return;
+            else
+                latency=alpha * sample + (1 - alpha) * latency;
+            last_update=now;
+        }
+
+        protected synchronized double latency(long now, long half_life) {
+            if(last_update == 0)
+                return 0;
+            long age=now - last_update;
+            return age <= 0 || half_life <= 0? latency : latency * Math.pow(0.5, age / (double)half_life);
+        }
+
+        protected double score(long now, long half_life) {
+            return (latency(now, half_life) + 1) * (outstanding.get() + 1);
+        }
+    }
+}
@@ -15,6 +15,8 @@ import org.jgroups.util.*;
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.atomic.AtomicInteger;
 
 
@@ -44,6 +46,8 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
     protected MembershipListener                    membership_listener;
     protected RequestHandler                        req_handler;
     protected boolean                               async_dispatching;
+    protected boolean                               coalesce_requests;
+    protected AdmissionControl                      admission_control;
     protected ProtocolAdapter                       prot_adapter;
     protected volatile Collection<Address>          members=new HashSet<>();
     protected Address                               local_addr;
@@ -96,6 +100,33 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
         return this;
     }
 
+    public boolean coalesceRequests() {return coalesce_requests;}
+
+    /**
+     * If true, unicast requests to the same destination which are sent concurrently are packed into a single
+     * message, and so are their responses. Only affects the requests sent by this member
+     */
+    public MessageDispatcher coalesceRequests(boolean flag) {
+        coalesce_requests=flag;
+        if(corr != null)
+            corr.coalesceRequests(flag);
+        return this;
+    }
+
+
+    public AdmissionControl admissionControl() {return admission_control;}
+
+    /**
+     * Limits the number of requests dispatched asynchronously (asyncDispatching(true)) whose responses haven't yet
+     * been sent, in total and per sender. Null removes the limits
+     */
+    public MessageDispatcher admissionControl(AdmissionControl ac) {
+        admission_control=ac;
+        if(corr != null)
+            corr.admissionControl(ac);
+        return this;
+    }
+
 
     public UpHandler getProtocolAdapter() {
         return prot_adapter;
@@ -131,7 +162,8 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
 
     public void start() {
         if(corr == null)
-            corr=createRequestCorrelator(prot_adapter, this, local_addr).asyncDispatching(async_dispatching);
+            corr=createRequestCorrelator(prot_adapter, this, local_addr).asyncDispatching(async_dispatching)
+              .coalesceRequests(coalesce_requests).admissionControl(admission_control);
         correlatorStarted();
         corr.start();
 
@@ -143,6 +175,7 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
                 corr.registerProbeHandler(transport);
             }
             TP transport=channel.getProtocolStack().getTransport();
+            corr.setTimer(transport.getTimer());
             hardware_multicast_supported=transport.supportsMulticasting();
             transport.registerProbeHandler(probe_handler);
         }
@@ -156,6 +189,11 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
         ;
     }
 
+    /** Called before a request is sent, e.g. to add headers to it */
+    protected void prepareRequest(Message req) {
+        ;
+    }
+
     @Override public void close() throws IOException {stop();}
 
     public void stop() {
@@ -189,6 +227,10 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
         return channel;
     }
 
+    public RequestCorrelator getCorrelator() {
+        return corr;
+    }
+
     public void setChannel(Channel ch) {
         if(ch == null)
             return;
@@ -297,6 +339,7 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
                                        boolean block_for_results, FutureListener<RspList<T>> listener) throws Exception {
         if(msg.getDest() != null && !(msg.getDest() instanceof AnycastAddress))
             throw new IllegalArgumentException("message destination is non-null, cannot send message");
+        prepareRequest(msg);
 
         if(options != null) {
             msg.setFlag(options.getFlags()).setTransientFlag(options.getTransientFlags());
@@ -392,6 +435,7 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
         Address dest=msg.getDest();
         if(dest == null)
             throw new IllegalArgumentException("message destination is null, cannot send message");
+        prepareRequest(msg);
 
         if(opts != null) {
             msg.setFlag(opts.getFlags()).setTransientFlag(opts.getTransientFlags());
@@ -444,6 +488,7 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
         Address dest=msg.getDest();
         if(dest == null)
             throw new IllegalArgumentException("message destination is null, cannot send message");
+        prepareRequest(msg);
 
         if(options != null) {
             msg.setFlag(options.getFlags()).setTransientFlag(options.getTransientFlags());
@@ -480,6 +525,79 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
     }
 
 
+    /**
+     * Sends a message to all members and returns a future which is completed with the responses, without blocking
+     * the caller. Contrary to {@link #castMessageWithFuture(Collection,Message,RequestOptions)}, the returned future
+     * supports callbacks and chaining.<p/>
+     * If the timeout in options is > 0, the future is completed with the responses received so far when the timeout
+     * elapses. Cancelling the future cancels the request.
+     * @param dests A list of group members from which to expect responses (if the call is blocking).
+     * @param msg The message to be sent
+     * @param options A set of options that govern the call. See {@link org.jgroups.blocks.RequestOptions} for details
+     * @return ComposableFuture<RspList<T>> A future which is completed with the responses
+     * @throws Exception If the request cannot be sent
+     */
+    public <T> ComposableFuture<RspList<T>> castMessageAsync(final Collection<Address> dests, Message msg,
+                                                              RequestOptions options) throws Exception {
+        final ComposableFuture<RspList<T>> future=new ComposableFuture<>();
+        GroupRequest<T> req=cast(dests, msg, options, false, new FutureListener<RspList<T>>() {
+            public void futureDone(Future<RspList<T>> f) {
+                future.complete(((GroupRequest<T>)f).getResults());
+            }
+        });
+        if(req == null)
+            return ComposableFuture.completed(new RspList<T>());
+        if(options != null && options.getMode() == ResponseMode.GET_NONE)
+            future.complete(req.getResults());
+        else
+            linkToRequest(future, req);
+        return future;
+    }
+
+
+    /**
+     * Sends a unicast message and returns a future which is completed with the result, without blocking the caller.
+     * The future is completed exceptionally if the target throws an exception, is suspected or unreachable, or if
+     * no response was received within the timeout defined in options (if > 0). Cancelling the future cancels the
+     * request.
+     * @param msg The unicast message to be sent. msg.getDest() must not be null
+     * @param options A set of options that govern the call. See {@link org.jgroups.blocks.RequestOptions} for details
+     * @return ComposableFuture<T> A future which is completed with the result
+     * @throws Exception If the request cannot be sent
+     */
+    public <T> ComposableFuture<T> sendMessageAsync(Message msg, RequestOptions options) throws Exception {
+        final ComposableFuture<T> future=new ComposableFuture<>();
+        NotifyingFuture<T> req=sendMessageWithFuture(msg, options, new FutureListener<T>() {
+            public void futureDone(Future<T> f) {
+                try {
+                    future.complete(((UnicastRequest<T>)f).getValue());
+                }
+                catch(ExecutionException ex) {
+                    future.completeExceptionally(ex.getCause());
+                }
+            }
+        });
+        if(req instanceof UnicastRequest)
+            linkToRequest(future, (UnicastRequest<T>)req);
+        else // GET_NONE
+            future.complete(null);
+        return future;
+    }
+
+
+    /**
+     * Cancels req when future completes (removing req from the correlator). The timeout of req (if any) is handled
+     * by the correlator, which completes req, and therefore future, when it elapses
+     */
+    protected static <T> void linkToRequest(final ComposableFuture<T> future, final Request req) {
+        future.whenComplete(new ComposableFuture.Callback<T>() {
+            public void done(T result, Throwable exception) {
+                req.cancel(false);
+            }
+        });
+    }
+
+
 
     /* ------------------------ RequestHandler Interface ---------------------- */
     public Object handle(Message msg) throws Exception {
@@ -638,6 +756,10 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
                     retval.put(channel_name + ": async multicast RPCs", async_multicasts.toString());
                     retval.put(channel_name + ": sync  anycast   RPCs", sync_anycasts.toString());
                     retval.put(channel_name + ": async anycast   RPCs", async_anycasts.toString());
+                    if(corr != null)
+                        retval.put(channel_name + ": RPC round-trip times (us)", corr.getRpcTimes().toString());
+                    if(admission_control != null)
+                        retval.put(channel_name + ": admission control", admission_control.toString());
                 }
                 if("rpcs-reset".equals(key)) {
                     sync_unicasts.set(0);
@@ -646,6 +768,8 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener,
                     async_multicasts.set(0);
                     sync_anycasts.set(0);
                     async_anycasts.set(0);
+                    if(corr != null)
+                        corr.getRpcTimes().reset();
                 }
             }
             return retval;
@@ -0,0 +1,180 @@
+package org.jgroups.blocks;
+
+import org.jgroups.util.Util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Invokes {@link MethodCall}s against a target object via method handles instead of reflection. The handles for all
+ * public methods of the target's class (and superclasses) are created when the invoker is created, and are bound to
+ * the target and adapted to take the arguments as an array, so invoking a method doesn't use
+ * {@link Method#invoke(Object,Object...)}, and calls using method names and types (MethodCall.TYPES) don't need to
+ * walk the class hierarchy on every call.
+ * <p/>
+ * Calls using method IDs are resolved by the {@link MethodLookup} on the first call of a given ID only; the resulting
+ * handle is cached. Methods which cannot be accessed via a public lookup (e.g. methods of non-public classes) are
+ * invoked via reflection, as before.
+ * @author agent
+ * @since  3.6.4
+ */
+public class MethodInvoker {
+    protected final Object                            target;
+
+    /** Handles of the target's methods, populated on creation and on demand for methods shipped with a call */
+    protected final ConcurrentMap<Method,MethodHandle> handles=Util.createConcurrentMap();
+
+    /** Methods by name, in the order in which MethodCall.getMethod() would find them */
+    protected final Map<String,Method[]>              methods=new HashMap<>();
+
+    /** Handles by method ID, resolved on the first call of an ID */
+    protected final ConcurrentMap<Short,MethodHandle> ids=Util.createConcurrentMap();
+
+    protected static final MethodType                 INVOKER_TYPE=MethodType.methodType(Object.class, Object[].class);
+    protected static final Object[]                   NO_ARGS={};
+
+    /** Marks methods for which no handle can be created (these are invoked via reflection) */
+    protected static final MethodHandle               NO_HANDLE=MethodHandles.constant(Object.class, null);
+
+
+    public MethodInvoker(Object target) {
+        if(target == null)
+            throw new IllegalArgumentException("target must not be null");
+        this.target=target;
+        Map<String,List<Method>> tmp=new HashMap<>();
+        for(Method m: MethodCall.getAllMethods(target.getClass())) {
+            List<Method> list=tmp.get(m.getName());
+            if(list == null)
+                tmp.put(m.getName(), list=new ArrayList<>());
+            list.add(m);
+            handles.putIfAbsent(m, compile(m));
+        }
+        for(Map.Entry<String,List<Method>> entry: tmp.entrySet())
+            methods.put(entry.getKey(), entry.getValue().toArray(new Method[entry.getValue().size()]));
+    }
+
+    public Object getTarget() {return target;}
+
+    /** Returns the number of methods which are invoked via method handles */
+    public int numHandles() {
+        int retval=0;
+        for(MethodHandle mh: handles.values())
+            if(mh != NO_HANDLE)
+                retval++;
+        return retval;
+    }
+
+    /** Clears the handles cached by method ID, e.g. when the method lookup changes */
+    public void clearIds() {
+        ids.clear();
+    }
+
+
+    /**
+     * Invokes call against the target
+     * @param call The method call
+     * @param lookup Used to resolve method IDs, may be null if the call doesn't use an ID
+     * @return The return value of the method, or null if the method's return type is void
+     * @throws Exception Thrown if the method is not found, or by the method itself (not wrapped in an
+     *                   InvocationTargetException)
+     */
+    public Object invoke(MethodCall call, MethodLookup lookup) throws Exception {
+        MethodHandle mh=findHandle(call, lookup);
+        if(mh == null)
+            throw new NoSuchMethodException(call.getMode() == MethodCall.ID? String.valueOf(call.getId()) : call.getName());
+        if(mh == NO_HANDLE)
+            return call.invoke(target);
+
+        Object[] args=call.getArgs();
+        try {
+            return (Object)mh.invokeExact(args != null? args : NO_ARGS);
+        }
+        catch(Error | Exception ex) {
+            throw ex;
+        }
+        catch(Throwable t) {
+            throw new RuntimeException(t);
+        }
+    }
+
+
+    /** Returns the handle for call, NO_HANDLE if call has to be invoked via reflection, or null if not found */
+    protected MethodHandle findHandle(MethodCall call, MethodLookup lookup) throws Exception {
+        switch(call.getMode()) {
+            case MethodCall.METHOD:
+                return call.getMethod() != null? getHandle(call.getMethod()) : null;
+            case MethodCall.TYPES:
+                Method m=findMethod(call.getName(), call.types);
+                return m != null? getHandle(m) : null;
+            case MethodCall.ID:
+                MethodHandle mh=ids.get(call.getId());
+                if(mh != null && mh != NO_HANDLE)
+                    return mh;
+                if(lookup == null)
+                    throw new Exception("MethodCall uses ID=" + call.getId() + ", but method_lookup has not been set");
+                Method method=lookup.findMethod(call.getId());
+                if(method == null)
+                    return null;
+                if(mh == null)
+                    ids.put(call.getId(), mh=getHandle(method));
+                if(mh == NO_HANDLE)
+                    call.setMethod(method); // MethodCall.invoke() doesn't have the lookup
+                return mh;
+            default:
+                throw new IllegalStateException("mode " + call.getMode() + " is invalid");
+        }
+    }
+
+    /** Same semantics as MethodCall.getMethod(): returns the first method whose parameters match types */
+    protected Method findMethod(String name, Class[] types) {
+        Method[] candidates=name != null? methods.get(name) : null;
+        if(candidates == null)
+            return null;
+        int num_types=types != null? types.length : 0;
+        outer:
+        for(Method m: candidates) {
+            Class<?>[] parameters=m.getParameterTypes();
+            if(parameters.length != num_types)
+                continue;
+            for(int i=0; i < num_types; i++)
+                if(!parameters[i].isAssignableFrom(types[i]))
+                    continue outer;
+            return m;
+        }
+        return null;
+    }
+
+    protected MethodHandle getHandle(Method m) {
+        MethodHandle mh=handles.get(m);
+        if(mh == null) { // e.g. a method of an interface shipped with the call
+            MethodHandle tmp=handles.putIfAbsent(m, mh=compile(m));
+            if(tmp != null)
+                mh=tmp;
+        }
+        return mh;
+    }
+
+    /** Creates a handle of type (Object[])Object which is bound to the target, or NO_HANDLE if not accessible */
+    protected MethodHandle compile(Method m) {
+        if(!Modifier.isPublic(m.getModifiers()))
+            return NO_HANDLE;
+        try {
+            MethodHandle mh=MethodHandles.publicLookup().unreflect(m).asFixedArity();
+            if(!Modifier.isStatic(m.getModifiers()))
+                mh=mh.bindTo(target);
+            return mh.asSpreader(Object[].class, m.getParameterTypes().length).asType(INVOKER_TYPE);
+        }
+        catch(Throwable t) {
+            return NO_HANDLE;
+        }
+    }
+
+    public String toString() {
+        return String.format("%s: %d method handles", target.getClass().getSimpleName(), numHandles());
+    }
+}
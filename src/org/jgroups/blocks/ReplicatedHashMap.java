@@ -3,6 +3,7 @@ package org.jgroups.blocks;
 import org.jgroups.*;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.util.MarshallerRegistry;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -49,6 +50,9 @@ public class ReplicatedHashMap<K, V> extends
     private static final short REPLACE_IF_EQUALS=7;
     private static final short CLEAR=8;
 
+    /** Precedes a state containing instances of registered classes; a serialized HashMap starts with 0xACED */
+    protected static final int REGISTERED_STATE=1;
+
     protected static Map<Short,Method> methods;
 
     static {
@@ -455,20 +459,35 @@ public class ReplicatedHashMap<K, V> extends
 
     
 
+    /**
+     * Writes the entries as a HashMap with Java serialization. If a key or value is an instance of a class registered
+     * with {@link MarshallerRegistry}, the entries are instead written one by one (to the same ObjectOutputStream), and
+     * the registered ones are marshalled by their codec
+     */
     public void getState(OutputStream ostream) throws Exception {
-        K key;
-        V val;
         HashMap<K,V> copy=new HashMap<>();
-        ObjectOutputStream oos=null;
-
+        boolean registered=false;
         for(Map.Entry<K,V> entry:entrySet()) {
-            key=entry.getKey();
-            val=entry.getValue();
+            K key=entry.getKey();
+            V val=entry.getValue();
             copy.put(key, val);
+            registered|=isRegistered(key) || isRegistered(val);
         }
+        OutputStream out=new BufferedOutputStream(ostream, 1024);
+        if(registered)
+            out.write(REGISTERED_STATE);
+        ObjectOutputStream oos=null;
         try {
-            oos=new ObjectOutputStream(new BufferedOutputStream(ostream, 1024));
-            oos.writeObject(copy);
+            oos=new ObjectOutputStream(out);
+            if(!registered) {
+                oos.writeObject(copy);
+                return;
+            }
+            oos.writeInt(copy.size());
+            for(Map.Entry<K,V> entry: copy.entrySet()) {
+                writeObject(entry.getKey(), oos);
+                writeObject(entry.getValue(), oos);
+            }
         }
         finally {
             Util.close(oos);
@@ -477,10 +496,24 @@ public class ReplicatedHashMap<K, V> extends
 
     public void setState(InputStream istream) throws Exception {
         HashMap<K,V> new_copy=null;
+        PushbackInputStream in=new PushbackInputStream(istream);
+        int type=in.read();
+        if(type >= 0 && type != REGISTERED_STATE)
+            in.unread(type);
         ObjectInputStream ois=null;
         try {
-            ois=new ObjectInputStream(istream);
-            new_copy=(HashMap<K,V>)ois.readObject();
+            ois=new ObjectInputStream(in);
+            if(type != REGISTERED_STATE)
+                new_copy=(HashMap<K,V>)ois.readObject();
+            else {
+                int size=ois.readInt();
+                new_copy=new HashMap<>(size);
+                for(int i=0; i < size; i++) {
+                    K key=(K)readObject(ois);
+                    V val=(V)readObject(ois);
+                    new_copy.put(key, val);
+                }
+            }
         }
         finally {
             Util.close(ois);
@@ -492,6 +525,23 @@ public class ReplicatedHashMap<K, V> extends
             log.debug("state received successfully");
     }
 
+    protected static boolean isRegistered(Object obj) {
+        return obj != null && MarshallerRegistry.isRegistered(obj.getClass());
+    }
+
+    protected static void writeObject(Object obj, ObjectOutputStream out) throws Exception {
+        boolean registered=isRegistered(obj);
+        out.writeBoolean(registered);
+        if(registered)
+            Util.objectToStream(obj, out);
+        else
+            out.writeObject(obj);
+    }
+
+    protected static Object readObject(ObjectInputStream in) throws Exception {
+        return in.readBoolean()? Util.objectFromStream(in) : in.readObject();
+    }
+
     /*------------------- Membership Changes ----------------------*/
 
     public void viewAccepted(View new_view) {
@@ -42,6 +42,7 @@ public abstract class Request implements RspCollector, NotifyingFuture, org.jgro
     protected volatile boolean        done;
     protected boolean                 block_for_results=true;
     protected final long              req_id; // request ID for this request
+    protected long                    start_time; // ns, set when the request is sent
 
     protected volatile FutureListener listener;
 
@@ -80,9 +81,14 @@ public abstract class Request implements RspCollector, NotifyingFuture, org.jgro
             return false;
         }
 
+        start_time=System.nanoTime();
         sendRequest();
-        if(!block_for_results || options.getMode() == ResponseMode.GET_NONE)
+        if(options.getMode() == ResponseMode.GET_NONE)
             return true;
+        if(!block_for_results) {
+            corr.scheduleTimeout(req_id, options.getTimeout());
+            return true;
+        }
 
         lock.lock();
         try {
@@ -164,11 +170,44 @@ public abstract class Request implements RspCollector, NotifyingFuture, org.jgro
     /* --------------------------------- Private Methods -------------------------------------*/
 
 
+    /**
+     * Called when the timeout of a request which doesn't block the caller elapsed: the request is completed with the
+     * responses received so far and removed from the correlator
+     */
+    public void expire() {
+        lock.lock();
+        try {
+            if(done)
+                return;
+            done=true;
+            if(corr != null)
+                corr.done(req_id);
+            cond.signal(true);
+        }
+        finally {
+            lock.unlock();
+        }
+        checkCompletion(this);
+    }
+
     protected void checkCompletion(Future future) {
         if(listener != null && responsesComplete())
             listener.futureDone(future);
     }
 
+    /**
+     * Called once when the request is removed from the correlator: updates the {@link MemberLatencies} of the targets
+     * which haven't responded
+     * @param now The current time (ns)
+     */
+    protected void updateLatencies(long now) {
+    }
+
+    /** Whether to track the latencies of the targets of this request */
+    protected boolean trackLatencies() {
+        return corr != null && options.getMode() != ResponseMode.GET_NONE;
+    }
+
     /** Generates a new unique request ID */
     protected static long getRequestId() {
         return REQUEST_ID.incrementAndGet();
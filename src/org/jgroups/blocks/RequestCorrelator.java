@@ -6,19 +6,23 @@ import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.protocols.TP;
+import org.jgroups.protocols.relay.SiteAddress;
 import org.jgroups.protocols.relay.SiteMaster;
 import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.Bits;
-import org.jgroups.util.Buffer;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
-import java.io.DataInput;
-import java.io.DataOutput;
-import java.io.NotSerializableException;
+import java.io.*;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -39,12 +43,22 @@ import java.util.concurrent.ConcurrentMap;
  * @author Bela Ban
  */
 public class RequestCorrelator {
+    protected static final byte                      STREAM_FIRST=1, STREAM_LAST=2, STREAM_EXCEPTION=4;
 
     /** The protocol layer to use to pass up/down messages. Can be either a Protocol or a Transport */
     protected Protocol                               transport;
 
-    /** The table of pending requests (keys=Long (request IDs), values=<tt>RequestEntry</tt>) */
-    protected final ConcurrentMap<Long,RspCollector> requests=Util.createConcurrentMap();
+    /** The table of pending requests (keys=request IDs, values=<tt>RspCollector</tt>) */
+    protected final ConcurrentLongMap<RspCollector>  requests=new ConcurrentLongMap<>(8192);
+
+    /** Expires requests which don't block the caller (e.g. futures) when their timeout elapses */
+    protected final TimeoutWheel                     timeouts=new TimeoutWheel(512, 100, TimeUnit.MILLISECONDS,
+                                                                               new TimeoutWheel.Expirer() {
+                                                                                   public void expired(long id) {expire(id);}
+                                                                               });
+    /** Drives the timeout wheel; if null, requests which don't block the caller are not expired */
+    protected TimeScheduler                          timer;
+    protected Future<?>                              timeout_task; // runs timeouts.tick(), started on first use
 
 
     /** The handler for the incoming requests. It is called from inside the dispatcher thread */
@@ -66,7 +80,47 @@ public class RequestCorrelator {
     /** Whether or not to use async dispatcher */
     protected boolean                                async_dispatching=false;
 
-    private final MyProbeHandler                     probe_handler=new MyProbeHandler(requests);
+    /** Limits the number of requests dispatched asynchronously whose responses haven't been sent yet (null: no limit) */
+    protected volatile AdmissionControl              admission_control;
+
+    /**
+     * Whether to pack requests to the same destination which are sent concurrently into a single message. The
+     * receiver sends the responses of such a message in a single message, too. OOB requests are always sent
+     * individually
+     */
+    protected boolean                                coalesce_requests=false;
+
+    /** Max number of bytes of request payloads to pack into a single message */
+    protected int                                    coalesce_max_size=50000;
+
+    /** The requests to be sent, per destination. Only used if coalesce_requests is true */
+    protected final ConcurrentMap<Address,Coalescer> coalescers=Util.createConcurrentMap();
+
+    protected final AtomicLong                       num_coalesced_msgs=new AtomicLong();
+    protected final AtomicLong                       num_coalesced_requests=new AtomicLong();
+
+    /** Size (bytes) of the chunks in which a response is streamed (when a handler returns an InputStream) */
+    protected int                                    stream_chunk_size=32768;
+
+    /** Max number of chunks of a streamed response which have been sent, but not yet read by the caller */
+    protected int                                    stream_window=16;
+
+    /** Max time (ms) to wait for credits (sender) or data (caller) of a streamed response */
+    protected long                                   stream_timeout=60000;
+
+    /** Streamed responses which are being received, keyed by sender and request ID */
+    protected final ConcurrentMap<StreamKey,ResponseStream> streams_in=Util.createConcurrentMap();
+
+    /** Streamed responses which are being sent, keyed by caller and request ID */
+    protected final ConcurrentMap<StreamKey,StreamCredits>  streams_out=Util.createConcurrentMap();
+
+    /** Round-trip times (in microseconds) of requests for which responses were expected */
+    protected final Histogram                        rpc_times=new Histogram();
+
+    /** Latency and outstanding requests per member, used to select the best members for a request */
+    protected final MemberLatencies                  latencies=new MemberLatencies();
+
+    private final MyProbeHandler                     probe_handler=new MyProbeHandler(requests, timeouts, latencies);
 
     protected static final Log                       log=LogFactory.getLog(RequestCorrelator.class);
 
@@ -113,6 +167,26 @@ public class RequestCorrelator {
     public void                     setMarshaller(RpcDispatcher.Marshaller marshaller) {this.marshaller=marshaller;}
     public boolean                  asyncDispatching() {return async_dispatching;}
     public RequestCorrelator        asyncDispatching(boolean flag) {async_dispatching=flag; return this;}
+    public AdmissionControl         admissionControl() {return admission_control;}
+    public RequestCorrelator        admissionControl(AdmissionControl ac) {admission_control=ac; return this;}
+    public TimeScheduler            getTimer() {return timer;}
+    public RequestCorrelator        setTimer(TimeScheduler timer) {this.timer=timer; return this;}
+    public int                      streamChunkSize() {return stream_chunk_size;}
+    public RequestCorrelator        streamChunkSize(int size) {stream_chunk_size=size; return this;}
+    public int                      streamWindow() {return stream_window;}
+    public RequestCorrelator        streamWindow(int window) {stream_window=window; return this;}
+    public long                     streamTimeout() {return stream_timeout;}
+    public RequestCorrelator        streamTimeout(long timeout) {stream_timeout=timeout; return this;}
+    public int                      getNumStreamsReceived() {return streams_in.size();}
+    public int                      getNumStreamsSent()     {return streams_out.size();}
+    public boolean                  coalesceRequests() {return coalesce_requests;}
+    public RequestCorrelator        coalesceRequests(boolean flag) {coalesce_requests=flag; return this;}
+    public int                      coalesceMaxSize() {return coalesce_max_size;}
+    public RequestCorrelator        coalesceMaxSize(int size) {coalesce_max_size=size; return this;}
+    /** Returns the number of messages sent which contained more than one request */
+    public long                     getNumCoalescedMessages() {return num_coalesced_msgs.get();}
+    /** Returns the number of requests sent in messages which contained more than one request */
+    public long                     getNumCoalescedRequests() {return num_coalesced_requests.get();}
 
     public void sendRequest(long id, List<Address> dest_mbrs, Message msg, RspCollector coll) throws Exception {
         sendRequest(id, dest_mbrs, msg, coll, new RequestOptions().setAnycasting(false));
@@ -167,7 +241,7 @@ public class RequestCorrelator {
                     copy.setDest(mbr);
                     if(!mbr.equals(local_addr) && copy.isTransientFlagSet(Message.TransientFlag.DONT_LOOPBACK))
                         copy.clearTransientFlag(Message.TransientFlag.DONT_LOOPBACK);
-                    transport.down(new Event(Event.MSG, copy));
+                    sendDown(copy);
                 }
             }
         }
@@ -175,6 +249,20 @@ public class RequestCorrelator {
             transport.down(new Event(Event.MSG, msg));
     }
 
+    /**
+     * Sends a copy of a request which has already been sent by {@link #sendRequest(long,Collection,Message,RspCollector,RequestOptions)}
+     * to an additional destination, e.g. a hedged request. The responses are passed to the collector registered then
+     */
+    protected void resendRequest(Message msg, Address dest) {
+        if(transport == null)
+            return;
+        Message copy=msg.copy(true);
+        copy.setDest(dest);
+        if(!dest.equals(local_addr) && copy.isTransientFlagSet(Message.TransientFlag.DONT_LOOPBACK))
+            copy.clearTransientFlag(Message.TransientFlag.DONT_LOOPBACK);
+        sendDown(copy);
+    }
+
     /**
      * Sends a request to a single destination
      * @param id
@@ -202,13 +290,68 @@ public class RequestCorrelator {
             coll.viewChange(view);
         }
 
-        transport.down(new Event(Event.MSG, msg));
+        sendDown(msg);
+    }
+
+
+    /**
+     * Sends a request to a single destination. If coalesce_requests is true, the request may be sent in the same
+     * message as other requests to the same destination
+     */
+    protected void sendDown(Message msg) {
+        Address dest=msg.getDest();
+        // OOB requests are not coalesced: the responses to a multi-request are sent when all of its requests have
+        // been handled, so a slow OOB request would delay unrelated OOB requests packed into the same message
+        if(!coalesce_requests || dest == null || dest instanceof AnycastAddress || msg.isFlagSet(Message.Flag.OOB)
+          || msg.getHeader(this.id) instanceof MultiDestinationHeader) {
+            transport.down(new Event(Event.MSG, msg));
+            return;
+        }
+        Coalescer coalescer=coalescers.get(dest);
+        if(coalescer == null) {
+            Coalescer tmp=coalescers.putIfAbsent(dest, coalescer=new Coalescer());
+            if(tmp != null)
+                coalescer=tmp;
+        }
+        coalescer.send(msg);
     }
 
 
 
 
 
+    /**
+     * Expires the request with the given ID when timeout (ms) elapses, unless it completed by then. Used for
+     * requests which don't block the caller, so that they're removed even if the caller never waits for them.
+     * Pending requests are expired in bulk by a single timer task, rather than by a timer task per request.
+     * @return True if the request will be expired, false if no timer is available
+     */
+    public boolean scheduleTimeout(long id, long timeout) {
+        TimeScheduler tmp=timer;
+        if(tmp == null || timeout <= 0)
+            return false;
+        timeouts.add(id, timeout, TimeUnit.MILLISECONDS);
+        if(timeout_task == null) {
+            synchronized(timeouts) {
+                if(timeout_task == null && started) {
+                    long tick=timeouts.tickTime(TimeUnit.MILLISECONDS);
+                    timeout_task=tmp.scheduleWithFixedDelay(new Runnable() {
+                        public void run() {timeouts.tick();}
+                        public String toString() {return RequestCorrelator.class.getSimpleName() + ": timeouts";}
+                    }, tick, tick, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Called by the timeout wheel when the timeout of a request elapsed */
+    protected void expire(long id) {
+        RspCollector coll=requests.get(id);
+        if(coll instanceof Request)
+            ((Request)coll).expire();
+    }
+
     /**
      * Used to signal that a certain request may be garbage collected as all responses have been received.
      */
@@ -266,6 +409,12 @@ public class RequestCorrelator {
 
     public void stop() {
         started=false;
+        synchronized(timeouts) {
+            if(timeout_task != null) {
+                timeout_task.cancel(false);
+                timeout_task=null;
+            }
+        }
         for(RspCollector coll: requests.values())
             coll.transportClosed();
         requests.clear();
@@ -330,6 +479,22 @@ public class RequestCorrelator {
             if(coll != null)
                 coll.viewChange(new_view);
         }
+        if(new_view != null) {
+            coalescers.keySet().retainAll(new_view.getMembers());
+            latencies.retainAll(new_view.getMembers());
+            for(Map.Entry<StreamKey,ResponseStream> entry: streams_in.entrySet()) {
+                Address sender=entry.getKey().addr;
+                if(!(sender instanceof SiteAddress) && !new_view.containsMember(sender)) {
+                    streams_in.remove(entry.getKey());
+                    entry.getValue().done(new SuspectedException(sender));
+                }
+            }
+            for(Map.Entry<StreamKey,StreamCredits> entry: streams_out.entrySet()) {
+                Address caller=entry.getKey().addr;
+                if(!(caller instanceof SiteAddress) && !new_view.containsMember(caller))
+                    entry.getValue().add(-1);
+            }
+        }
     }
 
 
@@ -379,24 +544,26 @@ public class RequestCorrelator {
 
             case Header.RSP:
             case Header.EXC_RSP:
-                RspCollector coll=requests.get(hdr.id);
-                if(coll != null) {
-                    boolean is_exception=hdr.type == Header.EXC_RSP;
-                    Address sender=msg.getSrc();
-                    Object retval;
-                    byte[] buf=msg.getRawBuffer();
-                    int offset=msg.getOffset(), length=msg.getLength();
-                    try {
-                        retval=marshaller != null? marshaller.objectFromBuffer(buf, offset, length) :
-                                Util.objectFromByteBuffer(buf, offset, length);
-                    }
-                    catch(Exception e) {
-                        log.error("failed unmarshalling buffer into return value", e);
-                        retval=e;
-                        is_exception=true;
-                    }
-                    coll.receiveResponse(retval, sender, is_exception);
-                }
+                handleResponse(msg, hdr.id, hdr.type == Header.EXC_RSP,
+                               msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+                break;
+
+            case Header.MULTI_REQ:
+                handleMultiRequest(msg);
+                break;
+
+            case Header.MULTI_RSP:
+                handleMultiResponse(msg);
+                break;
+
+            case Header.STREAM:
+                handleStreamChunk(msg, hdr.id);
+                break;
+
+            case Header.STREAM_CREDITS:
+                StreamCredits credits=streams_out.get(new StreamKey(msg.getSrc(), hdr.id));
+                if(credits != null)
+                    credits.add(ByteBuffer.wrap(msg.getRawBuffer(), msg.getOffset(), msg.getLength()).getInt());
                 break;
 
             default:
@@ -412,6 +579,31 @@ public class RequestCorrelator {
         return local_addr;
     }
 
+    /** Returns the handler for request req */
+    protected RequestHandler requestHandler(Message req) {
+        return request_handler;
+    }
+
+    /** Returns the marshaller for the responses to request msg, or for response msg */
+    protected RpcDispatcher.Marshaller marshaller(Message msg) {
+        return marshaller;
+    }
+
+    /** Returns the round-trip times (in microseconds) of requests which expected responses */
+    public Histogram getRpcTimes() {
+        return rpc_times;
+    }
+
+    /** Returns the latencies and outstanding requests per member */
+    public MemberLatencies getMemberLatencies() {
+        return latencies;
+    }
+
+    /** Returns the number of requests waiting for responses */
+    public int getNumPendingRequests() {
+        return requests.size();
+    }
+
     public void setLocalAddress(Address local_addr) {
         this.local_addr=local_addr;
     }
@@ -433,31 +625,81 @@ public class RequestCorrelator {
      *
      * @param id the id of the <tt>RequestEntry</tt> to remove
      */
-    private void removeEntry(long id) {
+    protected void removeEntry(long id) {
         // changed by bela Feb 28 2003 (bug fix for 690606)
         // changed back to use synchronization by bela June 27 2003 (bug fix for #761804),
         // we can do this because we now copy for iteration (viewChange() and suspect())
-        requests.remove(id);
+        RspCollector coll=requests.remove(id);
+        if(coll instanceof Request) {
+            long start=((Request)coll).start_time, now=System.nanoTime();
+            if(start > 0)
+                rpc_times.add(TimeUnit.NANOSECONDS.toMicros(now - start));
+            ((Request)coll).updateLatencies(now);
+        }
     }
 
 
 
+    /** Handles a response to request req_id, contained in msg at buf[offset .. offset+length] */
+    protected void handleResponse(Message msg, long req_id, boolean is_exception, byte[] buf, int offset, int length) {
+        RspCollector coll=requests.get(req_id);
+        if(coll == null)
+            return;
+        Object retval;
+        RpcDispatcher.Marshaller marshaller=marshaller(msg);
+        try {
+            retval=marshaller != null? marshaller.objectFromBuffer(buf, offset, length) :
+              Util.objectFromByteBuffer(buf, offset, length);
+        }
+        catch(Exception e) {
+            log.error("failed unmarshalling buffer into return value", e);
+            retval=e;
+            is_exception=true;
+        }
+        coll.receiveResponse(retval, msg.getSrc(), is_exception);
+    }
+
+
     /**
      * Handle a request msg for this correlator
      * @param req the request msg
      */
     protected void handleRequest(Message req, Header hdr) {
-        Object        retval;
-        boolean       threw_exception=false;
+        handleRequest(req, hdr, null);
+    }
+
+    /**
+     * Handles a request. If rsps is non-null, the response is added to it rather than sent (unless the request is
+     * dispatched asynchronously)
+     */
+    protected void handleRequest(Message req, Header hdr, List<Message> rsps) {
+        Object         retval;
+        boolean        threw_exception=false;
+        RequestHandler handler=requestHandler(req);
 
         if(log.isTraceEnabled()) {
-            log.trace(new StringBuilder("calling (").append((request_handler != null? request_handler.getClass().getName() : "null")).
+            log.trace(new StringBuilder("calling (").append((handler != null? handler.getClass().getName() : "null")).
                       append(") with request ").append(hdr.id));
         }
-        if(async_dispatching && request_handler instanceof AsyncRequestHandler) {
-            Response rsp=hdr.rsp_expected? new ResponseImpl(req, hdr.id) : null;
+        if(async_dispatching && handler instanceof AsyncRequestHandler) {
+            AdmissionControl ac=hdr.rsp_expected? admission_control : null;
+            if(ac != null && !ac.acquire(req.getSrc())) {
+                sendReply(req, hdr.id, new RejectedExecutionException(String.format("%s: rejected request %d from %s: %s",
+                                                                                     local_addr, hdr.id, req.getSrc(), ac)),
+                          true, rsps);
+                return;
+            }
+            // the handler may access the request after we return: a pooled buffer is released when the response
+            // is sent, or copied if no response is expected (nothing tells us when the handler is done with it)
+            ResponseImpl rsp=hdr.rsp_expected? new ResponseImpl(req, hdr.id, ac).retainBuffer() : null;
+            if(rsp == null) {
+                byte[] buf=req.getRawBuffer(); // copies a composite payload into a single (unpooled) buffer
+                if(buf != null && req.getPooledBuffer() != null)
+                    req.setBuffer(Arrays.copyOfRange(buf, req.getOffset(), req.getOffset() + req.getLength()));
+            }
+
             try {
-                ((AsyncRequestHandler)request_handler).handle(req, rsp);
+                ((AsyncRequestHandler)handler).handle(req, rsp);
             }
             catch(Throwable t) {
                 if(rsp != null)
@@ -469,19 +711,126 @@ public class RequestCorrelator {
         }
 
         try {
-            retval=request_handler.handle(req);
+            retval=handler.handle(req);
         }
         catch(Throwable t) {
             threw_exception=true;
             retval=new InvocationTargetException(t);
         }
         if(hdr.rsp_expected)
-            sendReply(req, hdr.id, retval, threw_exception);
+            sendReply(req, hdr.id, retval, threw_exception, rsps);
+    }
+
+
+    /**
+     * Handles a message containing multiple requests (sent by a member with coalesce_requests=true). The requests
+     * are handled one after the other and the responses of the requests not dispatched asynchronously are sent back
+     * in a single message. OOB requests are never coalesced, so a multi-request is always a regular message
+     */
+    protected void handleMultiRequest(Message msg) {
+        List<Message> rsps=null;
+        byte[] buf=msg.getRawBuffer();
+        BufferPool.Ref ref=msg.getPooledBuffer(); // each request holds a reference, as it may be handled async
+        try {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, msg.getOffset(), msg.getLength());
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                long req_id=Bits.readLong(in);
+                boolean rsp_expected=in.readBoolean();
+                int len=in.readInt(), pos=in.position();
+                in.skipBytes(len);
+                Message req=msg.copy(false, true);
+                if(ref != null)
+                    req.setPooledBuffer(ref.retain(), pos, len);
+                else
+                    req.setBuffer(buf, pos, len);
+                Header hdr=new Header(Header.REQ, req_id, rsp_expected, this.id);
+                req.putHeader(this.id, hdr);
+                if(rsp_expected && rsps == null)
+                    rsps=new ArrayList<>(num);
+                try {
+                    handleRequest(req, hdr, rsps);
+                }
+                finally {
+                    req.release();
+                }
+            }
+        }
+        catch(Throwable t) {
+            log.error(local_addr + ": failed handling multi-request from " + msg.getSrc(), t);
+        }
+        if(rsps != null && !rsps.isEmpty())
+            sendResponses(msg, rsps);
+    }
+
+    protected void handleMultiResponse(Message msg) {
+        byte[] buf=msg.getRawBuffer();
+        try {
+            ByteArrayDataInputStream in=new ByteArrayDataInputStream(buf, msg.getOffset(), msg.getLength());
+            int num=in.readInt();
+            for(int i=0; i < num; i++) {
+                byte type=in.readByte();
+                long req_id=Bits.readLong(in);
+                int len=in.readInt(), pos=in.position();
+                in.skipBytes(len);
+                handleResponse(msg, req_id, type == Header.EXC_RSP, buf, pos, len);
+            }
+        }
+        catch(Throwable t) {
+            log.error(local_addr + ": failed handling multi-response from " + msg.getSrc(), t);
+        }
+    }
+
+    /** Sends the responses to the requests of a multi-request in a single message */
+    protected void sendResponses(Message req, List<Message> rsps) {
+        if(rsps.size() == 1) {
+            Message rsp=rsps.get(0);
+            prepareResponse(req, rsp);
+            transport.down(new Event(Event.MSG, rsp));
+            return;
+        }
+        int size=Global.INT_SIZE;
+        for(Message rsp: rsps)
+            size+=Global.BYTE_SIZE + Global.LONG_SIZE + Global.INT_SIZE + rsp.getLength();
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size);
+        try {
+            out.writeInt(rsps.size());
+            for(Message rsp: rsps) {
+                Header hdr=(Header)rsp.getHeader(this.id);
+                out.writeByte(hdr.type);
+                Bits.writeLong(hdr.id, out);
+                out.writeInt(rsp.getLength());
+                if(rsp.getLength() > 0)
+                    out.write(rsp.getRawBuffer(), rsp.getOffset(), rsp.getLength());
+            }
+        }
+        catch(Exception ex) {
+            log.error(local_addr + ": failed marshalling responses to " + req.getSrc(), ex);
+            return;
+        }
+        Message multi=req.makeReply().setFlag(req.getFlags()).clearFlag(Message.Flag.RSVP, Message.Flag.SCOPED)
+          .setBuffer(out.getBuffer());
+        prepareResponse(req, multi);
+        multi.putHeader(this.id, new Header(Header.MULTI_RSP, 0, false, this.id));
+        if(log.isTraceEnabled())
+            log.trace("%s: sending %d responses to %s", local_addr, rsps.size(), multi.getDest());
+        transport.down(new Event(Event.MSG, multi));
     }
 
 
     protected void sendReply(final Message req, final long req_id, Object reply, boolean is_exception) {
+        sendReply(req, req_id, reply, is_exception, null);
+    }
+
+    /** Marshals reply and sends it, or adds it to rsps if non-null. An InputStream is streamed to the caller */
+    protected void sendReply(final Message req, final long req_id, Object reply, boolean is_exception,
+                             List<Message> rsps) {
+        if(reply instanceof InputStream && !is_exception) {
+            sendStream(req, req_id, (InputStream)reply);
+            return;
+        }
         Object rsp_buf; // either byte[] or Buffer
+        RpcDispatcher.Marshaller marshaller=marshaller(req);
         try {  // retval could be an exception, or a real value
             rsp_buf=marshaller != null? marshaller.objectToBuffer(reply) : Util.objectToByteBuffer(reply);
         }
@@ -506,11 +855,16 @@ public class RequestCorrelator {
         else if(rsp_buf instanceof byte[])
             rsp.setBuffer((byte[])rsp_buf);
 
-       sendResponse(rsp, req_id, is_exception);
+        if(rsps != null) {
+            rsp.putHeader(id, new Header(is_exception? Header.EXC_RSP : Header.RSP, req_id, false, id));
+            rsps.add(rsp);
+        }
+        else
+            sendResponse(req, rsp, req_id, is_exception);
     }
 
-    protected void sendResponse(Message rsp, long req_id, boolean is_exception) {
-        prepareResponse(rsp);
+    protected void sendResponse(Message req, Message rsp, long req_id, boolean is_exception) {
+        prepareResponse(req, rsp);
         Header rsp_hdr=new Header(is_exception? Header.EXC_RSP : Header.RSP, req_id, false, id);
         rsp.putHeader(id, rsp_hdr);
         if(log.isTraceEnabled())
@@ -524,24 +878,206 @@ public class RequestCorrelator {
         ;
     }
 
+    /** Called before sending rsp, a response (or a chunk of a streamed response) to req */
+    protected void prepareResponse(Message req, Message rsp) {
+        prepareResponse(rsp);
+    }
+
+
+    /**
+     * Sends the data read from in to the caller in chunks of stream_chunk_size bytes. At most stream_window chunks
+     * which have not yet been read by the caller are sent; after that, the calling thread blocks until the caller
+     * sends credits (or stream_timeout elapses). The chunks are sent as regular messages, so they're received in
+     * order. The first byte of a chunk contains flags (first chunk, last chunk, exception)
+     */
+    protected void sendStream(Message req, long req_id, InputStream in) {
+        StreamKey key=new StreamKey(req.getSrc(), req_id);
+        StreamCredits credits=new StreamCredits(stream_window);
+        streams_out.put(key, credits);
+        boolean first=true;
+        try {
+            for(;;) {
+                byte[] chunk=new byte[stream_chunk_size + 1];
+                int len=readFully(in, chunk, 1, stream_chunk_size);
+                boolean last=len < stream_chunk_size;
+                chunk[0]=(byte)((first? STREAM_FIRST : 0) | (last? STREAM_LAST : 0));
+                credits.acquire(stream_timeout);
+                sendStreamChunk(req, req_id, new Buffer(chunk, 0, len + 1));
+                first=false;
+                if(last)
+                    break;
+            }
+        }
+        catch(Throwable t) {
+            if(first)
+                sendReply(req, req_id, t, true, null);
+            else if(!credits.cancelled()) {
+                log.error(local_addr + ": failed streaming response to " + req.getSrc(), t);
+                try {
+                    RpcDispatcher.Marshaller marshaller=marshaller(req);
+                    Buffer ex=marshaller != null? marshaller.objectToBuffer(t) : new Buffer(Util.objectToByteBuffer(t));
+                    byte[] chunk=new byte[ex.getLength() + 1];
+                    chunk[0]=STREAM_LAST | STREAM_EXCEPTION;
+                    System.arraycopy(ex.getBuf(), ex.getOffset(), chunk, 1, ex.getLength());
+                    sendStreamChunk(req, req_id, new Buffer(chunk));
+                }
+                catch(Throwable tt) {
+                    log.error(local_addr + ": failed sending exception to " + req.getSrc(), tt);
+                }
+            }
+        }
+        finally {
+            streams_out.remove(key);
+            Util.close(in);
+        }
+    }
+
+    protected void sendStreamChunk(Message req, long req_id, Buffer chunk) {
+        Message msg=req.makeReply().setFlag(req.getFlags())
+          .clearFlag(Message.Flag.RSVP, Message.Flag.SCOPED, Message.Flag.OOB).setBuffer(chunk);
+        prepareResponse(req, msg);
+        msg.putHeader(id, new Header(Header.STREAM, req_id, false, id));
+        transport.down(new Event(Event.MSG, msg));
+    }
+
+    /** Handles a chunk of a streamed response: the first chunk creates the stream and passes it to the collector */
+    protected void handleStreamChunk(Message msg, long req_id) {
+        Address sender=msg.getSrc();
+        byte[] buf=msg.getRawBuffer();
+        int offset=msg.getOffset(), length=msg.getLength();
+        if(length < 1)
+            return;
+        byte flags=buf[offset];
+        boolean first=(flags & STREAM_FIRST) != 0, last=(flags & STREAM_LAST) != 0;
+        StreamKey key=new StreamKey(sender, req_id);
+        ResponseStream stream;
+        RspCollector coll=null;
+        if(first) {
+            if((coll=requests.get(req_id)) == null) { // the request was cancelled or timed out: stop the sender
+                if(!last)
+                    sendStreamCredits(sender, req_id, -1);
+                return;
+            }
+            stream=new ResponseStream(this, sender, req_id, stream_window, stream_timeout);
+            if(!last)
+                streams_in.put(key, stream);
+        }
+        else if((stream=last? streams_in.remove(key) : streams_in.get(key)) == null)
+            return;
+
+        if((flags & STREAM_EXCEPTION) != 0) {
+            Throwable ex;
+            RpcDispatcher.Marshaller marshaller=marshaller(msg);
+            try {
+                Object obj=marshaller != null? marshaller.objectFromBuffer(buf, offset+1, length-1)
+                  : Util.objectFromByteBuffer(buf, offset+1, length-1);
+                ex=obj instanceof Throwable? (Throwable)obj : new Exception(String.valueOf(obj));
+            }
+            catch(Exception e) {
+                ex=e;
+            }
+            stream.done(ex);
+        }
+        else {
+            msg.retain(); // the stream refers to the buffer after this method returns
+            stream.add(new Buffer(buf, offset + 1, length - 1));
+            if(last)
+                stream.done(null);
+        }
+        if(coll != null)
+            coll.receiveResponse(stream, sender, false);
+    }
+
+    /** Sends credits for a streamed response to its sender. Negative credits cancel the sending of the response */
+    protected void sendStreamCredits(Address sender, long req_id, int credits) {
+        Message msg=new Message(sender, ByteBuffer.allocate(Global.INT_SIZE).putInt(credits).array())
+          .setFlag(Message.Flag.OOB);
+        prepareResponse(msg);
+        msg.putHeader(id, new Header(Header.STREAM_CREDITS, req_id, false, id));
+        transport.down(new Event(Event.MSG, msg));
+    }
+
+    protected void removeStream(Address sender, long req_id) {
+        streams_in.remove(new StreamKey(sender, req_id));
+    }
+
+    /** Reads until len bytes have been read or the end of the stream has been reached */
+    protected static int readFully(InputStream in, byte[] buf, int offset, int len) throws IOException {
+        int total=0;
+        while(total < len) {
+            int num=in.read(buf, offset + total, len - total);
+            if(num < 0)
+                break;
+            total+=num;
+        }
+        return total;
+    }
+
     // .......................................................................
 
 
     protected class ResponseImpl implements Response {
-        protected final Message req;
-        protected final long    req_id;
+        protected final Message          req;
+        protected final long             req_id;
+        protected AdmissionControl       admission_control; // released when the response is sent, if non-null
+        protected BufferPool.Ref         buf_ref;           // the pooled buffer of the request, released as above
+        protected CompositeBuffer        composite;         // the pooled segments of the request, released as above
 
         public ResponseImpl(Message req, long req_id) {
+            this(req, req_id, null);
+        }
+
+        public ResponseImpl(Message req, long req_id, AdmissionControl admission_control) {
             this.req=req;
             this.req_id=req_id;
+            this.admission_control=admission_control;
         }
 
         public void send(Object reply, boolean is_exception) {
-            sendReply(req, req_id, reply, is_exception);
+            try {
+                sendReply(req, req_id, reply, is_exception);
+            }
+            finally {
+                release();
+            }
         }
 
         public void send(Message reply, boolean is_exception) {
-            sendResponse(reply, req_id, is_exception);
+            try {
+                sendResponse(req, reply, req_id, is_exception);
+            }
+            finally {
+                release();
+            }
+        }
+
+        /** Retains the pooled buffer of the request (if any) until the response has been sent */
+        protected ResponseImpl retainBuffer() {
+            if((buf_ref=req.getPooledBuffer()) != null)
+                buf_ref.retain();
+            if((composite=req.getCompositeBuffer()) != null)
+                composite.retain();
+            return this;
+        }
+
+        protected void release() {
+            AdmissionControl ac;
+            BufferPool.Ref   ref;
+            CompositeBuffer  cb;
+            synchronized(this) {
+                ac=admission_control;
+                ref=buf_ref;
+                cb=composite;
+                admission_control=null;
+                buf_ref=null;
+                composite=null;
+            }
+            if(ac != null)
+                ac.release(req.getSrc());
+            if(ref != null)
+                ref.release();
+            if(cb != null)
+                cb.release();
         }
     }
 
@@ -553,6 +1089,10 @@ public class RequestCorrelator {
         public static final byte REQ     = 0;
         public static final byte RSP     = 1;
         public static final byte EXC_RSP = 2; // exception
+        public static final byte MULTI_REQ = 3; // multiple requests, packed into the payload
+        public static final byte MULTI_RSP = 4; // multiple responses, packed into the payload
+        public static final byte STREAM    = 5; // a chunk of a streamed response
+        public static final byte STREAM_CREDITS = 6; // credits for a streamed response, sent by the caller
 
         /** Type of header: request or reply */
         public byte    type;
@@ -597,6 +1137,14 @@ public class RequestCorrelator {
                     break;
                 case EXC_RSP: ret.append("EXC_RSP");
                     break;
+                case MULTI_REQ: ret.append("MULTI_REQ");
+                    break;
+                case MULTI_RSP: ret.append("MULTI_RSP");
+                    break;
+                case STREAM: ret.append("STREAM");
+                    break;
+                case STREAM_CREDITS: ret.append("STREAM_CREDITS");
+                    break;
                 default: ret.append("<unknown>");
             }
             ret.append(", id=" + id);
@@ -666,11 +1214,184 @@ public class RequestCorrelator {
 
 
 
+    /** Identifies a streamed response by the address of the sender (or caller) and the request ID */
+    protected static class StreamKey {
+        protected final Address addr;
+        protected final long    req_id;
+
+        protected StreamKey(Address addr, long req_id) {
+            this.addr=addr;
+            this.req_id=req_id;
+        }
+
+        public int hashCode() {
+            return (addr != null? addr.hashCode() : 0) * 31 + (int)(req_id ^ (req_id >>> 32));
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof StreamKey))
+                return false;
+            StreamKey other=(StreamKey)obj;
+            return req_id == other.req_id && Util.match(addr, other.addr);
+        }
+
+        public String toString() {
+            return addr + "::" + req_id;
+        }
+    }
+
+
+    /** The number of chunks of a streamed response which can be sent without blocking */
+    protected static class StreamCredits {
+        protected int     credits;
+        protected boolean cancelled;
+
+        protected StreamCredits(int credits) {
+            this.credits=credits;
+        }
+
+        protected synchronized boolean cancelled() {return cancelled;}
+
+        /** Adds credits, or cancels the sending of the response if num is negative */
+        protected synchronized void add(int num) {
+            if(num < 0)
+                cancelled=true;
+            else
+                credits+=num;
+            notifyAll();
+        }
+
+        protected synchronized void acquire(long timeout) throws Exception {
+            long wait_time=TimeUnit.MILLISECONDS.toNanos(timeout), deadline=System.nanoTime() + wait_time;
+            while(credits <= 0 && !cancelled) {
+                if(wait_time <= 0)
+                    throw new TimeoutException("timed out waiting for credits");
+                TimeUnit.NANOSECONDS.timedWait(this, wait_time);
+                wait_time=deadline - System.nanoTime();
+            }
+            if(cancelled)
+                throw new IllegalStateException("the caller cancelled the response");
+            credits--;
+        }
+    }
+
+
+    /**
+     * Sends the requests to a destination. The first thread to add a request sends it, plus all requests added by
+     * other threads while it was sending, so requests are only packed into a single message when they're sent
+     * concurrently, and a request is never delayed.
+     */
+    protected class Coalescer {
+        protected final java.util.Queue<Message> queue=new ConcurrentLinkedQueue<>();
+        protected final AtomicInteger  size=new AtomicInteger(); // number of messages added but not yet sent
+
+        protected void send(Message msg) {
+            queue.add(msg);
+            if(size.getAndIncrement() > 0)
+                return; // another thread is sending and will send msg, too
+            int removed;
+            do {
+                List<Message> msgs=drain(size.get());
+                removed=msgs.size();
+                try {
+                    sendAll(msgs);
+                }
+                catch(Throwable t) {
+                    // size must be decremented by the number of dequeued messages, or nobody would send to dest again
+                    log.error(local_addr + ": failed sending " + removed + " requests to " + msgs.get(0).getDest(), t);
+                }
+            }
+            while(size.addAndGet(-removed) > 0);
+        }
+
+        /** Removes up to max_msgs queued messages */
+        protected List<Message> drain(int max_msgs) {
+            List<Message> msgs=new ArrayList<>(Math.min(max_msgs, 64));
+            Message msg;
+            while(msgs.size() < max_msgs && (msg=queue.poll()) != null)
+                msgs.add(msg);
+            return msgs;
+        }
+
+        /** Sends msgs, packing consecutive compatible messages into a single message */
+        protected void sendAll(List<Message> msgs) {
+            List<Message> batch=new ArrayList<>(msgs.size());
+            int batch_size=0;
+            for(Message msg: msgs) {
+                if(!batch.isEmpty() && (batch_size + msg.getLength() > coalesce_max_size || !compatible(batch.get(0), msg))) {
+                    sendBatch(batch);
+                    batch.clear();
+                    batch_size=0;
+                }
+                batch.add(msg);
+                batch_size+=msg.getLength();
+            }
+            if(!batch.isEmpty())
+                sendBatch(batch);
+        }
+
+        protected void sendBatch(List<Message> batch) {
+            if(batch.size() > 1) {
+                try {
+                    Message multi=createMultiRequest(batch);
+                    num_coalesced_msgs.incrementAndGet();
+                    num_coalesced_requests.addAndGet(batch.size());
+                    transport.down(new Event(Event.MSG, multi));
+                    return;
+                }
+                catch(Throwable t) {
+                    log.error(local_addr + ": failed coalescing requests, sending them individually", t);
+                }
+            }
+            for(Message msg: batch)
+                transport.down(new Event(Event.MSG, msg));
+        }
+
+        /** Messages can be sent together if they have the same flags and (except for our header) the same headers */
+        protected boolean compatible(Message first, Message msg) {
+            if(first.getFlags() != msg.getFlags() || first.getTransientFlags() != msg.getTransientFlags()
+              || first.getNumHeaders() != msg.getNumHeaders())
+                return false;
+            for(Map.Entry<Short,org.jgroups.Header> entry: first.getHeaders().entrySet()) {
+                short hdr_id=entry.getKey();
+                if(hdr_id != id && msg.getHeader(hdr_id) != entry.getValue())
+                    return false;
+            }
+            return true;
+        }
+
+        protected Message createMultiRequest(List<Message> batch) throws Exception {
+            int size=Global.INT_SIZE;
+            for(Message msg: batch)
+                size+=Global.LONG_SIZE + Global.BYTE_SIZE + Global.INT_SIZE + msg.getLength();
+            ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(size);
+            boolean rsp_expected=false;
+            out.writeInt(batch.size());
+            for(Message msg: batch) {
+                Header hdr=(Header)msg.getHeader(id);
+                Bits.writeLong(hdr.id, out);
+                out.writeBoolean(hdr.rsp_expected);
+                rsp_expected|=hdr.rsp_expected;
+                out.writeInt(msg.getLength());
+                if(msg.getLength() > 0)
+                    out.write(msg.getRawBuffer(), msg.getOffset(), msg.getLength());
+            }
+            Message multi=batch.get(0).copy(false, true).setBuffer(out.getBuffer());
+            multi.putHeader(id, new Header(Header.MULTI_REQ, 0, rsp_expected, id));
+            return multi;
+        }
+    }
+
+
     private static class MyProbeHandler implements DiagnosticsHandler.ProbeHandler {
-        private final ConcurrentMap<Long,RspCollector> requests;
+        private final ConcurrentLongMap<RspCollector> requests;
+        private final TimeoutWheel                    timeouts;
+        private final MemberLatencies                 latencies;
 
-        private MyProbeHandler(ConcurrentMap<Long,RspCollector> requests) {
+        private MyProbeHandler(ConcurrentLongMap<RspCollector> requests, TimeoutWheel timeouts, MemberLatencies latencies) {
             this.requests=requests;
+            this.timeouts=timeouts;
+            this.latencies=latencies;
         }
 
         public Map<String, String> handleProbe(String... keys) {
@@ -679,19 +1400,23 @@ public class RequestCorrelator {
             Map<String,String> retval=new HashMap<>();
             for(String key: keys) {
                 if(key.equals("requests")) {
-                    StringBuilder sb=new StringBuilder();
-                    for(Map.Entry<Long,RspCollector> entry: requests.entrySet()) {
-                        sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
-                    }
+                    final StringBuilder sb=new StringBuilder();
+                    requests.forEach(new ConcurrentLongMap.Visitor<RspCollector>() {
+                        public void visit(long id, RspCollector coll) {
+                            sb.append(id).append(": ").append(coll).append("\n");
+                        }
+                    });
+                    sb.append("timeouts: ").append(timeouts);
                     retval.put("requests", sb.toString());
-                    break;
                 }
+                else if(key.equals("latencies"))
+                    retval.put("latencies", latencies.toString());
             }
             return retval;
         }
 
         public String[] supportedKeys() {
-            return new String[]{"requests"};
+            return new String[]{"requests", "latencies"};
         }
     }
 
@@ -38,6 +38,28 @@ public class RequestOptions {
     /** A list of members which should be excluded from a call */
     protected Address[]     exclusion_list;
 
+    /** If > 0, a group request is sent to the first num_targets destinations only (using anycasting). The remaining
+     * destinations are used to send hedged requests to (see hedge_percentile) */
+    protected int           num_targets;
+
+    /** If > 0, a group request completes as soon as num_responses valid responses have been received. Overrides mode
+     * (except GET_NONE) */
+    protected int           num_responses;
+
+    /** If > 0 (and num_targets is set), a hedged request is sent to the next destination if the required responses
+     * have not been received after the given percentile (e.g. 95.0) of the round-trip times of previous requests */
+    protected double        hedge_percentile;
+
+    /** The min time (ms) to wait before sending a hedged request. Used if no round-trip times are available yet */
+    protected long          hedge_delay=10;
+
+    /** The max number of hedged requests sent per request */
+    protected int           max_hedges=1;
+
+    /** Orders the destinations of a group request by their score (see {@link MemberLatencies}) before selecting
+     * num_targets of them. If num_targets is 0, the request is sent to the best member only */
+    protected boolean       adaptive_selection;
+
 
 
     public RequestOptions() {
@@ -77,6 +99,13 @@ public class RequestOptions {
         this.flags=opts.flags;
         this.transient_flags=opts.transient_flags;
         this.exclusion_list=opts.exclusion_list;
+        this.use_anycast_addresses=opts.use_anycast_addresses;
+        this.num_targets=opts.num_targets;
+        this.num_responses=opts.num_responses;
+        this.hedge_percentile=opts.hedge_percentile;
+        this.hedge_delay=opts.hedge_delay;
+        this.max_hedges=opts.max_hedges;
+        this.adaptive_selection=opts.adaptive_selection;
     }
 
 
@@ -119,6 +148,52 @@ public class RequestOptions {
         return this;
     }
 
+    public int getNumTargets() {return num_targets > 0 || !adaptive_selection? num_targets : 1;}
+
+    /** Sends a group request to the first num_targets destinations only (implies anycasting) */
+    public RequestOptions setNumTargets(int num_targets) {
+        this.num_targets=num_targets;
+        if(num_targets > 0)
+            use_anycasting=true;
+        return this;
+    }
+
+    public int getNumResponses() {return num_responses;}
+
+    /** Completes a group request when num_responses valid responses have been received */
+    public RequestOptions setNumResponses(int num_responses) {
+        this.num_responses=num_responses;
+        return this;
+    }
+
+    public double getHedgePercentile() {return hedge_percentile;}
+    public long   getHedgeDelay()      {return hedge_delay;}
+    public int    getMaxHedges()       {return max_hedges;}
+
+    /**
+     * Enables hedged requests: if a request sent to num_targets destinations hasn't completed after the given
+     * percentile of the round-trip times of previous requests (but at least min_delay ms), it is sent to the next
+     * destination, up to max_hedges times
+     */
+    public RequestOptions setHedging(double percentile, long min_delay, int max_hedges) {
+        this.hedge_percentile=percentile;
+        this.hedge_delay=min_delay;
+        this.max_hedges=max_hedges;
+        return this;
+    }
+
+    public boolean isHedged() {return hedge_percentile > 0 && getNumTargets() > 0 && max_hedges > 0;}
+
+    public boolean getAdaptiveSelection() {return adaptive_selection;}
+
+    /** Sends a group request to the destinations with the lowest latency and outstanding requests (implies anycasting) */
+    public RequestOptions setAdaptiveSelection(boolean flag) {
+        adaptive_selection=flag;
+        if(flag)
+            use_anycasting=true;
+        return this;
+    }
+
     public short getScope() {
         return scope;
     }
@@ -219,6 +294,14 @@ public class RequestOptions {
             sb.append(", scope=" + scope);
         if(exclusion_list != null)
             sb.append(", exclusion list: " + Arrays.toString(exclusion_list));
+        if(num_targets > 0)
+            sb.append(", num_targets=" + num_targets);
+        if(adaptive_selection)
+            sb.append(", adaptive selection");
+        if(num_responses > 0)
+            sb.append(", num_responses=" + num_responses);
+        if(isHedged())
+            sb.append(", hedging: p" + hedge_percentile + " (min " + hedge_delay + " ms, max " + max_hedges + ")");
         return sb.toString();
     }
 
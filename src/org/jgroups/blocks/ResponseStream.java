@@ -0,0 +1,147 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.util.Buffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The value of a response which is streamed by the receiver of a request, returned by an RPC when the invoked method
+ * (or {@link RequestHandler}) returns an {@link InputStream}. The response is sent in chunks, which are added to this
+ * stream as they are received, so the caller can read the response while it is being sent.
+ * <p/>
+ * The sender sends at most stream_window chunks which haven't yet been read; as chunks are read from this stream,
+ * credits are sent back to the sender. Closing the stream before all data has been read cancels the sending of the
+ * response.
+ * @author agent
+ * @since  3.6.4
+ */
+public class ResponseStream extends InputStream {
+    protected final RequestCorrelator corr;
+    protected final Address           sender;
+    protected final long              req_id;
+    protected final int               credits_threshold; // send credits when this number of chunks has been read
+    protected final long              timeout;           // max time (ms) to wait for the next chunk
+    protected final Queue<Buffer>     chunks=new ArrayDeque<>();  // guarded by this
+    protected Buffer                  current;           // the chunk which is currently read
+    protected int                     pos, limit;        // position and limit in current
+    protected int                     chunks_read;       // number of chunks read since credits were last sent
+    protected boolean                 eof, closed;       // guarded by this
+    protected Throwable               exception;         // set if the sender failed to send the response
+
+    public ResponseStream(RequestCorrelator corr, Address sender, long req_id, int window, long timeout) {
+        this.corr=corr;
+        this.sender=sender;
+        this.req_id=req_id;
+        this.credits_threshold=Math.max(1, window / 2);
+        this.timeout=timeout;
+    }
+
+    public Address getSender() {return sender;}
+
+
+    public int read() throws IOException {
+        if(!ensureData())
+            return -1;
+        return current.getBuf()[pos++] & 0xff;
+    }
+
+    public int read(byte[] buf, int off, int len) throws IOException {
+        if(len == 0)
+            return 0;
+        if(!ensureData())
+            return -1;
+        int num=Math.min(len, limit - pos);
+        System.arraycopy(current.getBuf(), pos, buf, off, num);
+        pos+=num;
+        return num;
+    }
+
+    public synchronized int available() throws IOException {
+        int retval=current != null? limit - pos : 0;
+        for(Buffer chunk: chunks)
+            retval+=chunk.getLength();
+        return retval;
+    }
+
+    /** Closes the stream. If not all data has been received, the sender stops sending the response */
+    public void close() throws IOException {
+        boolean cancel;
+        synchronized(this) {
+            if(closed)
+                return;
+            closed=true;
+            cancel=!eof && exception == null;
+            chunks.clear();
+            current=null;
+            notifyAll();
+        }
+        corr.removeStream(sender, req_id);
+        if(cancel)
+            corr.sendStreamCredits(sender, req_id, -1);
+    }
+
+    public String toString() {
+        return String.format("stream from %s (req_id=%d)", sender, req_id);
+    }
+
+
+    /** Adds a chunk received from the sender */
+    protected synchronized void add(Buffer chunk) {
+        if(closed)
+            return;
+        if(chunk.getLength() > 0)
+            chunks.add(chunk);
+        notifyAll();
+    }
+
+    /** Called when the last chunk has been received, or the sender failed (exception != null) */
+    protected synchronized void done(Throwable ex) {
+        eof=true;
+        exception=ex;
+        notifyAll();
+    }
+
+    /** Makes the next chunk the current chunk if the current one has been read. Returns false on end of stream */
+    protected boolean ensureData() throws IOException {
+        if(current != null && pos < limit)
+            return true;
+        int credits=0;
+        synchronized(this) {
+            long wait_time=TimeUnit.MILLISECONDS.toNanos(timeout), deadline=System.nanoTime() + wait_time;
+            while(chunks.isEmpty() && !eof && !closed) {
+                if(wait_time <= 0)
+                    throw new IOException("timed out waiting for data from " + sender + " (req_id=" + req_id + ")");
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, wait_time);
+                }
+                catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("interrupted while waiting for data from " + sender);
+                }
+                wait_time=deadline - System.nanoTime();
+            }
+            if(closed)
+                throw new IOException("stream is closed");
+            current=chunks.poll();
+            if(current == null) { // eof
+                if(exception != null)
+                    throw new IOException("sender " + sender + " failed sending the response", exception);
+                return false;
+            }
+            pos=current.getOffset();
+            limit=pos + current.getLength();
+            if(++chunks_read >= credits_threshold && !eof) {
+                credits=chunks_read;
+                chunks_read=0;
+            }
+        }
+        if(credits > 0)
+            corr.sendStreamCredits(sender, req_id, credits);
+        return true;
+    }
+}
@@ -5,7 +5,6 @@ package org.jgroups.blocks;
 import org.jgroups.*;
 import org.jgroups.util.*;
 
-import java.lang.reflect.Method;
 import java.util.*;
 
 
@@ -30,6 +29,9 @@ public class RpcDispatcher extends MessageDispatcher {
 
     protected MethodLookup  method_lookup=null;
 
+    /** Invokes methods against server_obj via method handles, created when server_obj is set */
+    protected MethodInvoker invoker;
+
 
     public RpcDispatcher() {
     }
@@ -37,7 +39,7 @@ public class RpcDispatcher extends MessageDispatcher {
 
     public RpcDispatcher(Channel channel, MessageListener l, MembershipListener l2, Object server_obj) {
         super(channel, l, l2);
-        this.server_obj=server_obj;
+        setServerObject(server_obj);
     }
 
     public RpcDispatcher(Channel channel, Object server_obj) {
@@ -93,6 +95,7 @@ public class RpcDispatcher extends MessageDispatcher {
 
     public void setServerObject(Object server_obj) {
         this.server_obj=server_obj;
+        invoker=server_obj != null? new MethodInvoker(server_obj) : null;
     }
 
     public MethodLookup getMethodLookup() {
@@ -101,6 +104,9 @@ public class RpcDispatcher extends MessageDispatcher {
 
     public void setMethodLookup(MethodLookup method_lookup) {
         this.method_lookup=method_lookup;
+        MethodInvoker tmp=invoker;
+        if(tmp != null)
+            tmp.clearIds();
     }
 
 
@@ -300,6 +306,57 @@ public class RpcDispatcher extends MessageDispatcher {
     }
 
 
+    /**
+     * Invokes a method in all members (or dests) and returns a future which is completed with the responses, without
+     * blocking the caller. See {@link MessageDispatcher#castMessageAsync(Collection,Message,RequestOptions)} for details
+     * @param dests A list of addresses. If null, we'll wait for responses from all cluster members
+     * @param method_call The method (plus args) to be invoked
+     * @param options A collection of call options, e.g. sync versus async, timeout etc
+     * @return ComposableFuture A future which is completed with the results
+     * @throws Exception If the sending of the message threw an exception
+     */
+    public <T> ComposableFuture<RspList<T>> callRemoteMethodsAsync(Collection<Address> dests, MethodCall method_call,
+                                                                    RequestOptions options) throws Exception {
+        if(dests != null && dests.isEmpty()) // don't send if dest list is empty
+            return ComposableFuture.completed(new RspList<T>());
+
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
+                    append(", options=").append(options));
+
+        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(method_call) : Util.objectToByteBuffer(method_call);
+        Message msg=new Message();
+        if(buf instanceof Buffer)
+            msg.setBuffer((Buffer)buf);
+        else
+            msg.setBuffer((byte[])buf);
+        return super.castMessageAsync(dests, msg, options);
+    }
+
+
+    /**
+     * Invokes a method in a cluster member and returns a future which is completed with the result, without
+     * blocking the caller. See {@link MessageDispatcher#sendMessageAsync(Message,RequestOptions)} for details
+     * @param dest The target member on which to invoke the method
+     * @param call The call to be invoked, including method are arguments
+     * @param options The options (e.g. blocking, timeout etc)
+     * @return A future which is completed with the result, or exceptionally if the callee threw an exception
+     * @throws Exception If the sending of the message threw an exception
+     */
+    public <T> ComposableFuture<T> callRemoteMethodAsync(Address dest, MethodCall call, RequestOptions options) throws Exception {
+        if(log.isTraceEnabled())
+            log.trace("dest=" + dest + ", method_call=" + call + ", options=" + options);
+
+        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(call) : Util.objectToByteBuffer(call);
+        Message msg=new Message(dest, null, null);
+        if(buf instanceof Buffer)
+            msg.setBuffer((Buffer)buf);
+        else
+            msg.setBuffer((byte[])buf);
+        return super.sendMessageAsync(msg, options);
+    }
+
+
     protected void correlatorStarted() {
         if(corr != null)
             corr.setMarshaller(rsp_marshaller);
@@ -332,16 +389,10 @@ public class RpcDispatcher extends MessageDispatcher {
         if(log.isTraceEnabled())
             log.trace("[sender=" + req.getSrc() + "], method_call: " + method_call);
 
-        if(method_call.getMode() == MethodCall.ID) {
-            if(method_lookup == null)
-                throw new Exception("MethodCall uses ID=" + method_call.getId() + ", but method_lookup has not been set");
-            Method m=method_lookup.findMethod(method_call.getId());
-            if(m == null)
-                throw new Exception("no method found for " + method_call.getId());
-            method_call.setMethod(m);
-        }
-            
-        return method_call.invoke(server_obj);
+        MethodInvoker tmp=invoker;
+        if(tmp == null || tmp.getTarget() != server_obj) // server_obj was set directly (e.g. by a subclass)
+            invoker=tmp=new MethodInvoker(server_obj);
+        return tmp.invoke(method_call, method_lookup);
     }
 
 
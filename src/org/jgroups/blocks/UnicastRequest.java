@@ -21,6 +21,7 @@ public class UnicastRequest<T> extends Request {
     protected final Rsp<T>     result;
     protected final Address    target;
     protected int              num_received=0;
+    protected boolean          latencies_updated; // guarded by lock
 
 
 
@@ -38,6 +39,8 @@ public class UnicastRequest<T> extends Request {
 
 
     protected void sendRequest() throws Exception {
+        if(trackLatencies())
+            corr.getMemberLatencies().sent(target);
         try {
             if(log.isTraceEnabled()) log.trace(new StringBuilder("sending request (id=").append(req_id).append(')'));
             corr.sendUnicastRequest(req_id, target, request_msg, options.getMode() == ResponseMode.GET_NONE? null : this);
@@ -45,9 +48,26 @@ public class UnicastRequest<T> extends Request {
         catch(Exception ex) {
             if(corr != null)
                 corr.done(req_id);
+            updateLatencies(System.nanoTime());
             throw ex;
         }
     }
+
+    protected void updateLatencies(long now) {
+        if(!trackLatencies())
+            return;
+        lock.lock();
+        try {
+            if(latencies_updated)
+                return;
+            latencies_updated=true;
+            if(!result.wasReceived())
+                corr.getMemberLatencies().abandoned(target, result.wasSuspected() || result.wasUnreachable()? 0 : now - start_time);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
     
 
     /* ---------------------- Interface RspCollector -------------------------- */
@@ -65,6 +85,8 @@ public class UnicastRequest<T> extends Request {
                 return;
             if(!result.wasReceived()) {
                 num_received++;
+                if(!latencies_updated && trackLatencies())
+                    corr.getMemberLatencies().received(target, System.nanoTime() - start_time);
                 if(rsp_filter == null || rsp_filter.isAcceptable(response_value, sender)) {
                     if(is_exception && response_value instanceof Throwable)
                         result.setException((Throwable)response_value);
@@ -27,9 +27,23 @@ import java.util.Collection;
 public class MuxMessageDispatcher extends MessageDispatcher {
 
     private final short scope_id;
+    private final MuxHeader header;
+
+    /** Passes events to this dispatcher, bypassing the shared correlator (which receives them from the MuxUpHandler) */
+    private final UpHandler service_adapter=new UpHandler() {
+        public Object up(Event evt) {
+            try {
+                return handleUpEvent(evt);
+            }
+            catch(Throwable t) {
+                throw new RuntimeException(t);
+            }
+        }
+    };
     
     public MuxMessageDispatcher(short scopeId) {
         this.scope_id = scopeId;
+        this.header = new MuxHeader(scopeId);
     }
 
     public MuxMessageDispatcher(short scopeId, Channel channel, MessageListener messageListener, MembershipListener membershipListener, RequestHandler handler) {
@@ -42,15 +56,18 @@ public class MuxMessageDispatcher extends MessageDispatcher {
         start();
     }
 
-    private Muxer<UpHandler> getMuxer() {
-        UpHandler handler = channel.getUpHandler();
+    private MuxUpHandler getMuxer() {
+        UpHandler handler = channel != null? channel.getUpHandler() : null;
         return ((handler != null) && (handler instanceof MuxUpHandler)) ? (MuxUpHandler) handler : null;
     }
 
     @Override
     protected RequestCorrelator createRequestCorrelator(Protocol transport, RequestHandler handler, Address localAddr) {
-        // We can't set the scope of the request correlator here since this method is called from start()
-        // triggered in the MessageDispatcher constructor, when this.scope is not yet defined
+        // The correlator is shared by all dispatchers of a channel with a MuxUpHandler. If the MuxUpHandler is not
+        // (yet) installed, a correlator which adds the mux header to all messages is used
+        MuxUpHandler muxer = this.getMuxer();
+        if (muxer != null)
+            return muxer.getCorrelator(transport, localAddr); // the handler is registered by start()
         return new MuxRequestCorrelator(scope_id, transport, handler, localAddr);
     }
 
@@ -58,8 +75,10 @@ public class MuxMessageDispatcher extends MessageDispatcher {
     public void start() {
         super.start();
         Muxer<UpHandler> muxer = this.getMuxer();
+        if (corr instanceof SharedRequestCorrelator)
+            ((SharedRequestCorrelator)corr).register(scope_id, this);
         if (muxer != null) {
-            muxer.add(scope_id, this.getProtocolAdapter());
+            muxer.add(scope_id, corr instanceof SharedRequestCorrelator? service_adapter : this.getProtocolAdapter());
         }
    }
 
@@ -69,9 +88,16 @@ public class MuxMessageDispatcher extends MessageDispatcher {
         if (muxer != null) {
             muxer.remove(scope_id);
         }
+        if (corr instanceof SharedRequestCorrelator)
+            ((SharedRequestCorrelator)corr).unregister(scope_id);
         super.stop();
     }
 
+    @Override
+    protected void prepareRequest(Message req) {
+        req.putHeader(MuxRequestCorrelator.MUX_ID, header);
+    }
+
     @Override
     protected <T> GroupRequest<T> cast(Collection<Address> dests, Message msg, RequestOptions options,
                                        boolean blockForResults, FutureListener<RspList<T>> listener) throws Exception {
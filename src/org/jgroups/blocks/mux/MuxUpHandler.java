@@ -1,25 +1,27 @@
 package org.jgroups.blocks.mux;
 
+import org.jgroups.Address;
 import org.jgroups.Event;
 import org.jgroups.Message;
 import org.jgroups.UpHandler;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
+import org.jgroups.stack.Protocol;
 import org.jgroups.util.ImmutableReference;
-import org.jgroups.util.Util;
-
-import java.util.Map;
 
 /**
  * Allows up handler multiplexing.
- * 
+ * <p/>
+ * The handlers are kept in an array indexed by mux ID. RPCs of multiplexed dispatchers are passed directly to a
+ * {@link SharedRequestCorrelator}, shared by all dispatchers of the channel.
  * @author Bela Ban
  * @author Paul Ferraro
  */
 public class MuxUpHandler implements UpHandler, Muxer<UpHandler> {
 
     protected final Log log=LogFactory.getLog(getClass());
-    private final Map<Short, UpHandler> handlers=Util.createConcurrentMap();
+    private volatile UpHandler[] handlers=new UpHandler[0]; // indexed by mux ID, copy-on-write
+    private volatile SharedRequestCorrelator correlator;
     private volatile UpHandler defaultHandler;
     private volatile Event lastFlushEvent;
     private final Object flushMutex = new Object();
@@ -51,7 +53,17 @@ public class MuxUpHandler implements UpHandler, Muxer<UpHandler> {
             {
                 handler.up(lastFlushEvent);
             }
-            handlers.put(id, handler);
+            int index=SharedRequestCorrelator.index(id);
+            UpHandler[] tmp=handlers;
+            if(index >= tmp.length) {
+                UpHandler[] copy=new UpHandler[index+1];
+                System.arraycopy(tmp, 0, copy, 0, tmp.length);
+                tmp=copy;
+            }
+            else
+                tmp=tmp.clone();
+            tmp[index]=handler;
+            handlers=tmp;
         }
     }
 
@@ -61,7 +73,9 @@ public class MuxUpHandler implements UpHandler, Muxer<UpHandler> {
      */
     @Override
     public UpHandler get(short id) {
-        return handlers.get(id);
+        UpHandler[] tmp=handlers;
+        int index=SharedRequestCorrelator.index(id);
+        return index < tmp.length? tmp[index] : null;
     }
     
     /**
@@ -70,7 +84,32 @@ public class MuxUpHandler implements UpHandler, Muxer<UpHandler> {
      */
     @Override
     public void remove(short id) {
-        handlers.remove(id);
+        synchronized (flushMutex)
+        {
+            int index=SharedRequestCorrelator.index(id);
+            UpHandler[] tmp=handlers;
+            if(index < tmp.length && tmp[index] != null) {
+                tmp=tmp.clone();
+                tmp[index]=null;
+                handlers=tmp;
+            }
+        }
+    }
+
+    /** Returns the correlator shared by the multiplexed dispatchers, or null if none has been created yet */
+    public SharedRequestCorrelator getCorrelator() {
+        return correlator;
+    }
+
+    /**
+     * Returns the correlator shared by the multiplexed dispatchers, creating it if absent
+     * @param transport Used by the correlator to send messages, e.g. the protocol adapter of a dispatcher
+     * @param local_addr The address of the channel
+     */
+    public synchronized SharedRequestCorrelator getCorrelator(Protocol transport, Address local_addr) {
+        if(correlator == null)
+            correlator=new SharedRequestCorrelator(transport, local_addr);
+        return correlator;
     }
 
     @Override
@@ -94,8 +133,11 @@ public class MuxUpHandler implements UpHandler, Muxer<UpHandler> {
                 Message msg = (Message) evt.getArg();
                 MuxHeader hdr = (MuxHeader) msg.getHeader(MuxRequestCorrelator.MUX_ID);
                 if (hdr != null) {
+                    SharedRequestCorrelator corr = correlator;
+                    if (corr != null && corr.receiveMessage(msg))
+                        return null;
                     short id = hdr.getId();
-                    UpHandler handler = handlers.get(id);
+                    UpHandler handler = get(id);
                     return (handler != null) ? handler.up(evt) : new NoMuxHandler(id);
                 }
                 break;
@@ -120,9 +162,13 @@ public class MuxUpHandler implements UpHandler, Muxer<UpHandler> {
             case Event.VIEW_CHANGE:
             case Event.SET_LOCAL_ADDRESS: 
             case Event.SUSPECT:
+                if (correlator != null)
+                    correlator.receive(evt);
                 passToAllHandlers(evt);
                 break;
             default:
+                if (correlator != null)
+                    correlator.receive(evt);
                 passToAllHandlers(evt);
                 break;
         }
@@ -152,8 +198,9 @@ public class MuxUpHandler implements UpHandler, Muxer<UpHandler> {
 
     private void passToAllHandlers(Event evt)
     {
-       for (UpHandler handler: handlers.values()) {
-            handler.up(evt);
+       for (UpHandler handler: handlers) {
+            if (handler != null)
+                handler.up(evt);
         }
     }
 }
@@ -0,0 +1,217 @@
+package org.jgroups.blocks.mux;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.blocks.AdmissionControl;
+import org.jgroups.blocks.RequestCorrelator;
+import org.jgroups.blocks.RequestHandler;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.blocks.RspCollector;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.TP;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A request correlator shared by all services (dispatchers) multiplexed over the same channel by a
+ * {@link MuxUpHandler}. Instead of a correlator per service, each with its own table of pending requests, timeout
+ * wheel and timer task, there is a single correlator per channel. Responses are looked up in its table by request ID
+ * (which is unique per JVM), and requests are dispatched to the handler of the service in their {@link MuxHeader},
+ * which is looked up in an array indexed by the service ID.
+ * <p/>
+ * Settings such as async dispatching, request coalescing or admission control are shared by all services. If the
+ * handler of a service is an {@link RpcDispatcher}, its response marshaller is used to marshal and unmarshal the
+ * responses of the service.
+ * <p/>
+ * When a service is unregistered, its pending requests are failed; the correlator itself is only stopped when the
+ * last service is unregistered.
+ * <p/>
+ * The service IDs index an array, so they should be small: negative IDs are mapped to indices 32768-65535.
+ * @author agent
+ * @since  3.6.4
+ */
+public class SharedRequestCorrelator extends RequestCorrelator {
+    /** The handlers of the services, indexed by service ID. Copy-on-write, modifications are guarded by this */
+    protected volatile RequestHandler[] handlers=new RequestHandler[0];
+    protected int                       num_services;
+
+    /** The service IDs of the pending requests (keyed by request ID), to fail them when their service is unregistered */
+    protected final ConcurrentMap<Long,Short> request_services=Util.createConcurrentMap();
+
+    /** Added to stream credits, which are matched by sender and request ID (the service is not needed) */
+    protected static final MuxHeader    NO_SERVICE=new MuxHeader((short)0);
+
+
+    public SharedRequestCorrelator(Protocol transport, Address local_addr) {
+        super(ClassConfigurator.getProtocolId(RequestCorrelator.class), transport, null, local_addr);
+    }
+
+
+    /** Registers the handler for requests to service id. An existing handler is replaced */
+    public synchronized SharedRequestCorrelator register(short id, RequestHandler handler) {
+        if(handler == null)
+            throw new IllegalArgumentException("handler must not be null");
+        int index=index(id);
+        RequestHandler[] tmp=handlers;
+        if(index >= tmp.length) {
+            RequestHandler[] copy=new RequestHandler[index+1];
+            System.arraycopy(tmp, 0, copy, 0, tmp.length);
+            tmp=copy;
+        }
+        else
+            tmp=tmp.clone();
+        if(tmp[index] == null)
+            num_services++;
+        tmp[index]=handler;
+        handlers=tmp;
+        return this;
+    }
+
+    /** Unregisters the handler of service id and fails the pending requests sent by the service */
+    public SharedRequestCorrelator unregister(short id) {
+        synchronized(this) {
+            int index=index(id);
+            RequestHandler[] tmp=handlers;
+            if(index < tmp.length && tmp[index] != null) {
+                tmp=tmp.clone();
+                tmp[index]=null;
+                handlers=tmp;
+                num_services--;
+            }
+        }
+        for(Map.Entry<Long,Short> entry: request_services.entrySet()) {
+            if(entry.getValue() != id)
+                continue;
+            long req_id=entry.getKey();
+            RspCollector coll=requests.get(req_id);
+            if(coll != null)
+                coll.transportClosed();
+            removeEntry(req_id);
+        }
+        return this;
+    }
+
+    public RequestHandler getHandler(short id) {
+        RequestHandler[] tmp=handlers;
+        int index=index(id);
+        return index < tmp.length? tmp[index] : null;
+    }
+
+    public synchronized int getNumServices() {
+        return num_services;
+    }
+
+    /**
+     * Async dispatching is enabled for all services if one of them enables it. This has no effect on services whose
+     * handler doesn't dispatch asynchronously, e.g. a {@link org.jgroups.blocks.MessageDispatcher} without an
+     * {@link org.jgroups.blocks.AsyncRequestHandler} handles the request on the calling thread
+     */
+    public RequestCorrelator asyncDispatching(boolean flag) {
+        if(flag)
+            async_dispatching=true;
+        return this;
+    }
+
+    /** Request coalescing is enabled for all services if one of them enables it */
+    public RequestCorrelator coalesceRequests(boolean flag) {
+        if(flag)
+            coalesce_requests=true;
+        return this;
+    }
+
+    /** The admission control is shared by all services. A service which doesn't set one doesn't remove it */
+    public RequestCorrelator admissionControl(AdmissionControl ac) {
+        if(ac != null)
+            admission_control=ac;
+        return this;
+    }
+
+    /** Stops the correlator (failing all pending requests) only when no services are registered anymore */
+    public void stop() {
+        if(getNumServices() == 0) {
+            super.stop();
+            request_services.clear();
+        }
+    }
+
+    /** The service's own marshaller is used for its responses (see {@link #marshaller(Message)}), so this is a no-op */
+    public void setMarshaller(RpcDispatcher.Marshaller marshaller) {
+    }
+
+    public void sendRequest(long id, Collection<Address> dest_mbrs, Message msg, RspCollector coll,
+                            RequestOptions options) throws Exception {
+        addService(id, msg, coll);
+        super.sendRequest(id, dest_mbrs, msg, coll, options);
+    }
+
+    public void sendUnicastRequest(long id, Address target, Message msg, RspCollector coll) throws Exception {
+        addService(id, msg, coll);
+        super.sendUnicastRequest(id, target, msg, coll);
+    }
+
+    public void unregisterProbeHandler(TP transport) {
+        if(getNumServices() == 0)
+            super.unregisterProbeHandler(transport);
+    }
+
+
+    protected RequestHandler requestHandler(Message req) {
+        MuxHeader hdr=(MuxHeader)req.getHeader(MuxRequestCorrelator.MUX_ID);
+        return hdr != null? getHandler(hdr.getId()) : null;
+    }
+
+    protected RpcDispatcher.Marshaller marshaller(Message msg) {
+        RequestHandler handler=requestHandler(msg);
+        if(handler instanceof RpcDispatcher) {
+            RpcDispatcher.Marshaller m=((RpcDispatcher)handler).getResponseMarshaller();
+            if(m != null)
+                return m;
+        }
+        return null;
+    }
+
+    protected void handleRequest(Message req, Header hdr, List<Message> rsps) {
+        if(requestHandler(req) != null) {
+            super.handleRequest(req, hdr, rsps);
+            return;
+        }
+        MuxHeader mux_hdr=(MuxHeader)req.getHeader(MuxRequestCorrelator.MUX_ID);
+        short id=mux_hdr != null? mux_hdr.getId() : 0;
+        if(log.isTraceEnabled())
+            log.trace("%s: no handler for service %d, request %d from %s", local_addr, id, hdr.id, req.getSrc());
+        if(hdr.rsp_expected)
+            sendReply(req, hdr.id, new NoMuxHandler(id), false, rsps);
+    }
+
+    /** Adds the service ID of the request to the response, so the caller's {@link MuxUpHandler} passes it to us */
+    protected void prepareResponse(Message req, Message rsp) {
+        org.jgroups.Header hdr=req.getHeader(MuxRequestCorrelator.MUX_ID);
+        rsp.putHeader(MuxRequestCorrelator.MUX_ID, hdr != null? hdr : NO_SERVICE);
+    }
+
+    protected void prepareResponse(Message rsp) {
+        if(rsp.getHeader(MuxRequestCorrelator.MUX_ID) == null)
+            rsp.putHeader(MuxRequestCorrelator.MUX_ID, NO_SERVICE);
+    }
+
+    protected void removeEntry(long id) {
+        super.removeEntry(id);
+        request_services.remove(id);
+    }
+
+    protected void addService(long req_id, Message req, RspCollector coll) {
+        MuxHeader hdr=(MuxHeader)req.getHeader(MuxRequestCorrelator.MUX_ID);
+        if(coll != null && hdr != null && transport != null)
+            request_services.put(req_id, hdr.getId());
+    }
+
+    protected static int index(short id) {
+        return id & 0xffff;
+    }
+}
@@ -132,6 +132,10 @@ public class BARRIER extends Protocol {
         return down_prot.down(evt);
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
     public Object up(Event evt) {
         switch(evt.getType()) {
             case Event.MSG:
@@ -440,6 +440,10 @@ public abstract class Discovery extends Protocol {
         }
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
 
 
     /* -------------------------- Private methods ---------------------------- */
@@ -318,6 +318,10 @@ public class FD extends Protocol {
         return down_prot.down(evt);
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
 
     protected void sendHeartbeatResponse(Address dest) {
         Message hb_ack=new Message(dest).setFlag(Message.Flag.INTERNAL);
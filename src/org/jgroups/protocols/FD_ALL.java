@@ -233,6 +233,10 @@ public class FD_ALL extends Protocol {
         return down_prot.down(evt);
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
     protected void startTimeoutChecker() {
         lock.lock();
         try {
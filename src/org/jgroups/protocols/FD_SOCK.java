@@ -375,6 +375,10 @@ public class FD_SOCK extends Protocol implements Runnable {
         return down_prot.down(evt);
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
 
     /**
      * Runs as long as there are 2 members and more. Determines the member to be monitored and fetches its
@@ -6,6 +6,8 @@ import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.annotations.*;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.BufferPool;
+import org.jgroups.util.CompositeBuffer;
 import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Range;
 import org.jgroups.util.Util;
@@ -46,6 +48,16 @@ public class FRAG2 extends Protocol {
     
     @Property(description="The max number of bytes in a message. Larger messages will be fragmented")
     protected int                 frag_size=60000;
+
+    @Property(description="When true, the fragments of a message are not copied into one buffer of the full size: the " +
+      "reassembled message's payload is a list of the fragments (CompositeBuffer), which can be read with " +
+      "Message.getInputStream(). Accessing the payload as byte[] buffer copies the fragments into one buffer")
+    protected boolean             reassemble_as_list;
+
+    @Property(description="When true, the fragments of a message are passed down as a batch, rather than one by one. " +
+      "Protocols which support batches on the down path process all fragments at once, and the transport sends them " +
+      "on the caller's thread without handing them to the bundler")
+    protected boolean             send_fragments_as_batch;
   
     /* --------------------------------------------- Fields ------------------------------------------------------ */
     
@@ -62,6 +74,9 @@ public class FRAG2 extends Protocol {
 
     protected Address             local_addr;
 
+    /** The transport's buffer pool (if enabled): reassembled messages are acquired from it */
+    protected BufferPool          buffer_pool;
+
     @ManagedAttribute(description="Number of sent fragments")
     AtomicLong                    num_frags_sent=new AtomicLong(0);
     @ManagedAttribute(description="Number of received fragments")
@@ -73,6 +88,10 @@ public class FRAG2 extends Protocol {
     public long  getNumberOfReceivedFragments() {return num_frags_received.get();}
     public int   fragSize()                     {return frag_size;}
     public FRAG2 fragSize(int size)             {frag_size=size; return this;}
+    public boolean reassembleAsList()           {return reassemble_as_list;}
+    public FRAG2 reassembleAsList(boolean flag) {reassemble_as_list=flag; return this;}
+    public boolean sendFragmentsAsBatch()       {return send_fragments_as_batch;}
+    public FRAG2 sendFragmentsAsBatch(boolean flag) {send_fragments_as_batch=flag; return this;}
 
 
     synchronized int getNextId() {
@@ -92,6 +111,7 @@ public class FRAG2 extends Protocol {
             if(frag_size >= max_bundle_size)
                 throw new IllegalArgumentException("frag_size (" + frag_size + ") has to be < TP.max_bundle_size (" +
                                                      max_bundle_size + ")");
+            buffer_pool=transport.getBufferPool();
         }
 
         Map<String,Object> info=new HashMap<>(1);
@@ -233,6 +253,7 @@ public class FRAG2 extends Protocol {
             }
 
             long frag_id=getNextId(); // used as a seqno
+            List<Message> batch=send_fragments_as_batch? new ArrayList<Message>(num_frags) : null;
             for(int i=0; i < num_frags; i++) {
                 Range r=fragments.get(i);
                 // don't copy the buffer, only src, dest and headers. Only copy the headers one time !
@@ -240,7 +261,14 @@ public class FRAG2 extends Protocol {
                 frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
                 FragHeader hdr=new FragHeader(frag_id, i, num_frags);
                 frag_msg.putHeader(this.id, hdr);
-                down_prot.down(new Event(Event.MSG, frag_msg));
+                if(batch != null)
+                    batch.add(frag_msg);
+                else
+                    down_prot.down(new Event(Event.MSG, frag_msg));
+            }
+            if(batch != null) {
+                Address dest=msg.getDest();
+                down_prot.down(new MessageBatch(dest, local_addr, null, dest == null, batch));
             }
         }
         catch(Exception e) {
@@ -281,7 +309,7 @@ public class FRAG2 extends Protocol {
         try {
             entry.set(hdr.frag_id, msg);
             if(entry.isComplete()) {
-                assembled_msg=entry.assembleMessage();
+                assembled_msg=reassemble_as_list? entry.assembleMessageAsList() : entry.assembleMessage(buffer_pool);
                 frag_table.remove(hdr.id);
                 if(log.isTraceEnabled())
                     log.trace("%s: unfragmented message from %s (size=%d) from %d fragments",
@@ -366,11 +394,13 @@ public class FRAG2 extends Protocol {
          * Assembles all the fragments into one buffer. Takes all Messages, and combines their buffers into one
          * buffer.
          * This method does not check if the fragmentation is complete (use {@link #isComplete()} to verify
-         * before calling this method)
+         * before calling this method). The fragments are released, as they are consumed here.
+         * @param pool If non-null, the combined buffer is acquired from the pool and returned to it when the
+         *             assembled message has been delivered
          * @return the complete message in one buffer
          *
          */
-        protected Message assembleMessage() {
+        protected Message assembleMessage(BufferPool pool) {
             Message retval;
             byte[]  combined_buffer, tmp;
             int     combined_length=0, length, offset;
@@ -379,7 +409,8 @@ public class FRAG2 extends Protocol {
             for(Message fragment: fragments)
                 combined_length+=fragment.getLength();
 
-            combined_buffer=new byte[combined_length];
+            BufferPool.Ref ref=pool != null? pool.acquire(combined_length) : null;
+            combined_buffer=ref != null? ref.buf() : new byte[combined_length];
             retval=fragments[0].copy(false); // doesn't copy the payload, but copies the headers
 
             for(int i=0; i < fragments.length; i++) {
@@ -390,12 +421,31 @@ public class FRAG2 extends Protocol {
                 offset=fragment.getOffset();
                 System.arraycopy(tmp, offset, combined_buffer, index, length);
                 index+=length;
+                fragment.release();
             }
 
-            retval.setBuffer(combined_buffer);
+            if(ref != null)
+                retval.setPooledBuffer(ref, 0, combined_length);
+            else
+                retval.setBuffer(combined_buffer);
             return retval;
         }
 
+        /**
+         * Creates a message whose payload is the list of fragment buffers, without copying them. Fragments may have
+         * been received in any order: they're added to the list in fragment order. Pooled fragment buffers are taken
+         * over by the composite buffer and released when the assembled message is released.
+         */
+        protected Message assembleMessageAsList() {
+            CompositeBuffer cb=new CompositeBuffer(fragments.length);
+            Message retval=fragments[0].copy(false); // doesn't copy the payload, but copies the headers
+            for(int i=0; i < fragments.length; i++) {
+                cb.add(fragments[i]);
+                fragments[i]=null;
+            }
+            return retval.setBuffer(cb);
+        }
+
         public String toString() {
             StringBuilder ret=new StringBuilder();
             ret.append("[tot_frags=").append(fragments.length).append(", number_of_frags_recvd=").append(number_of_frags_recvd).append(']');
@@ -313,29 +313,11 @@ public abstract class FlowControl extends Protocol {
         switch(evt.getType()) {
             case Event.MSG:
                 Message msg=(Message)evt.getArg();
-                if(msg.isFlagSet(Message.Flag.NO_FC))
-                    break;
-
-                Address dest=msg.getDest();
-                boolean multicast=dest == null;
-                boolean handle_multicasts=handleMulticastMessage();
-                boolean process=(handle_multicasts && multicast) || (!handle_multicasts && !multicast);
-                if(!process)
+                if(!needsCredits(msg))
                     break;
-
                 int length=msg.getLength();
-                if(length == 0)
-                    break;
-
-                Object retval=handleDownMessage(evt, msg, dest, length);
-
-                // if the message is DONT_LOOPBACK, we will not receive it, therefore the credit
-                // check needs to be done now
-                if(msg.isTransientFlagSet(Message.TransientFlag.DONT_LOOPBACK)) {
-                    long new_credits=adjustCredit(received, local_addr, length);
-                    if(new_credits > 0)
-                        sendCredit(local_addr, new_credits);
-                }
+                Object retval=handleDownMessage(evt, msg, msg.getDest(), length);
+                adjustCreditsForDontLoopback(msg, length);
                 return retval;
 
             case Event.CONFIG:
@@ -462,9 +444,58 @@ public abstract class FlowControl extends Protocol {
         }
     }
 
-    
+    /**
+     * Passes down the messages of a batch for which credits are available (or which don't need credits) as a batch.
+     * When a message has to block on credits, the messages accumulated so far are passed down first (so that the
+     * receivers can send credits for them), then the message is sent individually, blocking until enough credits
+     * are available
+     */
+    public void down(MessageBatch batch) {
+        MessageBatch sendable=null;
+        for(Message msg: batch) {
+            int length=msg.getLength();
+            if(!needsCredits(msg) || tryDecrementCredits(msg.getDest(), length)) {
+                if(sendable == null)
+                    sendable=new MessageBatch(batch.dest(), batch.sender(), batch.clusterName(), batch.multicast(),
+                                              batch.mode(), batch.size());
+                sendable.add(msg);
+                if(needsCredits(msg))
+                    adjustCreditsForDontLoopback(msg, length);
+                continue;
+            }
+            if(sendable != null) {
+                down_prot.down(sendable);
+                sendable=null;
+            }
+            down(new Event(Event.MSG, msg)); // blocks until credits are available
+        }
+        if(sendable != null)
+            down_prot.down(sendable);
+    }
+
+    /** Whether a message is subject to flow control by this protocol */
+    protected boolean needsCredits(Message msg) {
+        if(msg.isFlagSet(Message.Flag.NO_FC))
+            return false;
+        boolean multicast=msg.getDest() == null, handle_multicasts=handleMulticastMessage();
+        boolean process=(handle_multicasts && multicast) || (!handle_multicasts && !multicast);
+        return process && msg.getLength() > 0;
+    }
+
+    /** If the message is DONT_LOOPBACK, we will not receive it, therefore the credit check needs to be done now */
+    protected void adjustCreditsForDontLoopback(Message msg, int length) {
+        if(msg.isTransientFlagSet(Message.TransientFlag.DONT_LOOPBACK)) {
+            long new_credits=adjustCredit(received, local_addr, length);
+            if(new_credits > 0)
+                sendCredit(local_addr, new_credits);
+        }
+    }
+
     protected abstract Object handleDownMessage(final Event evt, final Message msg, Address dest, int length);
 
+    /** Decrements the credits for dest by length if enough credits are available, without blocking */
+    protected abstract boolean tryDecrementCredits(Address dest, int length);
+
 
 
     /**
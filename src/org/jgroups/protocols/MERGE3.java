@@ -255,6 +255,10 @@ public class MERGE3 extends Protocol {
         return down_prot.down(evt);
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
 
     public Object up(Event evt) {
         switch(evt.getType()) {
@@ -120,6 +120,10 @@ public class MFC extends FlowControl {
         return down_prot.down(evt);
     }
 
+    protected boolean tryDecrementCredits(Address dest, int length) {
+        return credits.decrement(length, 0);
+    }
+
 
 
 
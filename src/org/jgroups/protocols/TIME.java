@@ -0,0 +1,84 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Event;
+import org.jgroups.annotations.MBean;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Histogram;
+import org.jgroups.util.MessageBatch;
+
+/**
+ * Protocol measuring the time a message spends in the protocols below and above it. The time spent in
+ * {@link Protocol#down(org.jgroups.Event)} of the protocols below TIME is recorded for every message sent, and the time
+ * spent in {@link Protocol#up(org.jgroups.Event)} and {@link Protocol#up(org.jgroups.util.MessageBatch)} of the
+ * protocols above TIME is recorded for every message (or batch) received. Times are recorded in nanoseconds into
+ * {@link Histogram}s, so percentiles (e.g. p99 or p99.9) can be queried via JMX or probe ("jmx=TIME").<p/>
+ * Times are inclusive: the down time of a TIME placed above NAKACK2 includes the time spent in all protocols below
+ * NAKACK2. {@link org.jgroups.stack.ProtocolStack#instrument()} inserts a TIME protocol above every protocol of a
+ * stack, and {@link org.jgroups.stack.ProtocolStack#printLatencies()} prints the times for each protocol.<p/>
+ * Only messages are measured; other events are passed on as-is. Recording is disabled when stats is false.
+ * @author agent
+ * @since  3.6.4
+ */
+@MBean(description="Measures the time spent in the protocols below (down) and above (up) this protocol")
+public class TIME extends Protocol {
+    protected final Histogram down_times=new Histogram(), up_times=new Histogram(), up_batch_times=new Histogram();
+
+    @ManagedAttribute(description="Time (ns) spent sending a message down through the protocols below")
+    public String getDownTimes()    {return down_times.toString();}
+
+    @ManagedAttribute(description="Time (ns) spent passing a single message up through the protocols above")
+    public String getUpTimes()      {return up_times.toString();}
+
+    @ManagedAttribute(description="Time (ns) spent passing a message batch up through the protocols above")
+    public String getUpBatchTimes() {return up_batch_times.toString();}
+
+    public Histogram downTimes()    {return down_times;}
+    public Histogram upTimes()      {return up_times;}
+    public Histogram upBatchTimes() {return up_batch_times;}
+
+    public void resetStats() {
+        super.resetStats();
+        down_times.reset();
+        up_times.reset();
+        up_batch_times.reset();
+    }
+
+    public Object down(Event evt) {
+        if(evt.getType() != Event.MSG || !stats)
+            return down_prot.down(evt);
+        long start=System.nanoTime();
+        try {
+            return down_prot.down(evt);
+        }
+        finally {
+            down_times.add(System.nanoTime() - start);
+        }
+    }
+
+    public Object up(Event evt) {
+        if(evt.getType() != Event.MSG || !stats)
+            return up_prot.up(evt);
+        long start=System.nanoTime();
+        try {
+            return up_prot.up(evt);
+        }
+        finally {
+            up_times.add(System.nanoTime() - start);
+        }
+    }
+
+    public void up(MessageBatch batch) {
+        if(!stats) {
+            up_prot.up(batch);
+            return;
+        }
+        long start=System.nanoTime();
+        try {
+            up_prot.up(batch);
+        }
+        finally {
+            up_batch_times.add(System.nanoTime() - start);
+        }
+    }
+}
@@ -16,13 +16,18 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.InterruptedIOException;
 import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -210,6 +215,18 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     protected String thread_pool_rejection_policy="Discard";
 
 
+    @Property(description="The type of executor backing the regular, OOB and internal thread pools: \"default\" " +
+      "(ThreadPoolExecutors configured by the thread_pool.*, oob_thread_pool.* and internal_thread_pool.* properties), " +
+      "\"fork-join\" (a work-stealing ForkJoinPool) or \"virtual\" (one virtual thread per task; falls back to " +
+      "\"fork-join\" on runtimes without virtual threads). With \"fork-join\" or \"virtual\", regular and OOB " +
+      "messages share one executor, internal messages get their own, and regular messages (and batches) from the same " +
+      "sender are processed one at a time, in order",writable=false)
+    protected String thread_pool_type="default";
+
+    @Property(description="Number of threads of a ForkJoinPool (thread_pool_type=\"fork-join\"). 0 uses the number of " +
+      "cores",writable=false)
+    protected int fork_join_parallelism=0;
+
     @Property(name="internal_thread_pool.enabled",description="Switch for enabling thread pool for internal messages",
               writable=false)
     protected boolean internal_thread_pool_enabled=true;
@@ -359,13 +376,40 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @Property(name="max_bundle_timeout", description="Max number of milliseconds until queued messages are sent")
     protected long max_bundle_timeout=20;
 
-    @Property(description="The type of bundler used. Has to be \"sender-sends-with-timer\", \"transfer-queue\" (default) " +
-      "or \"sender-sends\"")
+    @Property(description="The type of bundler used. Has to be \"sender-sends-with-timer\", \"transfer-queue\" (default), " +
+      "\"sender-sends\", \"ring-buffer\" or \"adaptive\"")
     protected String bundler_type="transfer-queue";
 
     @Property(description="The max number of elements in a bundler if the bundler supports size limitations")
     protected int bundler_capacity=20000;
 
+    @Property(description="The adaptive bundler waits for more messages to a destination as long as the 99th " +
+      "percentile of the queuing delay (time between sending a message and passing it to the socket) stays below " +
+      "this target (in microseconds). Only used when bundler_type=\"adaptive\"")
+    protected long bundler_target_latency=1000;
+
+    @Property(description="Number of threads sending the same buffer to all members in parallel when a multicast is " +
+      "sent as multiple unicasts (e.g. TCP, or UDP with ip_mcast=false). The caller blocks until all sends are done. " +
+      "0 sends to the members sequentially on the caller's thread",writable=false)
+    protected int multicast_send_threads=0;
+
+    @Property(description="If true, payloads of received messages (and of messages reassembled by FRAG2) are " +
+      "acquired from a buffer pool and returned to it once the message has been delivered. Applications must not " +
+      "access the buffer of a message (e.g. via getRawBuffer()) after receive() returns",writable=false)
+    protected boolean use_buffer_pool=false;
+
+    @Property(description="Max size of a pooled buffer (rounded up to the next power of 2). Larger buffers are " +
+      "allocated and garbage collected as usual",writable=false)
+    protected int buffer_pool_max_buffer_size=16 * 1024 * 1024;
+
+    @Property(description="Max number of bytes held by the buffer pool for each buffer size (power of 2). The pool " +
+      "keeps at least 1 buffer of each size",writable=false)
+    protected int buffer_pool_max_bytes_per_size=4 * 1024 * 1024;
+
+    @Property(description="If true, the time received messages and batches wait in a thread pool until they are " +
+      "processed is recorded (see thread_pool_delays)")
+    protected boolean record_thread_pool_delays=false;
+
 
     public void setMaxBundleSize(int size) {
         if(size <= 0)
@@ -387,9 +431,37 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @ManagedAttribute public int getBundlerBufferSize() {
         if(bundler instanceof TransferQueueBundler)
             return ((TransferQueueBundler)bundler).getBufferSize();
+        if(bundler instanceof RingBufferBundler)
+            return ((RingBufferBundler)bundler).getBufferSize();
+        if(bundler instanceof AdaptiveBundler)
+            return ((AdaptiveBundler)bundler).getBufferSize();
         return 0;
     }
 
+    @ManagedAttribute(description="Histogram of the time (in microseconds) received messages and batches waited in a " +
+      "thread pool until they were processed (record_thread_pool_delays needs to be enabled)")
+    public String getThreadPoolDelays() {return thread_pool_delays.toString();}
+
+    @ManagedAttribute(description="Histogram of the sizes of all received message batches")
+    public String getBatchSizesReceived() {return batch_sizes_received.toString();}
+
+    @ManagedAttribute(description="Histogram of the number of messages per bundle sent by the adaptive bundler")
+    public String getBundlerBatchSizes() {
+        return bundler instanceof AdaptiveBundler? ((AdaptiveBundler)bundler).batch_sizes.toString() : null;
+    }
+
+    @ManagedAttribute(description="Histogram of the queuing delays (in microseconds) of messages in the adaptive bundler")
+    public String getBundlerQueuingDelays() {
+        return bundler instanceof AdaptiveBundler? ((AdaptiveBundler)bundler).delays.toString() : null;
+    }
+
+    @ManagedAttribute(description="Max time (in microseconds) the adaptive bundler currently waits for more messages " +
+      "to a destination before sending them")
+    public long getBundlerFlushDelay() {
+        return bundler instanceof AdaptiveBundler?
+          TimeUnit.NANOSECONDS.toMicros(((AdaptiveBundler)bundler).flush_delay) : 0;
+    }
+
     @ManagedAttribute(description="Is the logical_addr_cache reaper task running")
     public boolean isLogicalAddressCacheReaperRunning() {
         return logical_addr_cache_reaper != null && !logical_addr_cache_reaper.isDone();
@@ -613,6 +685,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     /** The thread pool which handles JGroups internal messages (Flag.INTERNAL) */
     protected Executor                internal_thread_pool;
 
+    /** Regular multicast and unicast messages (and batches) from the same sender are passed to thread_pool one at a
+     * time, in order. Only used when thread_pool_type is not "default", else null */
+    protected OrderedExecutor         ordered_mcast_pool, ordered_ucast_pool;
+
     /** Factory which is used by internal_thread_pool */
     protected ThreadFactory           internal_thread_factory;
 
@@ -665,6 +741,22 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     protected final Average avg_batch_size=new Average(20);
 
+    /** Sizes of all received batches (when stats is enabled); unlike avg_batch_size, this is not a rolling average */
+    protected final Histogram batch_sizes_received=new Histogram();
+
+    /** Time (in us) received messages and batches wait in a thread pool (if record_thread_pool_delays is enabled) */
+    protected final Histogram thread_pool_delays=new Histogram();
+
+    /** Sends to members in parallel if multicast_send_threads > 0 (see {@link #sendToMembers(Collection, byte[], int, int)}) */
+    protected ExecutorService multicast_send_pool;
+
+    /** Average time (in microseconds) for sendUnicast() when sending to members, keyed by logical address. Only
+     * populated when stats is enabled */
+    protected final ConcurrentMap<Address,Average> send_latencies=Util.createConcurrentMap();
+
+    /** Provides the payloads of received messages if use_buffer_pool is true, else null */
+    protected BufferPool buffer_pool;
+
     protected static final LazyRemovalCache.Printable<Address,LazyRemovalCache.Entry<PhysicalAddress>> print_function
       =new LazyRemovalCache.Printable<Address,LazyRemovalCache.Entry<PhysicalAddress>>() {
         public String print(final Address logical_addr, final LazyRemovalCache.Entry<PhysicalAddress> entry) {
@@ -721,12 +813,34 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @ManagedAttribute(description="The physical address of the channel")
     public String getLocalPhysicalAddress() {return local_physical_addr != null? local_physical_addr.toString() : null;}
 
+    /** Returns the pool for payloads of received messages, or null if use_buffer_pool is false */
+    public BufferPool getBufferPool() {return buffer_pool;}
+
+    @ManagedAttribute(description="Stats of the buffer pool (null if use_buffer_pool is false)")
+    public String getBufferPoolStats() {return buffer_pool != null? buffer_pool.toString() : null;}
+
 
 
     public void resetStats() {
         num_msgs_sent=num_msgs_received=num_single_msgs_received=num_batches_received=num_bytes_sent=num_bytes_received=0;
         num_oob_msgs_received=num_incoming_msgs_received=num_internal_msgs_received=num_single_msgs_sent=num_batches_sent=0;
         avg_batch_size.clear();
+        send_latencies.clear();
+        if(buffer_pool != null)
+            buffer_pool.resetStats();
+        if(bundler instanceof AdaptiveBundler)
+            ((AdaptiveBundler)bundler).resetStats();
+        thread_pool_delays.reset();
+        batch_sizes_received.reset();
+    }
+
+    @ManagedOperation(description="Prints the average time (in microseconds) for sending a message to each member " +
+      "when multicasts are sent as multiple unicasts (stats needs to be enabled)")
+    public String printSendLatencies() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,Average> entry: send_latencies.entrySet())
+            sb.append(entry.getKey()).append(": ").append(String.format("%.2f us", entry.getValue().getAverage())).append("\n");
+        return sb.toString();
     }
 
     public void registerProbeHandler(DiagnosticsHandler.ProbeHandler handler) {
@@ -769,9 +883,13 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
     public void setDefaultThreadPool(Executor thread_pool) {
-        if(this.thread_pool != null)
+        if(this.thread_pool != null && this.thread_pool != oob_thread_pool) // not shared with the OOB pool
             shutdownThreadPool(this.thread_pool);
         this.thread_pool=thread_pool;
+        if(ordered_mcast_pool != null) {
+            ordered_mcast_pool=new OrderedExecutor(thread_pool);
+            ordered_ucast_pool=new OrderedExecutor(thread_pool);
+        }
     }
 
     public ThreadFactory getDefaultThreadPoolThreadFactory() {
@@ -789,7 +907,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
     public void setOOBThreadPool(Executor oob_thread_pool) {
-        if(this.oob_thread_pool != null) {
+        if(this.oob_thread_pool != null && this.oob_thread_pool != thread_pool) { // not shared with the regular pool
             shutdownThreadPool(this.oob_thread_pool);
         }
         this.oob_thread_pool=oob_thread_pool;
@@ -1142,9 +1260,14 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         // ========================================== OOB thread pool ==============================
 
+        boolean default_pools=thread_pool_type.equalsIgnoreCase("default");
+        ExecutorService shared_pool=null; // shared by the OOB and regular thread pools if !default_pools
+
         if(oob_thread_pool == null
-          || (oob_thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)oob_thread_pool).isShutdown())) {
-            if(oob_thread_pool_enabled) {
+          || (oob_thread_pool instanceof ExecutorService && ((ExecutorService)oob_thread_pool).isShutdown())) {
+            if(oob_thread_pool_enabled && !default_pools)
+                oob_thread_pool=shared_pool=createExecutor(thread_pool_type, "Incoming");
+            else if(oob_thread_pool_enabled) {
                 if(oob_thread_pool_queue_enabled)
                     oob_thread_pool_queue=new LinkedBlockingQueue<>(oob_thread_pool_queue_max_size);
                 else
@@ -1160,8 +1283,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         // ====================================== Regular thread pool ===========================
 
         if(thread_pool == null
-          || (thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)thread_pool).isShutdown())) {
-            if(thread_pool_enabled) {
+          || (thread_pool instanceof ExecutorService && ((ExecutorService)thread_pool).isShutdown())) {
+            if(thread_pool_enabled && !default_pools)
+                thread_pool=shared_pool != null? shared_pool : createExecutor(thread_pool_type, "Incoming");
+            else if(thread_pool_enabled) {
                 if(thread_pool_queue_enabled)
                     thread_pool_queue=new LinkedBlockingQueue<>(thread_pool_queue_max_size);
                 else
@@ -1173,13 +1298,19 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                 thread_pool=new DirectExecutor();
             }
         }
+        if(!default_pools && !(thread_pool instanceof DirectExecutor)) {
+            ordered_mcast_pool=new OrderedExecutor(thread_pool);
+            ordered_ucast_pool=new OrderedExecutor(thread_pool);
+        }
 
 
         // ========================================== Internal thread pool ==============================
 
         if(internal_thread_pool == null
-          || (internal_thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)internal_thread_pool).isShutdown())) {
-            if(internal_thread_pool_enabled) {
+          || (internal_thread_pool instanceof ExecutorService && ((ExecutorService)internal_thread_pool).isShutdown())) {
+            if(internal_thread_pool_enabled && !default_pools)
+                internal_thread_pool=createExecutor(thread_pool_type, "INT");
+            else if(internal_thread_pool_enabled) {
                 if(internal_thread_pool_queue_enabled)
                     internal_thread_pool_queue=new LinkedBlockingQueue<>(internal_thread_pool_queue_max_size);
                 else
@@ -1193,6 +1324,13 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             // if the internal thread pool is disabled, we won't create it (not even a DirectExecutor)
         }
 
+        if(multicast_send_threads > 0 && (multicast_send_pool == null || multicast_send_pool.isShutdown()))
+            multicast_send_pool=createThreadPool(multicast_send_threads, multicast_send_threads, 30000, "run",
+                                                 new LinkedBlockingQueue<Runnable>(), global_thread_factory);
+
+        if(use_buffer_pool && buffer_pool == null)
+            buffer_pool=new BufferPool(buffer_pool_max_buffer_size, buffer_pool_max_bytes_per_size);
+
 
         Map<String, Object> m=new HashMap<>(2);
         if(bind_addr != null)
@@ -1235,14 +1373,17 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             timer.stop();
 
         // 3. Stop the thread pools
-        if(oob_thread_pool instanceof ThreadPoolExecutor)
+        if(oob_thread_pool instanceof ExecutorService)
             shutdownThreadPool(oob_thread_pool);
 
-        if(thread_pool instanceof ThreadPoolExecutor)
+        if(thread_pool instanceof ExecutorService)
             shutdownThreadPool(thread_pool);
 
-        if(internal_thread_pool instanceof ThreadPoolExecutor)
+        if(internal_thread_pool instanceof ExecutorService)
             shutdownThreadPool(internal_thread_pool);
+
+        if(multicast_send_pool != null)
+            shutdownThreadPool(multicast_send_pool);
     }
 
     /**
@@ -1270,6 +1411,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             else if(bundler_type.startsWith("sender-sends")) {
                 bundler=new SenderSendsBundler();
             }
+            else if(bundler_type.startsWith("ring-buffer")) {
+                bundler=new RingBufferBundler(bundler_capacity);
+            }
+            else if(bundler_type.startsWith("adaptive")) {
+                bundler=new AdaptiveBundler(bundler_capacity);
+            }
             else
                 log.warn(Util.getMessage("UnknownBundler"), bundler_type);
             if(bundler == null)
@@ -1356,6 +1503,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                 if(singleton_name != null && !singleton_name.isEmpty())
                     retval.put("singleton_name", singleton_name);
             }
+            if(key.equals("bundler")) {
+                retval.put("bundler", bundler != null? bundler.toString() : null);
+                continue;
+            }
             if(key.equals("addrs")) {
                 Set<PhysicalAddress> physical_addrs=logical_addr_cache.nonRemovedValues();
                 String list=Util.print(physical_addrs);
@@ -1394,7 +1545,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
     public String[] supportedKeys() {
-        return new String[]{"dump", "keys", "uuids", "info", "addrs", "cluster"};
+        return new String[]{"dump", "keys", "uuids", "info", "addrs", "cluster", "bundler"};
     }
 
 
@@ -1485,6 +1636,44 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
 
 
+    /**
+     * Sends the messages of a batch, e.g. the fragments of a large message, on the caller's thread. The messages
+     * bypass the bundler: they're marshalled one after the other into the same output buffer and sent right away.
+     * Fragments are close to max_bundle_size, so the bundler would send each of them separately anyway, after a
+     * handoff to the bundler thread. Batches to a physical address are passed down individually.
+     */
+    public void down(MessageBatch batch) {
+        Address dest=batch.dest();
+        if(dest instanceof PhysicalAddress) {
+            super.down(batch);
+            return;
+        }
+        if(log.isTraceEnabled())
+            log.trace("%s: sending batch of %d msgs to %s", local_addr, batch.size(), dest != null? dest : "cluster");
+
+        boolean multicast=dest == null;
+        ByteArrayDataOutputStream out=null;
+        for(Message msg: batch) {
+            if(header != null)
+                msg.putHeaderIfAbsent(this.id, header);
+            if(!isSingleton())
+                setSourceAddress(msg);
+
+            boolean do_send=multicast || !dest.equals(msg.getSrc()),
+              loop_back=(multicast || dest.equals(msg.getSrc())) && !msg.isTransientFlagSet(Message.TransientFlag.DONT_LOOPBACK);
+            if(loop_back && loopback_separate_thread)
+                loopback(msg, multicast);
+            if(do_send) {
+                if(out == null)
+                    out=new ByteArrayDataOutputStream((int)(msg.size() + MSG_OVERHEAD));
+                _send(msg, dest, out);
+            }
+            if(loop_back && !loopback_separate_thread)
+                loopback(msg, multicast);
+        }
+    }
+
+
     /*--------------------------- End of Protocol interface -------------------------- */
 
 
@@ -1514,8 +1703,16 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
     protected void _send(Message msg, Address dest) {
+        _send(msg, dest, null);
+    }
+
+    /** Sends a message via the bundler, or - if out is non-null - marshals it into out and sends it directly */
+    protected void _send(Message msg, Address dest, ByteArrayDataOutputStream out) {
         try {
-            send(msg, dest);
+            if(out != null)
+                sendDirectly(msg, dest, out);
+            else
+                send(msg, dest);
         }
         catch(InterruptedIOException iex) {
         }
@@ -1621,19 +1818,44 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         if(local_physical_addr != null && local_physical_addr.equals(sender))
             return;
 
-        byte flags=data[Global.SHORT_SIZE];
+        byte flags=data[offset + Global.SHORT_SIZE];
         boolean is_message_list=(flags & LIST) == LIST;
 
         if(is_message_list) // used if message bundling is enabled
-            handleMessageBatch(sender, data, offset, length);
+            handleMessageBatch(sender, new ByteArrayDataInputStream(data, offset, length));
         else
             handleSingleMessage(sender, data, offset, length);
     }
 
+    /**
+     * Subclasses call this method when a packet has been received into a {@link ByteBuffer}, e.g. a direct buffer
+     * filled by a {@link java.nio.channels.DatagramChannel}. The packet (between position and limit) is unmarshalled
+     * directly from the buffer, without first copying it into a byte[] array. All data is copied out of buf, so the
+     * caller can reuse it when this method returns.
+     */
+    public void receive(Address sender, ByteBuffer buf) {
+        if(buf == null) return;
+        if(buf.hasArray()) {
+            receive(sender, buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            return;
+        }
 
-    protected void handleMessageBatch(Address sender, byte[] data, int offset, int length) {
+        // drop message from self; it has already been looped back up (https://issues.jboss.org/browse/JGRP-1765)
+        if(local_physical_addr != null && local_physical_addr.equals(sender))
+            return;
+
+        byte flags=buf.get(buf.position() + Global.SHORT_SIZE);
+        boolean is_message_list=(flags & LIST) == LIST;
+        ByteBufferInputStream in=new ByteBufferInputStream(buf);
+        if(is_message_list)
+            handleMessageBatch(sender, in);
+        else
+            handleSingleMessage(sender, in);
+    }
+
+
+    protected void handleMessageBatch(Address sender, DataInput in) {
         try {
-            ByteArrayDataInputStream in=new ByteArrayDataInputStream(data, offset, length);
             short version=in.readShort();
             if(!versionMatch(version, sender))
                 return;
@@ -1641,7 +1863,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             byte flags=in.readByte();
             final boolean multicast=(flags & MULTICAST) == MULTICAST;
 
-            final MessageBatch[] batches=readMessageBatch(in, multicast);
+            final MessageBatch[] batches=readMessageBatch(in, multicast, buffer_pool);
             final MessageBatch batch=batches[0], oob_batch=batches[1], internal_batch_oob=batches[2], internal_batch=batches[3];
 
             removeAndDispatchNonBundledMessages(oob_batch, internal_batch_oob);
@@ -1652,7 +1874,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             }
             if(batch != null) {
                 num_incoming_msgs_received+=batch.size();
-                thread_pool.execute(new BatchHandler(batch));
+                executeRegular(batch.sender(), multicast, new BatchHandler(batch));
             }
             if(internal_batch_oob != null && !internal_batch_oob.isEmpty()) {
                 num_oob_msgs_received+=internal_batch_oob.size();
@@ -1679,6 +1901,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         boolean internal=(msg_flags & Message.Flag.INTERNAL.value()) == Message.Flag.INTERNAL.value();
         boolean oob=(msg_flags & Message.Flag.OOB.value()) == Message.Flag.OOB.value();
 
+        if(!oob && !internal && ordered_ucast_pool != null) {
+            // regular messages are ordered by (logical) sender, so unmarshal the message to get it
+            handleSingleMessage(sender, new ByteArrayDataInputStream(data, offset, length));
+            return;
+        }
+
         if(oob)
             num_oob_msgs_received++;
         else if(internal)
@@ -1691,6 +1919,18 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         try {
             if(pool instanceof DirectExecutor)
                 pool.execute(new MyHandler(sender, data, offset, length)); // we don't make a copy if we execute on this thread
+            else if(buffer_pool != null) {
+                // the copy becomes the payload of the message and is returned to the pool after delivery
+                BufferPool.Ref ref=buffer_pool.acquire(length);
+                System.arraycopy(data, offset, ref.buf(), 0, length);
+                try {
+                    pool.execute(new MyHandler(sender, ref, length));
+                }
+                catch(RejectedExecutionException ex) {
+                    ref.release();
+                    throw ex;
+                }
+            }
             else {
                 byte[] tmp=new byte[length];
                 System.arraycopy(data, offset, tmp, 0, length);
@@ -1702,6 +1942,40 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         }
     }
 
+    /** Unmarshals a single message on the caller's thread and passes it to the thread pool matching its flags */
+    protected void handleSingleMessage(Address sender, DataInput in) {
+        Message msg;
+        try {
+            short version=in.readShort();
+            if(!versionMatch(version, sender))
+                return;
+            in.readByte(); // flags
+            msg=readMessage(in, buffer_pool);
+        }
+        catch(Throwable t) {
+            log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
+            return;
+        }
+
+        boolean internal=msg.isFlagSet(Message.Flag.INTERNAL), oob=msg.isFlagSet(Message.Flag.OOB);
+        if(oob)
+            num_oob_msgs_received++;
+        else if(internal)
+            num_internal_msgs_received++;
+        else
+            num_incoming_msgs_received++;
+
+        try {
+            if(!oob && !internal)
+                executeRegular(msg.getSrc(), msg.getDest() == null, new SingleMessageHandler(msg));
+            else
+                pickThreadPool(oob, internal).execute(new SingleMessageHandler(msg));
+        }
+        catch(RejectedExecutionException ex) {
+            num_rejected_msgs++;
+        }
+    }
+
     /**
      * Removes messages with flags DONT_BUNDLE and OOB set and executes them in the oob or internal thread pool. JGRP-1737
      */
@@ -1751,20 +2025,40 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
 
 
+    /** Records the time since a handler was created (submitted to a thread pool), if created is non-zero */
+    protected void recordThreadPoolDelay(long created) {
+        if(created != 0)
+            thread_pool_delays.add(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - created));
+    }
+
+
     protected class MyHandler implements Runnable {
-        protected final Address sender;
-        protected final byte[]  data; // this is always a copy, or we use a DirectExecutor
-        protected final int     offset;
-        protected final int     length;
+        protected final Address        sender;
+        protected final byte[]         data; // this is always a copy, or we use a DirectExecutor
+        protected final int            offset;
+        protected final int            length;
+        protected final BufferPool.Ref ref;  // non-null if data was acquired from the buffer pool
+        protected final long           created=record_thread_pool_delays? System.nanoTime() : 0;
 
         protected MyHandler(Address sender, byte[] data, int offset, int length) {
             this.sender=sender;
             this.data=data;
             this.offset=offset;
             this.length=length;
+            this.ref=null;
+        }
+
+        protected MyHandler(Address sender, BufferPool.Ref ref, int length) {
+            this.sender=sender;
+            this.data=ref.buf();
+            this.offset=0;
+            this.length=length;
+            this.ref=ref;
         }
 
         public void run() {
+            recordThreadPoolDelay(created);
+            boolean handed_off=false; // set when the message takes over the pooled buffer
             try {
                 ByteArrayDataInputStream in=new ByteArrayDataInputStream(data, offset, length);
                 short version=in.readShort();
@@ -1782,8 +2076,14 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                         return;
                 }
 
-                if(payload_offset >= 0)
-                    msg.setBuffer(data, payload_offset, length - payload_offset);
+                if(payload_offset >= 0) {
+                    if(ref != null) {
+                        msg.setPooledBuffer(ref, payload_offset, length - payload_offset);
+                        handed_off=true;
+                    }
+                    else
+                        msg.setBuffer(data, payload_offset, length - payload_offset);
+                }
 
                 if(stats) {
                     num_msgs_received++;
@@ -1798,17 +2098,23 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             catch(Throwable t) {
                 log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
             }
+            finally {
+                if(ref != null && !handed_off)
+                    ref.release();
+            }
         }
     }
 
     protected class SingleMessageHandler implements Runnable {
         protected final Message msg;
+        protected final long    created=record_thread_pool_delays? System.nanoTime() : 0;
 
         protected SingleMessageHandler(final Message msg) {
             this.msg=msg;
         }
 
         public void run() {
+            recordThreadPoolDelay(created);
             boolean multicast=msg.getDest() == null;
             try {
                 if(!multicast) {
@@ -1837,18 +2143,21 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     protected class BatchHandler implements Runnable {
         protected final MessageBatch batch;
+        protected final long         created=record_thread_pool_delays? System.nanoTime() : 0;
 
         public BatchHandler(final MessageBatch batch) {
             this.batch=batch;
         }
 
         public void run() {
+            recordThreadPoolDelay(created);
             if(stats) {
                 int batch_size=batch.size();
                 num_msgs_received+=batch_size;
                 num_batches_received++;
                 num_bytes_received+=batch.length();
                 avg_batch_size.add(batch_size);
+                batch_sizes_received.add(batch_size);
             }
 
             if(!batch.multicast()) {
@@ -1876,6 +2185,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         // we can create between 300'000 - 400'000 output streams and do the marshalling per second,
         // so this is not a bottleneck !
         ByteArrayDataOutputStream out=new ByteArrayDataOutputStream((int)(msg.size() + MSG_OVERHEAD)); // version+flag+msg
+        sendDirectly(msg, dest, out);
+    }
+
+    /** Marshals a message into out (starting at position 0) and sends it, bypassing the bundler */
+    protected void sendDirectly(Message msg, Address dest, ByteArrayDataOutputStream out) throws Exception {
+        out.position(0);
         writeMessage(msg, out, dest == null);
         doSend(getClusterName(msg), out.buffer(), 0, out.position(), dest);
         if(stats)
@@ -1929,14 +2244,21 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
 
 
-    /** Fetches the physical addrs for mbrs and sends the msg to each physical address. Asks discovery for missing
-     * members' physical addresses if needed */
+    /**
+     * Sends a buffer to the physical address of each member via {@link #sendUnicast(PhysicalAddress, byte[], int, int)}
+     * and asks discovery for missing physical addresses. If multicast_send_threads > 0, the sends to the different
+     * members are done in parallel; all sends share the same buffer and the call returns when all sends have
+     * completed, so the caller can reuse the buffer.
+     */
     protected void sendToMembers(Collection<Address> mbrs, byte[] buf, int offset, int length) throws Exception {
         List<Address> missing=null;
 
         if(mbrs == null || mbrs.isEmpty())
             mbrs=logical_addr_cache.keySet();
 
+        ExecutorService pool=multicast_send_pool;
+        List<Tuple<Address,PhysicalAddress>> targets=pool != null? new ArrayList<Tuple<Address,PhysicalAddress>>(mbrs.size()) : null;
+
         for(Address mbr: mbrs) {
             PhysicalAddress target=logical_addr_cache.get(mbr);
             if(target == null) {
@@ -1945,20 +2267,84 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                 missing.add(mbr);
                 continue;
             }
+            if(local_physical_addr != null && local_physical_addr.equals(target))
+                continue;
+            if(targets != null)
+                targets.add(new Tuple<>(mbr, target));
+            else
+                sendToMember(mbr, target, buf, offset, length);
+        }
+        if(targets != null)
+            sendToMembersInParallel(pool, targets, buf, offset, length);
+        if(missing != null)
+            fetchPhysicalAddrs(missing);
+    }
 
+    /** Submits the sends to all but the first target to pool, sends to the first target itself and waits for the rest */
+    protected void sendToMembersInParallel(Executor pool, List<Tuple<Address,PhysicalAddress>> targets,
+                                           final byte[] buf, final int offset, final int length) {
+        int num=targets.size();
+        if(num == 0)
+            return;
+        final CountDownLatch latch=new CountDownLatch(num-1);
+        for(int i=1; i < num; i++) {
+            final Tuple<Address,PhysicalAddress> target=targets.get(i);
+            Runnable task=new Runnable() {
+                public void run() {
+                    try {
+                        sendToMember(target.getVal1(), target.getVal2(), buf, offset, length);
+                    }
+                    finally {
+                        latch.countDown();
+                    }
+                }
+            };
             try {
-                if(local_physical_addr == null || !local_physical_addr.equals(target))
-                    sendUnicast(target, buf, offset, length);
+                pool.execute(task);
             }
-            catch(SocketException sock_ex) {
-                log.debug(Util.getMessage("FailureSendingToPhysAddr"), local_addr, mbr, sock_ex);
+            catch(RejectedExecutionException rejected) { // pool was shut down
+                task.run();
             }
-            catch(Throwable t) {
-                log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, mbr, t);
+        }
+        Tuple<Address,PhysicalAddress> first=targets.get(0);
+        sendToMember(first.getVal1(), first.getVal2(), buf, offset, length);
+
+        // the buffer is reused by the caller when we return, so we need to wait for all sends, even when interrupted
+        boolean interrupted=false;
+        for(;;) {
+            try {
+                latch.await();
+                break;
+            }
+            catch(InterruptedException e) {
+                interrupted=true;
             }
         }
-        if(missing != null)
-            fetchPhysicalAddrs(missing);
+        if(interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    protected void sendToMember(Address mbr, PhysicalAddress target, byte[] buf, int offset, int length) {
+        long start=stats? System.nanoTime() : 0;
+        try {
+            sendUnicast(target, buf, offset, length);
+        }
+        catch(SocketException sock_ex) {
+            log.debug(Util.getMessage("FailureSendingToPhysAddr"), local_addr, mbr, sock_ex);
+        }
+        catch(Throwable t) {
+            log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, mbr, t);
+        }
+        if(stats) {
+            long time=TimeUnit.MICROSECONDS.convert(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            Average avg=send_latencies.get(mbr);
+            if(avg == null) {
+                Average tmp=send_latencies.putIfAbsent(mbr, avg=new Average());
+                if(tmp != null)
+                    avg=tmp;
+            }
+            avg.add(time);
+        }
     }
 
 
@@ -2031,8 +2417,13 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
     public static Message readMessage(DataInput instream) throws Exception {
+        return readMessage(instream, null);
+    }
+
+    /** Reads a message; its payload is acquired from pool if pool is non-null */
+    public static Message readMessage(DataInput instream, BufferPool pool) throws Exception {
         Message msg=new Message(false); // don't create headers, readFrom() will do this
-        msg.readFrom(instream);
+        msg.readFrom(instream, pool);
         return msg;
     }
 
@@ -2057,6 +2448,18 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      */
     public static void writeMessageList(Address dest, Address src, byte[] cluster_name,
                                         List<Message> msgs, DataOutput dos, boolean multicast, short transport_id) throws Exception {
+        writeMessageListHeader(dest, src, cluster_name, msgs != null? msgs.size() : 0, dos, multicast);
+        if(msgs != null)
+            for(Message msg: msgs)
+                msg.writeToNoAddrs(src, dos, transport_id); // exclude the transport header
+    }
+
+    /**
+     * Writes everything of a message list up to and including the number of messages; the messages themselves
+     * need to be written by the caller (using {@link Message#writeToNoAddrs(Address, DataOutput, short...)})
+     */
+    protected static void writeMessageListHeader(Address dest, Address src, byte[] cluster_name, int num_msgs,
+                                                 DataOutput dos, boolean multicast) throws Exception {
         dos.writeShort(Version.version);
 
         byte flags=LIST;
@@ -2074,11 +2477,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             dos.write(cluster_name);
 
         // Number of messages (0 == no messages)
-        dos.writeInt(msgs != null? msgs.size() : 0);
-
-        if(msgs != null)
-            for(Message msg: msgs)
-                msg.writeToNoAddrs(src, dos, transport_id); // exclude the transport header
+        dos.writeInt(num_msgs);
     }
 
 
@@ -2123,6 +2522,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      * @throws Exception
      */
     public static MessageBatch[] readMessageBatch(DataInput in, boolean multicast) throws Exception {
+        return readMessageBatch(in, multicast, null);
+    }
+
+    /** Same as {@link #readMessageBatch(DataInput, boolean)}, but acquires the payloads from pool if non-null */
+    public static MessageBatch[] readMessageBatch(DataInput in, boolean multicast, BufferPool pool) throws Exception {
         MessageBatch[] batches=new MessageBatch[4]; // [0]: reg, [1]: OOB, [2]: internal-oob, [3]: internal
         Address dest=Util.readAddress(in);
         Address src=Util.readAddress(in);
@@ -2135,7 +2539,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         int len=in.readInt();
         for(int i=0; i < len; i++) {
             Message msg=new Message(false);
-            msg.readFrom(in);
+            msg.readFrom(in, pool);
             msg.setDest(dest);
             if(msg.getSrc() == null)
                 msg.setSrc(src);
@@ -2191,6 +2595,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
                     // fix for https://jira.jboss.org/jira/browse/JGRP-918
                     logical_addr_cache.retainAll(members);
+                    send_latencies.keySet().retainAll(members);
+                    for(OrderedExecutor ordered: new OrderedExecutor[]{ordered_mcast_pool, ordered_ucast_pool})
+                        if(ordered != null)
+                            ordered.retainAll(members);
                     fetchLocalAddresses();
 
                     List<Address> left_mbrs=Util.leftMembers(old_members,members);
@@ -2319,6 +2727,14 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             global_thread_factory.renameThread(TransferQueueBundler.THREAD_NAME,
                                                ((TransferQueueBundler)bundler).getThread());
         }
+        if(bundler instanceof RingBufferBundler) {
+            global_thread_factory.renameThread(RingBufferBundler.THREAD_NAME,
+                                               ((RingBufferBundler)bundler).getThread());
+        }
+        if(bundler instanceof AdaptiveBundler) {
+            global_thread_factory.renameThread(AdaptiveBundler.THREAD_NAME,
+                                               ((AdaptiveBundler)bundler).getThread());
+        }
     }
 
 
@@ -2330,6 +2746,16 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             if(thread != null)
                 global_thread_factory.renameThread(TransferQueueBundler.THREAD_NAME, thread);
         }
+        if(bundler instanceof RingBufferBundler) {
+            Thread thread=((RingBufferBundler)bundler).getThread();
+            if(thread != null)
+                global_thread_factory.renameThread(RingBufferBundler.THREAD_NAME, thread);
+        }
+        if(bundler instanceof AdaptiveBundler) {
+            Thread thread=((AdaptiveBundler)bundler).getThread();
+            if(thread != null)
+                global_thread_factory.renameThread(AdaptiveBundler.THREAD_NAME, thread);
+        }
     }
 
     protected void setInAllThreadFactories(String cluster_name, Address local_address, String pattern) {
@@ -2363,6 +2789,47 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /**
+     * Creates a ForkJoinPool (type "fork-join") or an executor running every task on a new virtual thread (type
+     * "virtual"). Virtual threads are looked up via reflection; if the runtime doesn't support them, a ForkJoinPool is
+     * returned instead
+     */
+    protected ExecutorService createExecutor(String type, final String name) {
+        if(type.equalsIgnoreCase("virtual")) {
+            try {
+                Method method=Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService)method.invoke(null);
+            }
+            catch(Throwable t) {
+                log.warn("virtual threads are not supported by this runtime (%s), using a ForkJoinPool instead", t);
+            }
+        }
+        else if(!type.equalsIgnoreCase("fork-join"))
+            throw new IllegalArgumentException("thread_pool_type " + type + " is unknown; has to be \"default\", " +
+                                                 "\"fork-join\" or \"virtual\"");
+        int parallelism=fork_join_parallelism > 0? fork_join_parallelism : Runtime.getRuntime().availableProcessors();
+        ForkJoinPool.ForkJoinWorkerThreadFactory factory=new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+                ForkJoinWorkerThread thread=new ForkJoinWorkerThread(pool) {};
+                global_thread_factory.renameThread(name, thread);
+                return thread;
+            }
+        };
+        return new ForkJoinPool(parallelism, factory, null, true); // FIFO (async mode), as tasks are never joined
+    }
+
+    /**
+     * Passes a regular message (or batch) from sender to the regular thread pool. If thread_pool_type is not "default",
+     * the task only runs after the tasks for previous messages from the same sender have completed
+     */
+    protected void executeRegular(Address sender, boolean multicast, Runnable task) {
+        OrderedExecutor ordered=multicast? ordered_mcast_pool : ordered_ucast_pool;
+        if(ordered != null && sender != null)
+            ordered.execute(sender, task);
+        else
+            thread_pool.execute(task);
+    }
+
     protected static void shutdownThreadPool(Executor thread_pool) {
         if(thread_pool instanceof ExecutorService) {
             ExecutorService service=(ExecutorService)thread_pool;
@@ -2716,6 +3183,480 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
 
 
+    /**
+     * Bundler which uses a pre-sized ring buffer instead of a queue. Sender threads claim a slot by incrementing a
+     * write index (no locks are acquired), and a single bundler thread drains all published slots, groups the
+     * messages by destination and marshals each group directly into a reusable output buffer. No lists or maps are
+     * created per bundle, so this bundler generates almost no garbage, and senders don't contend on a queue lock.
+     * <p/>
+     * When the ring buffer is full, senders spin (yielding the CPU) until the bundler thread has made room. A slot is
+     * only claimed when it is free, so every claimed slot is published right away and the bundler thread never
+     * waits for a message that isn't going to arrive.
+     */
+    protected class RingBufferBundler extends BaseBundler implements Runnable {
+        protected final AtomicReferenceArray<Message>  buf;       // the ring, capacity is a power of 2
+        protected final int                            mask;      // capacity-1, to compute the index from a seqno
+        protected final AtomicLong                     write_index=new AtomicLong(0); // next slot to be claimed
+        protected volatile long                        read_index;                    // next slot to be read
+        protected final Message[]                      batch;     // messages copied out of the ring for sending
+        protected volatile boolean                     waiting;   // true when the bundler thread is parked
+        protected volatile Thread                      bundler_thread;
+        protected static final String                  THREAD_NAME="RingBufferBundler";
+        protected static final int                     SPIN_COUNT=100;
+
+
+        protected RingBufferBundler(int capacity) {
+            if(capacity <= 0) throw new IllegalArgumentException("bundler capacity cannot be " + capacity);
+            int cap=1;
+            while(cap < capacity)
+                cap<<=1;
+            buf=new AtomicReferenceArray<>(cap);
+            batch=new Message[cap];
+            mask=cap-1;
+        }
+
+        public Thread getThread()     {return bundler_thread;}
+        public int    getBufferSize() {return (int)(write_index.get() - read_index);}
+
+        public synchronized void start() {
+            if(bundler_thread != null)
+                stop();
+            bundler_thread=getThreadFactory().newThread(this, THREAD_NAME);
+            bundler_thread.start();
+        }
+
+        public synchronized void stop() {
+            Thread tmp=bundler_thread;
+            bundler_thread=null;
+            if(tmp != null) {
+                tmp.interrupt();
+                if(tmp.isAlive()) {
+                    try {tmp.join(500);} catch(InterruptedException e) {}
+                }
+            }
+            clear();
+        }
+
+        public void send(Message msg) throws Exception {
+            checkLength(msg.size());
+            long seqno;
+            for(;;) {
+                if(bundler_thread == null)
+                    return;
+                seqno=write_index.get();
+                if(seqno - read_index >= batch.length) { // ring buffer is full: wait until the bundler made room
+                    Thread.yield();
+                    continue;
+                }
+                if(write_index.compareAndSet(seqno, seqno+1))
+                    break;
+            }
+            buf.lazySet((int)(seqno & mask), msg); // the slot is claimed: always publish the message
+            Thread tmp=bundler_thread;
+            if(waiting && tmp != null)
+                LockSupport.unpark(tmp);
+        }
+
+        public void run() {
+            while(Thread.currentThread() == bundler_thread) {
+                try {
+                    int num=drain();
+                    if(num == 0) {
+                        waitForMessages();
+                        continue;
+                    }
+                    sendBundledMessages(batch, num);
+                }
+                catch(Throwable t) {
+                    log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, t);
+                }
+            }
+        }
+
+        /**
+         * Discards all published messages and nulls their slots, so that a restarted bundler doesn't send messages
+         * queued before it was stopped. Slots which have been claimed but not yet published are picked up by the
+         * next bundler thread.
+         */
+        protected void clear() {
+            long from=read_index, to=write_index.get(), i=from;
+            for(; i < to; i++) {
+                int index=(int)(i & mask);
+                if(buf.get(index) == null)
+                    break;
+                buf.set(index, null);
+            }
+            read_index=i;
+            Arrays.fill(batch, null);
+        }
+
+        /**
+         * Copies all contiguously published messages into batch, nulls their slots and advances read_index, so
+         * that senders can continue adding messages while the batch is being marshalled and sent
+         */
+        protected int drain() {
+            long from=read_index, to=write_index.get();
+            int num=0;
+            for(long i=from; i < to && num < batch.length; i++) {
+                int index=(int)(i & mask);
+                Message msg=buf.get(index);
+                if(msg == null) // slot was claimed by a sender, but the message has not yet been published
+                    break;
+                batch[num++]=msg;
+                buf.lazySet(index, null);
+            }
+            if(num > 0)
+                read_index=from + num;
+            return num;
+        }
+
+        protected void waitForMessages() {
+            for(int i=0; i < SPIN_COUNT; i++) {
+                if(write_index.get() > read_index)
+                    return;
+                Thread.yield();
+            }
+            waiting=true;
+            try {
+                if(write_index.get() == read_index)
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(max_bundle_timeout));
+            }
+            finally {
+                waiting=false;
+            }
+        }
+
+        /**
+         * Sends the first num messages of msgs. Messages with the same destination (and cluster name if the transport
+         * is shared) are marshalled into the same message list, whose number of messages is patched in when done.
+         * Sent messages are nulled in msgs.
+         */
+        protected void sendBundledMessages(final Message[] msgs, final int num) {
+            for(int i=0; i < num; i++) {
+                Message first=msgs[i];
+                if(first == null)
+                    continue;
+                Address dest=first.getDest(), src=first.getSrc();
+                byte[]  cname=clusterNameOf(first);
+                int     count=0, count_pos=0;
+                long    size=0;
+                try {
+                    for(int j=i; j < num; j++) {
+                        Message msg=msgs[j];
+                        if(msg == null || !sameDestination(dest, cname, msg))
+                            continue;
+                        long msg_size=msg.size();
+                        if(count > 0 && size + msg_size >= max_bundle_size) {
+                            sendList(dest, cname, count, count_pos);
+                            count=0;
+                            size=0;
+                        }
+                        if(count == 0) {
+                            output.position(0);
+                            writeMessageListHeader(dest, src, cname, 0, output, dest == null);
+                            count_pos=output.position() - Global.INT_SIZE;
+                        }
+                        msg.writeToNoAddrs(src, output, id); // exclude the transport header
+                        msgs[j]=null;
+                        count++;
+                        size+=msg_size;
+                    }
+                    if(count > 0)
+                        sendList(dest, cname, count, count_pos);
+                }
+                catch(Throwable e) {
+                    log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, e);
+                    for(int j=i; j < num; j++) // skip the remaining messages to this destination
+                        if(msgs[j] != null && sameDestination(dest, cname, msgs[j]))
+                            msgs[j]=null;
+                }
+            }
+        }
+
+        protected void sendList(Address dest, byte[] cname, int count, int count_pos) throws Exception {
+            int len=output.position();
+            output.position(count_pos).writeInt(count);
+            output.position(len);
+            try {
+                doSend(isSingleton()? new AsciiString(cname) : null, output.buffer(), 0, len, dest);
+                if(stats) {
+                    if(count == 1)
+                        num_single_msgs_sent++;
+                    else
+                        num_batches_sent++;
+                }
+            }
+            catch(SocketException sock_ex) {
+                log.debug(Util.getMessage("FailureSendingMsgBundle"), local_addr, sock_ex);
+            }
+        }
+
+        protected byte[] clusterNameOf(Message msg) {
+            return !isSingleton()? TP.this.cluster_name.chars() : ((TpHeader)msg.getHeader(id)).cluster_name;
+        }
+
+        protected boolean sameDestination(Address dest, byte[] cname, Message msg) {
+            Address tmp=msg.getDest();
+            if(dest == null? tmp != null : !dest.equals(tmp))
+                return false;
+            return !isSingleton() || Arrays.equals(cname, clusterNameOf(msg));
+        }
+    }
+
+    /**
+     * Bundler which adapts the time it waits for more messages to the observed load, so that bundles are as large as
+     * possible while the 99th percentile of the queuing delay (time between {@link #send(Message)} and passing the
+     * bundle to the socket) stays below bundler_target_latency.
+     * <p/>
+     * Senders add messages to a queue; the bundler thread keeps one bundle per destination. A bundle is sent when
+     * adding a message would exceed max_bundle_size, or when its oldest message has waited for flush_delay. When the
+     * queue is empty and the average time between 2 messages to a destination (the inverse of its send rate) is
+     * greater than the time its bundle could still wait, the bundle is sent right away, as it is unlikely to grow.
+     * <p/>
+     * flush_delay starts at 0 (which behaves like {@link TransferQueueBundler}) and is adjusted every 100 ms: it is
+     * halved when the p99 of the queuing delays since the last adjustment exceeds the target, and increased by 10% of
+     * the target when the p99 is below 75% of the target. It never exceeds the target or max_bundle_timeout.
+     */
+    protected class AdaptiveBundler extends BaseBundler implements Runnable {
+        protected final BlockingQueue<Entry>         queue;
+        protected final int                          threshold;
+        protected final Map<SingletonAddress,Bundle> bundles=new HashMap<>();
+        protected final Histogram                    batch_sizes=new Histogram(); // number of msgs per bundle
+        protected final Histogram                    delays=new Histogram();      // queuing delays (us)
+        protected final Histogram                    window=new Histogram();      // delays since the last adjustment
+        protected volatile long                      flush_delay;                 // ns
+        protected long                               last_adjustment;
+        protected volatile Thread                    bundler_thread;
+        protected static final String                THREAD_NAME="AdaptiveBundler";
+        protected static final long                  ADJUST_INTERVAL=100_000_000L;  // ns
+        protected static final long                  MAX_IDLE_TIME=60_000_000_000L; // ns
+        protected static final int                   MIN_SAMPLES=100;
+        protected static final int                   MAX_DRAIN=1024;
+
+
+        protected AdaptiveBundler(int capacity) {
+            if(capacity <= 0) throw new IllegalArgumentException("bundler capacity cannot be " + capacity);
+            queue=new LinkedBlockingQueue<>(capacity);
+            threshold=(int)(capacity * .9);
+        }
+
+        public Thread getThread()     {return bundler_thread;}
+        public int    getBufferSize() {return queue.size();}
+
+        public void resetStats() {
+            batch_sizes.reset();
+            delays.reset();
+        }
+
+        public synchronized void start() {
+            if(bundler_thread != null)
+                stop();
+            last_adjustment=System.nanoTime();
+            bundler_thread=getThreadFactory().newThread(this, THREAD_NAME);
+            bundler_thread.start();
+        }
+
+        public synchronized void stop() {
+            Thread tmp=bundler_thread;
+            bundler_thread=null;
+            if(tmp != null) {
+                tmp.interrupt();
+                if(tmp.isAlive()) {
+                    try {tmp.join(500);} catch(InterruptedException e) {}
+                }
+            }
+            queue.clear();
+        }
+
+        public void send(Message msg) throws Exception {
+            checkLength(msg.size());
+            if(bundler_thread != null)
+                queue.put(new Entry(msg, System.nanoTime()));
+        }
+
+        public void run() {
+            long deadline=0; // time at which the next bundle needs to be sent, 0 if no bundle is pending
+            while(Thread.currentThread() == bundler_thread) {
+                try {
+                    Entry entry;
+                    if(deadline == 0)
+                        entry=queue.take();
+                    else {
+                        long wait=deadline - System.nanoTime();
+                        entry=wait > 0? queue.poll(wait, TimeUnit.NANOSECONDS) : queue.poll();
+                    }
+                    for(int i=0; entry != null; i++) {
+                        add(entry);
+                        if(i >= MAX_DRAIN)
+                            break;
+                        entry=queue.poll();
+                    }
+                    long now=System.nanoTime();
+                    deadline=flush(now, queue.isEmpty());
+                    adjust(now);
+                }
+                catch(Throwable t) {
+                }
+            }
+        }
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder(String.format("%s: flush_delay=%d us, target=%d us",
+                                                            getClass().getSimpleName(),
+                                                            TimeUnit.NANOSECONDS.toMicros(flush_delay),
+                                                            bundler_target_latency));
+            sb.append("\nbatch sizes: ").append(batch_sizes).append("\nqueuing delays (us): ").append(delays);
+            Map<SingletonAddress,Bundle> tmp;
+            synchronized(bundles) {
+                tmp=new HashMap<>(bundles);
+            }
+            for(Bundle bundle: tmp.values())
+                sb.append("\n").append(bundle);
+            return sb.toString();
+        }
+
+        protected void add(Entry entry) {
+            Message msg=entry.msg;
+            long size=msg.size();
+            byte[] cname=!isSingleton()? TP.this.cluster_name.chars() : ((TpHeader)msg.getHeader(id)).cluster_name;
+            SingletonAddress dest=new SingletonAddress(cname, msg.getDest());
+            Bundle bundle=bundles.get(dest);
+            if(bundle == null) {
+                bundle=new Bundle(dest);
+                synchronized(bundles) {
+                    bundles.put(dest, bundle);
+                }
+            }
+            if(queue.size() >= threshold)
+                sendAll();
+            else if(bundle.bytes + size >= max_bundle_size)
+                send(bundle);
+            bundle.add(msg, size, entry.time);
+        }
+
+        /** Sends all bundles which are due and returns the time at which the next bundle is due, or 0 */
+        protected long flush(long now, boolean queue_empty) {
+            long deadline=0, delay=flush_delay;
+            for(Bundle bundle: bundles.values()) {
+                if(bundle.msgs.isEmpty())
+                    continue;
+                long remaining=bundle.oldest() + delay - now;
+                if(remaining <= 0 || (queue_empty && bundle.avg_interarrival > remaining))
+                    send(bundle);
+                else if(deadline == 0 || now + remaining < deadline)
+                    deadline=now + remaining;
+            }
+            return deadline;
+        }
+
+        protected void sendAll() {
+            for(Bundle bundle: bundles.values())
+                if(!bundle.msgs.isEmpty())
+                    send(bundle);
+        }
+
+        protected void send(Bundle bundle) {
+            List<Message> list=bundle.msgs;
+            output.position(0);
+            if(list.size() == 1)
+                sendSingleMessage(list.get(0), false, output);
+            else {
+                SingletonAddress dst=bundle.dest;
+                sendMessageList(dst.getAddress(), list.get(0).getSrc(), dst.getClusterName(), list, false, output);
+                if(stats)
+                    num_batches_sent++;
+            }
+            long now=System.nanoTime();
+            batch_sizes.add(list.size());
+            for(int i=0; i < list.size(); i++) {
+                long delay=TimeUnit.NANOSECONDS.toMicros(now - bundle.times[i]);
+                delays.add(delay);
+                window.add(delay);
+                bundle.avg_delay=bundle.avg_delay < 0? delay : (bundle.avg_delay * 7 + delay) / 8;
+            }
+            bundle.clear();
+        }
+
+        /** Adjusts flush_delay based on the p99 of the queuing delays observed since the last adjustment */
+        protected void adjust(long now) {
+            if(now - last_adjustment < ADJUST_INTERVAL)
+                return;
+            last_adjustment=now;
+            if(window.count() >= MIN_SAMPLES) {
+                long target=TimeUnit.MICROSECONDS.toNanos(bundler_target_latency),
+                  max_delay=Math.min(target, TimeUnit.MILLISECONDS.toNanos(max_bundle_timeout)),
+                  p99=TimeUnit.MICROSECONDS.toNanos(window.percentile(99));
+                if(p99 > target)
+                    flush_delay/=2;
+                else if(p99 < target * 3 / 4)
+                    flush_delay=Math.min(flush_delay + Math.max(target / 10, 1000), max_delay);
+                window.reset();
+            }
+            // remove the bundles of destinations to which no messages have been sent for a long time
+            synchronized(bundles) {
+                for(Iterator<Bundle> it=bundles.values().iterator(); it.hasNext();) {
+                    Bundle bundle=it.next();
+                    if(bundle.msgs.isEmpty() && now - bundle.last_arrival > MAX_IDLE_TIME)
+                        it.remove();
+                }
+            }
+        }
+
+
+        protected class Entry {
+            protected final Message msg;
+            protected final long    time; // ns, when the message was added to the queue
+
+            protected Entry(Message msg, long time) {
+                this.msg=msg;
+                this.time=time;
+            }
+        }
+
+        /** The messages queued for a destination, plus its send rate and average queuing delay */
+        protected class Bundle {
+            protected final SingletonAddress dest;
+            protected final List<Message>    msgs=new ArrayList<>();
+            protected long[]                 times=new long[16]; // times[i] is the queuing time of msgs[i]
+            protected long                   bytes;
+            protected long                   last_arrival;
+            protected long                   avg_interarrival=-1; // ns, exponentially weighted moving average
+            protected long                   avg_delay=-1;        // us, exponentially weighted moving average
+
+            protected Bundle(SingletonAddress dest) {
+                this.dest=dest;
+            }
+
+            protected long oldest() {return times[0];}
+
+            protected void add(Message msg, long size, long time) {
+                if(msgs.size() == times.length)
+                    times=Arrays.copyOf(times, times.length * 2);
+                times[msgs.size()]=time;
+                msgs.add(msg);
+                bytes+=size;
+                if(last_arrival > 0) {
+                    long diff=Math.max(0, time - last_arrival);
+                    avg_interarrival=avg_interarrival < 0? diff : (avg_interarrival * 7 + diff) / 8;
+                }
+                last_arrival=time;
+            }
+
+            protected void clear() {
+                msgs.clear();
+                bytes=0;
+            }
+
+            public String toString() {
+                Address addr=dest.getAddress();
+                double rate=avg_interarrival > 0? TimeUnit.SECONDS.toNanos(1) / (double)avg_interarrival : 0;
+                return String.format("%s: %.2f msgs/sec, avg queuing delay=%d us",
+                                     addr == null? "cluster" : addr, rate, Math.max(0, avg_delay));
+            }
+        }
+    }
+
+
     /**
      * Used when the transport is shared (singleton_name != null). Maintains the cluster name, local address and view
      */
@@ -16,10 +16,11 @@ import org.jgroups.util.Util;
 import java.io.IOException;
 import java.lang.reflect.Method;
 import java.net.*;
-import java.util.Collection;
-import java.util.Formatter;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.MembershipKey;
+import java.util.*;
 
 
 /**
@@ -101,6 +102,14 @@ public class UDP extends TP {
       "a datagram packet")
     protected long suppress_time_out_of_buffer_space=60000;
 
+    @Property(description="If true, packets are received through DatagramChannels (NIO) into direct ByteBuffers, " +
+      "from which they are unmarshalled without copying them to the heap first",writable=false)
+    protected boolean use_nio=false;
+
+    @Property(description="Number of threads receiving packets on each of the unicast and multicast channels. " +
+      "Only used when use_nio is true",writable=false)
+    protected int nio_receiver_threads=1;
+
 
     /* --------------------------------------------- Fields ------------------------------------------------ */
 
@@ -128,6 +137,21 @@ public class UDP extends TP {
     /** Runnable to receive unicast packets */
     protected PacketReceiver  ucast_receiver=null;
 
+    /** Channel of sock when use_nio is true (sock is then the channel's socket adaptor) */
+    protected DatagramChannel ucast_channel;
+
+    /** Channel for receiving multicast packets when use_nio is true (mcast_sock is null then) */
+    protected DatagramChannel mcast_channel;
+
+    /** The group memberships of mcast_channel, to be dropped when the channel is closed */
+    protected final List<MembershipKey> mcast_memberships=new ArrayList<>();
+
+    /** Receives packets from ucast_channel into direct buffers */
+    protected ChannelReceiver ucast_channel_receiver;
+
+    /** Receives packets from mcast_channel into direct buffers */
+    protected ChannelReceiver mcast_channel_receiver;
+
     protected SuppressLog<InetAddress> suppress_log_out_of_buffer_space;
 
     protected static final boolean is_android, is_mac;
@@ -258,6 +282,8 @@ public class UDP extends TP {
 
     public void init() throws Exception {
         super.init();
+        if(use_nio && nio_receiver_threads < 1)
+            throw new IllegalArgumentException("nio_receiver_threads (" + nio_receiver_threads + ") has to be >= 1");
         if(is_mac && suppress_time_out_of_buffer_space > 0)
             suppress_log_out_of_buffer_space=new SuppressLog<>(log, "FailureSendingToPhysAddr", "SuppressMsg");
     }
@@ -274,6 +300,14 @@ public class UDP extends TP {
             destroySockets();
             throw ex;
         }
+        if(use_nio) {
+            ucast_channel_receiver=new ChannelReceiver(ucast_channel, "unicast receiver",
+                                                       new Runnable() {public void run() {closeUnicastSocket();}});
+            if(ip_mcast)
+                mcast_channel_receiver=new ChannelReceiver(mcast_channel, "multicast receiver",
+                                                           new Runnable() {public void run() {closeMulticastSocket();}});
+            return;
+        }
         ucast_receiver=new PacketReceiver(sock, "unicast receiver",
                                           new Runnable() {public void run() {closeUnicastSocket();}});
 
@@ -333,6 +367,15 @@ public class UDP extends TP {
     }
 
     protected void setTimeToLive(int ttl) {
+        if(ucast_channel != null) {
+            try {
+                ucast_channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            }
+            catch(Exception e) {
+                log.error("failed setting ip_ttl", e);
+            }
+            return;
+        }
         if(getImpl != null && setTimeToLive != null) {
             try {
                 Object impl=getImpl.invoke(sock);
@@ -357,6 +400,10 @@ public class UDP extends TP {
 
         // 2. Create socket for receiving unicast UDP packets and sending of IP multicast packets. The address and port
         //    of this socket will be our local physical address (local_addr)
+        if(use_nio) {
+            createChannels();
+            return;
+        }
         if(bind_port > 0)
             sock=createDatagramSocketWithBindPort();
         else
@@ -424,6 +471,86 @@ public class UDP extends TP {
     }
 
 
+    /**
+     * Creates the unicast and multicast channels when use_nio is true. The channels stay in blocking mode, so that
+     * the unicast channel's socket adaptor can be used as sock for sending (and for all socket options).
+     */
+    protected void createChannels() throws Exception {
+        ProtocolFamily family=bind_addr instanceof Inet6Address? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+        ucast_channel=DatagramChannel.open(family);
+        int port=bind_port, max_port=bind_port > 0? bind_port + port_range : 0;
+        for(;;) {
+            try {
+                ucast_channel.bind(new InetSocketAddress(bind_addr, port));
+                break;
+            }
+            catch(SocketException bind_ex) { // cannot listen on this port
+                if(++port > max_port) {
+                    Util.close(ucast_channel);
+                    throw new Exception("failed to open a port in range " + bind_port + '-' + max_port);
+                }
+            }
+        }
+        sock=ucast_channel.socket();
+        setTimeToLive(ip_ttl);
+
+        if(tos > 0) {
+            try {
+                sock.setTrafficClass(tos);
+            }
+            catch(SocketException e) {
+                log.warn(Util.getMessage("TrafficClass"), tos, e);
+            }
+        }
+
+        if(ip_mcast) {
+            family=mcast_group_addr instanceof Inet6Address? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+            mcast_channel=DatagramChannel.open(family).setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            // https://jira.jboss.org/jira/browse/JGRP-777: bind to the mcast address only on Linux (no cross talking)
+            mcast_channel.bind(can_bind_to_mcast_addr? new InetSocketAddress(mcast_group_addr, mcast_port)
+                                 : new InetSocketAddress(mcast_port));
+            mcast_channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, !disable_loopback);
+            mcast_addr=new IpAddress(mcast_group_addr, mcast_port);
+
+            // check that we're not using the same mcast address and port as the diagnostics socket
+            if(enable_diagnostics && diagnostics_addr.equals(mcast_group_addr) && diagnostics_port == mcast_port)
+                throw new IllegalArgumentException("diagnostics_addr:diagnostics_port and mcast_addr:mcast_port " +
+                                                     "have to be different");
+            if(tos > 0) {
+                try {
+                    mcast_channel.setOption(StandardSocketOptions.IP_TOS, tos);
+                }
+                catch(IOException e) {
+                    log.warn(Util.getMessage("TrafficClass"), tos, e);
+                }
+            }
+
+            List<NetworkInterface> interfaces;
+            if(receive_interfaces != null && !receive_interfaces.isEmpty())
+                interfaces=receive_interfaces;
+            else if(receive_on_all_interfaces)
+                interfaces=Util.getAllAvailableInterfaces();
+            else {
+                NetworkInterface intf=NetworkInterface.getByInetAddress(bind_addr);
+                interfaces=intf != null? Collections.singletonList(intf) : Util.getAllAvailableInterfaces();
+            }
+            for(NetworkInterface intf: interfaces) {
+                try {
+                    mcast_memberships.add(mcast_channel.join(mcast_group_addr, intf));
+                    log.trace("joined %s on %s", mcast_addr, intf.getName());
+                }
+                catch(IOException e) {
+                    if(log.isWarnEnabled())
+                        log.warn(Util.getMessage("InterfaceJoinFailed"), mcast_addr, intf.getName());
+                }
+            }
+        }
+
+        setBufferSizes();
+        log.debug("socket information:\n%s", dumpSocketInfo());
+    }
+
+
     protected void destroySockets() {
         closeMulticastSocket();
         closeUnicastSocket();
@@ -516,6 +643,11 @@ public class UDP extends TP {
             formatter.format("\nmcast_sock: bound to %s:%d, send buffer size=%d, receive buffer size=%d",
                              mcast_sock.getInterface().getHostAddress(), mcast_sock.getLocalPort(),
                              mcast_sock.getSendBufferSize(), mcast_sock.getReceiveBufferSize());
+
+        if(mcast_channel != null)
+            formatter.format("\nmcast_channel: bound to %s, send buffer size=%d, receive buffer size=%d",
+                             mcast_channel.getLocalAddress(), mcast_channel.socket().getSendBufferSize(),
+                             mcast_channel.socket().getReceiveBufferSize());
         return sb.toString();
     }
 
@@ -526,6 +658,9 @@ public class UDP extends TP {
 
         if(mcast_sock != null)
             setBufferSize(mcast_sock, mcast_send_buf_size, mcast_recv_buf_size);
+
+        if(mcast_channel != null)
+            setBufferSize(mcast_channel.socket(), mcast_send_buf_size, mcast_recv_buf_size);
     }
 
     protected void setBufferSize(DatagramSocket sock, int send_buf_size, int recv_buf_size) {
@@ -557,6 +692,14 @@ public class UDP extends TP {
 
 
     void closeMulticastSocket() {
+        if(mcast_channel != null) {
+            for(MembershipKey key: mcast_memberships)
+                key.drop();
+            mcast_memberships.clear();
+            Util.close(mcast_channel); // causes the mcast receiver threads to break out of their loops
+            mcast_channel=null;
+            mcast_addr=null;
+        }
         if(mcast_sock != null) {
             try {
                 if(mcast_addr != null) {
@@ -575,6 +718,7 @@ public class UDP extends TP {
 
     protected void closeUnicastSocket() {
         getSocketFactory().close(sock);
+        Util.close(ucast_channel);
     }
 
 
@@ -583,9 +727,14 @@ public class UDP extends TP {
      * Starts the unicast and multicast receiver threads
      */
     void startThreads() throws Exception {
-        ucast_receiver.start();
+        if(ucast_receiver != null)
+            ucast_receiver.start();
         if(mcast_receiver != null)
             mcast_receiver.start();
+        if(ucast_channel_receiver != null)
+            ucast_channel_receiver.start();
+        if(mcast_channel_receiver != null)
+            mcast_channel_receiver.start();
     }
 
 
@@ -597,6 +746,10 @@ public class UDP extends TP {
             mcast_receiver.stop();
         if(ucast_receiver != null)
             ucast_receiver.stop();
+        if(mcast_channel_receiver != null)
+            mcast_channel_receiver.stop();
+        if(ucast_channel_receiver != null)
+            ucast_channel_receiver.stop();
     }
 
 
@@ -712,4 +865,94 @@ public class UDP extends TP {
             return receiver_socket != null? receiver_socket.getLocalSocketAddress().toString() : "null";
         }
     }
+
+
+    /**
+     * Receives packets from a {@link DatagramChannel} on nio_receiver_threads threads. Each thread owns a direct
+     * buffer (allocated once), which the packets are received into and unmarshalled from via
+     * {@link TP#receive(Address, ByteBuffer)}, so no packet is ever copied to the heap as a whole.
+     */
+    public class ChannelReceiver implements Runnable {
+        protected final DatagramChannel channel;
+        protected final String          name;
+        protected final Runnable        close_strategy;
+        protected Thread[]              threads;
+
+        public ChannelReceiver(DatagramChannel channel, String name, Runnable close_strategy) {
+            this.channel=channel;
+            this.name=name;
+            this.close_strategy=close_strategy;
+        }
+
+        public synchronized void start() {
+            if(threads != null)
+                return;
+            threads=new Thread[nio_receiver_threads];
+            for(int i=0; i < threads.length; i++) {
+                threads[i]=getThreadFactory().newThread(this, threads.length == 1? name : name + "-" + (i+1));
+                threads[i].start();
+            }
+        }
+
+        public synchronized void stop() {
+            Thread[] tmp=threads;
+            threads=null;
+            try {
+                close_strategy.run();
+            }
+            catch(Exception e1) {
+            }
+            finally {
+                Util.close(channel); // second line of defense
+            }
+
+            if(tmp == null)
+                return;
+            for(Thread thread: tmp) {
+                if(thread.isAlive()) {
+                    thread.interrupt();
+                    try {
+                        thread.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt(); // set interrupt flag again
+                    }
+                }
+            }
+        }
+
+        public void run() {
+            // to be on the safe side (IPv6 == 65575 bytes, IPv4 = 65535)
+            final ByteBuffer buf=ByteBuffer.allocateDirect(66000);
+
+            while(threads != null && channel.isOpen()) {
+                try {
+                    buf.clear();
+                    InetSocketAddress sender=(InetSocketAddress)channel.receive(buf);
+                    if(sender == null)
+                        continue;
+                    buf.flip();
+                    receive(new IpAddress(sender), buf);
+                }
+                catch(ClosedChannelException closed) { // also thrown when the channel is closed by stop()
+                    if(log.isDebugEnabled()) log.debug("receiver channel is closed, exception=" + closed);
+                    break;
+                }
+                catch(Throwable ex) {
+                    if(log.isErrorEnabled())
+                        log.error("failed receiving packet", ex);
+                }
+            }
+            if(log.isDebugEnabled()) log.debug(Thread.currentThread().getName() + " thread terminated");
+        }
+
+        public String toString() {
+            try {
+                return String.valueOf(channel.getLocalAddress());
+            }
+            catch(IOException e) {
+                return "null";
+            }
+        }
+    }
 }
@@ -135,6 +135,11 @@ public class UFC extends FlowControl {
         return down_prot.down(evt);
     }
 
+    protected boolean tryDecrementCredits(Address dest, int length) {
+        Credit cred=dest != null? sent.get(dest) : null;
+        return cred == null || cred.decrementIfEnoughCredits(length, 0);
+    }
+
 
     protected void handleViewChange(List<Address> mbrs) {
         super.handleViewChange(mbrs);
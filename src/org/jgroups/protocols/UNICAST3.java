@@ -57,6 +57,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "is compacted (only for experts)",writable=false)
     protected long    xmit_table_max_compaction_time=10 * 60 * 1000;
 
+    @Property(description="If true, the retransmission tables allow concurrent adds and removes (ConcurrentTable), " +
+      "else all access is serialized on a single lock (Table)",writable=false)
+    protected boolean xmit_table_concurrent=false;
+
     // @Property(description="Max time (in ms) after which a connection to a non-member is closed")
     protected long    max_retransmit_time=60 * 1000L;
 
@@ -82,6 +86,11 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "the max bundle size in the transport")
     protected int     max_xmit_req_size;
 
+    @Property(description="If true, retransmit requests are marshalled as a list of ranges when this is smaller than " +
+      "a bitmap, so that a few gaps in a large window take only a few bytes. Members running an older version " +
+      "don't understand these requests, so this should only be enabled when all members support it")
+    protected boolean compact_xmit_reqs;
+
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
 
@@ -586,50 +595,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
                 if (dst == null || msg.isFlagSet(Message.Flag.NO_RELIABILITY))
                     break;
 
-                if(!running) {
-                    log.trace("%s: discarded message as start() has not yet been called, message: %s", local_addr, msg);
+                if(!addToSendWindow(msg, dst))
                     return null;
-                }
-
-                if(msg.src() == null)
-                    msg.src(local_addr); // this needs to be done so we can check whether the message sender is the local_addr
-
-                SenderEntry entry=getSenderEntry(dst);
-
-                boolean dont_loopback_set=msg.isTransientFlagSet(Message.TransientFlag.DONT_LOOPBACK)
-                  && dst.equals(local_addr);
-                short send_conn_id=entry.connId();
-                long seqno=entry.sent_msgs_seqno.getAndIncrement();
-                long sleep=10;
-                do {
-                    try {
-                        msg.putHeader(this.id,Header.createDataHeader(seqno,send_conn_id,seqno == DEFAULT_FIRST_SEQNO));
-                        entry.msgs.add(seqno, msg, dont_loopback_set? dont_loopback_filter : null);  // add *including* UnicastHeader, adds to retransmitter
-                        if(conn_expiry_timeout > 0)
-                            entry.update();
-                        if(dont_loopback_set)
-                            entry.msgs.purge(entry.msgs.getHighestDeliverable());
-                        break;
-                    }
-                    catch(Throwable t) {
-                        if(running) {
-                            Util.sleep(sleep);
-                            sleep=Math.min(5000, sleep*2);
-                        }
-                    }
-                }
-                while(running);
-
-                if(log.isTraceEnabled()) {
-                    StringBuilder sb=new StringBuilder();
-                    sb.append(local_addr).append(" --> DATA(").append(dst).append(": #").append(seqno).
-                            append(", conn_id=").append(send_conn_id);
-                    if(seqno == DEFAULT_FIRST_SEQNO) sb.append(", first");
-                    sb.append(')');
-                    log.trace(sb);
-                }
-
-                num_msgs_sent++;
                 return down_prot.down(evt);
 
             case Event.VIEW_CHANGE:  // remove connections to peers that are not members anymore !
@@ -669,6 +636,74 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         return down_prot.down(evt);          // Pass on to the layer below us
     }
 
+    /** Passes down a batch of unicast messages after adding them to the send window of the destination */
+    public void down(MessageBatch batch) {
+        Address dst=batch.dest();
+        if(dst == null) {
+            down_prot.down(batch);
+            return;
+        }
+        for(Message msg: batch) {
+            if(msg.isFlagSet(Message.Flag.NO_RELIABILITY)) {
+                batch.remove(msg);
+                down_prot.down(new Event(Event.MSG, msg));
+            }
+            else if(!addToSendWindow(msg, dst))
+                batch.remove(msg);
+        }
+        if(!batch.isEmpty())
+            down_prot.down(batch);
+    }
+
+    /** Adds a header with the next seqno to a message and adds it to the send window. Returns false if discarded */
+    protected boolean addToSendWindow(Message msg, Address dst) {
+        if(!running) {
+            log.trace("%s: discarded message as start() has not yet been called, message: %s", local_addr, msg);
+            return false;
+        }
+
+        if(msg.src() == null)
+            msg.src(local_addr); // this needs to be done so we can check whether the message sender is the local_addr
+
+        SenderEntry entry=getSenderEntry(dst);
+
+        boolean dont_loopback_set=msg.isTransientFlagSet(Message.TransientFlag.DONT_LOOPBACK)
+          && dst.equals(local_addr);
+        short send_conn_id=entry.connId();
+        long seqno=entry.sent_msgs_seqno.getAndIncrement();
+        long sleep=10;
+        do {
+            try {
+                msg.putHeader(this.id,Header.createDataHeader(seqno,send_conn_id,seqno == DEFAULT_FIRST_SEQNO));
+                entry.msgs.add(seqno, msg, dont_loopback_set? dont_loopback_filter : null);  // add *including* UnicastHeader, adds to retransmitter
+                if(conn_expiry_timeout > 0)
+                    entry.update();
+                if(dont_loopback_set)
+                    entry.msgs.purge(entry.msgs.getHighestDeliverable());
+                break;
+            }
+            catch(Throwable t) {
+                if(running) {
+                    Util.sleep(sleep);
+                    sleep=Math.min(5000, sleep*2);
+                }
+            }
+        }
+        while(running);
+
+        if(log.isTraceEnabled()) {
+            StringBuilder sb=new StringBuilder();
+            sb.append(local_addr).append(" --> DATA(").append(dst).append(": #").append(seqno).
+                    append(", conn_id=").append(send_conn_id);
+            if(seqno == DEFAULT_FIRST_SEQNO) sb.append(", first");
+            sb.append(')');
+            log.trace(sb);
+        }
+
+        num_msgs_sent++;
+        return true;
+    }
+
 
 
     /**
@@ -721,7 +756,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
     /** Sends a retransmit request to the given sender */
     protected void retransmit(SeqnoList missing, Address sender) {
-        Message xmit_msg=new Message(sender, missing).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+        Message xmit_msg=new Message(sender, compact_xmit_reqs? new CompactSeqnoList(missing) : missing)
+          .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
           .putHeader(id, Header.createXmitReqHeader());
         if(log.isTraceEnabled())
             log.trace("%s: sending XMIT_REQ (%s) to %s", local_addr, missing, sender);
@@ -974,9 +1010,16 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     }
 
 
+    protected Table<Message> createTable(long offset) {
+        if(xmit_table_concurrent)
+            return new ConcurrentTable<>(xmit_table_num_rows, xmit_table_msgs_per_row, offset,
+                                         xmit_table_resize_factor, xmit_table_max_compaction_time);
+        return new Table<>(xmit_table_num_rows, xmit_table_msgs_per_row, offset,
+                           xmit_table_resize_factor, xmit_table_max_compaction_time);
+    }
+
     protected ReceiverEntry createReceiverEntry(Address sender, long seqno, short conn_id) {
-        Table<Message> table=new Table<>(xmit_table_num_rows, xmit_table_msgs_per_row, seqno-1,
-                                                xmit_table_resize_factor, xmit_table_max_compaction_time);
+        Table<Message> table=createTable(seqno-1);
         ReceiverEntry entry=new ReceiverEntry(table, conn_id);
         ReceiverEntry entry2=recv_table.putIfAbsent(sender, entry);
         if(entry2 != null)
@@ -1426,8 +1469,7 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         protected long              last_timestamp; // to prevent out-of-order ACKs from a receiver
 
         public SenderEntry(short send_conn_id) {
-            super(send_conn_id, new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, 0,
-                                                   xmit_table_resize_factor, xmit_table_max_compaction_time));
+            super(send_conn_id, createTable(0));
         }
 
         long[]      watermark()                 {return watermark;}
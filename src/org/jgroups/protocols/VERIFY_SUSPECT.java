@@ -9,6 +9,7 @@ import org.jgroups.annotations.Property;
 import org.jgroups.conf.PropertyConverters;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Util;
 
 import java.io.*;
@@ -92,6 +93,10 @@ public class VERIFY_SUSPECT extends Protocol implements Runnable {
         return down_prot.down(evt);
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
     public Object up(Event evt) {
         switch(evt.getType()) {
 
@@ -1119,6 +1119,10 @@ public class GMS extends Protocol implements DiagnosticsHandler.ProbeHandler {
         return down_prot.down(evt);
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
 
     public Map<String, String> handleProbe(String... keys) {
         for(String key: keys) {
@@ -7,6 +7,7 @@ import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
 import org.jgroups.util.*;
 
+import java.io.File;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -23,7 +24,12 @@ import java.util.concurrent.locks.ReentrantLock;
  * Retransmit requests are usually sent to the original sender of a message, but
  * this can be changed by xmit_from_random_member (send to random member) or
  * use_mcast_xmit_req (send to everyone). Responses can also be sent to everyone
- * instead of the requester by setting use_mcast_xmit to true.
+ * instead of the requester by setting use_mcast_xmit to true.<br/>
+ * With xmit_repair, the members are divided into repair groups (by rank in the view). Retransmit requests are
+ * multicast, and a member which sees a request for messages it is missing, too, suppresses its own request. The
+ * request is answered with a multicast by the first member of the requester's group, or by the original sender if
+ * the requester is the first member or in the sender's group. A repairer which doesn't have a message asks the
+ * original sender for it.
  *
  * @author Bela Ban
  */
@@ -61,6 +67,19 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @Property(description="Ask a random member for retransmission of a missing message. Default is false")
     protected boolean xmit_from_random_member=false;
 
+    /**
+     * Multicast retransmit requests, suppress requests for messages already requested by other members and have
+     * the first member of the requester's repair group multicast the missing messages. If set to true,
+     * discard_delivered_msgs will be set to false
+     */
+    @Property(description="Receiver-driven repair: retransmit requests are multicast, requests for messages " +
+      "already requested by others are suppressed, and the first member of the requester's repair group (or the " +
+      "original sender) multicasts the missing messages. Sets discard_delivered_msgs to false")
+    protected boolean xmit_repair=false;
+
+    @Property(description="Number of members (by rank in the view) in a repair group (xmit_repair=true)")
+    protected int     repair_group_size=10;
+
 
     /**
      * Messages that have been received in order are sent up the stack (= delivered to the application).
@@ -109,6 +128,23 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "is compacted (only for experts)",writable=false)
     protected long    xmit_table_max_compaction_time=10000;
 
+    @Property(description="If true, the retransmission table allows concurrent adds and removes (ConcurrentTable), " +
+      "else all access is serialized on a single lock (Table)",writable=false)
+    protected boolean xmit_table_concurrent=false;
+
+    @Property(description="If true, delivered messages which are only kept for retransmission (own messages, or all " +
+      "messages if discard_delivered_msgs is false) are moved from the retransmission table into off-heap memory " +
+      "in serialized form, until they are purged by STABLE",writable=false)
+    protected boolean xmit_table_off_heap=false;
+
+    @Property(description="Size (in bytes) of the off-heap segments holding delivered messages (xmit_table_off_heap)",
+      writable=false)
+    protected int     off_heap_segment_size=8 * 1024 * 1024;
+
+    @Property(description="If set, off-heap segments are memory-mapped files created in this directory, else " +
+      "direct buffers are used (xmit_table_off_heap)",writable=false)
+    protected String  off_heap_dir;
+
     @Property(description="Size of the queue to hold messages received after creating the channel, but before being " +
       "connected (is_server=false). After becoming the server, the messages in the queue are fed into up() and the " +
       "queue is cleared. The motivation is to avoid retransmissions (see https://issues.jboss.org/browse/JGRP-1509 " +
@@ -123,6 +159,11 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "the max bundle size in the transport")
     protected int     max_xmit_req_size;
 
+    @Property(description="If true, retransmit requests are marshalled as a list of ranges when this is smaller than " +
+      "a bitmap, so that a few gaps in a large window take only a few bytes. Members running an older version " +
+      "don't understand these requests, so this should only be enabled when all members support it")
+    protected boolean compact_xmit_reqs;
+
     @Property(description="If enabled, multicasts the highest sent seqno every xmit_interval ms. This is skipped if " +
       "a regular message has been multicast, and the task aquiesces if the highest sent seqno hasn't changed for " +
       "resend_last_seqno_max_times times. Used to speed up retransmission of dropped last messages (JGRP-1904)")
@@ -131,6 +172,16 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @Property(description="Max number of times the last seqno is resent before acquiescing if last seqno isn't incremented")
     protected int     resend_last_seqno_max_times=3;
 
+    @Property(description="Number of threads delivering messages. If > 0, the messages of a sender are delivered " +
+      "(in order) by a task run on a pool of delivery_threads threads, rather than by the thread which received them. " +
+      "The receiver threads return immediately, and messages from different senders are delivered in parallel. " +
+      "0 delivers messages on the receiver threads",writable=false)
+    protected int     delivery_threads;
+
+    @Property(description="Max number of batches (of max_msg_batch_size messages) a delivery task delivers before " +
+      "yielding its thread to the tasks of other senders (delivery_threads > 0)")
+    protected int     max_delivery_batches=10;
+
     /* -------------------------------------------------- JMX ---------------------------------------------------------- */
 
 
@@ -152,6 +203,30 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         }
     };
 
+    /** Moves every message removed from a table (except dummies) into an off-heap store, then applies the regular
+     * filter for delivery */
+    protected class OffHeapFilter implements Filter<Message> {
+        protected final OffHeapMessageStore store;
+
+        public OffHeapFilter(OffHeapMessageStore store) {
+            this.store=store;
+        }
+
+        public boolean accept(Message msg) {
+            if(msg != null && msg != DUMMY_OOB_MSG) {
+                NakAckHeader2 hdr=(NakAckHeader2)msg.getHeader(id);
+                try {
+                    if(hdr != null)
+                        store.add(hdr.seqno, msg);
+                }
+                catch(Throwable t) {
+                    log.error("%s: failed moving %s#%d off-heap: %s", local_addr, msg.getSrc(), hdr.seqno, t);
+                }
+            }
+            return no_dummy_and_no_oob_delivered_msgs_and_no_dont_loopback_msgs.accept(msg);
+        }
+    }
+
     protected static final Filter<Message> dont_loopback_filter=new Filter<Message>() {
         public boolean accept(Message msg) {
             return msg != null && msg.isTransientFlagSet(Message.TransientFlag.DONT_LOOPBACK);
@@ -159,6 +234,12 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     };
 
 
+    @ManagedAttribute(description="Number of times a delivery task was run (delivery_threads > 0)")
+    protected final AtomicLong num_delivery_tasks=new AtomicLong(0);
+
+    @ManagedAttribute(description="Number of retransmit requests suppressed as they were sent by others (xmit_repair)")
+    protected final AtomicLong xmit_reqs_suppressed=new AtomicLong(0);
+
     @ManagedAttribute(description="Number of retransmit requests received")
     protected final AtomicLong xmit_reqs_received=new AtomicLong(0);
 
@@ -213,6 +294,18 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     /** Map to store sent and received messages (keyed by sender) */
     protected final ConcurrentMap<Address,Table<Message>> xmit_table=Util.createConcurrentMap();
 
+    /** Delivered messages moved off the heap (keyed by sender), only used if xmit_table_off_heap is true */
+    protected final ConcurrentMap<Address,OffHeapMessageStore> off_heap_stores=Util.createConcurrentMap();
+
+    /** Seqnos (keyed by original sender) recently requested by others, for which we suppress our requests */
+    protected final ConcurrentMap<Address,ExpiryCache<Long>> xmit_reqs_seen=Util.createConcurrentMap();
+
+    /** Seqnos (keyed by original sender) recently repaired or requested from the sender by us as repairer */
+    protected final ConcurrentMap<Address,ExpiryCache<Long>> repairs_sent=Util.createConcurrentMap();
+
+    /** Runs the delivery tasks if delivery_threads > 0. At most 1 task per sender is queued or running at any time */
+    protected ExecutorService delivery_pool;
+
     /** RetransmitTask running every xmit_interval ms */
     protected Future<?>                 xmit_task;
     /** Used by the retransmit task to keep the last retransmitted seqno per sender (https://issues.jboss.org/browse/JGRP-1539) */
@@ -247,6 +340,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     public long    getXmitRequestsSent()      {return xmit_reqs_sent.get();}
     public long    getXmitResponsesReceived() {return xmit_rsps_received.get();}
     public long    getXmitResponsesSent()     {return xmit_rsps_sent.get();}
+    public long    getNumDeliveryTasks()      {return num_delivery_tasks.get();}
+    public long    getXmitRequestsSuppressed(){return xmit_reqs_suppressed.get();}
     public boolean isUseMcastXmit()           {return use_mcast_xmit;}
     public boolean isXmitFromRandomMember()   {return xmit_from_random_member;}
     public boolean isDiscardDeliveredMsgs()   {return discard_delivered_msgs;}
@@ -361,6 +456,22 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     @ManagedAttribute public long getCurrentSeqno() {return seqno.get();}
 
+    @ManagedAttribute(description="Number of bytes of delivered messages stored off-heap (xmit_table_off_heap)")
+    public long getOffHeapBytes() {
+        long retval=0;
+        for(OffHeapMessageStore store: off_heap_stores.values())
+            retval+=store.numBytes();
+        return retval;
+    }
+
+    @ManagedOperation(description="Prints the off-heap stores of delivered messages for all members")
+    public String printOffHeapStores() {
+        StringBuilder sb=new StringBuilder();
+        for(Map.Entry<Address,OffHeapMessageStore> entry: off_heap_stores.entrySet())
+            sb.append(entry.getKey()).append(": ").append(entry.getValue()).append('\n');
+        return sb.toString();
+    }
+
     @ManagedOperation(description="Prints the stability messages received")
     public String printStabilityMessages() {
         StringBuilder sb=new StringBuilder();
@@ -400,6 +511,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         xmit_reqs_sent.set(0);
         xmit_rsps_received.set(0);
         xmit_rsps_sent.set(0);
+        num_delivery_tasks.set(0);
+        xmit_reqs_suppressed.set(0);
         stability_msgs.clear();
         digest_history.clear();
         Table<Message> table=local_addr != null? xmit_table.get(local_addr) : null;
@@ -414,6 +527,14 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 log.debug("%s: xmit_from_random_member set to true: changed discard_delivered_msgs to false", local_addr);
             }
         }
+        if(xmit_repair) {
+            if(discard_delivered_msgs) { // repairers need to keep the messages of other members
+                discard_delivered_msgs=false;
+                log.debug("%s: xmit_repair set to true: changed discard_delivered_msgs to false", local_addr);
+            }
+            if(repair_group_size < 1)
+                throw new IllegalArgumentException("repair_group_size must be >= 1");
+        }
 
         TP transport=getTransport();
         transport.registerProbeHandler(this);
@@ -486,6 +607,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             throw new Exception("timer is null");
         running=true;
         leaving=false;
+        if(delivery_threads > 0)
+            delivery_pool=createDeliveryPool();
         startRetransmitTask();
     }
 
@@ -496,6 +619,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         if(become_server_queue != null)
             become_server_queue.clear();
         stopRetransmitTask();
+        if(delivery_pool != null) {
+            delivery_pool.shutdownNow();
+            delivery_pool=null;
+        }
         xmit_task_map.clear();
         reset();
     }
@@ -589,6 +716,25 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         return down_prot.down(evt);
     }
 
+    /**
+     * Adds the multicast messages of a batch to the retransmission table and passes the batch down. Unicast batches
+     * are passed down unchanged, NO_RELIABILITY messages are passed down individually
+     */
+    public void down(MessageBatch batch) {
+        if(batch.dest() != null) {
+            down_prot.down(batch);
+            return;
+        }
+        for(Message msg: batch) {
+            if(msg.isFlagSet(Message.Flag.NO_RELIABILITY)) {
+                batch.remove(msg);
+                down_prot.down(new Event(Event.MSG, msg));
+            }
+        }
+        if(!batch.isEmpty())
+            send(batch);
+    }
+
 
 
 
@@ -764,16 +910,45 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     protected void send(Event evt, Message msg) {
         if(msg == null)
             throw new NullPointerException("msg is null; event is " + evt);
+        if(!addToSentMessages(msg))
+            return;
+        down_prot.down(evt); // if this fails, since msg is in sent_msgs, it can be retransmitted
+        num_messages_sent++;
+
+        if(resend_last_seqno && last_seqno_resender != null)
+            last_seqno_resender.skipNext();
+    }
 
+    /** Adds all messages of a batch of multicast messages to the retransmission table, then passes the batch down */
+    protected void send(MessageBatch batch) {
+        for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
+            Message msg=it.next();
+            if(!addToSentMessages(msg))
+                it.remove();
+        }
+        if(batch.isEmpty())
+            return;
+        down_prot.down(batch);
+        num_messages_sent+=batch.size();
+
+        if(resend_last_seqno && last_seqno_resender != null)
+            last_seqno_resender.skipNext();
+    }
+
+    /**
+     * Assigns the next seqno to a message and adds it to the retransmission table. Returns false if the message was
+     * discarded
+     */
+    protected boolean addToSentMessages(Message msg) {
         if(!running) {
             log.trace("%s: discarded message as we're not in the 'running' state, message: %s", local_addr, msg);
-            return;
+            return false;
         }
 
         long msg_id;
         Table<Message> buf=xmit_table.get(local_addr);
         if(buf == null) // discard message if there is no entry for local_addr
-            return;
+            return false;
 
         if(msg.src() == null)
             msg.src(local_addr); // this needs to be done so we can check whether the message sender is the local_addr
@@ -799,11 +974,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         // moved down_prot.down() out of synchronized clause (bela Sept 7 2006) http://jira.jboss.com/jira/browse/JGRP-300
         if(log.isTraceEnabled())
             log.trace("%s: sending %s#%d", local_addr, local_addr, msg_id);
-        down_prot.down(evt); // if this fails, since msg is in sent_msgs, it can be retransmitted
-        num_messages_sent++;
-
-        if(resend_last_seqno && last_seqno_resender != null)
-            last_seqno_resender.skipNext();
+        return true;
     }
 
 
@@ -826,7 +997,14 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         // If the message was sent by myself, then it is already in the table and we don't need to add it. If not,
         // and the message is OOB, insert a dummy message (same msg, saving space), deliver it and drop it later on
         // removal. Else insert the real message
+        // delivered messages are kept for retransmission: a pooled buffer must not be returned to the pool on delivery.
+        // It is retained before the message is added, as another thread may deliver (and release) it right away
+        boolean retain=!loopback && !discard_delivered_msgs && !msg.isFlagSet(Message.Flag.OOB);
+        if(retain)
+            msg.retain();
         boolean added=loopback || buf.add(hdr.seqno, msg.isFlagSet(Message.Flag.OOB)? DUMMY_OOB_MSG : msg);
+        if(retain && !added)
+            msg.release();
 
         if(added && log.isTraceEnabled())
             log.trace("%s: received %s#%d", local_addr, sender, hdr.seqno);
@@ -856,11 +1034,27 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         int size=msgs.size();
         num_messages_received+=size;
         boolean loopback=local_addr.equals(sender);
-        boolean added=loopback || buf.add(msgs, oob, oob? DUMMY_OOB_MSG : null);
+        // delivered messages are kept for retransmission: pooled buffers must not be returned to the pool on delivery.
+        // They're retained before they are added (see handleMessage()); those which were not added are released again
+        boolean retain=!loopback && !discard_delivered_msgs && !oob;
+        List<Tuple<Long,Message>> retained=null;
+        if(retain) {
+            retained=new ArrayList<>(msgs);
+            for(Tuple<Long,Message> tuple: retained)
+                tuple.getVal2().retain();
+        }
+        boolean added=loopback || buf.add(msgs, oob || retain, oob? DUMMY_OOB_MSG : null);
+        if(retain && msgs.size() < retained.size()) { // msgs only contains the added messages
+            Set<Tuple<Long,Message>> tmp=Collections.newSetFromMap(new IdentityHashMap<Tuple<Long,Message>,Boolean>());
+            tmp.addAll(msgs);
+            for(Tuple<Long,Message> tuple: retained)
+                if(!tmp.contains(tuple))
+                    tuple.getVal2().release();
+        }
 
         if(added && log.isTraceEnabled())
             log.trace("%s: received %s#%d-%d (%d messages)",
-                      local_addr, sender, msgs.get(0).getVal1(), msgs.get(size-1).getVal1(), msgs.size());
+                      local_addr, sender, msgs.get(0).getVal1(), msgs.get(msgs.size()-1).getVal1(), msgs.size());
 
 
         // OOB msg is passed up. When removed, we discard it. Affects ordering: http://jira.jboss.com/jira/browse/JGRP-379
@@ -887,30 +1081,27 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     /** Efficient way of checking whether another thread is already processing messages from sender. If that's the case,
      *  we return immediately and let the existing thread process our message (https://jira.jboss.org/jira/browse/JGRP-829).
-     *  Benefit: fewer threads blocked on the same lock, these threads an be returned to the thread pool */
+     *  Benefit: fewer threads blocked on the same lock, these threads an be returned to the thread pool.
+     *  If delivery_threads > 0, the messages are delivered by a task run on the delivery pool instead */
     protected void removeAndPassUp(Table<Message> buf, Address sender, boolean loopback, AsciiString cluster_name) {
         final AtomicBoolean processing=buf.getProcessing();
         if(!processing.compareAndSet(false, true))
             return;
 
-        boolean remove_msgs=discard_delivered_msgs && !loopback;
+        ExecutorService pool=delivery_pool;
+        if(pool != null) {
+            try {
+                pool.execute(new DeliveryTask(buf, sender, loopback, cluster_name));
+            }
+            catch(RejectedExecutionException ex) { // the pool was shut down
+                processing.set(false);
+            }
+            return;
+        }
+
         boolean released_processing=false;
         try {
-            while(true) {
-                // We're removing as many msgs as possible and set processing to false (if null) *atomically* (wrt to add())
-                // Don't include DUMMY and OOB_DELIVERED messages in the removed set
-                List<Message> msgs=buf.removeMany(processing, remove_msgs, max_msg_batch_size,
-                                                  no_dummy_and_no_oob_delivered_msgs_and_no_dont_loopback_msgs);
-                if(msgs == null || msgs.isEmpty()) {
-                    released_processing=true;
-                    if(rebroadcasting)
-                        checkForRebroadcasts();
-                    return;
-                }
-
-                MessageBatch batch=new MessageBatch(null, sender, cluster_name, true, msgs);
-                deliverBatch(batch);
-            }
+            released_processing=removeAndPassUp(buf, sender, loopback, cluster_name, 0);
         }
         finally {
             // processing is always set in win.remove(processing) above and never here ! This code is just a
@@ -920,6 +1111,37 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         }
     }
 
+    /**
+     * Removes messages from buf and passes them up, until no more messages are available, or max_batches batches
+     * have been delivered. Must only be called by the thread which set processing
+     * @param max_batches The max number of batches to deliver. 0 delivers all available messages
+     * @return True if no more messages were available (processing was set to false), false otherwise
+     */
+    protected boolean removeAndPassUp(Table<Message> buf, Address sender, boolean loopback, AsciiString cluster_name,
+                                      int max_batches) {
+        final AtomicBoolean processing=buf.getProcessing();
+
+        // messages kept for retransmission are moved off-heap when they're removed (for delivery)
+        boolean move_off_heap=xmit_table_off_heap && (loopback || !discard_delivered_msgs);
+        boolean remove_msgs=(discard_delivered_msgs && !loopback) || move_off_heap;
+        Filter<Message> filter=move_off_heap? new OffHeapFilter(getOffHeapStore(sender))
+          : no_dummy_and_no_oob_delivered_msgs_and_no_dont_loopback_msgs;
+        for(int i=0; max_batches <= 0 || i < max_batches; i++) {
+            // We're removing as many msgs as possible and set processing to false (if null) *atomically* (wrt to add())
+            // Don't include DUMMY and OOB_DELIVERED messages in the removed set
+            List<Message> msgs=buf.removeMany(processing, remove_msgs, max_msg_batch_size, filter);
+            if(msgs == null || msgs.isEmpty()) {
+                if(rebroadcasting)
+                    checkForRebroadcasts();
+                return true;
+            }
+
+            MessageBatch batch=new MessageBatch(null, sender, cluster_name, true, msgs);
+            deliverBatch(batch);
+        }
+        return false;
+    }
+
 
 
     /**
@@ -941,8 +1163,22 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             return;
         }
 
+        if(xmit_repair) {
+            handleRepairRequest(xmit_requester, missing_msgs, original_sender, buf);
+            return;
+        }
+
+        OffHeapMessageStore store=xmit_table_off_heap? off_heap_stores.get(original_sender) : null;
         for(long i: missing_msgs) {
             Message msg=buf.get(i);
+            if(msg == null && store != null) {
+                try {
+                    msg=store.get(i);
+                }
+                catch(Throwable t) {
+                    log.error("%s: failed reading %s#%d from off-heap store: %s", local_addr, original_sender, i, t);
+                }
+            }
             if(msg == null) {
                 if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(xmit_requester) && i > buf.getLow())
                     log.warn(Util.getMessage("MessageNotFound"), local_addr, original_sender, i);
@@ -954,6 +1190,111 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         }
     }
 
+    /**
+     * Handles a (multicast) retransmit request with xmit_repair. Members other than the repairer for the request
+     * remember the seqnos, so they don't request them, too. The repairer multicasts the messages it has (once per
+     * seqno and xmit_interval), and asks the original sender for the ones it doesn't have. The latter are not
+     * recorded as repaired, so a new request for them is forwarded again if the sender's repair got lost
+     */
+    protected void handleRepairRequest(Address xmit_requester, SeqnoList missing_msgs, Address original_sender,
+                                       Table<Message> buf) {
+        if(local_addr.equals(xmit_requester))
+            return;
+        Address repairer=getRepairer(xmit_requester, original_sender);
+        if(!local_addr.equals(repairer)) {
+            ExpiryCache<Long> seen=getCache(xmit_reqs_seen, original_sender);
+            for(long seqno: missing_msgs)
+                seen.addIfAbsentOrExpired(seqno);
+            return;
+        }
+
+        ExpiryCache<Long> repaired=getCache(repairs_sent, original_sender);
+        OffHeapMessageStore store=xmit_table_off_heap? off_heap_stores.get(original_sender) : null;
+        SeqnoList not_found=null;
+        for(long seqno: missing_msgs) {
+            if(repaired.contains(seqno) && !repaired.hasExpired(seqno)) // already repaired recently
+                continue;
+            Message msg=buf.get(seqno);
+            if(msg == null && store != null) {
+                try {
+                    msg=store.get(seqno);
+                }
+                catch(Throwable t) {
+                    log.error("%s: failed reading %s#%d from off-heap store: %s", local_addr, original_sender, seqno, t);
+                }
+            }
+            if(msg != null) {
+                if(!repaired.addIfAbsentOrExpired(seqno)) // repaired concurrently
+                    continue;
+                Message copy=msg.copy(true, true); // the repair is a multicast of (a copy of) the original message
+                if(copy.getSrc() == null)
+                    copy.setSrc(local_addr);
+                if(stats)
+                    xmit_rsps_sent.incrementAndGet();
+                down_prot.down(new Event(Event.MSG, copy));
+                continue;
+            }
+            if(local_addr.equals(original_sender))
+                continue;
+            if(not_found == null)
+                not_found=new SeqnoList((int)(missing_msgs.getLast() - seqno + 1), seqno);
+            not_found.add(seqno);
+        }
+        if(not_found != null) { // we're missing the messages, too: ask the sender
+            log.trace("%s: repairer for %s doesn't have %s%s: asking the sender", local_addr, xmit_requester,
+                      original_sender, not_found);
+            retransmit(not_found, original_sender, true);
+        }
+    }
+
+    /**
+     * Returns the member which answers a retransmit request: the first member of the requester's repair group, or the
+     * original sender if the requester is the first member of its group or in the same group as the sender
+     */
+    protected Address getRepairer(Address xmit_requester, Address original_sender) {
+        List<Address> mbrs=members;
+        int rank=mbrs.indexOf(xmit_requester), sender_rank=mbrs.indexOf(original_sender);
+        if(rank < 0 || sender_rank < 0)
+            return original_sender;
+        int group=rank / repair_group_size;
+        if(sender_rank / repair_group_size == group)
+            return original_sender;
+        Address first=mbrs.get(group * repair_group_size);
+        return first.equals(xmit_requester)? original_sender : first;
+    }
+
+    /** Removes the seqnos which have recently been requested by other members. Returns the number of removed seqnos */
+    protected int suppressXmitRequests(SeqnoList missing, Address sender) {
+        ExpiryCache<Long> seen=xmit_reqs_seen.get(sender);
+        if(seen == null || seen.size() == 0)
+            return 0;
+        seen.removeExpiredElements();
+        List<Long> suppressed=null;
+        for(long seqno: missing) {
+            if(seen.contains(seqno)) {
+                if(suppressed == null)
+                    suppressed=new ArrayList<>();
+                suppressed.add(seqno);
+            }
+        }
+        if(suppressed == null)
+            return 0;
+        for(long seqno: suppressed)
+            missing.remove(seqno);
+        xmit_reqs_suppressed.addAndGet(suppressed.size());
+        return suppressed.size();
+    }
+
+    protected ExpiryCache<Long> getCache(ConcurrentMap<Address,ExpiryCache<Long>> map, Address sender) {
+        ExpiryCache<Long> cache=map.get(sender);
+        if(cache == null) {
+            ExpiryCache<Long> tmp=map.putIfAbsent(sender, cache=new ExpiryCache<>(xmit_interval));
+            if(tmp != null)
+                cache=tmp;
+        }
+        return cache;
+    }
+
     protected void deliver(Message msg, Address sender, long seqno, String error_msg) {
         if(log.isTraceEnabled())
             log.trace("%s: delivering %s#%d", local_addr, sender, seqno);
@@ -1234,6 +1575,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 Table<Message> buf=xmit_table.remove(member);
                 if(buf != null)
                     log.debug("%s: removed %s from xmit_table (not member anymore)", local_addr, member);
+                removeOffHeapStore(member);
+                xmit_reqs_seen.remove(member);
+                repairs_sent.remove(member);
             }
         }
 
@@ -1314,6 +1658,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     continue; // don't destroy my own window
                 }
                 xmit_table.remove(member);
+                removeOffHeapStore(member);
             }
             buf=createTable(highest_delivered_seqno);
             xmit_table.put(member, buf);
@@ -1358,6 +1703,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     continue;
 
                 xmit_table.remove(member);
+                removeOffHeapStore(member);
                 // to get here, merge must be false !
                 if(member.equals(local_addr)) { // Adjust the seqno: https://jira.jboss.org/browse/JGRP-1251
                     seqno.set(highest_delivered_seqno);
@@ -1378,7 +1724,27 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
+    protected OffHeapMessageStore getOffHeapStore(Address sender) {
+        OffHeapMessageStore store=off_heap_stores.get(sender);
+        if(store == null) {
+            store=new OffHeapMessageStore(off_heap_segment_size, off_heap_dir != null? new File(off_heap_dir) : null);
+            OffHeapMessageStore tmp=off_heap_stores.putIfAbsent(sender, store);
+            if(tmp != null)
+                store=tmp;
+        }
+        return store;
+    }
+
+    protected void removeOffHeapStore(Address sender) {
+        OffHeapMessageStore store=off_heap_stores.remove(sender);
+        if(store != null)
+            store.clear();
+    }
+
     protected Table<Message> createTable(long initial_seqno) {
+        if(xmit_table_concurrent)
+            return new ConcurrentTable<>(xmit_table_num_rows, xmit_table_msgs_per_row,
+                                         initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
         return new Table<>(xmit_table_num_rows, xmit_table_msgs_per_row,
                                   initial_seqno, xmit_table_resize_factor, xmit_table_max_compaction_time);
     }
@@ -1421,6 +1787,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             if(hd >= 0 && buf != null) {
                 log.trace("%s: deleting msgs <= %s from %s", local_addr, hd, member);
                 buf.purge(hd);
+                OffHeapMessageStore store=xmit_table_off_heap? off_heap_stores.get(member) : null;
+                if(store != null)
+                    store.purge(hd);
             }
         }
     }
@@ -1439,7 +1808,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
     protected void retransmit(SeqnoList missing_msgs, final Address sender, boolean multicast_xmit_request) {
-        Address dest=(multicast_xmit_request || this.use_mcast_xmit_req)? null : sender; // to whom do we send the XMIT request ?
+        Address dest=(multicast_xmit_request || use_mcast_xmit_req || xmit_repair)? null : sender; // to whom do we send the XMIT request ?
 
         if(xmit_from_random_member && !local_addr.equals(sender)) {
             Address random_member=Util.pickRandomElement(members);
@@ -1447,7 +1816,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 dest=random_member;
         }
 
-        Message retransmit_msg=new Message(dest, missing_msgs).setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
+        Message retransmit_msg=new Message(dest, compact_xmit_reqs? new CompactSeqnoList(missing_msgs) : missing_msgs)
+          .setFlag(Message.Flag.OOB, Message.Flag.INTERNAL)
           .putHeader(this.id, NakAckHeader2.createXmitRequestHeader(sender));
 
         log.trace("%s: sending XMIT_REQ (%s) to %s", local_addr, missing_msgs, dest);
@@ -1460,6 +1830,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     protected void reset() {
         seqno.set(0);
         xmit_table.clear();
+        for(OffHeapMessageStore store: off_heap_stores.values())
+            store.clear();
+        off_heap_stores.clear();
     }
 
 
@@ -1484,6 +1857,64 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
 
+    protected ExecutorService createDeliveryPool() {
+        org.jgroups.util.ThreadFactory factory=new DefaultThreadFactory("NAKACK2-delivery", true, true);
+        if(local_addr != null)
+            factory.setAddress(local_addr.toString());
+        // the queue holds at most 1 task per sender
+        ThreadPoolExecutor pool=new ThreadPoolExecutor(delivery_threads, delivery_threads, 30000, TimeUnit.MILLISECONDS,
+                                                       new LinkedBlockingQueue<Runnable>(), factory);
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+
+    /**
+     * Delivers the messages of a sender on the delivery pool. The task is submitted by the receiver thread which set
+     * the processing flag of the sender's table, so at most 1 task per sender is queued or running. After delivering
+     * max_delivery_batches batches, the task re-submits itself (keeping the processing flag), so that a busy sender
+     * doesn't prevent the messages of other senders from being delivered. Since MFC credits are only sent back when
+     * messages are delivered, a sender whose messages are delivered slowly will eventually block.
+     */
+    protected class DeliveryTask implements Runnable {
+        protected final Table<Message> buf;
+        protected final Address        sender;
+        protected final boolean        loopback;
+        protected final AsciiString    cluster_name;
+
+        public DeliveryTask(Table<Message> buf, Address sender, boolean loopback, AsciiString cluster_name) {
+            this.buf=buf;
+            this.sender=sender;
+            this.loopback=loopback;
+            this.cluster_name=cluster_name;
+        }
+
+        public void run() {
+            num_delivery_tasks.incrementAndGet();
+            boolean released_processing=false, resubmitted=false;
+            try {
+                released_processing=removeAndPassUp(buf, sender, loopback, cluster_name, max_delivery_batches);
+                ExecutorService pool=delivery_pool;
+                if(!released_processing && pool != null && running) {
+                    pool.execute(this);
+                    resubmitted=true;
+                }
+            }
+            catch(Throwable t) {
+                log.error("%s: failed delivering messages from %s: %s", local_addr, sender, t);
+            }
+            finally {
+                if(!released_processing && !resubmitted)
+                    buf.getProcessing().set(false);
+            }
+        }
+
+        public String toString() {
+            return NAKACK2.class.getSimpleName() + ": delivery of messages from " + sender;
+        }
+    }
+
+
     /**
      * Retransmitter task which periodically (every xmit_interval ms) looks at all the retransmit tables and
      * sends retransmit request to all members from which we have missing messages
@@ -1516,6 +1947,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                     missing.removeHigherThan(prev_seqno); // we only retransmit the 'previous batch'
                     if(highest > prev_seqno)
                         xmit_task_map.put(target, highest);
+                    if(xmit_repair)
+                        suppressXmitRequests(missing, target);
                     if(!missing.isEmpty())
                         retransmit(missing, target, false);
                 }
@@ -71,6 +71,12 @@ public class STABLE extends Protocol {
       "on the coordinator")
     protected boolean send_stable_msgs_to_coord_only=true;
 
+    @Property(description="If true, a STABLE message only contains the seqnos of members whose highest delivered seqno " +
+      "changed since the last stability digest. The seqnos of the other members are taken from the last stability " +
+      "digest of the receiver. Reduces the size of STABLE messages in large clusters. Members running an older " +
+      "version don't understand these messages, so this should only be enabled when all members support it")
+    protected boolean send_delta_digests;
+
     
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
@@ -78,6 +84,7 @@ public class STABLE extends Protocol {
     protected int    num_stable_msgs_received;
     protected int    num_stability_msgs_sent;
     protected int    num_stability_msgs_received;
+    protected int    num_delta_stable_msgs_sent;
 
     
     /* --------------------------------------------- Fields ------------------------------------------------------ */
@@ -96,6 +103,10 @@ public class STABLE extends Protocol {
     @GuardedBy("lock")
     protected FixedSizeBitSet     votes;
 
+    /** The last stability digest received or computed in the current view; the base of delta digests */
+    @GuardedBy("lock")
+    protected volatile Digest     last_stability_digest;
+
     protected final Lock          lock=new ReentrantLock();
 
     @GuardedBy("stability_lock")
@@ -159,6 +170,10 @@ public class STABLE extends Protocol {
     public int getStabilitySent() {return num_stability_msgs_sent;}
     @ManagedAttribute
     public int getStabilityReceived() {return num_stability_msgs_received;}
+    @ManagedAttribute(description="Number of STABLE messages sent as delta digests")
+    public int getDeltaStableSent() {return num_delta_stable_msgs_sent;}
+    public boolean sendDeltaDigests() {return send_delta_digests;}
+    public STABLE  sendDeltaDigests(boolean flag) {send_delta_digests=flag; return this;}
 
     @ManagedAttribute
     public boolean getStableTaskRunning() {
@@ -174,6 +189,7 @@ public class STABLE extends Protocol {
     public void resetStats() {
         super.resetStats();
         num_stability_msgs_received=num_stability_msgs_sent=num_stable_msgs_sent=num_stable_msgs_received=0;
+        num_delta_stable_msgs_sent=0;
     }
 
 
@@ -248,7 +264,8 @@ public class STABLE extends Protocol {
     protected void handleUpEvent(StableHeader hdr, Address sender, Digest digest) {
         switch(hdr.type) {
             case StableHeader.STABLE_GOSSIP:
-                handleStableMessage(digest, sender, hdr.view_id);
+            case StableHeader.STABLE_GOSSIP_DELTA:
+                handleStableMessage(digest, sender, hdr.view_id, hdr.type == StableHeader.STABLE_GOSSIP_DELTA);
                 break;
             case StableHeader.STABILITY:
                 handleStabilityMessage(digest, sender, hdr.view_id);
@@ -347,6 +364,10 @@ public class STABLE extends Protocol {
         return down_prot.down(evt);
     }
 
+    public void down(MessageBatch batch) {
+        down_prot.down(batch);
+    }
+
 
     @ManagedOperation(description="Sends a STABLE message; when every member has received a STABLE message " +
       "from everybody else, a STABILITY message will be sent")
@@ -363,6 +384,7 @@ public class STABLE extends Protocol {
         try {
             this.view=v;
             coordinator=v.getMembers().get(0);
+            last_stability_digest=null;
             resetDigest();
             if(!initialized)
                 initialized=true;
@@ -379,6 +401,31 @@ public class STABLE extends Protocol {
      *  Needs to be called with a lock on digest */
     @GuardedBy("lock")
     protected void updateLocalDigest(Digest d, Address sender) {
+        updateLocalDigest(d, sender, false);
+    }
+
+    /**
+     * Updates the local digest with d. If d is a delta digest, the members missing in d haven't changed their
+     * highest delivered seqno since the sender's last stability digest. The seqnos from our own last stability
+     * digest are used for them: as it was computed from votes of the sender in the same view, it cannot be higher
+     * than the sender's current seqnos. If we have no stability digest, we use 0, which prevents purging for the
+     * missing members in this round.
+     */
+    @GuardedBy("lock")
+    protected void updateLocalDigest(Digest d, Address sender, boolean delta) {
+        if(delta) {
+            Digest base=last_stability_digest;
+            for(Digest.Entry entry: digest) {
+                Address mbr=entry.getMember();
+                if(d.contains(mbr))
+                    continue;
+                long[] base_seqnos=base != null? base.get(mbr) : null;
+                long hd=base_seqnos != null && base_seqnos[0] >= 0? base_seqnos[0] : 0;
+                long hr=base_seqnos != null? Math.max(hd, base_seqnos[1]) : hd;
+                long my_hd=entry.getHighestDeliveredSeqno(), my_hr=entry.getHighestReceivedSeqno();
+                digest.set(mbr, my_hd == -1? hd : Math.min(my_hd, hd), Math.max(my_hr, hr));
+            }
+        }
         StringBuilder sb=null;
         if(log.isTraceEnabled())
             sb=new StringBuilder().append(local_addr).append(": handling digest from ").append(sender).append(":\nmine:   ")
@@ -538,6 +585,10 @@ public class STABLE extends Protocol {
      for details).
      */
     protected void handleStableMessage(final Digest d, final Address sender, final ViewId view_id) {
+        handleStableMessage(d, sender, view_id, false);
+    }
+
+    protected void handleStableMessage(final Digest d, final Address sender, final ViewId view_id, boolean delta) {
         if(d == null || sender == null) {
             if(log.isErrorEnabled()) log.error("digest or sender is null");
             return;
@@ -563,10 +614,11 @@ public class STABLE extends Protocol {
             if(rank < 0 || votes.get(rank))  // already received gossip from sender; discard it
                 return;
             num_stable_msgs_received++;
-            updateLocalDigest(d, sender);
+            updateLocalDigest(d, sender, delta);
             if(addVote(rank)) {       // votes from all members have been received
                 stable_digest=digest; // no need to copy, as digest (although mutable) is reassigned below
                 stable_view_id=view.getViewId();
+                last_stability_digest=stable_digest;
                 resetDigest();        // sets digest
             }
         }
@@ -630,6 +682,7 @@ public class STABLE extends Protocol {
             log.trace("%s: received stability msg from %s: %s", local_addr, sender, printDigest(stable_digest));
 
             num_stability_msgs_received++;
+            last_stability_digest=stable_digest;
             resetDigest();
         }
         finally {
@@ -660,10 +713,15 @@ public class STABLE extends Protocol {
             return;
         }
 
+        Digest delta=send_delta_digests? computeDelta(d, last_stability_digest) : null;
+        byte type=delta != null? StableHeader.STABLE_GOSSIP_DELTA : StableHeader.STABLE_GOSSIP;
+        if(delta != null)
+            num_delta_stable_msgs_sent++;
+
         final Message msg=new Message(dest)
           .setFlag(Message.Flag.OOB,Message.Flag.INTERNAL,Message.Flag.NO_RELIABILITY)
-          .putHeader(this.id, new StableHeader(StableHeader.STABLE_GOSSIP, current_view.getViewId()))
-          .setBuffer(marshal(d));
+          .putHeader(this.id, new StableHeader(type, current_view.getViewId()))
+          .setBuffer(marshal(delta != null? delta : d));
         try {
             if(!send_in_background) {
                 down_prot.down(new Event(Event.MSG, msg));
@@ -686,6 +744,30 @@ public class STABLE extends Protocol {
     }
 
 
+    /**
+     * Returns a digest with the entries of d whose highest delivered seqno differs from the one in base, or null if
+     * base is null or doesn't contain all members of d (a full digest has to be sent)
+     */
+    protected static Digest computeDelta(Digest d, Digest base) {
+        if(base == null)
+            return null;
+        List<Address> changed=new ArrayList<>();
+        for(Digest.Entry entry: d) {
+            long[] base_seqnos=base.get(entry.getMember());
+            if(base_seqnos == null)
+                return null;
+            if(entry.getHighestDeliveredSeqno() != base_seqnos[0])
+                changed.add(entry.getMember());
+        }
+        MutableDigest delta=new MutableDigest(changed.toArray(new Address[changed.size()]));
+        for(Address mbr: changed) {
+            long[] seqnos=d.get(mbr);
+            delta.set(mbr, seqnos[0], seqnos[1]);
+        }
+        return delta;
+    }
+
+
     public static Buffer marshal(Digest digest) {
         return Util.streamableToBuffer(digest);
     }
@@ -739,6 +821,7 @@ public class STABLE extends Protocol {
     public static class StableHeader extends Header {
         public static final byte STABLE_GOSSIP=1;
         public static final byte STABILITY=2;
+        public static final byte STABLE_GOSSIP_DELTA=3;
 
         protected byte   type;
         protected ViewId view_id;
@@ -755,6 +838,7 @@ public class STABLE extends Protocol {
             switch(t) {
                 case STABLE_GOSSIP: return "STABLE_GOSSIP";
                 case STABILITY:     return "STABILITY";
+                case STABLE_GOSSIP_DELTA: return "STABLE_GOSSIP_DELTA";
                 default:            return "<unknown>";
             }
         }
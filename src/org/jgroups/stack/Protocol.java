@@ -433,6 +433,22 @@ public abstract class Protocol {
         return down_prot.down(evt);
     }
 
+    /**
+     * Sends down multiple messages in a {@link MessageBatch}, e.g. the fragments of a large message. All messages of
+     * the batch have the same destination (null == multicast messages) and sender.<p/>
+     * The default implementation passes the messages down individually, calling {@link #down(org.jgroups.Event)} for
+     * each message, so the batch is split up at the first protocol which doesn't override this method. Protocols which
+     * don't process messages on the down path should pass the batch down unchanged; protocols which do can process all
+     * messages and then pass the batch down, or remove messages from the batch and send them down individually.<p/>
+     * As with {@link #down(org.jgroups.Event)}, an exception thrown while sending a message is passed to the caller;
+     * the remaining messages of the batch are not sent.
+     * @param batch The message batch
+     */
+    public void down(MessageBatch batch) {
+        for(Message msg: batch)
+            down(new Event(Event.MSG, msg));
+    }
+
 
 
 
@@ -8,6 +8,7 @@ import org.jgroups.annotations.Property;
 import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.conf.PropertyConverter;
 import org.jgroups.conf.ProtocolConfiguration;
+import org.jgroups.protocols.TIME;
 import org.jgroups.protocols.TP;
 import org.jgroups.util.AsciiString;
 import org.jgroups.util.MessageBatch;
@@ -160,13 +161,28 @@ public class ProtocolStack extends Protocol {
                         log.error("failed creating an instance of " + prot_name, e);
                     }
                 }
+                if(key.equals("instrument")) {
+                    instrument();
+                    HashMap<String, String> map=new HashMap<>(1);
+                    map.put("latencies", printLatencies());
+                    return map;
+                }
+                if(key.equals("uninstrument")) {
+                    uninstrument();
+                    return null;
+                }
+                if(key.equals("latencies")) {
+                    HashMap<String, String> map=new HashMap<>(1);
+                    map.put("latencies", printLatencies());
+                    return map;
+                }
             }
             return null;
         }
 
         public String[] supportedKeys() {
             return new String[]{"props", max_list_print_size + "[=number]", "print-protocols", "\nremove-protocol=<name>",
-              "\ninsert-protocol=<name>=above | below=<name>"};
+              "\ninsert-protocol=<name>=above | below=<name>", "instrument", "uninstrument", "latencies"};
         }
     };
 
@@ -650,6 +666,55 @@ public class ProtocolStack extends Protocol {
     }
 
 
+    /**
+     * Inserts a {@link TIME} protocol above every protocol (which is not itself a TIME protocol), so that the time
+     * spent in each protocol can be measured. Can be done at runtime; {@link #uninstrument()} removes the TIME
+     * protocols again.
+     */
+    public ProtocolStack instrument() {
+        for(Protocol prot: getProtocols()) {
+            if(prot instanceof TIME || prot.getUpProtocol() instanceof TIME)
+                continue;
+            TIME time=new TIME();
+            time.setProtocolStack(this);
+            insertProtocolInStack(time, prot, ABOVE);
+        }
+        return this;
+    }
+
+    /** Removes all {@link TIME} protocols from the stack */
+    public ProtocolStack uninstrument() {
+        for(Protocol prot: getProtocols())
+            if(prot instanceof TIME)
+                removeProtocol(prot);
+        return this;
+    }
+
+    /**
+     * Prints the latencies of each protocol, as measured by the {@link TIME} protocols inserted by
+     * {@link #instrument()}. The down time of a protocol is measured by the TIME protocol above it, the up time by the
+     * TIME protocol below it; times include the protocols further down (or up)
+     */
+    public String printLatencies() {
+        List<Protocol> prots=getProtocols();
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < prots.size(); i++) {
+            Protocol prot=prots.get(i);
+            if(prot instanceof TIME)
+                continue;
+            Protocol above=i > 0? prots.get(i-1) : null, below=i+1 < prots.size()? prots.get(i+1) : null;
+            sb.append(prot.getName()).append(":\n");
+            if(above instanceof TIME)
+                sb.append("  down (ns):       ").append(((TIME)above).downTimes()).append("\n");
+            if(below instanceof TIME) {
+                sb.append("  up (ns):         ").append(((TIME)below).upTimes()).append("\n");
+                sb.append("  up batches (ns): ").append(((TIME)below).upBatchTimes()).append("\n");
+            }
+        }
+        return sb.toString();
+    }
+
+
     /**
      * Removes a protocol from the stack. Stops the protocol and readjusts the linked lists of
      * protocols.
@@ -0,0 +1,151 @@
+package org.jgroups.util;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of byte[] buffers, bucketed by size: there is one queue of buffers per power of 2 between
+ * {@link #MIN_BUFFER_SIZE} and max_buffer_size. {@link #acquire(int)} returns a buffer of the smallest size >= the
+ * requested size, either from the pool or newly created, wrapped in a reference-counted {@link Ref}. When the
+ * reference count drops to 0, the buffer is returned to the pool, unless the pool for that size is full, in which
+ * case the buffer is left to the garbage collector.
+ * <p/>
+ * Buffers larger than max_buffer_size are never pooled.
+ * @author agent
+ * @since  3.6.4
+ */
+public class BufferPool {
+    /** Smallest buffer handed out by the pool (64 bytes) */
+    public static final int                MIN_BUFFER_SIZE=1 << 6;
+
+    protected final int                    max_buffer_size;
+
+    /** One queue per buffer size; index 0 holds buffers of MIN_BUFFER_SIZE, index 1 twice that size etc */
+    protected final BlockingQueue<byte[]>[] pools;
+
+    protected final AtomicLong             num_hits=new AtomicLong(), num_misses=new AtomicLong(),
+                                           num_returns=new AtomicLong(), num_drops=new AtomicLong();
+
+
+    /**
+     * Creates a buffer pool
+     * @param max_buffer_size The max size of a pooled buffer (rounded up to the next power of 2). Larger buffers are
+     *                        created on demand and not returned to the pool
+     * @param max_bytes_per_size The max number of bytes held for each buffer size, e.g. with 10MB, the pool keeps
+     *                           at most 160 buffers of 64KB, but only 1 buffer of 16MB
+     */
+    @SuppressWarnings("unchecked")
+    public BufferPool(int max_buffer_size, int max_bytes_per_size) {
+        this.max_buffer_size=Util.getNextHigherPowerOfTwo(Math.max(max_buffer_size, MIN_BUFFER_SIZE));
+        pools=new BlockingQueue[index(this.max_buffer_size) +1];
+        for(int i=0; i < pools.length; i++) {
+            int size=MIN_BUFFER_SIZE << i;
+            pools[i]=new ArrayBlockingQueue<>(Math.max(1, max_bytes_per_size / size));
+        }
+    }
+
+    public int  getMaxBufferSize() {return max_buffer_size;}
+    public long getNumHits()       {return num_hits.get();}
+    public long getNumMisses()     {return num_misses.get();}
+    public long getNumReturns()    {return num_returns.get();}
+    public long getNumDrops()      {return num_drops.get();}
+
+    public void resetStats() {
+        num_hits.set(0); num_misses.set(0); num_returns.set(0); num_drops.set(0);
+    }
+
+    /** Returns the number of buffers and the number of bytes currently held in the pool */
+    public long[] pooled() {
+        long num=0, bytes=0;
+        for(int i=0; i < pools.length; i++) {
+            int size=pools[i].size();
+            num+=size;
+            bytes+=(long)size * (MIN_BUFFER_SIZE << i);
+        }
+        return new long[]{num, bytes};
+    }
+
+    /**
+     * Returns a buffer whose length is >= size with a reference count of 1. The buffer may contain data from its
+     * previous use
+     */
+    public Ref acquire(int size) {
+        if(size > max_buffer_size) {
+            num_misses.incrementAndGet();
+            return new Ref(this, new byte[size]);
+        }
+        int index=index(size);
+        byte[] buf=pools[index].poll();
+        if(buf != null) {
+            num_hits.incrementAndGet();
+            return new Ref(this, buf);
+        }
+        num_misses.incrementAndGet();
+        return new Ref(this, new byte[MIN_BUFFER_SIZE << index]);
+    }
+
+    /** Returns a buffer to the pool. Buffers whose length is not one of the pooled sizes are dropped */
+    public void release(byte[] buf) {
+        int length=buf != null? buf.length : 0;
+        if(length < MIN_BUFFER_SIZE || length > max_buffer_size || Integer.bitCount(length) != 1) {
+            num_drops.incrementAndGet();
+            return;
+        }
+        if(pools[index(length)].offer(buf))
+            num_returns.incrementAndGet();
+        else
+            num_drops.incrementAndGet();
+    }
+
+    public String toString() {
+        long[] tmp=pooled();
+        return String.format("%d buffers (%s) pooled, hits=%d misses=%d returns=%d drops=%d",
+                             tmp[0], Util.printBytes(tmp[1]), num_hits.get(), num_misses.get(),
+                             num_returns.get(), num_drops.get());
+    }
+
+    /** The index of the pool holding buffers for the given size; size must be <= max_buffer_size */
+    protected static int index(int size) {
+        int pow2=Util.getNextHigherPowerOfTwo(Math.max(size, MIN_BUFFER_SIZE));
+        return Integer.numberOfTrailingZeros(pow2) - Integer.numberOfTrailingZeros(MIN_BUFFER_SIZE);
+    }
+
+
+    /**
+     * A reference-counted buffer acquired from a {@link BufferPool}. The count starts at 1; every {@link #retain()}
+     * needs to be matched by a {@link #release()}. The buffer is returned to the pool by the release() which drops the
+     * count to 0, and must not be accessed after that.
+     */
+    public static class Ref extends AtomicInteger {
+        private static final long  serialVersionUID=1L;
+        protected final BufferPool pool;
+        protected final byte[]     buf;
+
+        public Ref(BufferPool pool, byte[] buf) {
+            super(1);
+            this.pool=pool;
+            this.buf=buf;
+        }
+
+        public byte[] buf() {return buf;}
+
+        public Ref retain() {
+            incrementAndGet();
+            return this;
+        }
+
+        /** Decrements the reference count; returns true if the buffer was handed back to the pool */
+        public boolean release() {
+            if(decrementAndGet() != 0)
+                return false;
+            pool.release(buf);
+            return true;
+        }
+
+        public String toString() {
+            return String.format("%d bytes (refs=%d)", buf.length, get());
+        }
+    }
+}
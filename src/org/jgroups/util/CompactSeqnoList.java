@@ -0,0 +1,80 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+
+/**
+ * A {@link SeqnoList} which is marshalled either as bitmap, or as a list of ranges (gap to the previous range and
+ * length, both variable-length encoded), whichever is smaller. A few gaps in a large window are therefore sent as
+ * a few bytes rather than a bitmap covering the entire window.
+ * <p/>
+ * Members running an older version can't read this class, so NAKACK2 and UNICAST3 only send it when
+ * compact_xmit_reqs is enabled.
+ * @author agent
+ * @since  3.6.4
+ */
+public class CompactSeqnoList extends SeqnoList {
+    protected static final byte BITMAP=1, RANGES=2;
+
+    /** Only to be used by serialization */
+    public CompactSeqnoList() {
+    }
+
+    public CompactSeqnoList(int size, long offset) {
+        super(size, offset);
+    }
+
+    /** Creates a CompactSeqnoList which shares the seqnos of list. The list must not be modified afterwards */
+    public CompactSeqnoList(SeqnoList list) {
+        this.words=list.words;
+        this.size=list.size;
+        this.offset=list.offset;
+    }
+
+    public int serializedSize() {
+        return Global.BYTE_SIZE + Bits.size(size) + Bits.size(offset)
+          + Math.min(rangesSize(), words.length * Global.LONG_SIZE);
+    }
+
+    public void writeTo(DataOutput out) throws Exception {
+        boolean write_ranges=rangesSize() < words.length * Global.LONG_SIZE;
+        out.writeByte(write_ranges? RANGES : BITMAP);
+        Bits.writeInt(size, out);
+        Bits.writeLong(offset, out);
+        if(!write_ranges) {
+            for(long word: words)
+                out.writeLong(word);
+            return;
+        }
+        Bits.writeInt(numRanges(), out);
+        int last=0, from=nextSetBit(0);
+        while(from >= 0) {
+            int to=endOfRange(from);
+            Bits.writeInt(from - last, out);
+            Bits.writeInt(to - from, out);
+            last=to;
+            from=nextSetBit(to);
+        }
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        byte type=in.readByte();
+        size=Bits.readInt(in);
+        offset=Bits.readLong(in);
+        words=new long[wordIndex(size - 1) + 1];
+        if(type == BITMAP) {
+            for(int i=0; i < words.length; i++)
+                words[i]=in.readLong();
+            return;
+        }
+        int num_ranges=Bits.readInt(in), from=0;
+        for(int i=0; i < num_ranges; i++) {
+            from+=Bits.readInt(in);
+            int length=Bits.readInt(in);
+            super.set(from, from + length - 1);
+            from+=length;
+        }
+    }
+}
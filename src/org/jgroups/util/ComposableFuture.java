@@ -0,0 +1,276 @@
+package org.jgroups.util;
+
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A future which can be completed explicitly and which supports any number of callbacks and chaining of dependent
+ * futures, similar to CompletableFuture in Java 8 (which cannot be used as long as JGroups runs on Java 7).
+ * <p/>
+ * Callbacks and the functions passed to the chaining methods ({@link #thenApply(Function)},
+ * {@link #thenCompose(Function)} and {@link #exceptionally(Function)}) are run by the thread completing the future,
+ * or by the caller if the future is already done. When the future is completed by a response to an RPC, this is a
+ * thread of the transport's thread pool, so these functions must not block.
+ * <p/>
+ * As in CompletableFuture, cancelling a dependent future does not cancel the future it was derived from.
+ * @author agent
+ * @since  3.6.4
+ */
+public class ComposableFuture<T> implements NotifyingFuture<T> {
+    protected boolean                        done, cancelled; // guarded by this
+    protected T                              result;
+    protected Throwable                      exception;
+    protected List<Callback<? super T>>      callbacks;       // guarded by this, null once done
+
+    protected static final Log               log=LogFactory.getLog(ComposableFuture.class);
+
+
+    /** Called when a future completes, either with a result (exception is null) or an exception */
+    public interface Callback<T> {
+        void done(T result, Throwable exception);
+    }
+
+    public interface Function<T,R> {
+        R apply(T arg) throws Exception;
+    }
+
+
+    public static <T> ComposableFuture<T> completed(T value) {
+        ComposableFuture<T> f=new ComposableFuture<>();
+        f.complete(value);
+        return f;
+    }
+
+    /** Returns a future which completes when all futures have completed, or exceptionally when one of them does */
+    public static ComposableFuture<Void> allOf(final ComposableFuture<?> ... futures) {
+        final ComposableFuture<Void> retval=new ComposableFuture<>();
+        if(futures.length == 0) {
+            retval.complete(null);
+            return retval;
+        }
+        final AtomicInteger remaining=new AtomicInteger(futures.length);
+        for(ComposableFuture<?> f: futures) {
+            f.whenComplete(new Callback<Object>() {
+                public void done(Object result, Throwable exception) {
+                    if(exception != null)
+                        retval.completeExceptionally(exception);
+                    else if(remaining.decrementAndGet() == 0)
+                        retval.complete(null);
+                }
+            });
+        }
+        return retval;
+    }
+
+
+    /** Completes the future with value; returns false if the future was already done */
+    public boolean complete(T value) {
+        return complete(value, null, false);
+    }
+
+    /** Completes the future with an exception; returns false if the future was already done */
+    public boolean completeExceptionally(Throwable t) {
+        return complete(null, t, false);
+    }
+
+    /** Completes the future with a {@link CancellationException} */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return complete(null, new CancellationException(), true);
+    }
+
+    public synchronized boolean isDone()                  {return done;}
+    public synchronized boolean isCancelled()             {return cancelled;}
+    public synchronized boolean isCompletedExceptionally() {return done && exception != null;}
+
+    public T get() throws InterruptedException, ExecutionException {
+        synchronized(this) {
+            while(!done)
+                this.wait();
+            return report();
+        }
+    }
+
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long wait_time=unit.toNanos(timeout), deadline=System.nanoTime() + wait_time;
+        synchronized(this) {
+            while(!done) {
+                if(wait_time <= 0)
+                    throw new TimeoutException();
+                TimeUnit.NANOSECONDS.timedWait(this, wait_time);
+                wait_time=deadline - System.nanoTime();
+            }
+            return report();
+        }
+    }
+
+    /** Returns the result if the future completed normally, value_if_absent if not yet done, else throws an exception */
+    public synchronized T getNow(T value_if_absent) throws ExecutionException {
+        return done? report() : value_if_absent;
+    }
+
+    /** Adds a callback which is invoked when this future completes (or immediately if it is already done) */
+    public ComposableFuture<T> whenComplete(Callback<? super T> callback) {
+        synchronized(this) {
+            if(!done) {
+                if(callbacks == null)
+                    callbacks=new ArrayList<>(2);
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        invoke(callback);
+        return this;
+    }
+
+    /** Adapts a {@link FutureListener}, so this class can be used where a {@link NotifyingFuture} is expected */
+    public ComposableFuture<T> setListener(final FutureListener<T> listener) {
+        if(listener != null)
+            whenComplete(new Callback<T>() {
+                public void done(T result, Throwable exception) {listener.futureDone(ComposableFuture.this);}
+            });
+        return this;
+    }
+
+    /** Returns a future which is completed with the result of applying fn to the result of this future */
+    public <R> ComposableFuture<R> thenApply(final Function<? super T,? extends R> fn) {
+        final ComposableFuture<R> retval=new ComposableFuture<>();
+        whenComplete(new Callback<T>() {
+            public void done(T result, Throwable exception) {
+                if(exception != null) {
+                    retval.completeExceptionally(exception);
+                    return;
+                }
+                try {
+                    retval.complete(fn.apply(result));
+                }
+                catch(Throwable t) {
+                    failed(retval, t);
+                }
+            }
+        });
+        return retval;
+    }
+
+    /** Returns a future which is completed by the future returned by fn, applied to the result of this future */
+    public <R> ComposableFuture<R> thenCompose(final Function<? super T,? extends ComposableFuture<R>> fn) {
+        final ComposableFuture<R> retval=new ComposableFuture<>();
+        whenComplete(new Callback<T>() {
+            public void done(T result, Throwable exception) {
+                if(exception != null) {
+                    retval.completeExceptionally(exception);
+                    return;
+                }
+                try {
+                    ComposableFuture<R> next=fn.apply(result);
+                    next.whenComplete(new Callback<R>() {
+                        public void done(R res, Throwable ex) {
+                            if(ex != null)
+                                retval.completeExceptionally(ex);
+                            else
+                                retval.complete(res);
+                        }
+                    });
+                }
+                catch(Throwable t) {
+                    failed(retval, t);
+                }
+            }
+        });
+        return retval;
+    }
+
+    /** Returns a future which is completed with the result of fn if this future completes exceptionally */
+    public ComposableFuture<T> exceptionally(final Function<Throwable,? extends T> fn) {
+        final ComposableFuture<T> retval=new ComposableFuture<>();
+        whenComplete(new Callback<T>() {
+            public void done(T result, Throwable exception) {
+                if(exception == null) {
+                    retval.complete(result);
+                    return;
+                }
+                try {
+                    retval.complete(fn.apply(exception));
+                }
+                catch(Throwable t) {
+                    failed(retval, t);
+                }
+            }
+        });
+        return retval;
+    }
+
+    /** Completes this future with a {@link TimeoutException} if it is not done within the given time */
+    public ComposableFuture<T> orTimeout(long timeout, TimeUnit unit, TimeScheduler timer) {
+        if(timeout <= 0 || timer == null || isDone())
+            return this;
+        final Future<?> task=timer.schedule(new Runnable() {
+            public void run() {completeExceptionally(new TimeoutException());}
+            public String toString() {return ComposableFuture.class.getSimpleName() + ": timeout";}
+        }, timeout, unit);
+        whenComplete(new Callback<T>() {
+            public void done(T result, Throwable exception) {task.cancel(false);}
+        });
+        return this;
+    }
+
+    public synchronized String toString() {
+        if(!done)
+            return "not done";
+        return cancelled? "cancelled" : exception != null? "exception: " + exception : "result: " + result;
+    }
+
+
+    protected boolean complete(T value, Throwable t, boolean cancel) {
+        List<Callback<? super T>> tmp;
+        synchronized(this) {
+            if(done)
+                return false;
+            done=true;
+            result=value;
+            exception=t;
+            cancelled=cancel;
+            tmp=callbacks;
+            callbacks=null;
+            this.notifyAll();
+        }
+        if(tmp != null)
+            for(Callback<? super T> callback: tmp)
+                invoke(callback);
+        return true;
+    }
+
+    protected void invoke(Callback<? super T> callback) {
+        T res;
+        Throwable ex;
+        synchronized(this) {
+            res=result;
+            ex=exception;
+        }
+        try {
+            callback.done(res, ex);
+        }
+        catch(Throwable t) {
+            log.error("failed invoking callback " + callback, t);
+        }
+    }
+
+    /** Completes a dependent future with the exception thrown by a function; logs it if the future is already done
+     * (e.g. cancelled), so it isn't lost */
+    protected static void failed(ComposableFuture<?> future, Throwable t) {
+        if(!future.completeExceptionally(t))
+            log.error("function failed, but the dependent future was already done", t);
+    }
+
+    protected T report() throws ExecutionException {
+        if(cancelled)
+            throw (CancellationException)exception;
+        if(exception != null)
+            throw new ExecutionException(exception);
+        return result;
+    }
+}
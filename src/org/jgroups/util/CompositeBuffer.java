@@ -0,0 +1,174 @@
+package org.jgroups.util;
+
+import org.jgroups.Message;
+
+import java.io.DataOutput;
+import java.io.InputStream;
+
+/**
+ * A payload made up of a list of segments (subsets of byte[] buffers), e.g. the fragments of a message reassembled by
+ * {@link org.jgroups.protocols.FRAG2}. The segments are not copied into one contiguous buffer: they can be read
+ * in order via {@link #getInputStream()}, written to an output stream, or copied into a single buffer by
+ * {@link #toByteArray()} when needed.
+ * <p/>
+ * Segments acquired from a {@link BufferPool} are added with their reference: every {@link #retain()} increments
+ * and every {@link #release()} decrements the reference counts of all pooled segments, returning them to the pool
+ * when the counts drop to 0. Segments must be added in order. This class is not synchronized.
+ * @author agent
+ * @since  3.6.4
+ */
+public class CompositeBuffer {
+    protected final byte[][]         bufs;
+    protected final int[]            offsets, lengths;
+    protected final BufferPool.Ref[] refs;   // set for pooled segments
+    protected int                    size;   // number of segments
+    protected int                    length; // total number of bytes
+
+
+    public CompositeBuffer(int capacity) {
+        bufs=new byte[capacity][];
+        offsets=new int[capacity];
+        lengths=new int[capacity];
+        refs=new BufferPool.Ref[capacity];
+    }
+
+    /** The total number of bytes of all segments */
+    public int length()      {return length;}
+    public int numSegments() {return size;}
+
+    public Buffer segment(int index) {
+        if(index < 0 || index >= size)
+            throw new IndexOutOfBoundsException("index: " + index + ", segments: " + size);
+        return new Buffer(bufs[index], offsets[index], lengths[index]);
+    }
+
+    /** Adds a segment which is not pooled */
+    public CompositeBuffer add(byte[] buf, int offset, int length) {
+        return add(buf, offset, length, null);
+    }
+
+    /** Adds the payload of a message as segment. Takes over the message's reference to a pooled buffer (if set) */
+    public CompositeBuffer add(Message msg) {
+        return add(msg.getRawBuffer(), msg.getOffset(), msg.getLength(), msg.getPooledBuffer());
+    }
+
+    /** Adds a segment. If ref is non-null, buf was acquired from a pool and the reference is taken over */
+    public CompositeBuffer add(byte[] buf, int offset, int length, BufferPool.Ref ref) {
+        if(size >= bufs.length)
+            throw new IllegalStateException("capacity of " + bufs.length + " segments exceeded");
+        bufs[size]=buf;
+        offsets[size]=offset;
+        lengths[size]=length;
+        refs[size]=ref;
+        size++;
+        this.length+=length;
+        return this;
+    }
+
+    /** Copies all segments into dest, starting at offset. Returns the number of bytes copied */
+    public int copyTo(byte[] dest, int offset) {
+        int index=offset;
+        for(int i=0; i < size; i++) {
+            System.arraycopy(bufs[i], offsets[i], dest, index, lengths[i]);
+            index+=lengths[i];
+        }
+        return index - offset;
+    }
+
+    /** Copies all segments into a newly allocated buffer */
+    public byte[] toByteArray() {
+        byte[] retval=new byte[length];
+        copyTo(retval, 0);
+        return retval;
+    }
+
+    public void writeTo(DataOutput out) throws Exception {
+        for(int i=0; i < size; i++)
+            out.write(bufs[i], offsets[i], lengths[i]);
+    }
+
+    /** Returns a stream reading the segments in order. Every call returns a new stream, starting at the first byte */
+    public InputStream getInputStream() {
+        return new SegmentInputStream();
+    }
+
+    /** Increments the reference counts of all pooled segments */
+    public CompositeBuffer retain() {
+        for(int i=0; i < size; i++)
+            if(refs[i] != null)
+                refs[i].retain();
+        return this;
+    }
+
+    /**
+     * Decrements the reference counts of all pooled segments. Needs to be called once by every owner (the creator
+     * and everyone who called {@link #retain()}); the buffer must not be accessed by an owner after that
+     */
+    public void release() {
+        for(int i=0; i < size; i++)
+            if(refs[i] != null)
+                refs[i].release();
+    }
+
+    public String toString() {
+        return String.format("%d bytes (%d segments)", length, size);
+    }
+
+
+    protected class SegmentInputStream extends InputStream {
+        protected int index; // the current segment
+        protected int pos;   // position in the current segment (relative to its offset)
+        protected int mark_index, mark_pos;
+
+        public int read() {
+            if(!advance())
+                return -1;
+            return bufs[index][offsets[index] + pos++] & 0xff;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if(len == 0)
+                return 0;
+            int read=0;
+            while(read < len && advance()) {
+                int num=Math.min(len - read, lengths[index] - pos);
+                System.arraycopy(bufs[index], offsets[index] + pos, b, off + read, num);
+                pos+=num;
+                read+=num;
+            }
+            return read > 0? read : -1;
+        }
+
+        public long skip(long n) {
+            long skipped=0;
+            while(skipped < n && advance()) {
+                int num=(int)Math.min(n - skipped, lengths[index] - pos);
+                pos+=num;
+                skipped+=num;
+            }
+            return skipped;
+        }
+
+        public int available() {
+            if(index >= size)
+                return 0;
+            int retval=lengths[index] - pos;
+            for(int i=index+1; i < size; i++)
+                retval+=lengths[i];
+            return retval;
+        }
+
+        public boolean markSupported()      {return true;}
+        public void    mark(int readlimit)  {mark_index=index; mark_pos=pos;}
+        public void    reset()              {index=mark_index; pos=mark_pos;}
+
+        /** Skips exhausted segments; returns false when all segments have been read */
+        protected boolean advance() {
+            while(index < size && pos >= lengths[index]) {
+                index++;
+                pos=0;
+            }
+            return index < size;
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package org.jgroups.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free map with primitive long keys, optimized for keys which are (mostly) increasing, such as request IDs.
+ * <p/>
+ * An entry is stored in slot key & (capacity-1) of a fixed-size array, which is set and cleared with CAS, so
+ * adding, getting and removing an entry doesn't box the key and (contrary to ConcurrentHashMap) doesn't allocate
+ * a map node. When the slot is taken by an entry with a different key (with increasing keys, this only happens when
+ * entries whose keys differ by capacity or more are present at the same time), the entry is stored in an overflow
+ * map instead.
+ * <p/>
+ * Iteration (e.g. {@link #values()}) scans the entire array, so it should be used only for infrequent operations
+ * such as view changes.
+ * @author agent
+ * @since  3.6.4
+ */
+public class ConcurrentLongMap<V> {
+    protected final AtomicReferenceArray<Entry<V>> slots;
+    protected final int                            mask;
+    protected final ConcurrentMap<Long,V>          overflow=Util.createConcurrentMap();
+    protected final AtomicInteger                  size=new AtomicInteger();
+
+
+    /** Creates a map with the given capacity, which is rounded up to the next power of 2 */
+    public ConcurrentLongMap(int capacity) {
+        int cap=Util.getNextHigherPowerOfTwo(Math.max(capacity, 2));
+        slots=new AtomicReferenceArray<>(cap);
+        mask=cap-1;
+    }
+
+    public int capacity()     {return slots.length();}
+    public int size()         {return size.get();}
+    public boolean isEmpty()  {return size.get() == 0;}
+    public int overflowSize() {return overflow.size();}
+
+
+    /** Adds an entry unless an entry with the same key is present. Returns the existing value, or null if added */
+    public V putIfAbsent(long key, V value) {
+        if(value == null)
+            throw new IllegalArgumentException("value must not be null");
+        int index=index(key);
+        for(;;) {
+            Entry<V> existing=slots.get(index);
+            if(existing != null && existing.key == key)
+                return existing.value;
+            if(existing != null)
+                return putInOverflow(index, key, value);
+
+            // the key may be in the overflow, if its slot was taken when it was added
+            V prev=overflow.isEmpty()? null : overflow.get(key);
+            if(prev != null)
+                return prev;
+            Entry<V> entry=new Entry<>(key, value);
+            if(!slots.compareAndSet(index, null, entry))
+                continue;
+            size.incrementAndGet();
+            if(overflow.isEmpty())
+                return null;
+            // the same key may have been added to the overflow concurrently: the first one wins (see putInOverflow())
+            synchronized(overflow) {
+                if((prev=overflow.get(key)) == null)
+                    return null;
+            }
+            if(slots.compareAndSet(index, entry, null))
+                size.decrementAndGet();
+            return prev;
+        }
+    }
+
+    public V get(long key) {
+        Entry<V> entry=slots.get(index(key));
+        if(entry != null && entry.key == key)
+            return entry.value;
+        return overflow.isEmpty()? null : overflow.get(key);
+    }
+
+    /** Removes the entry with the given key and returns its value, or null if not found */
+    public V remove(long key) {
+        int index=index(key);
+        Entry<V> entry=slots.get(index);
+        if(entry != null && entry.key == key && slots.compareAndSet(index, entry, null)) {
+            size.decrementAndGet();
+            return entry.value;
+        }
+        if(overflow.isEmpty())
+            return null;
+        V prev=overflow.remove(key);
+        if(prev != null)
+            size.decrementAndGet();
+        return prev;
+    }
+
+    /** Returns a snapshot of the values */
+    public List<V> values() {
+        List<V> retval=new ArrayList<>(size());
+        for(int i=0; i < slots.length(); i++) {
+            Entry<V> entry=slots.get(i);
+            if(entry != null)
+                retval.add(entry.value);
+        }
+        retval.addAll(overflow.values());
+        return retval;
+    }
+
+    /** Calls visitor for all entries */
+    public void forEach(Visitor<V> visitor) {
+        for(int i=0; i < slots.length(); i++) {
+            Entry<V> entry=slots.get(i);
+            if(entry != null)
+                visitor.visit(entry.key, entry.value);
+        }
+        for(java.util.Map.Entry<Long,V> entry: overflow.entrySet())
+            visitor.visit(entry.getKey(), entry.getValue());
+    }
+
+    public void clear() {
+        for(int i=0; i < slots.length(); i++) {
+            if(slots.getAndSet(i, null) != null)
+                size.decrementAndGet();
+        }
+        for(Long key: overflow.keySet())
+            if(overflow.remove(key) != null)
+                size.decrementAndGet();
+    }
+
+    public String toString() {
+        return String.format("size=%d (capacity=%d, overflow=%d)", size(), capacity(), overflowSize());
+    }
+
+    /**
+     * Adds an entry whose slot is taken by a different key to the overflow. The slot is checked again after adding,
+     * as the same key may have been added to it concurrently. The entry in the overflow is removed if so; else a
+     * concurrent add to the slot finds the overflow entry (as it checks under the same lock) and removes itself
+     */
+    protected V putInOverflow(int index, long key, V value) {
+        synchronized(overflow) {
+            V prev=overflow.putIfAbsent(key, value);
+            if(prev != null)
+                return prev;
+            size.incrementAndGet();
+            Entry<V> entry=slots.get(index);
+            if(entry == null || entry.key != key)
+                return null;
+            if(overflow.remove(key, value))
+                size.decrementAndGet();
+            return entry.value;
+        }
+    }
+
+    protected int index(long key) {
+        return (int)(key & mask);
+    }
+
+
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    protected static class Entry<V> {
+        protected final long key;
+        protected final V    value;
+
+        protected Entry(long key, V value) {
+            this.key=key;
+            this.value=value;
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package org.jgroups.util;
+
+import org.jgroups.annotations.GuardedBy;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A {@link Table} which allows concurrent adds and removes. Table serializes all operations on a single lock, so for
+ * a busy sender the receiver threads adding messages and the thread delivering them all contend on the same lock.
+ * <p/>
+ * ConcurrentTable stores its rows in {@link AtomicReferenceArray}s and adds elements with a compare-and-set on the
+ * slot; hr, hd and size are atomic counters. Adders and removers share the read lock of a read-write lock; the
+ * write lock is only acquired to resize, purge or compact the matrix, as these change the offset and replace rows.
+ * Removers are additionally serialized among themselves by a separate lock, which is never contended by adders.
+ * <p/>
+ * Removed elements are replaced with a marker (rather than null) when nullify is true, so that an element with a
+ * seqno <= hd can never be added again by a concurrent add() which checked hd before the element was removed.
+ * @author agent
+ * @since  3.6.4
+ */
+public class ConcurrentTable<T> extends Table<T> {
+    protected volatile AtomicReferenceArray<AtomicReferenceArray<Object>> rows;
+
+    protected final AtomicLong             highest_received;
+    protected final AtomicLong             highest_delivered;
+    protected volatile long                lowest;
+    protected final AtomicInteger          num_elements=new AtomicInteger();
+
+    /** Acquired in read mode by add() and remove(), and in write mode by resize, purge and compaction */
+    protected final ReentrantReadWriteLock rw_lock=new ReentrantReadWriteLock();
+
+    /** Serializes removers; adders never acquire this lock */
+    protected final Lock                   remove_lock=new ReentrantLock();
+
+    /** Marks the slot of an element which has been removed with nullify=true */
+    protected static final Object          REMOVED=new Object();
+
+
+    public ConcurrentTable() {
+        this(0);
+    }
+
+    public ConcurrentTable(long offset) {
+        this(5, 10000, offset);
+    }
+
+    public ConcurrentTable(int num_rows, int elements_per_row, long offset) {
+        this(num_rows,elements_per_row, offset, DEFAULT_RESIZE_FACTOR);
+    }
+
+    public ConcurrentTable(int num_rows, int elements_per_row, long offset, double resize_factor) {
+        this(num_rows,elements_per_row, offset, resize_factor, DEFAULT_MAX_COMPACTION_TIME);
+    }
+
+    public ConcurrentTable(int num_rows, int elements_per_row, long offset, double resize_factor, long max_compaction_time) {
+        super(num_rows, elements_per_row, offset, resize_factor, max_compaction_time);
+        matrix=null; // not used: all methods accessing the matrix are overridden
+        rows=new AtomicReferenceArray<>(num_rows);
+        highest_received=new AtomicLong(offset);
+        highest_delivered=new AtomicLong(offset);
+        lowest=offset;
+    }
+
+
+    public int     capacity()                {return rows.length() * elements_per_row;}
+    public int     size()                    {return Math.max(num_elements.get(), 0);}
+    public boolean isEmpty()                 {return size() <= 0;}
+    public long    getLow()                  {return lowest;}
+    public long    getHighestDelivered()     {return highest_delivered.get();}
+    public long    getHighestReceived()      {return highest_received.get();}
+    public int     getNumRows()              {return rows.length();}
+    public long[]  getDigest()               {return new long[]{highest_delivered.get(), highest_received.get()};}
+
+    public long getHighestDeliverable() {
+        rw_lock.readLock().lock();
+        try {
+            long seqno=highest_delivered.get(), hr=highest_received.get();
+            while(seqno < hr && isPresent(seqno+1))
+                seqno++;
+            return seqno;
+        }
+        finally {
+            rw_lock.readLock().unlock();
+        }
+    }
+
+    public void setHighestDelivered(long seqno) {
+        remove_lock.lock();
+        try {
+            highest_delivered.set(seqno);
+        }
+        finally {
+            remove_lock.unlock();
+        }
+    }
+
+    public boolean add(long seqno, T element) {
+        return add(seqno, element, null);
+    }
+
+    public boolean add(long seqno, T element, Filter<T> remove_filter) {
+        boolean added;
+        for(;;) {
+            rw_lock.readLock().lock();
+            try {
+                if(computeRow(seqno) < rows.length()) {
+                    added=_add(seqno, element);
+                    break;
+                }
+            }
+            finally {
+                rw_lock.readLock().unlock();
+            }
+            resize(seqno);
+        }
+        if(added && remove_filter != null && highest_delivered.get() + 1 == seqno)
+            removeOnAdd(remove_filter);
+        return added;
+    }
+
+    public boolean add(final List<Tuple<Long,T>> list, boolean remove_added_elements, T const_value) {
+        if(list == null || list.isEmpty())
+            return false;
+        // find the highest seqno (unfortunately, the list is not ordered by seqno)
+        long highest_seqno=findHighestSeqno(list);
+        boolean added=false;
+        for(;;) {
+            rw_lock.readLock().lock();
+            try {
+                if(highest_seqno == -1 || computeRow(highest_seqno) < rows.length()) {
+                    for(Iterator<Tuple<Long,T>> it=list.iterator(); it.hasNext();) {
+                        Tuple<Long,T> tuple=it.next();
+                        long seqno=tuple.getVal1();
+                        T element=const_value != null? const_value : tuple.getVal2();
+                        if(_add(seqno, element))
+                            added=true;
+                        else if(remove_added_elements)
+                            it.remove();
+                    }
+                    return added;
+                }
+            }
+            finally {
+                rw_lock.readLock().unlock();
+            }
+            resize(highest_seqno);
+        }
+    }
+
+    public T get(long seqno) {
+        rw_lock.readLock().lock();
+        try {
+            if(seqno <= lowest || seqno > highest_received.get())
+                return null;
+            return _get(seqno);
+        }
+        finally {
+            rw_lock.readLock().unlock();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public T _get(long seqno) {
+        rw_lock.readLock().lock();
+        try {
+            Object element=getElement(seqno);
+            return element == REMOVED? null : (T)element;
+        }
+        finally {
+            rw_lock.readLock().unlock();
+        }
+    }
+
+    public List<T> get(long from, long to) {
+        rw_lock.readLock().lock();
+        try {
+            if(from <= lowest) from=lowest+1;
+            long hr=highest_received.get();
+            if(to > hr) to=hr;
+            Getter getter=new Getter();
+            forEach(from, to, getter);
+            return getter.getList();
+        }
+        finally {
+            rw_lock.readLock().unlock();
+        }
+    }
+
+    public T remove(boolean nullify) {
+        List<T> list=removeMany(null, nullify, 1, null);
+        return list != null && !list.isEmpty()? list.get(0) : null;
+    }
+
+    /**
+     * Removes between 0 and max_results elements from the table and returns them in a list. If filter is non-null,
+     * only elements which the filter accepts are returned. Concurrent adds are not blocked.
+     * @return A list of element. A null list means no more elements are in the table and processing (if set)
+     * will be set to false
+     */
+    public List<T> removeMany(final AtomicBoolean processing, boolean nullify, int max_results, Filter<T> filter) {
+        remove_lock.lock();
+        rw_lock.readLock().lock();
+        try {
+            for(;;) {
+                List<T> list=_removeMany(nullify, max_results, filter);
+                if(processing == null || (list != null && !list.isEmpty()))
+                    return list;
+                processing.set(false);
+
+                // An add() may have added the next element after we looked for it, but failed to set processing
+                // because we still had it set: take over processing again, or that element would not get removed
+                if(!isPresent(highest_delivered.get() + 1) || !processing.compareAndSet(false, true))
+                    return list;
+            }
+        }
+        finally {
+            rw_lock.readLock().unlock();
+            remove_lock.unlock();
+        }
+    }
+
+    public void purge(long seqno, boolean force) {
+        rw_lock.writeLock().lock();
+        try {
+            if(seqno <= lowest)
+                return;
+            long hd=highest_delivered.get(), hr=highest_received.get();
+            if(force) {
+                if(seqno > hr)
+                    seqno=hr;
+            }
+            else {
+                if(seqno > hd) // we cannot be higher than the highest removed seqno
+                    seqno=hd;
+            }
+
+            int start_row=computeRow(lowest), end_row=computeRow(seqno);
+            if(start_row < 0) start_row=0;
+            if(end_row < 0)
+                return;
+            for(int i=start_row; i < end_row; i++) // Null all rows which can be fully removed
+                rows.set(i, null);
+
+            AtomicReferenceArray<Object> row=rows.get(end_row);
+            if(row != null) {
+                int index=computeIndex(seqno);
+                for(int i=0; i <= index; i++) // null all elements up to and including seqno in the given row
+                    row.set(i, null);
+            }
+            if(seqno > lowest)
+                lowest=seqno;
+            if(force) {
+                if(seqno > hd) {
+                    lowest=seqno;
+                    highest_delivered.set(seqno);
+                }
+                num_elements.set(computeSize());
+            }
+            num_purges++;
+            if(max_compaction_time <= 0) // see if compaction should be triggered
+                return;
+
+            long current_time=System.nanoTime();
+            if(last_compaction_timestamp > 0) {
+                if(current_time - last_compaction_timestamp >= max_compaction_time) {
+                    _compact();
+                    last_compaction_timestamp=current_time;
+                }
+            }
+            else // the first time we don't do a compaction
+                last_compaction_timestamp=current_time;
+        }
+        finally {
+            rw_lock.writeLock().unlock();
+        }
+    }
+
+    public void compact() {
+        rw_lock.writeLock().lock();
+        try {
+            _compact();
+        }
+        finally {
+            rw_lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Iterates over the matrix with range [from .. to] (including from and to), and calls
+     * {@link Visitor#visit(long,Object,int,int)}. Removed elements are passed to the visitor as null.
+     * Modifications of the matrix by the visitor are not reflected in the table.
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(long from, long to, Visitor<T> visitor) {
+        if(from > to)
+            return;
+        rw_lock.readLock().lock();
+        try {
+            int row=computeRow(from), column=computeIndex(from);
+            int distance=(int)(to - from +1);
+            AtomicReferenceArray<Object> current_row=row < 0 || row+1 > rows.length()? null : rows.get(row);
+
+            for(int i=0; i < distance; i++) {
+                Object element=current_row == null? null : current_row.get(column);
+                if(!visitor.visit(from, element == REMOVED? null : (T)element, row, column))
+                    break;
+
+                from++;
+                if(++column >= elements_per_row) {
+                    column=0;
+                    row++;
+                    current_row=row+1 > rows.length()? null : rows.get(row);
+                }
+            }
+        }
+        finally {
+            rw_lock.readLock().unlock();
+        }
+    }
+
+    public int computeSize() {
+        Counter non_null_counter=new Counter();
+        forEach(highest_delivered.get()+1, highest_received.get(), non_null_counter);
+        return non_null_counter.getResult();
+    }
+
+    public int getNumMissing() {
+        return (int)(highest_received.get() - highest_delivered.get() - size());
+    }
+
+    /**
+     * Returns a list of missing messages. Like {@link Table#getMissing(int)}, rows which haven't been created yet are
+     * added as a range, and the traversal stops once the expected number of missing messages has been found, so the
+     * cost depends on the number and position of the gaps rather than on the size of the window. As the counters are
+     * not read atomically, a gap filled or created concurrently may be missed; it will be reported by the next call.
+     */
+    public SeqnoList getMissing(int max_msgs) {
+        rw_lock.readLock().lock();
+        try {
+            long hr=highest_received.get();
+            int num_missing=(int)(hr - highest_delivered.get() - size());
+            if(isEmpty() || num_missing <= 0)
+                return null;
+            long start_seqno=getHighestDeliverable() +1;
+            int capacity=(int)(hr - start_seqno);
+            int max_size=max_msgs > 0? Math.min(max_msgs, num_missing) : num_missing;
+            if(capacity <= 0)
+                return null;
+            SeqnoList missing=new SeqnoList(capacity, start_seqno);
+            int found=0;
+            long seqno=start_seqno;
+            while(seqno < hr && found < max_size) {
+                int row_index=computeRow(seqno), column=computeIndex(seqno);
+                AtomicReferenceArray<Object> row=row_index < rows.length()? rows.get(row_index) : null;
+                long end=Math.min(seqno + elements_per_row - column, hr); // exclusive
+                if(row == null) {
+                    end=Math.min(end, seqno + max_size - found);
+                    missing.add(seqno, end-1);
+                    found+=end - seqno;
+                    seqno=end;
+                    continue;
+                }
+                for(; seqno < end && found < max_size; seqno++, column++) {
+                    if(row.get(column) == null) {
+                        missing.add(seqno);
+                        found++;
+                    }
+                }
+            }
+            return missing;
+        }
+        finally {
+            rw_lock.readLock().unlock();
+        }
+    }
+
+    public String toString() {
+        return "[" + lowest + " | " + highest_delivered.get() + " | " + highest_received.get() + "] (" + size() +
+          " elements, " + getNumMissing() + " missing)";
+    }
+
+    public String dump() {
+        Dump dump=new Dump();
+        forEach(lowest, highest_received.get(), dump);
+        return dump.getResult();
+    }
+
+
+    /** Adds an element with a CAS on its slot. The read lock must be held and seqno must be in range of the matrix */
+    @GuardedBy("rw_lock")
+    protected boolean _add(long seqno, T element) {
+        if(seqno <= highest_delivered.get())
+            return false;
+        AtomicReferenceArray<Object> row=getOrCreateRow(computeRow(seqno));
+
+        // A remover may have removed seqno and nulled its row after we checked hd above, and we may then have created
+        // a new row. As the remover sets hd before it nulls the row, checking hd again is enough: if the row we got
+        // is still the old one, the slot holds the element or REMOVED and the CAS below fails
+        if(seqno <= highest_delivered.get())
+            return false;
+        int index=computeIndex(seqno);
+        if(!row.compareAndSet(index, null, element))
+            return false;
+        num_elements.incrementAndGet();
+        for(;;) {
+            long hr=highest_received.get();
+            if(seqno <= hr || highest_received.compareAndSet(hr, seqno))
+                break;
+        }
+        return true;
+    }
+
+    /** Removes elements from hd+1 onwards. The remove lock and the read lock must be held */
+    @SuppressWarnings("unchecked")
+    @GuardedBy("remove_lock")
+    protected List<T> _removeMany(boolean nullify, int max_results, Filter<T> filter) {
+        List<T> list=null;
+        int num_results=0;
+        long seqno=highest_delivered.get() + 1;
+        for(;;) {
+            int row_index=computeRow(seqno);
+            if(row_index < 0 || row_index >= rows.length())
+                break;
+            AtomicReferenceArray<Object> row=rows.get(row_index);
+            if(row == null)
+                break;
+            int index=computeIndex(seqno);
+            Object element=row.get(index);
+            if(element == null || element == REMOVED)
+                break;
+            if(filter == null || filter.accept((T)element)) {
+                if(list == null)
+                    list=new LinkedList<>();
+                list.add((T)element);
+                num_results++;
+            }
+            if(nullify) {
+                row.set(index, REMOVED);
+                lowest=seqno;
+            }
+            highest_delivered.set(seqno);
+            num_elements.decrementAndGet();
+            // if we're nulling the last element of a row, null the row as well. This needs to be done after setting
+            // hd, so that a concurrent _add() which finds the row nulled also sees the new hd (see _add())
+            if(nullify && index == elements_per_row-1)
+                rows.compareAndSet(row_index, row, null);
+            if(max_results > 0 && num_results >= max_results)
+                break;
+            seqno++;
+        }
+        return list;
+    }
+
+    /** Moves hd over all consecutive elements accepted by the filter, without nulling them */
+    @SuppressWarnings("unchecked")
+    protected void removeOnAdd(Filter<T> filter) {
+        remove_lock.lock();
+        rw_lock.readLock().lock();
+        try {
+            for(long seqno=highest_delivered.get()+1;; seqno++) {
+                Object element=getElement(seqno);
+                if(element == null || element == REMOVED || !filter.accept((T)element))
+                    break;
+                highest_delivered.set(seqno);
+                num_elements.decrementAndGet();
+            }
+        }
+        finally {
+            rw_lock.readLock().unlock();
+            remove_lock.unlock();
+        }
+    }
+
+    /** Acquires the write lock and resizes the matrix if seqno still doesn't fit */
+    protected void resize(long seqno) {
+        rw_lock.writeLock().lock();
+        try {
+            if(computeRow(seqno) < rows.length())
+                return;
+            int num_rows_to_purge=computeRow(lowest);
+            int row_index=computeRow(seqno) - num_rows_to_purge;
+            if(row_index < 0)
+                return;
+
+            int length=rows.length();
+            int new_size=Math.max(row_index +1, length);
+            if(new_size > length)
+                num_resizes++;
+            else if(num_rows_to_purge > 0)
+                num_moves++;
+            AtomicReferenceArray<AtomicReferenceArray<Object>> new_rows=new AtomicReferenceArray<>(new_size);
+            for(int i=num_rows_to_purge; i < length; i++)
+                new_rows.set(i - num_rows_to_purge, rows.get(i));
+            rows=new_rows;
+            offset+=(num_rows_to_purge * elements_per_row);
+        }
+        finally {
+            rw_lock.writeLock().unlock();
+        }
+    }
+
+    @GuardedBy("rw_lock")
+    protected void _compact() {
+        // This is the range we need to copy into the new matrix (including from and to)
+        int from=computeRow(lowest), to=computeRow(highest_received.get());
+        int range=to - from +1;  // e.g. from=3, to=5, new_size has to be [3 .. 5] (=3)
+
+        int new_size=(int)Math.max(range * resize_factor, range +1);
+        new_size=Math.max(new_size, num_rows); // don't fall below the initial size defined
+        if(new_size < rows.length()) {
+            AtomicReferenceArray<AtomicReferenceArray<Object>> new_rows=new AtomicReferenceArray<>(new_size);
+            for(int i=0; i < range; i++)
+                new_rows.set(i, rows.get(from + i));
+            rows=new_rows;
+            offset+=from * elements_per_row;
+            num_compactions++;
+        }
+    }
+
+    @GuardedBy("rw_lock")
+    protected AtomicReferenceArray<Object> getOrCreateRow(int index) {
+        AtomicReferenceArray<Object> row=rows.get(index);
+        if(row == null) {
+            AtomicReferenceArray<Object> tmp=new AtomicReferenceArray<>(elements_per_row);
+            row=rows.compareAndSet(index, null, tmp)? tmp : rows.get(index);
+        }
+        return row;
+    }
+
+    /** Returns the element at seqno (may be {@link #REMOVED}), or null. The read lock must be held */
+    @GuardedBy("rw_lock")
+    protected Object getElement(long seqno) {
+        int row_index=computeRow(seqno);
+        if(row_index < 0 || row_index >= rows.length())
+            return null;
+        AtomicReferenceArray<Object> row=rows.get(row_index);
+        if(row == null)
+            return null;
+        int index=computeIndex(seqno);
+        return index >= 0? row.get(index) : null;
+    }
+
+    @GuardedBy("rw_lock")
+    protected boolean isPresent(long seqno) {
+        return getElement(seqno) != null;
+    }
+}
@@ -0,0 +1,98 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of non-negative long values (e.g. latencies in microseconds or batch sizes). Values below 16
+ * are counted exactly; larger values are counted in buckets of 16 sub-buckets per power of 2, so percentiles have a
+ * relative error of at most 1/16 (~6%). The memory footprint is fixed (960 counters), regardless of the range of
+ * values added.
+ * <p/>
+ * {@link #add(long)} can be called concurrently by multiple threads; reading percentiles while values are being
+ * added returns a (slightly) inconsistent, but usable, snapshot.
+ * @author agent
+ * @since  3.6.4
+ */
+public class Histogram {
+    protected static final int    SUB_BUCKETS=16;
+    protected static final int    SUB_BITS=4; // log2(SUB_BUCKETS)
+    protected static final int    NUM_BUCKETS=(63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    protected final AtomicLongArray buckets=new AtomicLongArray(NUM_BUCKETS);
+    protected final AtomicLong      count=new AtomicLong(), sum=new AtomicLong();
+    protected final AtomicLong      min=new AtomicLong(Long.MAX_VALUE), max=new AtomicLong(Long.MIN_VALUE);
+
+
+    public Histogram add(long value) {
+        if(value < 0)
+            value=0;
+        buckets.incrementAndGet(index(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long tmp;
+        while(value < (tmp=min.get()) && !min.compareAndSet(tmp, value))
+            ;
+        while(value > (tmp=max.get()) && !max.compareAndSet(tmp, value))
+            ;
+        return this;
+    }
+
+    public long   count() {return count.get();}
+    public long   min()   {return count() > 0? min.get() : 0;}
+    public long   max()   {return count() > 0? max.get() : 0;}
+    public double mean()  {long cnt=count(); return cnt > 0? sum.get() / (double)cnt : 0;}
+
+    /**
+     * Returns the value at the given percentile, e.g. 99.0 for the 99th percentile. The value returned is the upper
+     * bound of the bucket containing the percentile (capped at the max value added), or 0 if the histogram is empty
+     */
+    public long percentile(double percentile) {
+        long cnt=count();
+        if(cnt == 0)
+            return 0;
+        long rank=(long)Math.ceil(Math.min(100.0, Math.max(0.0, percentile)) / 100.0 * cnt), seen=0;
+        rank=Math.max(1, rank);
+        for(int i=0; i < NUM_BUCKETS; i++) {
+            seen+=buckets.get(i);
+            if(seen >= rank)
+                return Math.min(highestValue(i), max());
+        }
+        return max();
+    }
+
+    public Histogram reset() {
+        for(int i=0; i < NUM_BUCKETS; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        sum.set(0);
+        min.set(Long.MAX_VALUE);
+        max.set(Long.MIN_VALUE);
+        return this;
+    }
+
+    public String toString() {
+        return String.format("count=%d min=%d avg=%.2f p50=%d p90=%d p99=%d p99.9=%d max=%d",
+                             count(), min(), mean(), percentile(50), percentile(90), percentile(99),
+                             percentile(99.9), max());
+    }
+
+
+    protected static int index(long value) {
+        if(value < SUB_BUCKETS)
+            return (int)value;
+        int magnitude=63 - Long.numberOfLeadingZeros(value); // >= SUB_BITS
+        int sub=(int)(value >>> (magnitude - SUB_BITS)) & (SUB_BUCKETS-1);
+        return (magnitude - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /** The highest value counted in the bucket at index */
+    protected static long highestValue(int index) {
+        if(index < SUB_BUCKETS)
+            return index;
+        int magnitude=index / SUB_BUCKETS + SUB_BITS - 1, sub=index % SUB_BUCKETS;
+        int shift=magnitude - SUB_BITS;
+        long lowest=(long)(SUB_BUCKETS + sub) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+}
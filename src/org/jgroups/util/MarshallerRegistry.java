@@ -0,0 +1,105 @@
+package org.jgroups.util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Registry of compact codecs for application classes, used by {@link Util#objectToByteBuffer(Object)},
+ * {@link Util#objectToStream(Object,DataOutput)} and the corresponding methods to read objects. These are used by
+ * {@link org.jgroups.Message#setObject(Object)}, {@link org.jgroups.blocks.MethodCall} (arguments),
+ * RpcDispatcher (return values), ReplicatedHashMap and ReplCache.
+ * <p/>
+ * An instance of a registered class is marshalled as its type ID (a short) followed by the data written by the codec,
+ * rather than by Java serialization. Similar to magic numbers of headers in
+ * {@link org.jgroups.conf.ClassConfigurator}, the same ID has to be registered for the same class (with the same codec)
+ * in all members. Only instances of the registered class itself are marshalled by the codec, not instances of
+ * subclasses. A registered codec takes precedence over {@link Streamable} and {@link java.io.Serializable}.
+ * @author agent
+ * @since  3.6.4
+ */
+public class MarshallerRegistry {
+    protected static final ConcurrentMap<Class<?>,Entry<?>> classes=Util.createConcurrentMap();
+    protected static final ConcurrentMap<Short,Entry<?>>    ids=Util.createConcurrentMap();
+
+
+    /** Writes an instance of a class to an output stream and reads it back */
+    public interface Codec<T> {
+        void writeTo(T obj, DataOutput out) throws Exception;
+        T    readFrom(DataInput in) throws Exception;
+    }
+
+
+    private MarshallerRegistry() {
+    }
+
+
+    /**
+     * Registers a codec for a class
+     * @param id The type ID, needs to be the same in all members
+     * @param clazz The class. Instances of subclasses are not marshalled by the codec
+     * @param codec The codec
+     * @throws IllegalArgumentException If the ID or the class has already been registered
+     */
+    public static synchronized <T> void register(short id, Class<T> clazz, Codec<T> codec) {
+        if(clazz == null || codec == null)
+            throw new IllegalArgumentException("class and codec must not be null");
+        Entry<?> existing=ids.get(id);
+        if(existing != null)
+            throw new IllegalArgumentException("ID " + id + " is already registered for " + existing.clazz.getName());
+        if((existing=classes.get(clazz)) != null)
+            throw new IllegalArgumentException(clazz.getName() + " is already registered with ID " + existing.id);
+        Entry<T> entry=new Entry<>(id, clazz, codec);
+        ids.put(id, entry);
+        classes.put(clazz, entry);
+    }
+
+    /** Removes the codec registered for id. Returns true if found */
+    public static synchronized boolean unregister(short id) {
+        Entry<?> entry=ids.remove(id);
+        if(entry != null)
+            classes.remove(entry.clazz);
+        return entry != null;
+    }
+
+    public static boolean isRegistered(Class<?> clazz) {return classes.containsKey(clazz);}
+    public static int     size()                       {return ids.size();}
+
+
+    /** Returns the entry for the class of obj, or null if no codec has been registered for it */
+    protected static Entry<?> get(Object obj) {
+        return classes.isEmpty()? null : classes.get(obj.getClass());
+    }
+
+    /** Reads the type ID and the object written by {@link Entry#writeTo(Object,DataOutput)} */
+    protected static Object readFrom(DataInput in) throws Exception {
+        short id=in.readShort();
+        Entry<?> entry=ids.get(id);
+        if(entry == null)
+            throw new IllegalStateException("no codec registered for type ID " + id);
+        return entry.codec.readFrom(in);
+    }
+
+
+    protected static class Entry<T> {
+        protected final short    id;
+        protected final Class<T> clazz;
+        protected final Codec<T> codec;
+
+        protected Entry(short id, Class<T> clazz, Codec<T> codec) {
+            this.id=id;
+            this.clazz=clazz;
+            this.codec=codec;
+        }
+
+        /** Writes the type ID, followed by the data written by the codec */
+        protected void writeTo(Object obj, DataOutput out) throws Exception {
+            out.writeShort(id);
+            codec.writeTo(clazz.cast(obj), out);
+        }
+
+        public String toString() {
+            return clazz.getName() + " (id=" + id + ")";
+        }
+    }
+}
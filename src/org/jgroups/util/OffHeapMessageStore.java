@@ -0,0 +1,212 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+import org.jgroups.Message;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Stores the serialized form of messages outside of the Java heap, indexed by seqno. Used by NAKACK2 to keep
+ * messages which have been delivered but not yet purged by STABLE (only needed for retransmission) off the heap.
+ * <p/>
+ * Messages are appended to segments of direct (or memory-mapped) {@link ByteBuffer}s; the index is a long[] array
+ * mapping a seqno to the segment and offset of the message. Seqnos must be added in increasing order, so that
+ * {@link #purge(long)} can free all segments which only contain purged messages. Messages are only unmarshalled
+ * again by {@link #get(long)}, e.g. when a retransmission is requested.
+ * <p/>
+ * This class is synchronized.
+ * @author agent
+ * @since  3.6.4
+ */
+public class OffHeapMessageStore {
+    protected final int               segment_size;
+    protected final File              dir;      // if non-null, segments are memory-mapped files in dir
+
+    protected final List<Segment>     segments=new ArrayList<>();
+    protected int                     next_segment_id=1; // never 0, so a position of 0 means 'absent'
+    protected Segment                 spare;    // a freed segment, kept to avoid allocating direct memory again
+
+    /** Position of the message with seqno first+i is at index i: segment id (upper 32 bits) and offset */
+    protected long[]                  index=new long[1024];
+    protected long                    first=-1; // seqno of index[0], -1 if not yet set
+    protected int                     count;    // number of used slots in index
+    protected int                     num_msgs;
+    protected long                    num_bytes;
+
+    protected final ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(1024);
+
+
+    /**
+     * Creates a store
+     * @param segment_size The size of a segment, in bytes. Messages larger than this get their own segment
+     * @param dir If non-null, the directory in which memory-mapped segment files are created, else segments are
+     *            allocated as direct buffers
+     */
+    public OffHeapMessageStore(int segment_size, File dir) {
+        this.segment_size=segment_size;
+        this.dir=dir;
+    }
+
+    public synchronized int  size()           {return num_msgs;}
+    public synchronized long numBytes()       {return num_bytes;}
+    public synchronized int  numSegments()    {return segments.size();}
+    public synchronized long capacity() {
+        long retval=0;
+        for(Segment seg: segments)
+            retval+=seg.buf.capacity();
+        return retval;
+    }
+
+
+    /** Serializes msg and stores it under seqno. Seqnos <= the highest stored (or purged) seqno are ignored */
+    public synchronized void add(long seqno, Message msg) throws Exception {
+        if(first < 0)
+            first=seqno;
+        if(seqno < first + count)
+            return;
+        out.position(0);
+        msg.writeTo(out);
+        int len=out.position();
+
+        Segment seg=segments.isEmpty()? null : segments.get(segments.size() - 1);
+        if(seg == null || seg.buf.remaining() < Global.INT_SIZE + len)
+            seg=addSegment(Global.INT_SIZE + len);
+        int offset=seg.buf.position();
+        seg.buf.putInt(len).put(out.buffer(), 0, len);
+
+        int idx=(int)(seqno - first);
+        if(idx >= index.length) {
+            long[] tmp=new long[Math.max(idx+1, index.length * 2)];
+            System.arraycopy(index, 0, tmp, 0, count);
+            index=tmp;
+        }
+        index[idx]=((long)seg.id << 32) | offset;
+        count=idx+1;
+        num_msgs++;
+        num_bytes+=len;
+    }
+
+    /** Returns the message stored under seqno (unmarshalled from off-heap memory), or null if not found */
+    public synchronized Message get(long seqno) throws Exception {
+        if(first < 0 || seqno < first || seqno >= first + count)
+            return null;
+        long pos=index[(int)(seqno - first)];
+        if(pos == 0)
+            return null;
+        Segment seg=segment((int)(pos >>> 32));
+        if(seg == null)
+            return null;
+        ByteBuffer buf=seg.buf.duplicate();
+        buf.position((int)pos);
+        int len=buf.getInt();
+        buf.limit(buf.position() + len);
+        Message msg=new Message(false);
+        msg.readFrom(new ByteBufferInputStream(buf));
+        return msg;
+    }
+
+    /** Removes all messages <= seqno and frees the segments which contain only removed messages */
+    public synchronized void purge(long seqno) {
+        if(first < 0 || seqno < first)
+            return;
+        int num_to_remove=(int)Math.min(seqno - first + 1, count);
+        for(int i=0; i < num_to_remove; i++) {
+            if(index[i] != 0) {
+                num_msgs--;
+                Segment seg=segment((int)(index[i] >>> 32));
+                if(seg != null)
+                    num_bytes-=seg.buf.getInt((int)index[i]);
+            }
+        }
+        System.arraycopy(index, num_to_remove, index, 0, count - num_to_remove);
+        for(int i=count - num_to_remove; i < count; i++)
+            index[i]=0;
+        count-=num_to_remove;
+        first=seqno+1;
+
+        // the lowest remaining position is in the oldest segment still needed; free all segments before it
+        int lowest_id=Integer.MAX_VALUE;
+        for(int i=0; i < count; i++) {
+            if(index[i] != 0) {
+                lowest_id=(int)(index[i] >>> 32);
+                break;
+            }
+        }
+        while(!segments.isEmpty() && segments.get(0).id < lowest_id)
+            free(segments.remove(0));
+    }
+
+    /** Removes all messages and frees all segments */
+    public synchronized void clear() {
+        for(Segment seg: segments)
+            free(seg);
+        segments.clear();
+        spare=null;
+        first=-1;
+        count=num_msgs=0;
+        num_bytes=0;
+    }
+
+    public synchronized String toString() {
+        return String.format("%d msgs (%s) in %d segments [%d .. %d]", num_msgs, Util.printBytes(num_bytes),
+                             segments.size(), first, first + count - 1);
+    }
+
+
+    protected Segment addSegment(int min_size) throws IOException {
+        Segment seg;
+        if(spare != null && spare.buf.capacity() >= min_size) {
+            seg=new Segment(next_segment_id++, spare.buf);
+            spare=null;
+        }
+        else
+            seg=new Segment(next_segment_id++, allocate(Math.max(segment_size, min_size)));
+        segments.add(seg);
+        return seg;
+    }
+
+    protected ByteBuffer allocate(int size) throws IOException {
+        if(dir == null)
+            return ByteBuffer.allocateDirect(size);
+        File file=File.createTempFile("jgroups-", ".seg", dir);
+        try(RandomAccessFile raf=new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+        finally {
+            if(!file.delete()) // the mapping stays valid until it is garbage collected
+                file.deleteOnExit();
+        }
+    }
+
+    protected void free(Segment seg) {
+        if(dir == null && seg.buf.capacity() == segment_size && spare == null) {
+            seg.buf.clear();
+            spare=seg;
+        }
+    }
+
+    protected Segment segment(int id) {
+        if(segments.isEmpty())
+            return null;
+        int idx=id - segments.get(0).id;
+        return idx >= 0 && idx < segments.size()? segments.get(idx) : null;
+    }
+
+
+    protected static class Segment {
+        protected final int        id;
+        protected final ByteBuffer buf;
+
+        protected Segment(int id, ByteBuffer buf) {
+            this.id=id;
+            this.buf=buf;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package org.jgroups.util;
+
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor which runs tasks submitted with the same key one after the other, in submission order, on an underlying
+ * executor, whereas tasks with different keys run concurrently. At most one task per key is therefore active (or
+ * queued) in the underlying executor at any time, so a key with many tasks can't occupy more than one thread.
+ * <p/>
+ * Used by TP to pass regular messages from the same sender up the stack when the thread pools are backed by a
+ * ForkJoinPool or virtual threads, which don't limit the number of tasks in flight.
+ * <p/>
+ * A lane (the queue of a key) processes at most {@link #MAX_TASKS_PER_RUN} tasks and then resubmits itself, so that
+ * lanes with many tasks don't starve others. If the underlying executor rejects a lane, its tasks are run on the
+ * caller's thread.
+ * @author agent
+ * @since  3.6.4
+ */
+public class OrderedExecutor implements Executor {
+    protected static final int           MAX_TASKS_PER_RUN=64;
+    protected final Executor             executor;
+    protected final ConcurrentMap<Object,Lane> lanes=Util.createConcurrentMap();
+
+
+    public OrderedExecutor(Executor executor) {
+        this.executor=executor;
+    }
+
+    public Executor getExecutor() {return executor;}
+    public int      numLanes()    {return lanes.size();}
+
+    /** Runs the task on the underlying executor, unordered */
+    public void execute(Runnable task) {
+        executor.execute(task);
+    }
+
+    /** Runs the task after all tasks previously submitted with the same key have completed */
+    public void execute(Object key, Runnable task) {
+        for(;;) {
+            Lane lane=lanes.get(key);
+            if(lane == null) {
+                Lane tmp=lanes.putIfAbsent(key, lane=new Lane(key));
+                if(tmp != null)
+                    lane=tmp;
+            }
+            if(lane.add(task))
+                return;
+            lanes.remove(key, lane); // the lane was closed: it removes itself, but we may have seen it before that
+        }
+    }
+
+    /**
+     * Removes the lanes of all keys not in keys. Idle lanes are removed right away, lanes which still have tasks are
+     * removed when they have run all of their tasks. Until then, tasks submitted with the same key are still added
+     * to the existing lane, so that they don't run concurrently with the remaining tasks
+     */
+    public void retainAll(Collection<?> keys) {
+        for(Lane lane: lanes.values())
+            if(!keys.contains(lane.key))
+                lane.retire();
+    }
+
+    /** Removes all lanes, see {@link #retainAll(Collection)} */
+    public void clear() {
+        for(Lane lane: lanes.values())
+            lane.retire();
+    }
+
+    public String toString() {
+        return String.format("%d lanes over %s", lanes.size(), executor.getClass().getSimpleName());
+    }
+
+
+    protected class Lane implements Runnable {
+        protected final Object          key;
+        protected final Queue<Runnable> tasks=new ConcurrentLinkedQueue<>();
+        protected final AtomicInteger   pending=new AtomicInteger(); // number of tasks added but not yet run, -1: closed
+        protected volatile boolean      retired; // the lane is closed as soon as it is idle
+
+        protected Lane(Object key) {
+            this.key=key;
+        }
+
+        /** Adds a task, returns false if the lane has been closed. The task is then not added */
+        protected boolean add(Runnable task) {
+            tasks.add(task);
+            for(;;) {
+                int num=pending.get();
+                if(num < 0) { // closed: a closed lane never runs again, so the task can safely be removed
+                    tasks.remove(task);
+                    return false;
+                }
+                if(pending.compareAndSet(num, num+1)) {
+                    if(num == 0) // no thread is processing this lane: submit it
+                        submit();
+                    return true;
+                }
+            }
+        }
+
+        protected void retire() {
+            retired=true;
+            close();
+        }
+
+        /** Closes the lane and removes it if it is idle. Tasks with the same key will then be added to a new lane */
+        protected void close() {
+            if(pending.compareAndSet(0, -1))
+                lanes.remove(key, this);
+        }
+
+        public void run() {
+            for(int i=1;; i++) {
+                Runnable task=tasks.poll();
+                try {
+                    task.run();
+                }
+                catch(Throwable t) {
+                }
+                if(pending.decrementAndGet() == 0) {
+                    if(retired)
+                        close();
+                    return;
+                }
+                if(i >= MAX_TASKS_PER_RUN) {
+                    submit();
+                    return;
+                }
+            }
+        }
+
+        protected void submit() {
+            try {
+                executor.execute(this);
+            }
+            catch(RejectedExecutionException ex) {
+                run();
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import java.util.NoSuchElementException;
 
 /**
  * A bitset of missing messages with a fixed size. The index (in the bit set) of a seqno is computed as seqno - offset.
+ * See {@link CompactSeqnoList} for a more compact wire format.
  * @author Bela Ban
  * @since  3.1
  */
@@ -53,6 +54,14 @@ public class SeqnoList extends FixedSizeBitSet implements Streamable, Iterable<L
     }
 
 
+    /** Removes a single seqno */
+    public SeqnoList remove(long seqno) {
+        int index=index(seqno);
+        if(index >= 0 && index < size)
+            super.clear(index);
+        return this;
+    }
+
     /** Removes all seqnos > seqno */
     public void removeHigherThan(long max_seqno) {
         int from=index(max_seqno + 1), to=size-1;
@@ -91,6 +100,35 @@ public class SeqnoList extends FixedSizeBitSet implements Streamable, Iterable<L
             words[i]=in.readLong();
     }
 
+    /** Returns the number of ranges of consecutive seqnos, e.g. 3 for {1, 3-7, 10-12} */
+    public int numRanges() {
+        int num=0, from=nextSetBit(0);
+        while(from >= 0) {
+            num++;
+            from=nextSetBit(endOfRange(from));
+        }
+        return num;
+    }
+
+    /** The number of bytes needed to write the seqnos as ranges (excluding type, size and offset) */
+    protected int rangesSize() {
+        int retval=0, num=0, last=0, from=nextSetBit(0);
+        while(from >= 0) {
+            int to=endOfRange(from);
+            retval+=Bits.size(from - last) + Bits.size(to - from);
+            num++;
+            last=to;
+            from=nextSetBit(to);
+        }
+        return retval + Bits.size(num);
+    }
+
+    /** Returns the index of the first clear bit after the set bit at index from, or size */
+    protected int endOfRange(int from) {
+        int to=nextClearBit(from);
+        return to < 0 || to > size? size : to;
+    }
+
 
 
     public int size() {
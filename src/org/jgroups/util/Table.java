@@ -639,23 +639,45 @@ public class Table<T> {
     }
 
     /**
-     * Returns a list of missing messages
+     * Returns a list of missing messages. Rows which haven't been created yet are added as a range, and the
+     * traversal stops after the last missing message, so the cost depends on the number and position of the gaps
+     * rather than on the size of the window
      * @param max_msgs If > 0, the max number of missing messages to be returned (oldest first), else no limit
      * @return A SeqnoList of missing messages, or null if no messages are missing
      */
     public SeqnoList getMissing(int max_msgs) {
         lock.lock();
         try {
-            if(size == 0)
+            int num_missing=(int)(hr - hd - size);
+            if(size == 0 || num_missing <= 0)
                 return null;
             long start_seqno=getHighestDeliverable() +1;
             int capacity=(int)(hr - start_seqno);
-            int max_size=max_msgs > 0? Math.min(max_msgs, capacity) : capacity;
-            if(max_size <= 0)
+            int max_size=max_msgs > 0? Math.min(max_msgs, num_missing) : num_missing;
+            if(capacity <= 0)
                 return null;
-            Missing missing=new Missing(start_seqno, capacity, max_size);
-            forEach(start_seqno, hr-1, missing);
-            return missing.getMissingElements();
+            SeqnoList missing=new SeqnoList(capacity, start_seqno);
+            int found=0;
+            long seqno=start_seqno;
+            while(seqno < hr && found < max_size) {
+                int row_index=computeRow(seqno), column=computeIndex(seqno);
+                T[] row=row_index < matrix.length? matrix[row_index] : null;
+                long end=Math.min(seqno + elements_per_row - column, hr); // exclusive
+                if(row == null) {
+                    end=Math.min(end, seqno + max_size - found);
+                    missing.add(seqno, end-1);
+                    found+=end - seqno;
+                    seqno=end;
+                    continue;
+                }
+                for(; seqno < end && found < max_size; seqno++, column++) {
+                    if(row[column] == null) {
+                        missing.add(seqno);
+                        found++;
+                    }
+                }
+            }
+            return missing;
         }
         finally {
             lock.unlock();
@@ -884,29 +906,6 @@ public class Table<T> {
         }
     }*/
 
-    protected class Missing implements Visitor<T> {
-        protected final SeqnoList missing_elements;
-        protected final int       max_num_msgs;
-        protected int             num_msgs;
-
-        protected Missing(long start, int capacity, int max_number_of_msgs) {
-            missing_elements=new SeqnoList(capacity, start);
-            this.max_num_msgs=max_number_of_msgs;
-        }
-
-        protected SeqnoList getMissingElements() {return missing_elements;}
-
-        public boolean visit(long seqno, T element, int row, int column) {
-            if(element == null) {
-                if(++num_msgs > max_num_msgs)
-                    return false;
-                missing_elements.add(seqno);
-            }
-            return true;
-        }
-    }
-
-
     protected class HighestDeliverable implements Visitor<T> {
         protected long highest_deliverable=-1;
 
@@ -0,0 +1,149 @@
+package org.jgroups.util;
+
+import org.jgroups.annotations.GuardedBy;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashed timing wheel which expires IDs (e.g. request IDs) in bulk. An ID is added to the bucket of the tick in which
+ * its timeout elapses; IDs and deadlines are stored as primitives, so adding an ID doesn't allocate any memory
+ * (except when a bucket needs to grow). IDs cannot be removed; the {@link Expirer} has to ignore IDs which already
+ * completed.
+ * <p/>
+ * {@link #tick()} needs to be called every tick_time, e.g. by a single task of the {@link TimeScheduler}. It passes
+ * the expired IDs of all buckets since the last call to the expirer. Timeouts are therefore rounded up to the next
+ * tick; timeouts longer than a rotation of the wheel (ticks * tick_time) are checked once per rotation until they
+ * elapse.
+ * @author agent
+ * @since  3.6.4
+ */
+public class TimeoutWheel {
+    protected final Bucket[]      buckets;
+    protected final long          tick_time;  // ns
+    protected final long          start=System.nanoTime();
+    protected final Expirer       expirer;
+    protected volatile long       last_tick;  // the last tick whose bucket was processed
+
+
+    /** Called with the IDs whose timeouts elapsed */
+    public interface Expirer {
+        void expired(long id);
+    }
+
+
+    public TimeoutWheel(int ticks, long tick_time, TimeUnit unit, Expirer expirer) {
+        if(ticks <= 0 || tick_time <= 0)
+            throw new IllegalArgumentException("ticks and tick_time need to be > 0");
+        buckets=new Bucket[ticks];
+        for(int i=0; i < buckets.length; i++)
+            buckets[i]=new Bucket();
+        this.tick_time=unit.toNanos(tick_time);
+        this.expirer=expirer;
+    }
+
+    public long tickTime(TimeUnit unit) {return unit.convert(tick_time, TimeUnit.NANOSECONDS);}
+
+    /** Returns the number of IDs in the wheel, including the ones which already completed */
+    public int size() {
+        int retval=0;
+        for(Bucket bucket: buckets) {
+            synchronized(bucket) {
+                retval+=bucket.size;
+            }
+        }
+        return retval;
+    }
+
+    /** Adds an ID which will be passed to the expirer when timeout elapses */
+    public void add(long id, long timeout, TimeUnit unit) {
+        long deadline=System.nanoTime() + unit.toNanos(timeout);
+        long tick=(deadline - start + tick_time - 1) / tick_time; // the first tick at or after the deadline
+        for(;;) {
+            tick=Math.max(tick, last_tick + 1);
+            Bucket bucket=buckets[(int)(tick % buckets.length)];
+            synchronized(bucket) {
+                // the bucket was processed for tick (or later) while we computed it: add to the next tick
+                if(bucket.last_tick < tick) {
+                    bucket.add(id, deadline);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Processes the buckets of all ticks since the last call and passes the expired IDs to the expirer
+     * @return The number of expired IDs
+     */
+    public synchronized int tick() {
+        long now=System.nanoTime(), now_tick=(now - start) / tick_time;
+        if(now_tick - last_tick > buckets.length) // missed more than a rotation: process every bucket once
+            last_tick=now_tick - buckets.length;
+        int num_expired=0;
+        long[] expired=null;
+        for(long tick=last_tick + 1; tick <= now_tick; tick++) {
+            Bucket bucket=buckets[(int)(tick % buckets.length)];
+            int num;
+            synchronized(bucket) {
+                bucket.last_tick=tick;
+                last_tick=tick;
+                if(bucket.size == 0)
+                    continue;
+                if(expired == null || expired.length < bucket.size)
+                    expired=new long[bucket.size];
+                num=bucket.removeExpired(now, expired);
+            }
+            for(int i=0; i < num; i++) {
+                try {
+                    expirer.expired(expired[i]);
+                }
+                catch(Throwable t) {
+                }
+            }
+            num_expired+=num;
+        }
+        return num_expired;
+    }
+
+    public String toString() {
+        return String.format("%d IDs in %d buckets (tick=%d ms)", size(), buckets.length, tickTime(TimeUnit.MILLISECONDS));
+    }
+
+
+    protected static class Bucket {
+        protected long[] ids=new long[4], deadlines=new long[4];
+        protected int    size;
+        protected long   last_tick;
+
+        @GuardedBy("this")
+        protected void add(long id, long deadline) {
+            if(size == ids.length) {
+                ids=Arrays.copyOf(ids, size * 2);
+                deadlines=Arrays.copyOf(deadlines, size * 2);
+            }
+            ids[size]=id;
+            deadlines[size++]=deadline;
+        }
+
+        /** Moves the IDs whose deadline is <= now to expired and returns their number */
+        @GuardedBy("this")
+        protected int removeExpired(long now, long[] expired) {
+            int num=0, keep=0;
+            for(int i=0; i < size; i++) {
+                if(deadlines[i] - now <= 0)
+                    expired[num++]=ids[i];
+                else {
+                    ids[keep]=ids[i];
+                    deadlines[keep++]=deadlines[i];
+                }
+            }
+            size=keep;
+            if(ids.length > 64 && size < ids.length / 4) { // shrink after a burst
+                ids=Arrays.copyOf(ids, ids.length / 2);
+                deadlines=Arrays.copyOf(deadlines, deadlines.length / 2);
+            }
+            return num;
+        }
+    }
+}
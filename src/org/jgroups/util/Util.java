@@ -49,6 +49,7 @@ public class Util {
     private static final byte TYPE_NULL=0;
     private static final byte TYPE_STREAMABLE=1;
     private static final byte TYPE_SERIALIZABLE=2;
+    private static final byte TYPE_REGISTERED=3; // marshalled by a codec of MarshallerRegistry
 
     private static final byte TYPE_BOOLEAN=10;
     private static final byte TYPE_BYTE=11;
@@ -494,6 +495,9 @@ public class Util {
                 DataInput in=new ByteArrayDataInputStream(buffer,offset + 1,length - 1);
                 retval=readGenericStreamable(in, loader);
                 break;
+            case TYPE_REGISTERED:
+                retval=MarshallerRegistry.readFrom(new ByteArrayDataInputStream(buffer, offset + 1, length - 1));
+                break;
             case TYPE_SERIALIZABLE: // the object is Externalizable or Serializable
                 InputStream in_stream=new ByteArrayInputStream(buffer,offset + 1,length - 1);
                 in=new ObjectInputStreamWithClassloader(in_stream, loader);
@@ -541,6 +545,14 @@ public class Util {
         if(obj == null)
             return ByteBuffer.allocate(Global.BYTE_SIZE).put(TYPE_NULL).array();
 
+        MarshallerRegistry.Entry<?> entry=MarshallerRegistry.get(obj);
+        if(entry != null) {
+            final ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(128);
+            out.write(TYPE_REGISTERED);
+            entry.writeTo(obj, out);
+            return Arrays.copyOf(out.buf,out.position());
+        }
+
         if(obj instanceof Streamable) {
             final ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(512);
             out.write(TYPE_STREAMABLE);
@@ -611,7 +623,12 @@ public class Util {
         }
 
         Byte type;
-        if(obj instanceof Streamable) {  // use Streamable if we can
+        MarshallerRegistry.Entry<?> entry=MarshallerRegistry.get(obj);
+        if(entry != null) {
+            out.write(TYPE_REGISTERED);
+            entry.writeTo(obj, out);
+        }
+        else if(obj instanceof Streamable) {  // use Streamable if we can
             out.write(TYPE_STREAMABLE);
             writeGenericStreamable((Streamable)obj,out);
         }
@@ -699,6 +716,9 @@ public class Util {
             case TYPE_STREAMABLE:
                 retval=readGenericStreamable(in, loader);
                 break;
+            case TYPE_REGISTERED:
+                retval=MarshallerRegistry.readFrom(in);
+                break;
             case TYPE_SERIALIZABLE: // the object is Externalizable or Serializable
                 InputStream is=in instanceof ByteArrayDataInputStream?
                   new org.jgroups.util.InputStreamAdapter((ByteArrayDataInputStream)in) : (InputStream)in;
@@ -0,0 +1,67 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.Header;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.FRAG2;
+import org.jgroups.protocols.FragHeader;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.Headers;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Headers#putHeader(short, Header)} and {@link Headers#getHeader(short)}. The IDs are those of
+ * real protocols, and the number of headers matches what a message carries on its way down a default stack.
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class HeadersBenchmark {
+    @Param({"3"})
+    protected int      initial_capacity;
+
+    protected short[]  ids;
+    protected Header[] hdrs;
+    protected Headers  populated;
+
+
+    @Setup
+    public void setup() {
+        ids=new short[]{ClassConfigurator.getProtocolId(UDP.class), ClassConfigurator.getProtocolId(NAKACK2.class),
+          ClassConfigurator.getProtocolId(UNICAST3.class), ClassConfigurator.getProtocolId(FRAG2.class)};
+        hdrs=new Header[]{new TpHeader("demo-cluster"), NakAckHeader2.createMessageHeader(322649),
+          UNICAST3.Header.createDataHeader(322649, (short)1, false), new FragHeader(1, 0, 4)};
+        populated=new Headers(initial_capacity);
+        for(int i=0; i < ids.length; i++)
+            populated.putHeader(ids[i], hdrs[i]);
+    }
+
+    /** Populates a new instance, which will have to resize once the number of headers exceeds the initial capacity */
+    @Benchmark
+    public Headers putHeader() {
+        Headers h=new Headers(initial_capacity);
+        for(int i=0; i < ids.length; i++)
+            h.putHeader(ids[i], hdrs[i]);
+        return h;
+    }
+
+    /** Looks up the last header, which has to traverse all slots */
+    @Benchmark
+    public Header getHeader() {
+        return populated.getHeader(ids[ids.length-1]);
+    }
+
+    @Benchmark
+    public Headers copy() {
+        return populated.copy();
+    }
+}
@@ -0,0 +1,96 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.util.MarshallerRegistry;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Util#objectToByteBuffer(Object)} and {@link Util#objectFromByteBuffer(byte[])} for the types
+ * commonly passed as payload: primitives, byte arrays, {@link org.jgroups.util.Streamable}s and plain serializable
+ * objects (which fall back to Java serialization). "person" and "registered" compare the same class marshalled with
+ * Java serialization and with a codec registered with {@link MarshallerRegistry}
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class MarshallingBenchmark {
+    @Param({"long", "string", "bytes", "streamable", "serializable", "person", "registered"})
+    protected String type;
+
+    protected Object obj;
+    protected byte[] serialized;
+
+
+    @Setup
+    public void setup() throws Exception {
+        if(!MarshallerRegistry.isRegistered(RegisteredPerson.class))
+            MarshallerRegistry.register((short)1000, RegisteredPerson.class, new PersonCodec());
+        switch(type) {
+            case "long":         obj=322649L; break;
+            case "string":       obj="hello world from JGroups"; break;
+            case "bytes":        obj=new byte[1000]; break;
+            case "streamable":   obj=new MethodCall((short)1, 322649L, "hello world", new byte[100]); break;
+            case "serializable": obj=new java.util.Date(); break;
+            case "person":       obj=new Person("Bela", "Ban", 322649L, 42); break;
+            case "registered":   obj=new RegisteredPerson("Bela", "Ban", 322649L, 42); break;
+            default:             throw new IllegalArgumentException("type " + type + " not known");
+        }
+        serialized=Util.objectToByteBuffer(obj);
+    }
+
+    @Benchmark
+    public byte[] objectToByteBuffer() throws Exception {
+        return Util.objectToByteBuffer(obj);
+    }
+
+    @Benchmark
+    public Object objectFromByteBuffer() throws Exception {
+        return Util.objectFromByteBuffer(serialized);
+    }
+
+
+    public static class Person implements Serializable {
+        private static final long serialVersionUID=-1405396208427734223L;
+        protected final String first_name, last_name;
+        protected final long   id;
+        protected final int    age;
+
+        public Person(String first_name, String last_name, long id, int age) {
+            this.first_name=first_name;
+            this.last_name=last_name;
+            this.id=id;
+            this.age=age;
+        }
+    }
+
+    public static class RegisteredPerson extends Person {
+        private static final long serialVersionUID=4235384356364540211L;
+
+        public RegisteredPerson(String first_name, String last_name, long id, int age) {
+            super(first_name, last_name, id, age);
+        }
+    }
+
+    protected static class PersonCodec implements MarshallerRegistry.Codec<RegisteredPerson> {
+        public void writeTo(RegisteredPerson p, DataOutput out) throws Exception {
+            out.writeUTF(p.first_name);
+            out.writeUTF(p.last_name);
+            out.writeLong(p.id);
+            out.writeInt(p.age);
+        }
+
+        public RegisteredPerson readFrom(DataInput in) throws Exception {
+            return new RegisteredPerson(in.readUTF(), in.readUTF(), in.readLong(), in.readInt());
+        }
+    }
+}
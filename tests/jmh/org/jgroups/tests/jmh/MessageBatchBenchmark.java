@@ -0,0 +1,74 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the marshalling of bundled messages: {@link TP#writeMessageList(Address, Address, byte[], List, java.io.DataOutput, boolean, short)}
+ * on the sender side and {@link TP#readMessageBatch(java.io.DataInput, boolean)} on the receiver side
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class MessageBatchBenchmark {
+    @Param({"10", "100"})
+    protected int                       num_msgs;
+
+    @Param({"100", "1000"})
+    protected int                       msg_size;
+
+    protected static final byte[]       CLUSTER="demo-cluster".getBytes();
+    protected short                     transport_id;
+    protected Address                   src;
+    protected List<Message>             msgs;
+    protected ByteArrayDataOutputStream out;
+    protected byte[]                    serialized;
+
+
+    @Setup
+    public void setup() throws Exception {
+        transport_id=ClassConfigurator.getProtocolId(UDP.class);
+        short nakack_id=ClassConfigurator.getProtocolId(NAKACK2.class);
+        src=Util.createRandomAddress("A");
+        msgs=new ArrayList<>(num_msgs);
+        for(int i=1; i <= num_msgs; i++)
+            msgs.add(new Message(null, src, new byte[msg_size]).putHeader(nakack_id, NakAckHeader2.createMessageHeader(i)));
+        out=new ByteArrayDataOutputStream(num_msgs * (msg_size + 64));
+        TP.writeMessageList(null, src, CLUSTER, msgs, out, true, transport_id);
+        serialized=new byte[out.position()];
+        System.arraycopy(out.buffer(), 0, serialized, 0, serialized.length);
+    }
+
+    @Benchmark
+    public int writeMessageList() throws Exception {
+        out.position(0);
+        TP.writeMessageList(null, src, CLUSTER, msgs, out, true, transport_id);
+        return out.position();
+    }
+
+    @Benchmark
+    public MessageBatch[] readMessageBatch() throws Exception {
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(serialized);
+        in.readShort(); // version
+        in.readByte();  // flags
+        return TP.readMessageBatch(in, true);
+    }
+}
@@ -0,0 +1,67 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Message#writeTo(java.io.DataOutput)} and {@link Message#readFrom(java.io.DataInput)} for a message
+ * with the headers a typical multicast message carries (transport and NAKACK2)
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class MessageBenchmark {
+    @Param({"10", "1000", "64000"})
+    protected int                       msg_size;
+
+    protected Message                   msg;
+    protected ByteArrayDataOutputStream out;
+    protected byte[]                    serialized;
+
+
+    @Setup
+    public void setup() throws Exception {
+        Address src=Util.createRandomAddress("A"), dest=Util.createRandomAddress("B");
+        msg=new Message(dest, src, new byte[msg_size])
+          .putHeader(ClassConfigurator.getProtocolId(UDP.class), new TpHeader("demo-cluster"))
+          .putHeader(ClassConfigurator.getProtocolId(NAKACK2.class), NakAckHeader2.createMessageHeader(322649));
+        out=new ByteArrayDataOutputStream(msg_size + 128);
+        msg.writeTo(out);
+        serialized=new byte[out.position()];
+        System.arraycopy(out.buffer(), 0, serialized, 0, serialized.length);
+    }
+
+    @Benchmark
+    public int writeTo() throws Exception {
+        out.position(0);
+        msg.writeTo(out);
+        return out.position();
+    }
+
+    @Benchmark
+    public Message readFrom() throws Exception {
+        Message tmp=new Message(false);
+        tmp.readFrom(new ByteArrayDataInputStream(serialized));
+        return tmp;
+    }
+
+    @Benchmark
+    public long size() {
+        return msg.size();
+    }
+}
@@ -0,0 +1,87 @@
+package org.jgroups.tests.jmh;
+
+import org.jgroups.util.ConcurrentTable;
+import org.jgroups.util.Table;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link Table#add(long, Object)} followed by {@link Table#removeMany(boolean, int)} and
+ * {@link Table#purge(long)}, which is what NAKACK2 and UNICAST3 do for every received (batch of) message(s).
+ * <br/>
+ * {@link #addAndRemove(Local)} is single-threaded; {@link #concurrentAdd(Shared)} adds from multiple threads to a shared
+ * table to measure contention. Both are run against {@link Table} and {@link ConcurrentTable}; run e.g. with
+ * {@code -t 16 TableBenchmark.concurrentAdd} to change the number of concurrent adders.
+ * @author agent
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5, time=1)
+@Measurement(iterations=10, time=1)
+@Fork(1)
+public class TableBenchmark {
+    protected static final Integer ELEMENT=1;
+
+    protected static Table<Integer> create(String type) {
+        return type.equals("concurrent")? new ConcurrentTable<Integer>(5, 8192, 0) : new Table<Integer>(5, 8192, 0);
+    }
+
+    @State(Scope.Thread)
+    public static class Local {
+        @Param({"1", "100"})
+        protected int            batch_size;
+        @Param({"table", "concurrent"})
+        protected String         type;
+        protected Table<Integer> table;
+        protected long           seqno;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            table=create(type);
+            seqno=0;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"table", "concurrent"})
+        protected String           type;
+        protected Table<Integer>   table;
+        protected final AtomicLong seqno=new AtomicLong(0);
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            table=create(type);
+            seqno.set(0);
+        }
+    }
+
+    @Benchmark
+    public List<Integer> addAndRemove(Local state) {
+        Table<Integer> table=state.table;
+        for(int i=0; i < state.batch_size; i++)
+            table.add(++state.seqno, ELEMENT);
+        List<Integer> list=table.removeMany(true, 0);
+        table.purge(state.seqno);
+        return list;
+    }
+
+    /** Adds and then drains the table the way NAKACK2 does: only the thread which wins the processing flag removes */
+    @Benchmark
+    @Threads(4)
+    public boolean concurrentAdd(Shared state) {
+        Table<Integer> table=state.table;
+        boolean added=table.add(state.seqno.incrementAndGet(), ELEMENT);
+        AtomicBoolean processing=table.getProcessing();
+        if(!processing.compareAndSet(false, true))
+            return added;
+        while(table.removeMany(processing, true, 0) != null)
+            ;
+        table.purge(table.getHighestDelivered());
+        return added;
+    }
+}
@@ -0,0 +1,148 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests sending the fragments of a message as a batch down the stack (FRAG2.send_fragments_as_batch=true)
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class FRAG2_BatchTest {
+    protected static final int FRAG_SIZE=1000, SIZE=200000, NUM_FRAGS=SIZE / FRAG_SIZE;
+    protected JChannel         a, b;
+    protected MyReceiver       ra, rb;
+    protected BatchCounter     counter; // A's
+
+    @AfterMethod
+    protected void destroy() {Util.close(b, a);}
+
+
+    /** The fragments travel down the stack as one batch and are sent by the transport */
+    public void testMulticastAndUnicast() throws Exception {
+        createChannels(4000000);
+        byte[] payload=createPayload(SIZE);
+        a.send(null, payload);
+        waitForMessages(1, ra, rb);
+        assert counter.batches.get() == 1 && counter.msgs.get() == NUM_FRAGS
+          : String.format("batches=%d msgs=%d", counter.batches.get(), counter.msgs.get());
+
+        a.send(b.getAddress(), payload);
+        waitForMessages(2, rb);
+        assert counter.batches.get() == 2 && counter.msgs.get() == NUM_FRAGS * 2;
+        for(MyReceiver r: Arrays.asList(ra, rb))
+            for(byte[] buf: r.list)
+                assert Arrays.equals(buf, payload);
+        assert ra.list.size() == 1;
+    }
+
+    /** Flow control sends the fragments for which it has credits as a batch, then blocks for the remaining ones */
+    public void testBlockingOnCredits() throws Exception {
+        createChannels(SIZE / 4);
+        byte[] payload=createPayload(SIZE);
+        a.send(null, payload);
+        a.send(b.getAddress(), payload);
+        waitForMessages(2, rb);
+        waitForMessages(1, ra);
+        for(MyReceiver r: Arrays.asList(ra, rb))
+            for(byte[] buf: r.list)
+                assert Arrays.equals(buf, payload);
+        assert counter.batches.get() >= 2;
+        assert counter.msgs.get() < NUM_FRAGS * 2 : "the batches were not split by flow control";
+    }
+
+
+    /** A protocol which doesn't override down(MessageBatch) passes an exception thrown below it to the caller */
+    public void testExceptionIsPropagated() {
+        Protocol prot=new Protocol() {};
+        final AtomicInteger sent=new AtomicInteger();
+        prot.setDownProtocol(new Protocol() {
+            public Object down(Event evt) {
+                if(sent.incrementAndGet() == 2)
+                    throw new IllegalStateException("failed sending message (expected)");
+                return null;
+            }
+        });
+        MessageBatch batch=new MessageBatch(null, null, null, true, Arrays.asList(new Message(), new Message(), new Message()));
+        try {
+            prot.down(batch);
+            assert false : "down(MessageBatch) should have thrown an exception";
+        }
+        catch(IllegalStateException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+        assert sent.get() == 2 : "the messages after the failed one should not have been sent";
+    }
+
+    protected void createChannels(int max_credits) throws Exception {
+        a=createChannel("A", max_credits, counter=new BatchCounter());
+        b=createChannel("B", max_credits, new BatchCounter());
+        a.setReceiver(ra=new MyReceiver());
+        b.setReceiver(rb=new MyReceiver());
+        a.connect("FRAG2_BatchTest");
+        b.connect("FRAG2_BatchTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    protected static void waitForMessages(int num, MyReceiver ... receivers) {
+        for(MyReceiver r: receivers) {
+            for(int i=0; i < 20 && r.list.size() < num; i++)
+                Util.sleep(250);
+            assert r.list.size() == num : "expected " + num + " messages, but got " + r.list.size();
+        }
+    }
+
+    protected static byte[] createPayload(int size) {
+        byte[] buf=new byte[size];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)i;
+        return buf;
+    }
+
+    protected static JChannel createChannel(String name, int max_credits, BatchCounter counter) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            counter,
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false),
+                            new UFC().setValue("max_credits", max_credits).setValue("max_block_time", 10000),
+                            new MFC().setValue("max_credits", max_credits).setValue("max_block_time", 10000),
+                            new FRAG2().fragSize(FRAG_SIZE).sendFragmentsAsBatch(true))
+          .name(name);
+    }
+
+
+    /** Counts the batches (and their messages) passed down to the transport */
+    protected static class BatchCounter extends Protocol {
+        protected final AtomicInteger batches=new AtomicInteger(), msgs=new AtomicInteger();
+
+        public void down(MessageBatch batch) {
+            batches.incrementAndGet();
+            msgs.addAndGet(batch.size());
+            down_prot.down(batch);
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<byte[]> list=new CopyOnWriteArrayList<>();
+
+        public void receive(Message msg) {
+            list.add(msg.getBuffer());
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.CompositeBuffer;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests reassembly of fragments into a list of fragment buffers in FRAG2 (reassemble_as_list=true)
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class FRAG2_ReassemblyTest {
+    protected static final int FRAG_SIZE=1000;
+    protected JChannel         a, b;
+
+    @AfterMethod
+    protected void destroy() {Util.close(b, a);}
+
+
+    /** Fragments received in any order are added to the composite buffer in fragment order */
+    public void testOutOfOrderFragments() throws Exception {
+        FRAG2 frag=new FRAG2().reassembleAsList(true);
+        Collector collector=new Collector();
+        frag.setUpProtocol(collector);
+        Address sender=Util.createRandomAddress("A");
+        byte[] payload=createPayload(3500);
+
+        for(int frag_id: new int[]{2, 0, 3}) {
+            frag.up(new Event(Event.MSG, fragment(sender, payload, frag_id, frag.getId())));
+            assert collector.list.isEmpty();
+        }
+        frag.up(new Event(Event.MSG, fragment(sender, payload, 1, frag.getId())));
+        assert collector.list.size() == 1;
+
+        Message msg=collector.list.get(0);
+        CompositeBuffer cb=msg.getCompositeBuffer();
+        assert cb != null && cb.numSegments() == 4 && cb.length() == payload.length;
+        assert msg.getLength() == payload.length;
+        assert Arrays.equals(read(msg.getInputStream(), msg.getLength()), payload);
+        assert msg.getCompositeBuffer() != null : "reading the stream must not copy the fragments";
+
+        // marshalling writes the fragments one after the other
+        Message copy=msg.copy();
+        assert copy.getCompositeBuffer() == cb;
+        byte[] marshalled=Util.streamableToByteBuffer(msg);
+        assert marshalled.length == msg.size();
+        Message tmp=(Message)Util.streamableFromByteBuffer(Message.class, marshalled);
+        assert Arrays.equals(tmp.getBuffer(), payload);
+
+        // accessing the payload as byte[] buffer copies the fragments into one buffer
+        assert Arrays.equals(msg.getBuffer(), payload);
+        assert msg.getCompositeBuffer() == null;
+        assert Arrays.equals(copy.getRawBuffer(), payload);
+    }
+
+    /** Large messages are delivered with a composite payload, which can be streamed or accessed as an object */
+    public void testReassembleAsList() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        MyReceiver receiver=new MyReceiver();
+        b.setReceiver(receiver);
+        a.connect("FRAG2_ReassemblyTest");
+        b.connect("FRAG2_ReassemblyTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        byte[] payload=createPayload(100000);
+        a.send(b.getAddress(), payload);
+        a.send(b.getAddress(), "hello");
+        a.send(b.getAddress(), new String(createPayload(FRAG_SIZE * 5)));
+        for(int i=0; i < 20 && receiver.segments.size() < 3; i++)
+            Util.sleep(200);
+        assert receiver.segments.size() == 3 : "received " + receiver.segments.size() + " messages";
+        assert Arrays.equals(receiver.list.get(0), payload);
+        assert receiver.segments.get(0) == 100000 / FRAG_SIZE;
+        assert receiver.segments.get(1) == 0; // not fragmented
+        assert receiver.segments.get(2) > 5; // the serialized string is larger than the 5 fragments of its chars
+        assert receiver.strings.get(0).equals("hello");
+        assert receiver.strings.get(1).equals(new String(createPayload(FRAG_SIZE * 5)));
+    }
+
+
+    protected static Message fragment(Address sender, byte[] payload, int frag_id, short id) {
+        int num_frags=(payload.length + FRAG_SIZE -1) / FRAG_SIZE, offset=frag_id * FRAG_SIZE;
+        Message msg=new Message(null, payload, offset, Math.min(FRAG_SIZE, payload.length - offset)).src(sender);
+        return msg.putHeader(id, new FragHeader(1, frag_id, num_frags));
+    }
+
+    protected static byte[] createPayload(int size) {
+        byte[] buf=new byte[size];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)('a' + i % 26);
+        return buf;
+    }
+
+    protected static byte[] read(InputStream in, int length) throws Exception {
+        byte[] buf=new byte[length];
+        new DataInputStream(in).readFully(buf);
+        assert in.read() == -1;
+        return buf;
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false),
+                            new FRAG2().fragSize(FRAG_SIZE).reassembleAsList(true))
+          .name(name);
+    }
+
+
+    protected static class Collector extends Protocol {
+        protected final List<Message> list=new CopyOnWriteArrayList<>();
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                list.add((Message)evt.getArg());
+            return null;
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<byte[]>  list=new CopyOnWriteArrayList<>();
+        protected final List<Integer> segments=new CopyOnWriteArrayList<>();
+        protected final List<String>  strings=new CopyOnWriteArrayList<>();
+
+        public void receive(Message msg) {
+            CompositeBuffer cb=msg.getCompositeBuffer();
+            segments.add(cb != null? cb.numSegments() : 0);
+            try {
+                if(list.isEmpty())
+                    list.add(read(msg.getInputStream(), msg.getLength()));
+                else
+                    strings.add((String)msg.getObject());
+            }
+            catch(Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,184 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.*;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tests that NAKACK2 (with discard_delivered_msgs=false) keeps the pooled buffers of the messages it stores for
+ * retransmission, even when another thread delivers (and releases) a message right after it has been added to the
+ * table
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class NAKACK2_BufferPoolTest {
+    protected static final short   ID=ClassConfigurator.getProtocolId(NAKACK2.class);
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B"),
+                                   C=Util.createRandomAddress("C");
+    protected static final View    view=View.create(A, 1, A, B);
+    protected static final int     NUM_MSGS=10, SIZE=100;
+    protected RacyNakack           nak;
+    protected MockTransport        transport;
+    protected BufferPool           pool;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        pool=new BufferPool(1024, 64 * 1024);
+        nak=(RacyNakack)new RacyNakack().setValue("use_mcast_xmit", false).setValue("discard_delivered_msgs", false)
+          .setId(ID);
+        transport=new MockTransport();
+        ProtocolStack stack=new ProtocolStack();
+        stack.addProtocols(transport, nak, new Releaser());
+        stack.init();
+
+        nak.down(new Event(Event.BECOME_SERVER));
+        nak.down(new Event(Event.SET_LOCAL_ADDRESS, A));
+        Digest digest=new Digest(view.getMembersRaw(), new long[]{0, 0, 0, 0});
+        nak.down(new Event(Event.SET_DIGEST, digest));
+    }
+
+
+    public void testSingleMessages() {
+        for(int i=1; i <= NUM_MSGS; i++) {
+            nak.up(new Event(Event.MSG, createMessage(i)));
+            reuseBuffer();
+        }
+        assertRetransmission();
+    }
+
+    public void testBatch() {
+        MessageBatch batch=new MessageBatch(null, B, null, true, MessageBatch.Mode.REG, NUM_MSGS);
+        for(int i=1; i <= NUM_MSGS; i++)
+            batch.add(createMessage(i));
+        nak.up(batch);
+        for(int i=1; i <= NUM_MSGS; i++)
+            reuseBuffer();
+        assertRetransmission();
+    }
+
+
+    /** Creates a message from B with a pooled payload filled with seqno */
+    protected Message createMessage(long seqno) {
+        BufferPool.Ref ref=pool.acquire(SIZE);
+        Arrays.fill(ref.buf(), 0, SIZE, (byte)seqno);
+        Message msg=new Message(null, B, null).setPooledBuffer(ref, 0, SIZE);
+        msg.putHeader(ID, NakAckHeader2.createMessageHeader(seqno));
+        return msg;
+    }
+
+    /** Simulates the reception of another message: a buffer returned to the pool would be overwritten */
+    protected void reuseBuffer() {
+        BufferPool.Ref ref=pool.acquire(SIZE);
+        Arrays.fill(ref.buf(), (byte)-1);
+    }
+
+    /** Asks for the retransmission of all messages and checks that they have their original payload */
+    protected void assertRetransmission() {
+        assert nak.delivered == NUM_MSGS : "delivered " + nak.delivered + " messages";
+        SeqnoList missing=new SeqnoList(NUM_MSGS, 1).add(1, NUM_MSGS);
+        Message xmit_req=new Message(A, missing).src(C).putHeader(ID, NakAckHeader2.createXmitRequestHeader(B));
+        nak.up(new Event(Event.MSG, xmit_req));
+
+        assert transport.xmit_rsps.size() == NUM_MSGS : "retransmitted: " + transport.xmit_rsps.keySet();
+        for(Map.Entry<Long,byte[]> entry: transport.xmit_rsps.entrySet()) {
+            byte[] expected=new byte[SIZE];
+            Arrays.fill(expected, (byte)(long)entry.getKey());
+            assert Arrays.equals(entry.getValue(), expected) : "payload of retransmitted message #" + entry.getKey()
+              + " was overwritten: " + Arrays.toString(entry.getValue());
+        }
+    }
+
+
+    /** Delivers the messages on a separate thread right after they have been added to the table */
+    protected static class RacyNakack extends NAKACK2 {
+        protected int delivered;
+
+        protected Table<Message> createTable(long initial_seqno) {
+            return new Table<Message>(xmit_table_num_rows, xmit_table_msgs_per_row, initial_seqno,
+                                      xmit_table_resize_factor, xmit_table_max_compaction_time) {
+                public boolean add(long seqno, Message msg) {
+                    boolean added=super.add(seqno, msg);
+                    deliverOnOtherThread(this);
+                    return added;
+                }
+
+                public boolean add(List<Tuple<Long,Message>> list, boolean remove_added_elements, Message const_value) {
+                    boolean added=super.add(list, remove_added_elements, const_value);
+                    deliverOnOtherThread(this);
+                    return added;
+                }
+            };
+        }
+
+        protected void deliverOnOtherThread(final Table<Message> table) {
+            Thread thread=new Thread() {
+                public void run() {removeAndPassUp(table, B, false, null);}
+            };
+            thread.start();
+            try {
+                thread.join();
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        protected void deliver(Message msg, Address sender, long seqno, String error_msg) {
+            delivered++;
+            super.deliver(msg, sender, seqno, error_msg);
+        }
+
+        protected void deliverBatch(MessageBatch batch) {
+            delivered+=batch.size();
+            super.deliverBatch(batch);
+        }
+    }
+
+    /** Releases delivered messages, as JChannel does */
+    protected static class Releaser extends Protocol {
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG)
+                ((Message)evt.getArg()).release();
+            return null;
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                msg.release();
+        }
+    }
+
+    /** Records the payloads of the retransmitted messages */
+    protected static class MockTransport extends TP {
+        protected final Map<Long,byte[]> xmit_rsps=new ConcurrentHashMap<>();
+
+        public void               init() throws Exception {}
+        public boolean            supportsMulticasting() {return true;}
+        public void               sendMulticast(AsciiString cluster_name, byte[] data, int offset, int length) throws Exception {}
+        public void               sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+        public String             getInfo() {return null;}
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG) {
+                Message msg=(Message)evt.getArg();
+                NakAckHeader2 hdr=(NakAckHeader2)msg.getHeader(ID);
+                if(hdr != null && hdr.getType() == NakAckHeader2.XMIT_RSP)
+                    xmit_rsps.put(hdr.getSeqno(), msg.getBuffer());
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Tests retransmission with repair groups and suppression of retransmit requests in NAKACK2 (xmit_repair=true)
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class NAKACK2_RepairTest {
+    protected static final short  NAKACK_ID=ClassConfigurator.getProtocolId(NAKACK2.class);
+    protected static final int    NUM_MSGS=10;
+    protected JChannel[]          channels;
+    protected MyReceiver[]        receivers;
+    protected DropProtocol[]      droppers;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        channels=new JChannel[6];
+        receivers=new MyReceiver[channels.length];
+        droppers=new DropProtocol[channels.length];
+        for(int i=0; i < channels.length; i++) {
+            channels[i]=createChannel(String.valueOf((char)('A' + i)), droppers[i]=new DropProtocol());
+            channels[i].setReceiver(receivers[i]=new MyReceiver());
+            channels[i].connect("NAKACK2_RepairTest");
+        }
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, channels);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        for(int i=channels.length-1; i >= 0; i--)
+            Util.close(channels[i]);
+    }
+
+
+    /**
+     * The repair groups are {A,B,C} and {D,E,F}. D, E and F lose messages 5-7 from A. E's retransmit request is handled
+     * by D, the first member of its group, which doesn't have the messages either and asks A for them. A's multicast
+     * repairs D, E and F, and F doesn't send a retransmit request
+     */
+    public void testSharedLoss() throws Exception {
+        Address a=channels[0].getAddress();
+        long last=seqno(NUM_MSGS);
+        for(int i=3; i < 6; i++)
+            droppers[i].dropMessages(a, seqno(5), seqno(6), seqno(7));
+        for(int i=1; i <= NUM_MSGS; i++)
+            channels[0].send(null, i);
+
+        for(int i=3; i < 6; i++)
+            waitForMessages(receivers[i], 4);
+        for(int i=3; i < 6; i++)
+            waitForHighestReceived(i, a, last);
+        for(int i=3; i < 6; i++)
+            nak(i).triggerXmit(); // the first run only records the missing messages
+
+        nak(4).triggerXmit(); // E asks D, D asks A
+        for(MyReceiver r: receivers)
+            waitForMessages(r, NUM_MSGS);
+        nak(5).triggerXmit();
+
+        for(MyReceiver r: receivers)
+            assert r.list().equals(expected()) : "received: " + r.list();
+        assert nak(5).getXmitRequestsSent() == 0 : "F sent " + nak(5).getXmitRequestsSent() + " retransmit requests";
+        assert nak(4).getXmitRequestsSent() == 3;
+        assert nak(3).getXmitRequestsSent() == 3; // D asked A on behalf of E
+        assert nak(0).getXmitResponsesSent() == 3;
+        for(int i=1; i < 3; i++)
+            assert nak(i).getXmitResponsesSent() == 0;
+    }
+
+    /** F suppresses its request for messages already requested by E, until the repair arrives */
+    public void testSuppression() throws Exception {
+        Address a=channels[0].getAddress(), e=channels[4].getAddress();
+        for(int i=3; i < 6; i++)
+            droppers[i].dropMessages(a, seqno(5), seqno(6), seqno(7));
+        droppers[3].dropXmitRequest(e); // D doesn't see E's first request
+        long last=seqno(NUM_MSGS);
+        for(int i=1; i <= NUM_MSGS; i++)
+            channels[0].send(null, i);
+        for(int i=3; i < 6; i++)
+            waitForMessages(receivers[i], 4);
+        for(int i=3; i < 6; i++)
+            waitForHighestReceived(i, a, last);
+        for(int i=3; i < 6; i++)
+            nak(i).triggerXmit();
+
+        nak(4).triggerXmit(); // dropped by D, seen by F
+        Util.sleep(500);
+        nak(5).triggerXmit();
+        assert nak(5).getXmitRequestsSent() == 0;
+        assert nak(5).getXmitRequestsSuppressed() == 3;
+        assert receivers[5].list().size() == 4;
+
+        nak(4).triggerXmit(); // E asks D again
+        for(MyReceiver r: receivers)
+            waitForMessages(r, NUM_MSGS);
+        for(MyReceiver r: receivers)
+            assert r.list().equals(expected()) : "received: " + r.list();
+    }
+
+    /**
+     * D doesn't have the messages requested by E and forwards the request to A, but the forwarded request is lost.
+     * D must forward E's next request again, rather than treating the messages as repaired
+     */
+    public void testLostForwardedRequest() throws Exception {
+        Address a=channels[0].getAddress(), d=channels[3].getAddress();
+        long last=seqno(NUM_MSGS);
+        for(int i=3; i < 6; i++)
+            droppers[i].dropMessages(a, seqno(5), seqno(6), seqno(7));
+        for(int i=0; i < channels.length; i++)
+            droppers[i].dropXmitRequest(d); // D's first (forwarded) request is lost
+        for(int i=1; i <= NUM_MSGS; i++)
+            channels[0].send(null, i);
+        for(int i=3; i < 6; i++)
+            waitForMessages(receivers[i], 4);
+        for(int i=3; i < 6; i++)
+            waitForHighestReceived(i, a, last);
+        for(int i=3; i < 6; i++)
+            nak(i).triggerXmit();
+
+        nak(4).triggerXmit(); // E asks D, D's request to A is lost
+        Util.sleep(500);
+        assert receivers[4].list().size() == 4;
+
+        nak(4).triggerXmit(); // E asks D again, D asks A again
+        for(MyReceiver r: receivers)
+            waitForMessages(r, NUM_MSGS);
+        for(MyReceiver r: receivers)
+            assert r.list().equals(expected()) : "received: " + r.list();
+        assert nak(3).getXmitRequestsSent() == 6 : "D should have asked A twice";
+    }
+
+
+    /** Returns the seqno of the num-th message sent by A (A has already sent the views) */
+    protected long seqno(int num) {
+        return nak(0).getWindow(channels[0].getAddress()).getHighestReceived() + num;
+    }
+
+    protected NAKACK2 nak(int index) {
+        return (NAKACK2)channels[index].getProtocolStack().findProtocol(NAKACK2.class);
+    }
+
+    protected static List<Integer> expected() {
+        List<Integer> list=new ArrayList<>(NUM_MSGS);
+        for(int i=1; i <= NUM_MSGS; i++)
+            list.add(i);
+        return list;
+    }
+
+    protected static void waitForMessages(MyReceiver r, int num) {
+        for(int i=0; i < 20 && r.list().size() < num; i++)
+            Util.sleep(250);
+        assert r.list().size() == num : "expected " + num + " messages, but got " + r.list();
+    }
+
+    /** Waits until the member at index has received seqno from sender, so that the messages after the gap are known */
+    protected void waitForHighestReceived(int index, Address sender, long seqno) {
+        for(int i=0; i < 20 && nak(index).getWindow(sender).getHighestReceived() < seqno; i++)
+            Util.sleep(250);
+        long hr=nak(index).getWindow(sender).getHighestReceived();
+        assert hr == seqno : "expected highest received seqno " + seqno + ", but got " + hr;
+    }
+
+    protected static JChannel createChannel(String name, DropProtocol dropper) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            dropper,
+                            new NAKACK2().setValue("xmit_repair", true).setValue("repair_group_size", 3)
+                              .setValue("xmit_interval", 60000),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    /** Drops the first copy of given messages, and the first retransmit request from a given member */
+    protected static class DropProtocol extends Protocol {
+        protected Address         sender, xmit_requester;
+        protected final Set<Long> seqnos=Collections.synchronizedSet(new HashSet<Long>());
+
+        protected void dropMessages(Address sender, long ... seqnos) {
+            this.sender=sender;
+            for(long seqno: seqnos)
+                this.seqnos.add(seqno);
+        }
+
+        protected void dropXmitRequest(Address xmit_requester) {this.xmit_requester=xmit_requester;}
+
+        public Object up(Event evt) {
+            if(evt.getType() == Event.MSG && drop((Message)evt.getArg(), ((Message)evt.getArg()).getSrc()))
+                return null;
+            return up_prot.up(evt);
+        }
+
+        public void up(MessageBatch batch) {
+            for(Message msg: batch)
+                if(drop(msg, batch.sender()))
+                    batch.remove(msg);
+            if(!batch.isEmpty())
+                up_prot.up(batch);
+        }
+
+        protected boolean drop(Message msg, Address src) {
+            NakAckHeader2 hdr=(NakAckHeader2)msg.getHeader(NAKACK_ID);
+            if(hdr == null)
+                return false;
+            if(hdr.getType() == NakAckHeader2.MSG && src.equals(sender))
+                return seqnos.remove(hdr.getSeqno());
+            if(hdr.getType() == NakAckHeader2.XMIT_REQ && src.equals(xmit_requester)) {
+                xmit_requester=null;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer> list=new CopyOnWriteArrayList<>();
+
+        public List<Integer> list() {return list;}
+
+        public void receive(Message msg) {
+            list.add((Integer)msg.getObject());
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests STABLE with delta digests (send_delta_digests=true)
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class STABLE_DeltaTest {
+    protected JChannel       a, b, c;
+    protected List<JChannel> channels;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        c=createChannel("C");
+        channels=Arrays.asList(a, b, c);
+        for(JChannel ch: channels)
+            ch.connect("STABLE_DeltaTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    protected void destroy() {Util.close(c, b, a);}
+
+
+    /** The first round sends full digests, the next ones only the entries which changed; messages are purged */
+    public void testDeltaDigests() throws Exception {
+        for(JChannel ch: channels) // there's no stability digest yet
+            assert stable(ch).getDeltaStableSent() == 0;
+        send(a, 10);
+        gc(a);
+
+        send(a, 10);
+        gc(a);
+        for(JChannel ch: channels)
+            assert stable(ch).getDeltaStableSent() > 0;
+
+        // A's seqnos didn't change, but the entry of A is taken from the last stability digest
+        send(b, 5);
+        gc(b);
+        gc(a);
+    }
+
+
+    /** Triggers a stability round and waits until the messages sent by sender have been purged at all members */
+    protected void gc(JChannel sender) {
+        long expected_low=nak(sender).getWindow(sender.getAddress()).getHighestReceived();
+        for(int i=0; i < 20; i++) {
+            for(JChannel ch: channels)
+                stable(ch).gc();
+            Util.sleep(200);
+            boolean done=true;
+            for(JChannel ch: channels)
+                if(nak(ch).getWindow(sender.getAddress()).getLow() != expected_low)
+                    done=false;
+            if(done)
+                break;
+        }
+        for(JChannel ch: channels) {
+            long low=nak(ch).getWindow(sender.getAddress()).getLow();
+            assert low == expected_low
+              : String.format("%s: low for %s is %d (expected %d)", ch.getAddress(), sender.getAddress(), low, expected_low);
+        }
+    }
+
+    protected static void send(JChannel ch, int num) throws Exception {
+        for(int i=1; i <= num; i++)
+            ch.send(null, i);
+    }
+
+    protected static NAKACK2 nak(JChannel ch) {
+        return (NAKACK2)ch.getProtocolStack().findProtocol(NAKACK2.class);
+    }
+
+    protected static STABLE stable(JChannel ch) {
+        return (STABLE)ch.getProtocolStack().findProtocol(STABLE.class);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE().sendDeltaDigests(true).setValue("desired_avg_gossip", 0)
+                              .setValue("max_bytes", 0),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+}
@@ -0,0 +1,121 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.blocks.LazyRemovalCache;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.AsciiString;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+
+/**
+ * Tests {@link TP#sendToMembers(java.util.Collection,byte[],int,int)} with multicast_send_threads > 0, which sends the
+ * same buffer to all members in parallel
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class TP_SendToMembersTest {
+    protected static final int NUM_MEMBERS=5, SEND_TIME=100;
+    protected SlowTransport    transport;
+    protected List<Address>    members;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        transport=new SlowTransport();
+        transport.logical_addr_cache=new LazyRemovalCache<>(100, 60000);
+        transport.multicast_send_pool=Executors.newFixedThreadPool(NUM_MEMBERS - 1);
+        members=new ArrayList<>(NUM_MEMBERS);
+        for(int i=0; i < NUM_MEMBERS; i++) {
+            Address mbr=Util.createRandomAddress(String.valueOf((char)('A' + i)));
+            members.add(mbr);
+            transport.logical_addr_cache.add(mbr, new IpAddress("127.0.0.1", 7800 + i));
+        }
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        transport.multicast_send_pool.shutdownNow();
+    }
+
+
+    /**
+     * Every member receives the buffer, and sendToMembers() returns only when all sends have completed: the buffer
+     * is overwritten right after the call (as the bundler does), which the (slow) sends would notice otherwise
+     */
+    public void testParallelSend() throws Exception {
+        byte[] buf=new byte[1000];
+        for(int round=1; round <= 5; round++) {
+            Arrays.fill(buf, (byte)round);
+            transport.expected=(byte)round;
+            transport.received.clear();
+            transport.sendToMembers(members, buf, 10, 500);
+            Arrays.fill(buf, (byte)0); // the buffer is reused by the caller
+
+            assert transport.received.size() == NUM_MEMBERS : "received: " + transport.received;
+            for(Map.Entry<PhysicalAddress,Boolean> entry: transport.received.entrySet())
+                assert entry.getValue() : entry.getKey() + " received a buffer which was modified during the send";
+        }
+        System.out.println("threads used: " + transport.threads);
+        assert transport.threads.size() > 1 : "the sends should have been done in parallel: " + transport.threads;
+    }
+
+    /** Members without a physical address are skipped, and so is the local member */
+    public void testMissingAndLocalMembers() throws Exception {
+        List<Address> mbrs=new ArrayList<>(members);
+        mbrs.add(Util.createRandomAddress("X")); // no physical address
+        transport.local_physical_addr=transport.logical_addr_cache.get(members.get(0));
+        byte[] buf=new byte[100];
+        Arrays.fill(buf, (byte)1);
+        transport.expected=1;
+        transport.sendToMembers(mbrs, buf, 0, buf.length);
+        assert transport.received.size() == NUM_MEMBERS - 1 : "received: " + transport.received;
+        assert !transport.received.containsKey(transport.local_physical_addr);
+    }
+
+
+    /** Takes SEND_TIME ms per send, and records whether the buffer was unchanged at the end of the send */
+    protected static class SlowTransport extends TP {
+        protected volatile byte                            expected;
+        protected final Map<PhysicalAddress,Boolean>       received=new ConcurrentHashMap<>();
+        protected final Set<String>                        threads=new ConcurrentSkipListSet<>();
+
+        public boolean supportsMulticasting() {return false;}
+
+        public void sendMulticast(AsciiString cluster_name, byte[] data, int offset, int length) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+            threads.add(Thread.currentThread().getName());
+            Util.sleep(SEND_TIME);
+            boolean unchanged=true;
+            for(int i=offset; i < offset + length; i++) {
+                if(data[i] != expected) {
+                    unchanged=false;
+                    break;
+                }
+            }
+            received.put(dest, unchanged);
+        }
+
+        public String getInfo() {return null;}
+
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        /** Missing physical addresses are not fetched, as there is no discovery protocol */
+        protected void fetchPhysicalAddrs(List<Address> missing) {}
+    }
+}
@@ -0,0 +1,108 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Histogram;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests the adaptive bundler in TP (bundler_type="adaptive") and {@link Histogram}
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class AdaptiveBundlerTest {
+    protected static final long TARGET=2000; // us
+
+    public void testHistogram() {
+        Histogram h=new Histogram();
+        assert h.percentile(99) == 0 && h.count() == 0;
+        for(int i=1; i <= 1000; i++)
+            h.add(i);
+        System.out.println("h = " + h);
+        assert h.count() == 1000 && h.min() == 1 && h.max() == 1000;
+        assert h.mean() == 500.5;
+        long p50=h.percentile(50), p99=h.percentile(99);
+        assert p50 >= 500 && p50 <= 500 * 17 / 16 : "p50=" + p50;
+        assert p99 >= 990 && p99 <= 1000 : "p99=" + p99;
+        assert h.percentile(100) == 1000;
+        h.add(Long.MAX_VALUE).add(-1);
+        assert h.max() == Long.MAX_VALUE && h.min() == 0;
+        h.reset();
+        assert h.count() == 0 && h.max() == 0;
+    }
+
+    public void testAdaptiveBundler() throws Exception {
+        JChannel a=null, b=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            MyReceiver ra=new MyReceiver(), rb=new MyReceiver();
+            a.setReceiver(ra);
+            b.setReceiver(rb);
+            a.connect("AdaptiveBundlerTest");
+            b.connect("AdaptiveBundlerTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            final int NUM=5000;
+            for(int i=1; i <= NUM; i++) {
+                a.send(null, i);
+                a.send(b.getAddress(), -i);
+                if(i % 500 == 0)
+                    Util.sleep(50); // lets the bundler adjust its flush delay
+            }
+            for(int i=0; i < 20 && (ra.size() < NUM || rb.size() < NUM * 2); i++)
+                Util.sleep(500);
+            assert ra.size() == NUM : "A received " + ra.size() + " messages, expected " + NUM;
+            assert rb.size() == NUM * 2 : "B received " + rb.size() + " messages, expected " + NUM * 2;
+            rb.checkOrder();
+
+            TP tp=a.getProtocolStack().getTransport();
+            System.out.println("bundler of A:\n" + tp.handleProbe("bundler").get("bundler"));
+            assert tp.getBundlerBatchSizes() != null && tp.getBundlerQueuingDelays() != null;
+            assert tp.getBundlerFlushDelay() <= TARGET;
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK().setValue("bundler_type", "adaptive")
+                              .setValue("bundler_target_latency", TARGET),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer> mcasts=new ArrayList<>(), ucasts=new ArrayList<>();
+
+        public synchronized void receive(Message msg) {
+            int num=(Integer)msg.getObject();
+            if(num > 0)
+                mcasts.add(num);
+            else
+                ucasts.add(-num);
+        }
+
+        public synchronized int size() {return mcasts.size() + ucasts.size();}
+
+        public synchronized void checkOrder() {
+            for(List<Integer> list: new List[]{mcasts, ucasts})
+                for(int i=0; i < list.size(); i++)
+                    assert list.get(i) == i+1 : "expected " + (i+1) + ", but got " + list.get(i);
+        }
+    }
+}
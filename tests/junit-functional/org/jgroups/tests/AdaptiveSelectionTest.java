@@ -0,0 +1,163 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.*;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.RspList;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link MemberLatencies} and the selection of the best members of a group request
+ * ({@link RequestOptions#setAdaptiveSelection(boolean)})
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class AdaptiveSelectionTest {
+    protected JChannel        a, b, c, d;
+    protected RpcDispatcher   da, db, dc, dd;
+    protected Server          sb, sc, sd;
+    protected static final MethodCall CALL=new MethodCall("get", null, new Class[]{});
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        da=new RpcDispatcher(a, new Server("A"));
+        a.connect("AdaptiveSelectionTest");
+        b=createChannel("B");
+        db=new RpcDispatcher(b, sb=new Server("B"));
+        b.connect("AdaptiveSelectionTest");
+        c=createChannel("C");
+        dc=new RpcDispatcher(c, sc=new Server("C"));
+        c.connect("AdaptiveSelectionTest");
+        d=createChannel("D");
+        dd=new RpcDispatcher(d, sd=new Server("D"));
+        d.connect("AdaptiveSelectionTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        for(RpcDispatcher disp: new RpcDispatcher[]{dd, dc, db, da})
+            disp.stop();
+        Util.close(d, c, b, a);
+    }
+
+
+    public void testScores() {
+        MemberLatencies l=new MemberLatencies().halfLife(0);
+        Address x=Util.createRandomAddress("X"), y=Util.createRandomAddress("Y"), z=Util.createRandomAddress("Z");
+        assert l.sort(Arrays.asList(x, y, z)).equals(Arrays.asList(x, y, z));
+
+        l.sent(x); l.received(x, TimeUnit.MILLISECONDS.toNanos(10));
+        l.sent(y); l.received(y, TimeUnit.MILLISECONDS.toNanos(1));
+        assert l.outstanding(x) == 0 && l.outstanding(y) == 0;
+        assert l.latency(x) == 10000 && l.latency(y) == 1000;
+        assert l.sort(Arrays.asList(x, y, z)).equals(Arrays.asList(z, y, x)); // z is unknown
+
+        // outstanding requests increase the score
+        for(int i=0; i < 20; i++)
+            l.sent(y);
+        assert l.sort(Arrays.asList(x, y)).equals(Arrays.asList(x, y));
+
+        // a request abandoned earlier than the latency doesn't change it; a later one does
+        l.sent(x);
+        l.abandoned(x, TimeUnit.MILLISECONDS.toNanos(5));
+        assert l.latency(x) == 10000;
+        l.sent(x);
+        l.abandoned(x, TimeUnit.MILLISECONDS.toNanos(50));
+        assert l.latency(x) > 10000;
+        assert l.outstanding(x) == 0;
+
+        l.abandoned(z, 0);
+        assert l.outstanding(z) == 0;
+    }
+
+    public void testDecay() {
+        MemberLatencies l=new MemberLatencies().halfLife(100);
+        Address x=Util.createRandomAddress("X");
+        l.received(x, TimeUnit.MILLISECONDS.toNanos(100));
+        Util.sleep(300);
+        double latency=l.latency(x);
+        assert latency < 100000 / 4 : "latency: " + latency;
+    }
+
+    /** B is slow, so after the first call, requests go to C and D */
+    public void testSteerAwayFromSlowMember() throws Exception {
+        sb.sleep(500);
+        RequestOptions opts=new RequestOptions(ResponseMode.GET_FIRST, 5000).setAdaptiveSelection(true);
+        List<Address> dests=Arrays.asList(b.getAddress(), c.getAddress(), d.getAddress());
+        for(int i=0; i < 20; i++) {
+            RspList<String> rsps=da.callRemoteMethods(dests, CALL, opts);
+            assert rsps.size() == 1;
+        }
+        MemberLatencies latencies=da.getCorrelator().getMemberLatencies();
+        System.out.printf("B: %d, C: %d, D: %d, latencies:\n%s\n", sb.count(), sc.count(), sd.count(), latencies);
+        assert sb.count() == 1;
+        assert sc.count() + sd.count() == 19;
+        for(Address dest: dests)
+            assert latencies.outstanding(dest) == 0;
+    }
+
+    /** B doesn't respond (e.g. a GC pause), so its outstanding requests steer new requests away from it */
+    public void testOutstandingRequests() throws Exception {
+        MemberLatencies latencies=da.getCorrelator().getMemberLatencies();
+        List<Address> dests=Arrays.asList(b.getAddress(), c.getAddress());
+        RequestOptions opts=new RequestOptions(ResponseMode.GET_FIRST, 5000).setAdaptiveSelection(true);
+        for(int i=0; i < 5; i++) // establishes similar latencies for B and C
+            da.callRemoteMethods(dests, CALL, opts);
+        sb.sleep(2000);
+        for(int i=0; i < 3; i++)
+            da.callRemoteMethodAsync(b.getAddress(), CALL, RequestOptions.SYNC().setTimeout(5000));
+        assert latencies.outstanding(b.getAddress()) == 3;
+        int count_b=sb.count();
+        for(int i=0; i < 10; i++)
+            da.callRemoteMethods(dests, CALL, opts);
+        assert sb.count() == count_b : "B received " + (sb.count() - count_b) + " requests";
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    public static class Server {
+        protected final String        name;
+        protected final AtomicInteger count=new AtomicInteger();
+        protected volatile long       sleep;
+
+        public Server(String name) {this.name=name;}
+
+        public int  count()           {return count.get();}
+        public void sleep(long time)  {sleep=time;}
+
+        public String get() {
+            count.incrementAndGet();
+            if(sleep > 0)
+                Util.sleep(sleep);
+            return name;
+        }
+    }
+}
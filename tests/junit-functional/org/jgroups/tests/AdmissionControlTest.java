@@ -0,0 +1,175 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.*;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.ComposableFuture;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link AdmissionControl} of requests dispatched asynchronously
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class AdmissionControlTest {
+    protected JChannel          a, b;
+    protected MessageDispatcher da, db;
+    protected Handler           handler;
+    protected static final RequestOptions SYNC=RequestOptions.SYNC().setTimeout(5000);
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        da=new MessageDispatcher(a, null, null);
+        a.connect("AdmissionControlTest");
+        b=createChannel("B");
+        db=new MessageDispatcher(b, handler=new Handler()).asyncDispatching(true);
+        b.connect("AdmissionControlTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        db.stop();
+        da.stop();
+        Util.close(b, a);
+    }
+
+
+    public void testLimits() {
+        AdmissionControl ac=new AdmissionControl(2, 1);
+        Address x=Util.createRandomAddress("X"), y=Util.createRandomAddress("Y"), z=Util.createRandomAddress("Z");
+        assert ac.acquire(x);
+        assert !ac.acquire(x); // per sender limit
+        assert ac.acquire(y);
+        assert !ac.acquire(z); // global limit
+        assert ac.inFlight() == 2 && ac.numRejected() == 2;
+        ac.release(x);
+        assert ac.inFlight(x) == 0;
+        assert ac.acquire(z);
+        assert ac.inFlight() == 2 && ac.inFlight(z) == 1;
+    }
+
+    public void testBlocking() throws Exception {
+        final AdmissionControl ac=new AdmissionControl(0, 1).timeout(5000);
+        final Address x=Util.createRandomAddress("X");
+        assert ac.acquire(x);
+        new Thread() {
+            public void run() {
+                Util.sleep(500);
+                ac.release(x);
+            }
+        }.start();
+        long start=System.nanoTime();
+        assert ac.acquire(x);
+        long time=TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assert time >= 400 : "acquire() returned after " + time + " ms";
+        assert ac.numBlocked() == 1 && ac.numRejected() == 0;
+    }
+
+    /** Requests exceeding the per-sender limit are rejected; the admitted ones complete when the handler responds */
+    public void testRejection() throws Exception {
+        AdmissionControl ac=new AdmissionControl(10, 2);
+        db.admissionControl(ac);
+        ComposableFuture<Object> f1=send(1), f2=send(2);
+        waitForRequests(2);
+        ComposableFuture<Object> f3=send(3);
+        try {
+            f3.get(5, TimeUnit.SECONDS);
+            assert false : "the request should have been rejected";
+        }
+        catch(ExecutionException ex) {
+            System.out.println("received exception as expected: " + ex.getCause());
+            assert ex.getCause() instanceof RejectedExecutionException;
+        }
+        assert ac.inFlight() == 2 && ac.numRejected() == 1;
+
+        handler.respond();
+        assert f1.get(5, TimeUnit.SECONDS).equals(1) && f2.get(5, TimeUnit.SECONDS).equals(2);
+        assert ac.inFlight() == 0;
+
+        // new requests are admitted again
+        ComposableFuture<Object> f4=send(4);
+        waitForRequests(1);
+        handler.respond();
+        assert f4.get(5, TimeUnit.SECONDS).equals(4);
+    }
+
+    /** A request exceeding the limit blocks (holding back delivery) until an admitted request completes */
+    public void testPushback() throws Exception {
+        AdmissionControl ac=new AdmissionControl(1, 0).timeout(10000);
+        db.admissionControl(ac);
+        ComposableFuture<Object> f1=send(1);
+        waitForRequests(1);
+        ComposableFuture<Object> f2=send(2);
+        Util.sleep(500);
+        assert !f2.isDone() && handler.requests.size() == 1 && ac.numBlocked() == 1;
+
+        handler.respond();
+        assert f1.get(5, TimeUnit.SECONDS).equals(1);
+        waitForRequests(1);
+        handler.respond();
+        assert f2.get(5, TimeUnit.SECONDS).equals(2);
+        assert ac.numRejected() == 0 && ac.inFlight() == 0;
+    }
+
+
+    protected ComposableFuture<Object> send(int num) throws Exception {
+        return da.sendMessageAsync(new Message(b.getAddress(), num), SYNC);
+    }
+
+    protected void waitForRequests(int num) {
+        for(int i=0; i < 50 && handler.requests.size() < num; i++)
+            Util.sleep(100);
+        assert handler.requests.size() == num : "requests: " + handler.requests.size();
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    /** Doesn't respond to requests until respond() is called, which sends the payload of the request as response */
+    protected static class Handler implements AsyncRequestHandler {
+        protected final List<Object[]> requests=new CopyOnWriteArrayList<>(); // request and response
+
+        public Object handle(Message msg) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public void handle(Message request, Response response) throws Exception {
+            requests.add(new Object[]{request, response});
+        }
+
+        protected void respond() {
+            List<Object[]> tmp=new CopyOnWriteArrayList<>(requests);
+            requests.clear();
+            for(Object[] pair: tmp)
+                ((Response)pair[1]).send(((Message)pair[0]).getObject(), false);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.ComposableFuture;
+import org.jgroups.util.RspList;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link ComposableFuture} and the async methods of {@link RpcDispatcher}
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class AsyncRpcTest {
+    protected JChannel      a, b;
+    protected RpcDispatcher da, db;
+    protected static final RequestOptions SYNC=RequestOptions.SYNC().setTimeout(5000);
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        da=new RpcDispatcher(a, new Server("A"));
+        a.connect("AsyncRpcTest");
+        b=createChannel("B");
+        db=new RpcDispatcher(b, new Server("B"));
+        b.connect("AsyncRpcTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        db.stop();
+        da.stop();
+        Util.close(b, a);
+    }
+
+
+    public void testComposableFuture() throws Exception {
+        ComposableFuture<Integer> f=new ComposableFuture<>();
+        ComposableFuture<String> g=f.thenApply(new ComposableFuture.Function<Integer,Integer>() {
+            public Integer apply(Integer arg) {return arg * 2;}
+        }).thenCompose(new ComposableFuture.Function<Integer,ComposableFuture<String>>() {
+            public ComposableFuture<String> apply(Integer arg) {return ComposableFuture.completed("result=" + arg);}
+        });
+        assert !g.isDone();
+        f.complete(21);
+        assert f.complete(22) == false;
+        assert g.get(1, TimeUnit.SECONDS).equals("result=42");
+
+        ComposableFuture<Integer> h=new ComposableFuture<>();
+        ComposableFuture<Integer> i=h.thenApply(new ComposableFuture.Function<Integer,Integer>() {
+            public Integer apply(Integer arg) {return arg + 1;}
+        }).exceptionally(new ComposableFuture.Function<Throwable,Integer>() {
+            public Integer apply(Throwable t) {return -1;}
+        });
+        h.completeExceptionally(new IllegalStateException("boom"));
+        assert h.isCompletedExceptionally();
+        assert i.get() == -1;
+
+        ComposableFuture<Integer> j=new ComposableFuture<>();
+        j.cancel(true);
+        assert j.isCancelled() && j.isDone();
+        try {
+            j.get();
+            assert false : "get() should have thrown a CancellationException";
+        }
+        catch(CancellationException ex) {
+        }
+    }
+
+    /** An exception thrown by a callback is logged and doesn't prevent the other callbacks from being invoked */
+    public void testFailingCallback() throws Exception {
+        final AtomicInteger invoked=new AtomicInteger();
+        ComposableFuture<Integer> f=new ComposableFuture<>();
+        f.whenComplete(new ComposableFuture.Callback<Integer>() {
+            public void done(Integer result, Throwable exception) {
+                invoked.incrementAndGet();
+                throw new IllegalStateException("failing callback (expected)");
+            }
+        }).whenComplete(new ComposableFuture.Callback<Integer>() {
+            public void done(Integer result, Throwable exception) {invoked.incrementAndGet();}
+        });
+        assert f.complete(1);
+        assert invoked.get() == 2 && f.get() == 1;
+
+        // the dependent future is cancelled before the function fails: the exception is logged
+        ComposableFuture<Integer> g=new ComposableFuture<>();
+        ComposableFuture<Integer> h=g.thenApply(new ComposableFuture.Function<Integer,Integer>() {
+            public Integer apply(Integer arg) {throw new IllegalStateException("failing function (expected)");}
+        });
+        h.cancel(true);
+        assert g.complete(1);
+        assert h.isCancelled();
+    }
+
+    public void testCallRemoteMethodsAsync() throws Exception {
+        ComposableFuture<Integer> sum=da.<Integer>callRemoteMethodsAsync(null, new MethodCall("increment", new Object[]{1}, new Class[]{int.class}), SYNC)
+          .thenApply(new ComposableFuture.Function<RspList<Integer>,Integer>() {
+              public Integer apply(RspList<Integer> rsps) {
+                  int total=0;
+                  for(Integer val: rsps.getResults())
+                      total+=val;
+                  return total;
+              }
+          });
+        assert sum.get(5, TimeUnit.SECONDS) == 4;
+        assert da.getCorrelator().getNumPendingRequests() == 0;
+    }
+
+    public void testManyAsyncCalls() throws Exception {
+        final int NUM=500;
+        ComposableFuture<?>[] futures=new ComposableFuture<?>[NUM];
+        for(int i=0; i < NUM; i++)
+            futures[i]=da.callRemoteMethodAsync(b.getAddress(), new MethodCall("increment", new Object[]{i}, new Class[]{int.class}), SYNC);
+        ComposableFuture.allOf(futures).get(20, TimeUnit.SECONDS);
+        for(int i=0; i < NUM; i++)
+            assert (Integer)futures[i].get() == i+1;
+        assert da.getCorrelator().getNumPendingRequests() == 0;
+    }
+
+    public void testException() throws Exception {
+        ComposableFuture<Object> f=da.callRemoteMethodAsync(b.getAddress(), new MethodCall("fail", new Object[]{}, new Class[]{}), SYNC);
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            assert false : "get() should have thrown an exception";
+        }
+        catch(ExecutionException ex) {
+            System.out.println("received exception, as expected: " + ex.getCause());
+            assert ex.getCause() instanceof InvocationTargetException;
+            assert ex.getCause().getCause() instanceof IllegalStateException;
+        }
+    }
+
+    /** Tests that a timed out request is completed and removed from the correlator */
+    public void testTimeout() throws Exception {
+        RequestOptions opts=RequestOptions.SYNC().setTimeout(500);
+        ComposableFuture<Object> f=da.callRemoteMethodAsync(b.getAddress(), new MethodCall("sleep", new Object[]{3000L}, new Class[]{long.class}), opts);
+        assert da.getCorrelator().getNumPendingRequests() == 1;
+        try {
+            f.get(5, TimeUnit.SECONDS);
+            assert false : "get() should have thrown an exception";
+        }
+        catch(ExecutionException ex) {
+            System.out.println("received exception, as expected: " + ex.getCause());
+            assert ex.getCause() instanceof java.util.concurrent.TimeoutException;
+        }
+        assert da.getCorrelator().getNumPendingRequests() == 0;
+
+        // a group request is completed with the responses received so far
+        ComposableFuture<RspList<Object>> g=da.callRemoteMethodsAsync(null, new MethodCall("sleepIfB", new Object[]{3000L}, new Class[]{long.class}), opts);
+        RspList<Object> rsps=g.get(5, TimeUnit.SECONDS);
+        System.out.println("rsps = " + rsps);
+        assert rsps.isReceived(a.getAddress()) && !rsps.isReceived(b.getAddress());
+        assert da.getCorrelator().getNumPendingRequests() == 0;
+    }
+
+    public void testCancel() throws Exception {
+        ComposableFuture<Object> f=da.callRemoteMethodAsync(b.getAddress(), new MethodCall("sleep", new Object[]{3000L}, new Class[]{long.class}), SYNC);
+        assert da.getCorrelator().getNumPendingRequests() == 1;
+        f.cancel(true);
+        assert f.isCancelled();
+        assert da.getCorrelator().getNumPendingRequests() == 0;
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    public static class Server {
+        protected final String name;
+
+        public Server(String name) {this.name=name;}
+
+        public static int increment(int num) {return num+1;}
+
+        public static void fail() {throw new IllegalStateException("fail() was called");}
+
+        public static void sleep(long time) {Util.sleep(time);}
+
+        public void sleepIfB(long time) {
+            if(name.equals("B"))
+                Util.sleep(time);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.blocks.AsyncRequestHandler;
+import org.jgroups.blocks.MessageDispatcher;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.Response;
+import org.jgroups.protocols.FRAG2;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.BufferPool;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link BufferPool} and pooled payloads of received messages (TP.use_buffer_pool)
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class BufferPoolTest {
+
+    public void testAcquireAndRelease() {
+        BufferPool pool=new BufferPool(1024, 4096);
+        BufferPool.Ref ref=pool.acquire(10);
+        assert ref.buf().length == BufferPool.MIN_BUFFER_SIZE;
+        BufferPool.Ref ref2=pool.acquire(100);
+        assert ref2.buf().length == 128;
+        assert pool.getNumMisses() == 2 && pool.getNumHits() == 0;
+
+        byte[] buf=ref2.buf();
+        assert ref2.release();
+        BufferPool.Ref ref3=pool.acquire(120);
+        assert ref3.buf() == buf : "buffer should have been reused";
+        assert pool.getNumHits() == 1;
+
+        BufferPool.Ref large=pool.acquire(2000); // larger than max_buffer_size: not pooled
+        assert large.buf().length == 2000;
+        large.release();
+        assert pool.getNumDrops() == 1;
+        System.out.println("pool = " + pool);
+    }
+
+    public void testRefCount() {
+        BufferPool pool=new BufferPool(1024, 4096);
+        BufferPool.Ref ref=pool.acquire(500);
+        ref.retain();
+        assert !ref.release();
+        assert pool.pooled()[0] == 0;
+        assert ref.release();
+        assert pool.pooled()[0] == 1 && pool.pooled()[1] == 512;
+    }
+
+    public void testCapacity() {
+        BufferPool pool=new BufferPool(1024, 1024);
+        List<BufferPool.Ref> refs=new ArrayList<>();
+        for(int i=0; i < 5; i++)
+            refs.add(pool.acquire(256));
+        for(BufferPool.Ref ref: refs)
+            ref.release();
+        assert pool.pooled()[0] == 4 : "only 1024 bytes of 256 byte buffers should be pooled: " + pool;
+        assert pool.getNumDrops() == 1;
+    }
+
+    public void testMessageRelease() {
+        BufferPool pool=new BufferPool(1024, 4096);
+        Message msg=new Message(null).setPooledBuffer(pool.acquire(100), 0, 100);
+        assert msg.getLength() == 100;
+        Message copy=msg.copy();
+        assert copy.getRawBuffer() == msg.getRawBuffer();
+        assert !msg.release() : "the buffer is shared with the copy and must not be returned to the pool";
+        assert !copy.release();
+        assert pool.pooled()[0] == 0;
+
+        msg=new Message(null).setPooledBuffer(pool.acquire(100), 0, 100);
+        assert msg.release();
+        assert !msg.release() : "a message must release its buffer only once";
+        assert pool.pooled()[0] == 1;
+    }
+
+    /** Sends regular and fragmented messages and verifies their contents while buffers are recycled */
+    public void testPooledPayloads() throws Exception {
+        JChannel a=null, b=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            MyReceiver receiver=new MyReceiver();
+            b.setReceiver(receiver);
+            a.connect("BufferPoolTest");
+            b.connect("BufferPoolTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            final int NUM=500;
+            for(int i=0; i < NUM; i++) {
+                int size=i % 10 == 0? 20000 + i : 100 + i; // every 10th message is fragmented
+                a.send(new Message(b.getAddress(), create(size, (byte)i)));
+            }
+            for(int i=0; i < 20 && receiver.size() < NUM; i++)
+                Util.sleep(500);
+            assert receiver.size() == NUM : "received " + receiver.size() + " messages, expected " + NUM;
+            assert receiver.errors() == 0 : receiver.errors() + " messages had an incorrect payload";
+
+            BufferPool pool=b.getProtocolStack().getTransport().getBufferPool();
+            System.out.println("pool = " + pool);
+            assert pool.getNumHits() > 0;
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    /**
+     * Requests dispatched asynchronously keep their buffer until the response has been sent, and then return it to
+     * the pool. Requests without response get a copy of their buffer. The requests are coalesced into multi-requests
+     */
+    public void testAsyncRequests() throws Exception {
+        JChannel a=null, b=null;
+        MessageDispatcher da=null, db=null;
+        ExecutorService thread_pool=Executors.newFixedThreadPool(4);
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            AsyncHandler handler=new AsyncHandler(thread_pool);
+            da=new MessageDispatcher(a, null).coalesceRequests(true);
+            db=new MessageDispatcher(b, handler).asyncDispatching(true);
+            a.connect("BufferPoolTest");
+            b.connect("BufferPoolTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            BufferPool pool=b.getProtocolStack().getTransport().getBufferPool();
+            long returns=pool.getNumReturns();
+            final int NUM=200;
+            List<Future<Integer>> futures=new ArrayList<>(NUM);
+            for(int i=0; i < NUM; i++) {
+                Message msg=new Message(b.getAddress(), create(100 + i, (byte)i));
+                if(i % 4 == 0)
+                    da.sendMessage(msg, RequestOptions.ASYNC());
+                else
+                    futures.add(da.<Integer>sendMessageWithFuture(msg, RequestOptions.SYNC().setTimeout(10000)));
+            }
+            for(Future<Integer> future: futures)
+                assert future.get(10, TimeUnit.SECONDS) == 0 : "the handler found an incorrect payload";
+            for(int i=0; i < 20 && handler.size() < NUM; i++)
+                Util.sleep(500);
+            assert handler.size() == NUM : "handled " + handler.size() + " requests, expected " + NUM;
+            assert handler.errors() == 0 : handler.errors() + " requests had an incorrect payload";
+
+            System.out.println("pool = " + pool);
+            assert pool.getNumReturns() - returns >= futures.size() : "the buffers of the requests were not returned";
+        }
+        finally {
+            thread_pool.shutdownNow();
+            for(MessageDispatcher disp: new MessageDispatcher[]{db, da})
+                if(disp != null)
+                    disp.stop();
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static byte[] create(int size, byte val) {
+        byte[] buf=new byte[size];
+        for(int i=0; i < buf.length; i++)
+            buf[i]=val;
+        return buf;
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK().setValue("use_buffer_pool", true),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false),
+                            new FRAG2().fragSize(8000))
+          .name(name);
+    }
+
+
+    /** Checks the payload (filled with the same byte) of a request on a separate thread; returns the number of
+     * incorrect bytes */
+    protected static class AsyncHandler implements AsyncRequestHandler {
+        protected final ExecutorService thread_pool;
+        protected int                   num_handled, errors;
+
+        public AsyncHandler(ExecutorService thread_pool) {
+            this.thread_pool=thread_pool;
+        }
+
+        public Object handle(Message msg) throws Exception {
+            throw new UnsupportedOperationException();
+        }
+
+        public void handle(final Message req, final Response rsp) throws Exception {
+            thread_pool.execute(new Runnable() {
+                public void run() {
+                    Util.sleep(5); // other messages are received in the meantime, which may reuse released buffers
+                    byte[] buf=req.getRawBuffer();
+                    int incorrect=0;
+                    for(int i=req.getOffset(); i < req.getOffset() + req.getLength(); i++)
+                        if(buf[i] != buf[req.getOffset()])
+                            incorrect++;
+                    synchronized(AsyncHandler.this) {
+                        num_handled++;
+                        if(incorrect > 0)
+                            errors++;
+                    }
+                    if(rsp != null)
+                        rsp.send(incorrect, false);
+                }
+            });
+        }
+
+        public synchronized int size()   {return num_handled;}
+        public synchronized int errors() {return errors;}
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected int num_received, errors;
+        protected int expected; // payloads are filled with (byte)seqno
+
+        public synchronized void receive(Message msg) {
+            byte[] buf=msg.getRawBuffer();
+            byte val=(byte)expected++;
+            for(int i=msg.getOffset(); i < msg.getOffset() + msg.getLength(); i++) {
+                if(buf[i] != val) {
+                    errors++;
+                    break;
+                }
+            }
+            num_received++;
+        }
+        public synchronized int size()   {return num_received;}
+        public synchronized int errors() {return errors;}
+    }
+}
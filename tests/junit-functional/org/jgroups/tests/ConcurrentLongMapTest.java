@@ -0,0 +1,131 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.ConcurrentLongMap;
+import org.testng.annotations.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link ConcurrentLongMap}
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ConcurrentLongMapTest {
+
+    public void testPutGetRemove() {
+        ConcurrentLongMap<String> map=new ConcurrentLongMap<>(10);
+        assert map.capacity() == 16;
+        for(long i=1; i <= 10; i++)
+            assert map.putIfAbsent(i, String.valueOf(i)) == null;
+        assert map.size() == 10 && map.overflowSize() == 0;
+        assert map.putIfAbsent(5, "five").equals("5");
+        for(long i=1; i <= 10; i++)
+            assert map.get(i).equals(String.valueOf(i));
+        assert map.get(11) == null;
+        assert map.remove(5).equals("5");
+        assert map.remove(5) == null && map.get(5) == null;
+        assert map.size() == 9;
+    }
+
+    /** Keys which map to a taken slot are stored in the overflow map */
+    public void testOverflow() {
+        ConcurrentLongMap<Long> map=new ConcurrentLongMap<>(16);
+        for(long i=0; i < 100; i++)
+            map.putIfAbsent(i, i);
+        assert map.size() == 100 && map.overflowSize() == 84;
+        for(long i=0; i < 100; i++)
+            assert map.get(i) == i;
+        List<Long> values=map.values();
+        assert values.size() == 100;
+        for(long i=0; i < 100; i+=2)
+            assert map.remove(i) == i;
+        assert map.size() == 50;
+        for(long i=0; i < 100; i++)
+            assert (i % 2 == 0) == (map.get(i) == null);
+        map.clear();
+        assert map.isEmpty() && map.values().isEmpty() && map.overflowSize() == 0;
+    }
+
+    /** A key in the overflow must not be added again when its slot has been freed */
+    public void testPutIfAbsentAfterSlotFreed() {
+        ConcurrentLongMap<String> map=new ConcurrentLongMap<>(16);
+        long a=1, b=a + map.capacity(); // same slot
+        assert map.putIfAbsent(a, "a") == null;
+        assert map.putIfAbsent(b, "b") == null;
+        assert map.overflowSize() == 1;
+        assert map.remove(a).equals("a");
+        assert map.putIfAbsent(b, "b2").equals("b");
+        assert map.size() == 1 && map.get(b).equals("b");
+        assert map.remove(b).equals("b");
+        assert map.get(b) == null && map.remove(b) == null;
+        assert map.isEmpty() && map.overflowSize() == 0 : map;
+    }
+
+    /** Concurrent putIfAbsent() calls with the same key: only one of them must succeed */
+    public void testConcurrentPutIfAbsent() throws Exception {
+        final ConcurrentLongMap<Long> map=new ConcurrentLongMap<>(16);
+        final long a=1, b=a + map.capacity();
+        for(int round=1; round <= 1000; round++) {
+            map.putIfAbsent(a, a);
+            final CountDownLatch start=new CountDownLatch(1);
+            final AtomicInteger added=new AtomicInteger();
+            Thread[] threads=new Thread[4];
+            for(int i=0; i < threads.length; i++) {
+                threads[i]=new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                        }
+                        catch(InterruptedException e) {
+                        }
+                        if(map.putIfAbsent(b, b) == null)
+                            added.incrementAndGet();
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            map.remove(a); // frees the slot while the threads add b, to the slot or the overflow
+            for(Thread thread: threads)
+                thread.join(10000);
+            assert added.get() == 1 : "round " + round + ": " + added.get() + " threads added " + b;
+            assert map.size() == 1 && map.get(b) == b : "round " + round + ": " + map;
+            assert map.remove(b) == b;
+            assert map.isEmpty() && map.overflowSize() == 0 : "round " + round + ": " + map;
+        }
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final ConcurrentLongMap<Long> map=new ConcurrentLongMap<>(64);
+        final AtomicInteger errors=new AtomicInteger();
+        final CountDownLatch start=new CountDownLatch(1);
+        Thread[] threads=new Thread[8];
+        for(int i=0; i < threads.length; i++) {
+            final long offset=i * 10000L;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    for(long key=offset; key < offset + 10000; key++) {
+                        if(map.putIfAbsent(key, key) != null || map.get(key) != key)
+                            errors.incrementAndGet();
+                        if(key - offset >= 10 && map.remove(key - 10) != key - 10)
+                            errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread: threads)
+            thread.join(10000);
+        assert errors.get() == 0 : errors.get() + " errors";
+        assert map.size() == threads.length * 10 : "size=" + map.size();
+    }
+}
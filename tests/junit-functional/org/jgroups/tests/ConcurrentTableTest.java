@@ -0,0 +1,220 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.*;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Tests {@link ConcurrentTable}
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=false)
+public class ConcurrentTableTest {
+
+    public void testAddAndRemove() {
+        Table<Integer> table=new ConcurrentTable<>(3, 10, 0);
+        for(int i=1; i <= 5; i++)
+            assert table.add(i, i);
+        assert !table.add(3, 3);
+        assert table.size() == 5;
+        assertIndices(table, 0, 0, 5);
+        List<Integer> list=table.removeMany(true, 3);
+        assert list.size() == 3 && list.get(0) == 1 && list.get(2) == 3;
+        assertIndices(table, 3, 3, 5);
+        assert !table.add(2, 2) : "seqno <= hd must not be added again";
+        assert table.get(2) == null && table.get(4) == 4;
+        assert table.remove() == 4;
+        assert table.size() == 1;
+    }
+
+    public void testResizeAndPurge() {
+        Table<Integer> table=new ConcurrentTable<>(3, 10, 0);
+        for(int i=1; i <= 100; i++)
+            table.add(i, i);
+        assert table.capacity() >= 100;
+        assert table.size() == 100;
+        List<Integer> list=table.removeMany(false, 50);
+        assert list.size() == 50;
+        table.purge(40);
+        assertIndices(table, 40, 50, 100);
+        assert table.get(40) == null && table.get(41) == 41;
+        assert table.get(101) == null;
+        table.compact();
+        for(int i=41; i <= 100; i++)
+            assert table._get(i) == i;
+    }
+
+    public void testMissing() {
+        Table<Integer> table=new ConcurrentTable<>(3, 10, 0);
+        for(int i: new int[]{1,2,5,7,10})
+            table.add(i, i);
+        assert table.getHighestDeliverable() == 2;
+        assert table.getNumMissing() == 5;
+        SeqnoList missing=table.getMissing();
+        System.out.println("missing = " + missing);
+        List<Long> list=new ArrayList<>();
+        for(long seqno: missing)
+            list.add(seqno);
+        assert list.equals(Arrays.asList(3L,4L,6L,8L,9L)) : "missing: " + list;
+        assert table.getMissing(2).size() == 2;
+    }
+
+    public void testAddList() {
+        Table<Integer> table=new ConcurrentTable<>(3, 10, 0);
+        List<Tuple<Long,Integer>> list=new ArrayList<>();
+        for(long i=1; i <= 50; i++)
+            list.add(new Tuple<>(i, (int)i));
+        list.add(new Tuple<>(1L, 1));
+        assert table.add(list, true);
+        assert list.size() == 50;
+        assertIndices(table, 0, 0, 50);
+        assert table.add(5, 5) == false;
+    }
+
+    public void testRemoveOnAdd() {
+        Table<Integer> table=new ConcurrentTable<>(3, 10, 0);
+        Filter<Integer> even=new Filter<Integer>() {
+            public boolean accept(Integer element) {return element % 2 == 0;}
+        };
+        table.add(2, 2);
+        table.add(1, 1);
+        assertIndices(table, 0, 0, 2);
+        table.add(4, 4);
+        table.add(3, 3);
+        table.removeMany(false, 0);
+        assertIndices(table, 0, 4, 4);
+        table.add(6, 6, even);
+        table.add(5, 5, even);
+        assertIndices(table, 0, 4, 6);
+    }
+
+    /** Multiple threads add the same seqnos concurrently while the processing thread removes them: every element must
+     * be removed exactly once */
+    public void testConcurrentAddAndRemove() throws Exception {
+        final int NUM_THREADS=8, NUM=50000;
+        final Table<Integer> table=new ConcurrentTable<>(3, 128, 0);
+        final AtomicInteger removed=new AtomicInteger();
+        final AtomicLong    sum=new AtomicLong();
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[NUM_THREADS];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    for(int j=1; j <= NUM; j++) {
+                        table.add(j, j);
+                        AtomicBoolean processing=table.getProcessing();
+                        if(!processing.compareAndSet(false, true))
+                            continue;
+                        for(;;) {
+                            List<Integer> list=table.removeMany(processing, true, 100);
+                            if(list == null || list.isEmpty())
+                                break;
+                            removed.addAndGet(list.size());
+                            for(int num: list)
+                                sum.addAndGet(num);
+                        }
+                    }
+                }
+            };
+            adders[i].start();
+        }
+        latch.countDown();
+        for(Thread adder: adders)
+            adder.join();
+        System.out.println("table = " + table + ", removed=" + removed);
+        assert removed.get() == NUM : "removed " + removed + " elements, expected " + NUM;
+        assert sum.get() == (long)NUM * (NUM+1) / 2;
+        assertIndices(table, NUM, NUM, NUM);
+        assert table.isEmpty();
+    }
+
+    /** Adders add every seqno several times into small rows, while a remover removes them, nulling rows as it goes,
+     * and purges: no duplicate must be counted or left behind */
+    public void testConcurrentAddAndRemoveAndPurge() throws Exception {
+        final int NUM_THREADS=4, NUM=10000;
+        final ConcurrentTable<Integer> table=new ConcurrentTable<>(3, 4, 0);
+        final AtomicInteger removed=new AtomicInteger();
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] adders=new Thread[NUM_THREADS];
+        for(int i=0; i < adders.length; i++) {
+            adders[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    for(int j=1; j <= NUM; j++) {
+                        for(int seqno=Math.max(1, j-2); seqno <= j; seqno++)
+                            table.add(seqno, seqno);
+                    }
+                }
+            };
+            adders[i].start();
+        }
+        Thread remover=new Thread() {
+            public void run() {
+                while(removed.get() < NUM) {
+                    List<Integer> list=table.removeMany(true, 1);
+                    if(list == null)
+                        Thread.yield();
+                    else
+                        removed.addAndGet(list.size());
+                    long hd=table.getHighestDelivered();
+                    if(hd % 10 == 0)
+                        table.purge(hd);
+                }
+            }
+        };
+        remover.start();
+        latch.countDown();
+        for(Thread adder: adders)
+            adder.join();
+        remover.join(30000);
+        System.out.println("table = " + table + ", removed=" + removed);
+        assert removed.get() == NUM : "removed " + removed + " elements, expected " + NUM;
+        assertIndices(table, NUM, NUM, NUM);
+        assert table.size() == 0 : "size should be 0, but is " + table.size();
+        assert table.computeSize() == 0;
+        for(int i=1; i <= NUM; i++)
+            assert !table.add(i, i) : "seqno " + i + " <= hd must not be added again";
+        assert table.isEmpty();
+    }
+
+    public void testMissingWithNullRows() {
+        Table<Integer> table=new ConcurrentTable<>(3, 10, 0);
+        table.add(1, 1);
+        table.add(45, 45);
+        assert table.getNumMissing() == 43;
+        SeqnoList missing=table.getMissing();
+        assert missing.size() == 43 : "missing: " + missing;
+        assert missing.getLast() == 44;
+        missing=table.getMissing(5);
+        List<Long> list=new ArrayList<>();
+        for(long seqno: missing)
+            list.add(seqno);
+        assert list.equals(Arrays.asList(2L,3L,4L,5L,6L)) : "missing: " + list;
+        for(int i=2; i <= 44; i++)
+            table.add(i, i);
+        assert table.getMissing() == null;
+    }
+
+
+    protected static <T> void assertIndices(Table<T> buf, long low, long hd, long hr) {
+        assert buf.getLow() == low : "expected low=" + low + " but was " + buf.getLow();
+        assert buf.getHighestDelivered() == hd : "expected hd=" + hd + " but was " + buf.getHighestDelivered();
+        assert buf.getHighestReceived() == hr : "expected hr=" + hr + " but was " + buf.getHighestReceived();
+    }
+}
@@ -0,0 +1,166 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.NotifyingFuture;
+import org.jgroups.util.RspList;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests group requests sent to a subset of the destinations (num_targets), completing after N responses
+ * (num_responses), failover to spares and hedged requests
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class HedgedRpcTest {
+    protected JChannel        a, b, c, d;
+    protected RpcDispatcher   da, db, dc, dd;
+    protected Server          sa, sb, sc, sd;
+    protected static final MethodCall CALL=new MethodCall("get", null, new Class[]{});
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        da=new RpcDispatcher(a, sa=new Server("A"));
+        a.connect("HedgedRpcTest");
+        b=createChannel("B");
+        db=new RpcDispatcher(b, sb=new Server("B"));
+        b.connect("HedgedRpcTest");
+        c=createChannel("C");
+        dc=new RpcDispatcher(c, sc=new Server("C"));
+        c.connect("HedgedRpcTest");
+        d=createChannel("D");
+        dd=new RpcDispatcher(d, sd=new Server("D"));
+        d.connect("HedgedRpcTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        for(RpcDispatcher disp: new RpcDispatcher[]{dd, dc, db, da})
+            disp.stop();
+        Util.close(d, c, b, a);
+    }
+
+
+    /** Only the first num_targets destinations receive the request */
+    public void testNumTargets() throws Exception {
+        RequestOptions opts=RequestOptions.SYNC().setTimeout(5000).setNumTargets(2);
+        RspList<String> rsps=da.callRemoteMethods(dests(b, c, d), CALL, opts);
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.size() == 2 && rsps.numReceived() == 2;
+        assert rsps.getValue(b.getAddress()).equals("B") && rsps.getValue(c.getAddress()).equals("C");
+        assert sb.count() == 1 && sc.count() == 1 && sd.count() == 0;
+    }
+
+    /** The request completes as soon as num_responses responses have been received */
+    public void testNumResponses() throws Exception {
+        sd.sleep(3000);
+        RequestOptions opts=RequestOptions.SYNC().setTimeout(5000).setNumResponses(2);
+        long start=System.nanoTime();
+        RspList<String> rsps=da.callRemoteMethods(dests(b, c, d), CALL, opts);
+        long time=TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("rsps (%d ms):\n%s\n", time, rsps);
+        assert time < 2000 : "call took " + time + " ms";
+        assert rsps.numReceived() == 2 && !rsps.get(d.getAddress()).wasReceived();
+    }
+
+    /** B is slow, so a hedged request is sent to C, whose response completes the call */
+    public void testHedging() throws Exception {
+        sb.sleep(3000);
+        RequestOptions opts=new RequestOptions(ResponseMode.GET_FIRST, 5000).setNumTargets(1).setHedging(99, 100, 1);
+        long start=System.nanoTime();
+        RspList<String> rsps=da.callRemoteMethods(dests(b, c, d), CALL, opts);
+        long time=TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        System.out.printf("rsps (%d ms):\n%s\n", time, rsps);
+        assert time < 2000 : "call took " + time + " ms";
+        assert rsps.size() == 2;
+        assert rsps.getFirst().equals("C");
+        assert sd.count() == 0; // max_hedges is 1
+        assert da.getCorrelator().getNumPendingRequests() == 0;
+    }
+
+    /** No hedged request is sent if the targets respond in time */
+    public void testNoHedging() throws Exception {
+        RequestOptions opts=new RequestOptions(ResponseMode.GET_FIRST, 5000).setNumTargets(1).setHedging(99, 1000, 1);
+        for(int i=0; i < 5; i++) {
+            RspList<String> rsps=da.callRemoteMethods(dests(b, c), CALL, opts);
+            assert rsps.size() == 1 && rsps.getFirst().equals("B");
+        }
+        Util.sleep(1500);
+        assert sb.count() == 5 && sc.count() == 0;
+    }
+
+    /** B leaves while the request is pending, so the request is sent to spare C */
+    public void testFailover() throws Exception {
+        sb.sleep(2000);
+        RequestOptions opts=new RequestOptions(ResponseMode.GET_FIRST, 5000).setNumTargets(1);
+        Address addr_b=b.getAddress();
+        NotifyingFuture<RspList<String>> future=da.callRemoteMethodsWithFuture(dests(b, c), CALL, opts);
+        Util.sleep(200);
+        db.stop();
+        Util.close(b);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, c, d);
+        RspList<String> rsps=future.get(5000, TimeUnit.MILLISECONDS);
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.get(addr_b).wasSuspected();
+        assert rsps.getFirst().equals("C");
+    }
+
+
+    protected static List<Address> dests(JChannel ... channels) {
+        Address[] retval=new Address[channels.length];
+        for(int i=0; i < channels.length; i++)
+            retval[i]=channels[i].getAddress();
+        return Arrays.asList(retval);
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    public static class Server {
+        protected final String        name;
+        protected final AtomicInteger count=new AtomicInteger();
+        protected volatile long       sleep;
+
+        public Server(String name) {this.name=name;}
+
+        public int  count()           {return count.get();}
+        public void sleep(long time)  {sleep=time;}
+
+        public String get() {
+            count.incrementAndGet();
+            if(sleep > 0)
+                Util.sleep(sleep);
+            return name;
+        }
+    }
+}
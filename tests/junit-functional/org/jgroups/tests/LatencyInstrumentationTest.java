@@ -0,0 +1,104 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.blocks.MessageDispatcher;
+import org.jgroups.blocks.RequestHandler;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.RspList;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+/**
+ * Tests the latency instrumentation of the stack: {@link TIME}, {@link ProtocolStack#instrument()}, the thread pool
+ * delays in TP and the RPC round-trip times in RequestCorrelator
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class LatencyInstrumentationTest {
+    protected JChannel a, b;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        a.connect("LatencyInstrumentationTest");
+        b=createChannel("B");
+        b.connect("LatencyInstrumentationTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testInstrument() throws Exception {
+        ProtocolStack stack=a.getProtocolStack();
+        int num_prots=stack.getProtocols().size();
+        a.instrument();
+        a.instrument(); // no-op: every protocol already has a TIME protocol above it
+        List<Protocol> prots=stack.getProtocols();
+        assert prots.size() == num_prots * 2 : "expected " + num_prots * 2 + " protocols: " + prots;
+        for(int i=0; i < prots.size(); i+=2)
+            assert prots.get(i) instanceof TIME && !(prots.get(i+1) instanceof TIME) : "protocols: " + prots;
+
+        b.setReceiver(new ReceiverAdapter());
+        for(int i=0; i < 100; i++)
+            a.send(null, i);
+        Util.sleep(500);
+
+        TIME time=(TIME)prots.get(0); // above the top protocol
+        assert time.downTimes().count() >= 100;
+        String latencies=a.printLatencies();
+        System.out.println("latencies:\n" + latencies);
+        assert latencies.contains("NAKACK2") && latencies.contains("down (ns)");
+
+        a.uninstrument();
+        assert stack.getProtocols().size() == num_prots;
+        for(int i=0; i < 10; i++)
+            a.send(null, i);
+    }
+
+    public void testThreadPoolDelaysAndRpcTimes() throws Exception {
+        b.getProtocolStack().getTransport().setValue("record_thread_pool_delays", true);
+        MessageDispatcher da=new MessageDispatcher(a, null, null, null),
+          db=new MessageDispatcher(b, null, null, new RequestHandler() {
+              public Object handle(Message msg) throws Exception {return msg.getObject();}
+          });
+        try {
+            for(int i=0; i < 50; i++) {
+                RspList<Integer> rsps=da.castMessage(null, new Message(null, i),
+                                                     new RequestOptions(ResponseMode.GET_ALL, 5000));
+                assert rsps.getFirst() == i;
+            }
+            System.out.println("RPC times of A (us): " + da.getCorrelator().getRpcTimes());
+            assert da.getCorrelator().getRpcTimes().count() == 50;
+            TP tp=b.getProtocolStack().getTransport();
+            System.out.println("thread pool delays of B (us): " + tp.getThreadPoolDelays());
+            assert !tp.getThreadPoolDelays().startsWith("count=0");
+        }
+        finally {
+            da.stop();
+            db.stop();
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+}
@@ -0,0 +1,220 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.ReplicatedHashMap;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.protocols.pbcast.STATE_TRANSFER;
+import org.jgroups.util.ByteArrayDataInputStream;
+import org.jgroups.util.ByteArrayDataOutputStream;
+import org.jgroups.util.MarshallerRegistry;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests {@link MarshallerRegistry}
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class MarshallerRegistryTest {
+    protected static final short ID=2000;
+
+    @BeforeMethod
+    protected void setup() {
+        MarshallerRegistry.register(ID, Person.class, new PersonCodec());
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        MarshallerRegistry.unregister(ID);
+    }
+
+
+    public void testObjectToByteBuffer() throws Exception {
+        Person p=new Person("Bela", 42);
+        byte[] buf=Util.objectToByteBuffer(p);
+        Person p2=(Person)Util.objectFromByteBuffer(buf);
+        assert p.equals(p2);
+
+        MarshallerRegistry.unregister(ID);
+        byte[] serialized=Util.objectToByteBuffer(p);
+        System.out.printf("size with codec: %d, with serialization: %d\n", buf.length, serialized.length);
+        assert buf.length < serialized.length;
+        assert Util.objectFromByteBuffer(serialized).equals(p);
+    }
+
+    public void testObjectToStream() throws Exception {
+        ByteArrayDataOutputStream out=new ByteArrayDataOutputStream(64);
+        Util.objectToStream(new Person("Bela", 42), out);
+        Util.objectToStream("hello", out);
+        ByteArrayDataInputStream in=new ByteArrayDataInputStream(out.buffer(), 0, out.position());
+        assert Util.objectFromStream(in).equals(new Person("Bela", 42));
+        assert Util.objectFromStream(in).equals("hello");
+    }
+
+    public void testMessage() throws Exception {
+        Message msg=new Message(null, new Person("Bela", 42));
+        assert msg.getObject().equals(new Person("Bela", 42));
+    }
+
+    public void testMethodCall() throws Exception {
+        MethodCall call=new MethodCall("foo", new Object[]{new Person("Bela", 42), 5}, new Class[]{Person.class, int.class});
+        byte[] buf=Util.streamableToByteBuffer(call);
+        MethodCall call2=(MethodCall)Util.streamableFromByteBuffer(MethodCall.class, buf);
+        assert call2.getArgs()[0].equals(new Person("Bela", 42));
+        assert call2.getArgs()[1].equals(5);
+    }
+
+    /** The state of a ReplicatedHashMap is marshalled with the registered codec */
+    public void testReplicatedHashMapState() throws Exception {
+        ReplicatedHashMap<String,Person> m1=null, m2=null;
+        try {
+            m1=new ReplicatedHashMap<>(createChannel("A"));
+            m1.getChannel().connect("MarshallerRegistryTest");
+            m1.start(0);
+            m1.put("bela", new Person("Bela", 42));
+            m1.put("michelle", new Person("Michelle", 40));
+
+            m2=new ReplicatedHashMap<>(createChannel("B"));
+            m2.getChannel().connect("MarshallerRegistryTest");
+            m2.start(5000);
+            assert m2.size() == 2;
+            assert m2.get("bela").equals(new Person("Bela", 42));
+            assert m2.get("michelle").equals(new Person("Michelle", 40));
+        }
+        finally {
+            if(m2 != null)
+                m2.stop();
+            if(m1 != null)
+                m1.stop();
+        }
+    }
+
+    /** Without instances of registered classes, the state of a ReplicatedHashMap is a serialized HashMap */
+    public void testReplicatedHashMapStateFormat() throws Exception {
+        ReplicatedHashMap<String,Person> m1=null, m2=null;
+        try {
+            m1=new ReplicatedHashMap<>(createChannel("A"));
+            m1._put("bela", new Employee("Bela", 42, "Red Hat")); // subclasses are not marshalled by the codec
+            ByteArrayOutputStream out=new ByteArrayOutputStream();
+            m1.getState(out);
+            Map<String,Person> map=(Map<String,Person>)new ObjectInputStream(new ByteArrayInputStream(out.toByteArray())).readObject();
+            assert map instanceof HashMap && map.equals(m1);
+
+            m2=new ReplicatedHashMap<>(createChannel("B"));
+            m2.setState(new ByteArrayInputStream(out.toByteArray()));
+            assert m2.equals(m1) && m2.get("bela") instanceof Employee;
+
+            m1._put("michelle", new Person("Michelle", 40));
+            out=new ByteArrayOutputStream();
+            m1.getState(out);
+            m2._clear();
+            m2.setState(new ByteArrayInputStream(out.toByteArray()));
+            assert m2.equals(m1) && m2.get("bela") instanceof Employee;
+        }
+        finally {
+            if(m2 != null)
+                m2.stop();
+            if(m1 != null)
+                m1.stop();
+        }
+    }
+
+    public void testDuplicateRegistration() {
+        try {
+            MarshallerRegistry.register(ID, String.class, null);
+            assert false : "registration with null codec should have failed";
+        }
+        catch(IllegalArgumentException ex) {
+        }
+        try {
+            MarshallerRegistry.register(ID, Person.class, new PersonCodec());
+            assert false : "registration with the same ID should have failed";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+        try {
+            MarshallerRegistry.register((short)(ID+1), Person.class, new PersonCodec());
+            assert false : "registration of the same class should have failed";
+        }
+        catch(IllegalArgumentException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+        assert !MarshallerRegistry.isRegistered(Employee.class);
+    }
+
+    /** Subclasses of a registered class are not marshalled by the codec, which would drop the subclass' fields */
+    public void testSubclass() throws Exception {
+        Employee e=new Employee("Bela", 42, "JGroups");
+        Object e2=Util.objectFromByteBuffer(Util.objectToByteBuffer(e));
+        assert e2 instanceof Employee && ((Employee)e2).company.equals("JGroups");
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false),
+                            new STATE_TRANSFER())
+          .name(name);
+    }
+
+
+    public static class Person implements Serializable {
+        private static final long serialVersionUID=5406416405347339234L;
+        protected final String name;
+        protected final int    age;
+
+        public Person(String name, int age) {
+            this.name=name;
+            this.age=age;
+        }
+
+        public boolean equals(Object obj) {
+            return obj instanceof Person && name.equals(((Person)obj).name) && age == ((Person)obj).age;
+        }
+
+        public int hashCode() {
+            return name.hashCode() + age;
+        }
+    }
+
+    public static class Employee extends Person {
+        private static final long serialVersionUID=-5282906125452702542L;
+        protected final String company;
+
+        public Employee(String name, int age, String company) {
+            super(name, age);
+            this.company=company;
+        }
+    }
+
+    protected static class PersonCodec implements MarshallerRegistry.Codec<Person> {
+        public void writeTo(Person p, DataOutput out) throws Exception {
+            out.writeUTF(p.name);
+            out.writeInt(p.age);
+        }
+
+        public Person readFrom(DataInput in) throws Exception {
+            return new Person(in.readUTF(), in.readInt());
+        }
+    }
+}
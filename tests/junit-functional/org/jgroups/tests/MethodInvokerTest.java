@@ -0,0 +1,106 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.MethodInvoker;
+import org.jgroups.blocks.MethodLookup;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.Method;
+
+/**
+ * Tests {@link MethodInvoker}
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class MethodInvokerTest {
+
+    public void testTypes() throws Exception {
+        MethodInvoker invoker=new MethodInvoker(new Target());
+        assert invoker.numHandles() > 0;
+        Object retval=invoker.invoke(new MethodCall("add", new Object[]{1, 2}, new Class[]{int.class, int.class}), null);
+        assert (Integer)retval == 3;
+        retval=invoker.invoke(new MethodCall("add", new Object[]{"a", "b"}, new Class[]{String.class, String.class}), null);
+        assert retval.equals("ab");
+        retval=invoker.invoke(new MethodCall("name", null, null), null);
+        assert retval.equals("target");
+        retval=invoker.invoke(new MethodCall("twice", new Object[]{21L}, new Class[]{long.class}), null);
+        assert (Long)retval == 42;
+    }
+
+    public void testMethod() throws Exception {
+        Target target=new Target();
+        MethodInvoker invoker=new MethodInvoker(target);
+        Method m=Target.class.getMethod("set", int.class);
+        Object retval=invoker.invoke(new MethodCall(m, 5), null);
+        assert retval == null && target.value == 5;
+
+        // a method not declared by the target's class hierarchy (e.g. of an interface) is resolved on demand
+        m=Runnable.class.getMethod("run");
+        invoker.invoke(new MethodCall(m), null);
+        assert target.value == 6;
+    }
+
+    public void testId() throws Exception {
+        Target target=new Target();
+        MethodInvoker invoker=new MethodInvoker(target);
+        final Method set=Target.class.getMethod("set", int.class), add=Target.class.getMethod("add", int.class, int.class);
+        MethodLookup lookup=new MethodLookup() {
+            public Method findMethod(short id) {return id == 1? set : id == 2? add : null;}
+        };
+        for(int i=0; i < 10; i++) {
+            invoker.invoke(new MethodCall((short)1, i), lookup);
+            assert target.value == i;
+            assert (Integer)invoker.invoke(new MethodCall((short)2, i, 1), lookup) == i+1;
+        }
+        try {
+            invoker.invoke(new MethodCall((short)3), lookup);
+            assert false : "method with ID 3 should not be found";
+        }
+        catch(NoSuchMethodException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    public void testException() throws Exception {
+        MethodInvoker invoker=new MethodInvoker(new Target());
+        try {
+            invoker.invoke(new MethodCall("fail", null, null), null);
+            assert false : "fail() should have thrown an exception";
+        }
+        catch(IllegalStateException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+        try {
+            invoker.invoke(new MethodCall("doesNotExist", null, null), null);
+            assert false : "method should not be found";
+        }
+        catch(NoSuchMethodException ex) {
+            System.out.println("caught exception as expected: " + ex);
+        }
+    }
+
+    /** Methods of non-public classes can't be accessed via a public lookup: they are invoked via reflection */
+    public void testNonPublicClass() throws Exception {
+        MethodInvoker invoker=new MethodInvoker(new NonPublicTarget());
+        Object retval=invoker.invoke(new MethodCall("foo", null, null), null);
+        assert (Integer)retval == 1;
+    }
+
+
+    public static class Target implements Runnable {
+        protected int value;
+
+        public int          add(int a, int b)       {return a+b;}
+        public String       add(String a, String b) {return a+b;}
+        public String       name()                  {return "target";}
+        public void         set(int v)              {value=v;}
+        public void         run()                   {value++;}
+        public static long  twice(long num)         {return num*2;}
+        public void         fail()                  {throw new IllegalStateException("fail() was called");}
+    }
+
+    protected static class NonPublicTarget {
+        public int foo() {return 1;}
+    }
+}
@@ -0,0 +1,128 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests delivery of messages by the delivery threads of NAKACK2 (delivery_threads > 0)
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class NakackDeliveryThreadsTest {
+    protected JChannel   a, b, c;
+    protected MyReceiver ra, rb, rc;
+    protected static final int NUM_MSGS=5000;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A"); a.setReceiver(ra=new MyReceiver());
+        b=createChannel("B"); b.setReceiver(rb=new MyReceiver());
+        c=createChannel("C"); c.setReceiver(rc=new MyReceiver());
+        for(JChannel ch: Arrays.asList(a, b, c))
+            ch.connect("NakackDeliveryThreadsTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+    }
+
+    @AfterMethod
+    protected void destroy() {Util.close(c, b, a);}
+
+
+    /** All members send concurrently; every member receives the messages of each sender in order */
+    public void testOrderedDelivery() throws Exception {
+        final List<JChannel> channels=Arrays.asList(a, b, c);
+        final CountDownLatch latch=new CountDownLatch(1);
+        List<Thread> senders=new ArrayList<>();
+        for(final JChannel ch: channels) {
+            Thread sender=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int i=1; i <= NUM_MSGS; i++)
+                            ch.send(null, i);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders.add(sender);
+            sender.start();
+        }
+        latch.countDown();
+        for(Thread sender: senders)
+            sender.join(30000);
+
+        for(MyReceiver r: Arrays.asList(ra, rb, rc)) {
+            for(int i=0; i < 30 && r.size() < NUM_MSGS * channels.size(); i++)
+                Util.sleep(500);
+            assert r.size() == NUM_MSGS * channels.size() : "received " + r.size() + " messages";
+            assert r.errors.get() == 0 : r.errors + " messages were received out of order";
+            for(JChannel ch: channels)
+                assert r.last(ch.getAddress()) == NUM_MSGS;
+            for(String name: r.threads)
+                assert name.contains("NAKACK2-delivery") : "message delivered by thread " + name;
+        }
+        NAKACK2 nak=(NAKACK2)a.getProtocolStack().findProtocol(NAKACK2.class);
+        long tasks=nak.getNumDeliveryTasks();
+        System.out.println("delivery tasks run by A: " + tasks);
+        assert tasks > 0;
+    }
+
+    /** OOB messages are still delivered by the receiver threads */
+    public void testOOB() throws Exception {
+        for(int i=1; i <= 10; i++)
+            a.send(new Message(null, i).setFlag(Message.Flag.OOB));
+        for(int i=0; i < 20 && rb.size() < 10; i++)
+            Util.sleep(500);
+        assert rb.size() == 10;
+        for(String name: rb.threads)
+            assert !name.contains("NAKACK2-delivery") : "OOB message delivered by thread " + name;
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2().setValue("delivery_threads", 2).setValue("max_delivery_batches", 2),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final ConcurrentMap<Address,Integer> last=new ConcurrentHashMap<>();
+        protected final AtomicInteger                  received=new AtomicInteger(), errors=new AtomicInteger();
+        protected final Set<String>                    threads=new ConcurrentSkipListSet<>();
+
+        public int size()             {return received.get();}
+        public int last(Address addr) {Integer num=last.get(addr); return num != null? num : 0;}
+
+        public void receive(Message msg) {
+            threads.add(Thread.currentThread().getName());
+            int num=(Integer)msg.getObject();
+            Integer prev=last.put(msg.getSrc(), num);
+            if(!msg.isFlagSet(Message.Flag.OOB) && num != (prev != null? prev : 0) + 1)
+                errors.incrementAndGet();
+            received.incrementAndGet();
+        }
+    }
+}
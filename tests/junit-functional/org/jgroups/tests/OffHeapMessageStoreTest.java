@@ -0,0 +1,139 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.DISCARD;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.OffHeapMessageStore;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link OffHeapMessageStore} and NAKACK2 with xmit_table_off_heap=true
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class OffHeapMessageStoreTest {
+
+    public void testAddAndGet() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(1024, null);
+        for(int i=1; i <= 100; i++)
+            store.add(i, new Message(null, "hello-" + i));
+        assert store.size() == 100;
+        assert store.numSegments() > 1;
+        for(int i=1; i <= 100; i++) {
+            Message msg=store.get(i);
+            assert msg.getObject().equals("hello-" + i);
+        }
+        assert store.get(0) == null && store.get(101) == null;
+        store.add(50, new Message(null, "dupe")); // ignored
+        assert store.get(50).getObject().equals("hello-50");
+    }
+
+    public void testPurge() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(1024, null);
+        for(int i=1; i <= 100; i++)
+            store.add(i, new Message(null, new byte[100]));
+        int segments=store.numSegments();
+        store.purge(50);
+        assert store.size() == 50;
+        assert store.get(50) == null && store.get(51) != null;
+        assert store.numSegments() < segments : "segments holding only purged messages should have been freed";
+        store.purge(100);
+        assert store.size() == 0 && store.numBytes() == 0 && store.numSegments() == 0;
+        store.add(101, new Message(null, new byte[10]));
+        assert store.get(101).getLength() == 10;
+    }
+
+    public void testGaps() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(1024, null);
+        for(long seqno: new long[]{5, 6, 10, 3000})
+            store.add(seqno, new Message(null, seqno));
+        assert store.size() == 4;
+        assert store.get(7) == null;
+        assert (Long)store.get(3000).getObject() == 3000;
+        store.purge(8);
+        assert store.size() == 2;
+    }
+
+    public void testLargeMessage() throws Exception {
+        OffHeapMessageStore store=new OffHeapMessageStore(1024, null);
+        store.add(1, new Message(null, new byte[5000]));
+        store.add(2, new Message(null, new byte[10]));
+        assert store.get(1).getLength() == 5000 && store.get(2).getLength() == 10;
+    }
+
+    public void testMemoryMapped() throws Exception {
+        File dir=new File(System.getProperty("java.io.tmpdir"));
+        OffHeapMessageStore store=new OffHeapMessageStore(4096, dir);
+        for(int i=1; i <= 100; i++)
+            store.add(i, new Message(null, i));
+        for(int i=1; i <= 100; i++)
+            assert (Integer)store.get(i).getObject() == i;
+        store.clear();
+        assert store.size() == 0;
+    }
+
+    /** B drops messages, so A has to retransmit its own (delivered) messages, which have been moved off-heap */
+    public void testRetransmissionFromOffHeap() throws Exception {
+        JChannel a=null, b=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            MyReceiver receiver=new MyReceiver();
+            b.setReceiver(receiver);
+            a.connect("OffHeapMessageStoreTest");
+            b.connect("OffHeapMessageStoreTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            DISCARD discard=(DISCARD)b.getProtocolStack().findProtocol(DISCARD.class);
+            discard.setUpDiscardRate(0.2);
+            final int NUM=500;
+            for(int i=1; i <= NUM; i++)
+                a.send(null, i);
+
+            NAKACK2 nak=(NAKACK2)a.getProtocolStack().findProtocol(NAKACK2.class);
+            for(int i=0; i < 20 && receiver.size() < NUM; i++)
+                Util.sleep(500);
+            discard.setUpDiscardRate(0);
+            System.out.println("off-heap stores of A:\n" + nak.printOffHeapStores());
+            assert receiver.size() == NUM : "received " + receiver.size() + " messages, expected " + NUM;
+            List<Integer> list=receiver.list();
+            for(int i=0; i < NUM; i++)
+                assert list.get(i) == i+1 : "expected " + (i+1) + ", but got " + list.get(i);
+            assert nak.getOffHeapBytes() > 0;
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        // no STABLE: messages are not purged
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new DISCARD(),
+                            new NAKACK2().setValue("xmit_table_off_heap", true).setValue("off_heap_segment_size", 4096)
+                              .setValue("xmit_interval", 100),
+                            new UNICAST3().setValue("xmit_interval", 100),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Integer> list=new ArrayList<>();
+
+        public synchronized void receive(Message msg) {list.add((Integer)msg.getObject());}
+        public synchronized int           size()      {return list.size();}
+        public synchronized List<Integer> list()      {return new ArrayList<>(list);}
+    }
+}
@@ -0,0 +1,215 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.blocks.MessageDispatcher;
+import org.jgroups.blocks.RequestHandler;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.stack.Protocol;
+import org.jgroups.stack.ProtocolStack;
+import org.jgroups.util.RspList;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests packing of concurrent requests to the same destination into a single message (coalesceRequests)
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class RequestCoalescingTest {
+    protected JChannel          a, b;
+    protected MessageDispatcher da, db;
+    protected SlowDown          slow_down;
+    protected static final int  NUM_THREADS=10, NUM_REQUESTS=100;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        b=createChannel("B");
+        // slows down sending, so that requests sent by other threads accumulate in the meantime
+        a.getProtocolStack().insertProtocol(slow_down=new SlowDown(), ProtocolStack.ABOVE, GMS.class);
+        da=new MessageDispatcher(a, null, null, new Handler()).coalesceRequests(true);
+        db=new MessageDispatcher(b, null, null, new Handler());
+        a.connect("RequestCoalescingTest");
+        b.connect("RequestCoalescingTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        db.stop();
+        da.stop();
+        Util.close(b, a);
+    }
+
+
+    public void testConcurrentUnicastRequests() throws Exception {
+        final List<Throwable> errors=new CopyOnWriteArrayList<>();
+        final CountDownLatch start=new CountDownLatch(1);
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            final int offset=i * NUM_REQUESTS;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for(int j=offset; j < offset + NUM_REQUESTS; j++) {
+                            try {
+                                Integer rsp=da.sendMessage(new Message(b.getAddress(), j), RequestOptions.SYNC().setTimeout(10000));
+                                if(j % 2 != 0 || rsp != j * 2)
+                                    errors.add(new Exception("expected " + (j * 2) + ", but got " + rsp));
+                            }
+                            catch(InvocationTargetException ex) { // thrown by the handler for odd numbers
+                                if(j % 2 == 0 || !(ex.getCause() instanceof IllegalArgumentException))
+                                    errors.add(ex);
+                            }
+                        }
+                    }
+                    catch(Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert errors.isEmpty() : "errors: " + errors;
+        long num_msgs=da.getCorrelator().getNumCoalescedMessages(), num_reqs=da.getCorrelator().getNumCoalescedRequests();
+        System.out.printf("%d requests were sent in %d messages\n", num_reqs, num_msgs);
+        assert num_msgs > 0 && num_reqs > num_msgs;
+        assert da.getCorrelator().getNumPendingRequests() == 0;
+    }
+
+    /** Anycasts are sent as unicasts to each member, and are therefore coalesced, too */
+    public void testConcurrentAnycasts() throws Exception {
+        final List<Throwable> errors=new CopyOnWriteArrayList<>();
+        final List<Address> dests=Arrays.asList(a.getAddress(), b.getAddress());
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        for(int j=0; j < NUM_REQUESTS; j+=2) {
+                            RspList<Integer> rsps=da.castMessage(dests, new Message(null, j),
+                                                                 new RequestOptions(ResponseMode.GET_ALL, 10000, true));
+                            if(rsps.size() != 2 || rsps.numReceived() != 2 || !rsps.getResults().equals(Arrays.asList(j*2, j*2)))
+                                errors.add(new Exception("invalid responses: " + rsps));
+                        }
+                    }
+                    catch(Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert errors.isEmpty() : "errors: " + errors;
+        assert da.getCorrelator().getNumPendingRequests() == 0;
+    }
+
+    /** A request which cannot be sent must not prevent later requests to the same destination from being sent */
+    public void testSendFailure() throws Exception {
+        slow_down.failures=1;
+        try {
+            da.sendMessage(new Message(b.getAddress(), 2), RequestOptions.SYNC().setTimeout(1000));
+            assert false : "the request should have timed out";
+        }
+        catch(TimeoutException expected) {
+        }
+        for(int i=0; i < 10; i+=2) {
+            Integer rsp=da.sendMessage(new Message(b.getAddress(), i), RequestOptions.SYNC().setTimeout(5000));
+            assert rsp == i * 2;
+        }
+    }
+
+    /** OOB requests are not coalesced, so that a slow OOB request doesn't delay the responses to the others */
+    public void testOOBRequestsAreNotCoalesced() throws Exception {
+        final List<Throwable> errors=new CopyOnWriteArrayList<>();
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        for(int j=0; j < NUM_REQUESTS; j+=2) {
+                            Integer rsp=da.sendMessage(new Message(b.getAddress(), j),
+                                                       RequestOptions.SYNC().setTimeout(10000).setFlags(Message.Flag.OOB));
+                            if(rsp != j * 2)
+                                errors.add(new Exception("expected " + (j * 2) + ", but got " + rsp));
+                        }
+                    }
+                    catch(Throwable t) {
+                        errors.add(t);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join(30000);
+        assert errors.isEmpty() : "errors: " + errors;
+        assert da.getCorrelator().getNumCoalescedMessages() == 0;
+    }
+
+    public void testDisabled() throws Exception {
+        da.coalesceRequests(false);
+        for(int i=0; i < 10; i+=2) {
+            Integer rsp=da.sendMessage(new Message(b.getAddress(), i), RequestOptions.SYNC());
+            assert rsp == i * 2;
+        }
+        assert da.getCorrelator().getNumCoalescedMessages() == 0;
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+    /** Doubles even numbers and throws an exception for odd numbers */
+    protected static class Handler implements RequestHandler {
+        public Object handle(Message msg) throws Exception {
+            int num=(Integer)msg.getObject();
+            if(num % 2 != 0)
+                throw new IllegalArgumentException(num + " is odd");
+            return num * 2;
+        }
+    }
+
+    protected static class SlowDown extends Protocol {
+        protected volatile int failures; // number of messages to fail
+
+        public Object down(Event evt) {
+            if(evt.getType() == Event.MSG) {
+                if(failures > 0) {
+                    failures--;
+                    throw new IllegalStateException("failed sending " + evt.getArg());
+                }
+                Util.sleep(1);
+            }
+            return down_prot.down(evt);
+        }
+    }
+}
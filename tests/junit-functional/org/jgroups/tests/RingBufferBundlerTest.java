@@ -0,0 +1,160 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests the ring-buffer bundler in TP (bundler_type="ring-buffer") with many concurrent senders
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class RingBufferBundlerTest {
+    protected static final int NUM_SENDERS=10;
+    protected static final int NUM_MSGS=2000; // per sender
+    protected JChannel         a, b;
+    protected MyReceiver       ra, rb;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        a.setReceiver(ra=new MyReceiver());
+        a.connect("RingBufferBundlerTest");
+        b=createChannel("B");
+        b.setReceiver(rb=new MyReceiver());
+        b.connect("RingBufferBundlerTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testConcurrentMulticasts() throws Exception {
+        send(null);
+        checkReceived(ra, rb);
+    }
+
+    public void testConcurrentUnicasts() throws Exception {
+        send(b.getAddress());
+        checkReceived(rb);
+        assert ra.size() == 0 : "A should not have received any messages, but received " + ra.size();
+    }
+
+    /** Stops the bundler while senders fill a small ring buffer, then checks that it still sends after a restart */
+    public void testSendAfterReconnect() throws Exception {
+        Util.close(a);
+        a=createChannel("A", 4);
+        a.setReceiver(ra);
+        a.connect("RingBufferBundlerTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        final CountDownLatch latch=new CountDownLatch(1);
+        List<Thread> senders=new ArrayList<>(NUM_SENDERS);
+        for(int i=0; i < NUM_SENDERS; i++) {
+            Thread sender=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=1; j <= NUM_MSGS; j++)
+                            a.send(null, j);
+                    }
+                    catch(Exception e) {
+                        // expected: the channel is disconnected while sending
+                    }
+                }
+            };
+            senders.add(sender);
+            sender.start();
+        }
+        latch.countDown();
+        Util.sleep(100);
+        a.disconnect();
+        for(Thread sender: senders)
+            sender.join(30000);
+
+        a.connect("RingBufferBundlerTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        ra.reset();
+        rb.reset();
+        for(int i=1; i <= NUM_MSGS; i++)
+            a.send(b.getAddress(), i);
+        for(int i=0; i < 20 && rb.size() < NUM_MSGS; i++)
+            Util.sleep(500);
+        assert rb.size() == NUM_MSGS : "expected " + NUM_MSGS + " messages, but received " + rb.size();
+    }
+
+
+    protected void send(final Address dest) throws Exception {
+        final CountDownLatch latch=new CountDownLatch(1);
+        List<Thread> senders=new ArrayList<>(NUM_SENDERS);
+        for(int i=0; i < NUM_SENDERS; i++) {
+            Thread sender=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=1; j <= NUM_MSGS; j++)
+                            a.send(dest, j);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            senders.add(sender);
+            sender.start();
+        }
+        latch.countDown();
+        for(Thread sender: senders)
+            sender.join(30000);
+    }
+
+    protected static void checkReceived(MyReceiver ... receivers) {
+        int expected=NUM_SENDERS * NUM_MSGS;
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(MyReceiver r: receivers)
+                if(r.size() < expected)
+                    done=false;
+            if(done)
+                break;
+            Util.sleep(500);
+        }
+        for(MyReceiver r: receivers) {
+            System.out.println("received " + r.size() + " messages");
+            assert r.size() == expected : "expected " + expected + " messages, but received " + r.size();
+        }
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return createChannel(name, 512);
+    }
+
+    protected static JChannel createChannel(String name, int capacity) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK().setValue("bundler_type", "ring-buffer").setValue("bundler_capacity", capacity),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected int num_received;
+
+        public synchronized void receive(Message msg) {num_received++;}
+        public synchronized int  size()               {return num_received;}
+        public synchronized void reset()              {num_received=0;}
+    }
+}
@@ -1,10 +1,13 @@
 package org.jgroups.tests;
 
 import org.jgroups.Global;
+import org.jgroups.util.CompactSeqnoList;
 import org.jgroups.util.SeqnoList;
 import org.jgroups.util.Util;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -127,6 +130,43 @@ public class SeqnoListTest {
         }
     }
 
+    /** A few gaps in a large window are marshalled as ranges, which are much smaller than the bitmap */
+    public void testSerializationOfRanges() throws Exception {
+        SeqnoList list=new SeqnoList(100000, 500000).add(500010).add(520000, 520100).add(599998);
+        assert list.numRanges() == 3;
+        SeqnoList compact=new CompactSeqnoList(list);
+        int expected_size=compact.serializedSize();
+        byte[] buf=Util.streamableToByteBuffer(compact);
+        System.out.println("list = " + compact + ", serialized size=" + buf.length + " (bitmap: " +
+                             Util.streamableToByteBuffer(list).length + ")");
+        assert buf.length == expected_size && buf.length < 50;
+        SeqnoList list2=(SeqnoList)Util.streamableFromByteBuffer(CompactSeqnoList.class,buf);
+        assert list2.size() == list.size() && list2.numRanges() == 3;
+        Iterator<Long> it1=list.iterator(), it2=list2.iterator();
+        while(it1.hasNext())
+            assert it1.next().equals(it2.next());
+        assert !it2.hasNext();
+
+        // ends with a range
+        list=new CompactSeqnoList(200, 0).add(0, 9).add(190, 199);
+        list2=(SeqnoList)Util.streamableFromByteBuffer(CompactSeqnoList.class, Util.streamableToByteBuffer(list));
+        assert list2.size() == 20 && list2.getLast() == 199;
+
+        list=new CompactSeqnoList(10, 5);
+        list2=(SeqnoList)Util.streamableFromByteBuffer(CompactSeqnoList.class, Util.streamableToByteBuffer(list));
+        assert list2.isEmpty();
+    }
+
+    /** SeqnoList itself must keep its wire format, so that members running an older version can read it */
+    public void testWireFormat() throws Exception {
+        SeqnoList list=new SeqnoList(100000, 500000).add(500010).add(520000, 520100);
+        byte[] buf=Util.streamableToByteBuffer(list);
+        int num_words=(100000 + 63) / 64;
+        assert buf.length == Global.INT_SIZE + Global.LONG_SIZE + num_words * Global.LONG_SIZE;
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf));
+        assert in.readInt() == 100000 && in.readLong() == 500000;
+    }
+
     protected static void _testIteration(SeqnoList list, List<Long> expected) {
         System.out.println("list = " + list);
         assert list.size() == expected.size();
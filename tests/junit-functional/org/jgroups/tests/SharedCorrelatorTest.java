@@ -0,0 +1,193 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Channel;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.blocks.*;
+import org.jgroups.blocks.mux.MuxRpcDispatcher;
+import org.jgroups.blocks.mux.MuxUpHandler;
+import org.jgroups.blocks.mux.SharedRequestCorrelator;
+import org.jgroups.fork.ForkChannel;
+import org.jgroups.protocols.FORK;
+import org.jgroups.util.NotifyingFuture;
+import org.jgroups.util.Rsp;
+import org.jgroups.util.RspList;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link SharedRequestCorrelator}, shared by the {@link MuxRpcDispatcher}s of a channel
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class SharedCorrelatorTest {
+    protected JChannel             a, b;
+    protected ForkChannel          fa, fb;
+    protected RpcDispatcher        da, db;        // default dispatchers (no mux header)
+    protected MuxRpcDispatcher[][] services;      // services[channel][service]
+    protected static final short   NUM_SERVICES=3;
+    protected static final MethodCall CALL=new MethodCall("get", null, new Class[]{});
+    protected static final MethodCall BLOCK=new MethodCall("block", null, new Class[]{});
+    protected static volatile CountDownLatch block_latch=new CountDownLatch(0);
+    protected static final String  CLUSTER="SharedCorrelatorTest";
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=new JChannel(Util.getTestStack(new FORK())).name("A");
+        b=new JChannel(Util.getTestStack(new FORK())).name("B");
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        block_latch.countDown();
+        if(services != null)
+            for(MuxRpcDispatcher[] disps: services)
+                for(MuxRpcDispatcher disp: disps)
+                    if(disp != null)
+                        disp.stop();
+        for(RpcDispatcher disp: new RpcDispatcher[]{db, da})
+            if(disp != null)
+                disp.stop();
+        Util.close(fb, fa, b, a);
+    }
+
+
+    public void testSharedCorrelator() throws Exception {
+        createServices(a, b);
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        for(MuxRpcDispatcher[] disps: services) {
+            RequestCorrelator corr=disps[0].getCorrelator();
+            assert corr instanceof SharedRequestCorrelator;
+            assert ((SharedRequestCorrelator)corr).getNumServices() == NUM_SERVICES;
+            for(MuxRpcDispatcher disp: disps)
+                assert disp.getCorrelator() == corr;
+        }
+        assert !(da.getCorrelator() instanceof SharedRequestCorrelator);
+        invokeServices(a, b);
+    }
+
+    /** A request to a service which is not registered at a member doesn't get a response from it */
+    public void testMissingService() throws Exception {
+        createServices(a, b);
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        services[1][2].stop();
+        assert ((SharedRequestCorrelator)services[1][0].getCorrelator()).getNumServices() == NUM_SERVICES-1;
+        RspList<String> rsps=services[0][2].callRemoteMethods(null, CALL, RequestOptions.SYNC().setTimeout(5000));
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.numReceived() == 1 && rsps.getValue(a.getAddress()).equals("A:2");
+        assert !rsps.get(b.getAddress()).wasReceived();
+
+        // the other services are not affected
+        rsps=services[0][1].callRemoteMethods(null, CALL, RequestOptions.SYNC().setTimeout(5000));
+        assert rsps.numReceived() == 2 && rsps.getValue(b.getAddress()).equals("B:1");
+        String rsp=services[0][0].callRemoteMethod(b.getAddress(), CALL, RequestOptions.SYNC().setTimeout(5000));
+        assert rsp.equals("B:0");
+    }
+
+    /** Stopping a service fails its pending requests, but not the pending requests of the other services */
+    public void testStopServiceWithPendingRequests() throws Exception {
+        createServices(a, b);
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        block_latch=new CountDownLatch(1);
+        List<Address> dest=Collections.singletonList(b.getAddress());
+        RequestOptions opts=RequestOptions.SYNC().setTimeout(0).setFlags(Message.Flag.OOB);
+        NotifyingFuture<RspList<String>> f1=services[0][1].callRemoteMethodsWithFuture(dest, BLOCK, opts);
+        NotifyingFuture<RspList<String>> f2=services[0][2].callRemoteMethodsWithFuture(dest, BLOCK, opts);
+        RequestCorrelator corr=services[0][0].getCorrelator();
+        assert corr.getNumPendingRequests() == 2;
+
+        services[0][1].stop();
+        Rsp<String> rsp=f1.get(10, TimeUnit.SECONDS).get(b.getAddress());
+        System.out.println("rsp of stopped service: " + rsp);
+        assert rsp.getException() instanceof IllegalStateException;
+        assert !f2.isDone() && corr.getNumPendingRequests() == 1;
+
+        block_latch.countDown();
+        RspList<String> rsps=f2.get(10, TimeUnit.SECONDS);
+        assert rsps.numReceived() == 1 && rsps.getValue(b.getAddress()).equals("B:2") : "rsps: " + rsps;
+        assert corr.getNumPendingRequests() == 0;
+    }
+
+    /** The services share the correlator of a fork-channel */
+    public void testForkChannel() throws Exception {
+        fa=new ForkChannel(a, "stack", "fc");
+        fb=new ForkChannel(b, "stack", "fc");
+        a.connect(CLUSTER);
+        b.connect(CLUSTER);
+        createServices(fa, fb);
+        fa.connect("fc");
+        fb.connect("fc");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, fa, fb);
+        assert services[0][0].getCorrelator() instanceof SharedRequestCorrelator;
+        invokeServices(a, b);
+    }
+
+
+    protected void createServices(JChannel ... channels) throws Exception {
+        services=new MuxRpcDispatcher[channels.length][NUM_SERVICES];
+        for(int i=0; i < channels.length; i++) {
+            JChannel ch=channels[i];
+            String name=i == 0? "A" : "B"; // the name of a fork-channel is only set on connect
+            ch.setUpHandler(new MuxUpHandler());
+            RpcDispatcher disp=new RpcDispatcher(ch, new Server(name + ":default"));
+            if(i == 0) da=disp; else db=disp;
+            for(short j=0; j < NUM_SERVICES; j++)
+                services[i][j]=new MuxRpcDispatcher(j, ch, null, null, new Server(name + ":" + j));
+        }
+    }
+
+    protected void invokeServices(Channel ... channels) throws Exception {
+        List<Address> dests=Arrays.asList(channels[0].getAddress(), channels[1].getAddress());
+        for(int i=0; i < services.length; i++) {
+            for(short j=0; j < NUM_SERVICES; j++) {
+                MuxRpcDispatcher disp=services[i][j];
+                RspList<String> rsps=disp.callRemoteMethods(dests, CALL, RequestOptions.SYNC().setTimeout(5000));
+                assert rsps.numReceived() == 2 : "rsps: " + rsps;
+                assert rsps.getValue(dests.get(0)).equals("A:" + j) && rsps.getValue(dests.get(1)).equals("B:" + j);
+
+                Address target=dests.get((i+1) % 2);
+                String rsp=disp.callRemoteMethod(target, CALL, RequestOptions.SYNC().setTimeout(5000));
+                assert rsp.equals((i == 0? "B:" : "A:") + j) : "rsp: " + rsp;
+                assert disp.getCorrelator().getNumPendingRequests() == 0;
+            }
+        }
+        // the default dispatchers (without mux header) are not affected
+        RspList<String> rsps=da.callRemoteMethods(dests, CALL, RequestOptions.SYNC().setTimeout(5000));
+        assert rsps.numReceived() == 2 && rsps.getValue(dests.get(1)).equals("B:default") : "rsps: " + rsps;
+    }
+
+
+    public static class Server {
+        protected final String name;
+
+        public Server(String name) {this.name=name;}
+
+        public String get() {return name;}
+
+        public String block() throws InterruptedException {
+            block_latch.await();
+            return name;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.MethodCall;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseStream;
+import org.jgroups.blocks.RpcDispatcher;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests streaming of responses by {@link org.jgroups.blocks.RequestCorrelator} when a method returns an InputStream
+ * @author agent
+ * @since  3.6.4
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class StreamingRpcTest {
+    protected JChannel      a, b;
+    protected RpcDispatcher da, db;
+    protected static final RequestOptions SYNC=RequestOptions.SYNC().setTimeout(5000);
+    protected static final int            CHUNK_SIZE=1000, WINDOW=4;
+    protected static final AtomicBoolean  closed=new AtomicBoolean();
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        closed.set(false);
+        a=createChannel("A");
+        da=new RpcDispatcher(a, new Server());
+        a.connect("StreamingRpcTest");
+        b=createChannel("B");
+        db=new RpcDispatcher(b, new Server());
+        b.connect("StreamingRpcTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        for(RpcDispatcher disp: new RpcDispatcher[]{da, db})
+            disp.getCorrelator().streamChunkSize(CHUNK_SIZE).streamWindow(WINDOW).streamTimeout(5000);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        db.stop();
+        da.stop();
+        Util.close(b, a);
+    }
+
+
+    public void testStreaming() throws Exception {
+        for(int size: new int[]{0, 1, CHUNK_SIZE, CHUNK_SIZE * 3 + 17, 100000}) {
+            Object rsp=da.callRemoteMethod(b.getAddress(), new MethodCall("data", new Object[]{size}, new Class[]{int.class}), SYNC);
+            assert rsp instanceof ResponseStream : "rsp is " + rsp;
+            try(InputStream in=(InputStream)rsp) {
+                byte[] buf=new byte[777];
+                int total=0, num;
+                while((num=in.read(buf, 0, buf.length)) >= 0) {
+                    for(int i=0; i < num; i++)
+                        assert buf[i] == (byte)(total + i) : "byte at " + (total + i) + " is " + buf[i];
+                    total+=num;
+                }
+                assert total == size : "read " + total + " bytes, but expected " + size;
+            }
+        }
+        assert db.getCorrelator().getNumStreamsSent() == 0;
+    }
+
+    /** Reading slowly must not make the sender send more than WINDOW unread chunks */
+    public void testFlowControl() throws Exception {
+        InputStream in=da.callRemoteMethod(b.getAddress(), new MethodCall("data", new Object[]{100 * CHUNK_SIZE}, new Class[]{int.class}), SYNC);
+        Util.sleep(500);
+        assert in.available() <= WINDOW * CHUNK_SIZE : "available: " + in.available();
+        int total=0;
+        while(in.read() >= 0)
+            total++;
+        assert total == 100 * CHUNK_SIZE;
+        in.close();
+    }
+
+    /** Closing the stream before the end cancels the sending of the response */
+    public void testCancel() throws Exception {
+        InputStream in=da.callRemoteMethod(b.getAddress(), new MethodCall("endless", null, new Class[]{}), SYNC);
+        byte[] buf=new byte[CHUNK_SIZE * 5];
+        int total=0;
+        while(total < buf.length)
+            total+=in.read(buf, total, buf.length - total);
+        in.close();
+        for(int i=0; i < 20 && !closed.get(); i++)
+            Util.sleep(250);
+        assert closed.get() : "the stream on the sender wasn't closed";
+        assert db.getCorrelator().getNumStreamsSent() == 0;
+        assert da.getCorrelator().getNumStreamsReceived() == 0;
+
+        // the channel is still usable
+        InputStream in2=da.callRemoteMethod(b.getAddress(), new MethodCall("data", new Object[]{10}, new Class[]{int.class}), SYNC);
+        int num=0;
+        while(in2.read() >= 0)
+            num++;
+        assert num == 10;
+    }
+
+    /** An exception thrown by the stream after some chunks have been sent is rethrown to the reader */
+    public void testExceptionInStream() throws Exception {
+        InputStream in=da.callRemoteMethod(b.getAddress(), new MethodCall("failAfter", new Object[]{CHUNK_SIZE * 2 + 5}, new Class[]{int.class}), SYNC);
+        int total=0;
+        try {
+            while(in.read() >= 0)
+                total++;
+            assert false : "read should have thrown an exception";
+        }
+        catch(IOException ex) {
+            System.out.println("received exception, as expected: " + ex + ", cause: " + ex.getCause());
+            assert ex.getCause() instanceof IOException;
+        }
+        assert total == CHUNK_SIZE * 2 : "total=" + total;
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    /** Generates size bytes (byte at position i is (byte)i), fails after fail_after bytes if >= 0 */
+    protected static class DataStream extends InputStream {
+        protected final long size, fail_after;
+        protected long       pos;
+
+        protected DataStream(long size, long fail_after) {
+            this.size=size;
+            this.fail_after=fail_after;
+        }
+
+        public int read() throws IOException {
+            if(fail_after >= 0 && pos >= fail_after)
+                throw new IOException("failed at position " + pos);
+            return pos < size? (byte)pos++ & 0xff : -1;
+        }
+
+        public void close() {
+            closed.set(true);
+        }
+    }
+
+
+    public static class Server {
+        public static InputStream data(int size)      {return new DataStream(size, -1);}
+        public static InputStream endless()           {return new DataStream(Long.MAX_VALUE, -1);}
+        public static InputStream failAfter(int size) {return new DataStream(Long.MAX_VALUE, size);}
+    }
+}
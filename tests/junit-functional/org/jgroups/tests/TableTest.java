@@ -893,6 +893,22 @@ public class TableTest {
         assert buf.getNumMissing() == missing.size();
     }
 
+    /** Missing rows are added as ranges */
+    public void testGetMissingWithEmptyRows() {
+        Table<Integer> buf=new Table<>(3, 10, 0);
+        buf.add(1, 1);
+        buf.add(5, 5);
+        buf.add(95, 95);
+        SeqnoList missing=buf.getMissing();
+        System.out.println("missing = " + missing);
+        assert missing.size() == buf.getNumMissing() && missing.size() == 92;
+        assert missing.numRanges() == 2 && missing.getLast() == 94;
+
+        missing=buf.getMissing(10);
+        System.out.println("missing = " + missing);
+        assert missing.size() == 10 && missing.getLast() == 12;
+    }
+
     public void testGetMissingWithMaxSize() {
         Table<Integer> buf=new Table<>(3, 10, 0);
 
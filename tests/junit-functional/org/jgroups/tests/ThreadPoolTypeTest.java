@@ -0,0 +1,179 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.OrderedExecutor;
+import org.jgroups.util.Util;
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link OrderedExecutor} and TP with thread_pool_type "fork-join" and "virtual"
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class ThreadPoolTypeTest {
+
+    @DataProvider(name="types")
+    protected static Object[][] types() {
+        return new Object[][]{{"fork-join"}, {"virtual"}};
+    }
+
+    public void testOrderedExecutor() throws Exception {
+        ExecutorService pool=Executors.newFixedThreadPool(4);
+        try {
+            OrderedExecutor executor=new OrderedExecutor(pool);
+            final List<Integer> a=Collections.synchronizedList(new ArrayList<Integer>()),
+              b=Collections.synchronizedList(new ArrayList<Integer>());
+            final AtomicInteger active_a=new AtomicInteger(), max_active_a=new AtomicInteger();
+            final CountDownLatch done=new CountDownLatch(2000);
+            for(int i=0; i < 1000; i++) {
+                final int num=i;
+                executor.execute("A", new Runnable() {
+                    public void run() {
+                        int active=active_a.incrementAndGet();
+                        if(active > max_active_a.get())
+                            max_active_a.set(active);
+                        a.add(num);
+                        active_a.decrementAndGet();
+                        done.countDown();
+                    }
+                });
+                executor.execute("B", new Runnable() {
+                    public void run() {b.add(num); done.countDown();}
+                });
+            }
+            assert done.await(10, TimeUnit.SECONDS);
+            assert max_active_a.get() == 1 : "tasks of the same key must not run concurrently";
+            for(List<Integer> list: Arrays.asList(a, b))
+                for(int i=0; i < list.size(); i++)
+                    assert list.get(i) == i : "expected " + i + ", but got " + list.get(i);
+            assert executor.numLanes() == 2;
+            executor.retainAll(Arrays.asList("A"));
+            assert executor.numLanes() == 1;
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /** The lane of a removed key still has tasks: tasks submitted later with the same key must run after them */
+    public void testRetainAllWithBusyLane() throws Exception {
+        ExecutorService pool=Executors.newFixedThreadPool(4);
+        try {
+            OrderedExecutor executor=new OrderedExecutor(pool);
+            final List<Integer> list=Collections.synchronizedList(new ArrayList<Integer>());
+            final CountDownLatch latch=new CountDownLatch(1), done=new CountDownLatch(2);
+            executor.execute("A", new Runnable() {
+                public void run() {
+                    try {
+                        latch.await(10, TimeUnit.SECONDS);
+                    }
+                    catch(InterruptedException e) {
+                    }
+                    list.add(1);
+                    done.countDown();
+                }
+            });
+            executor.execute("B", new Runnable() {
+                public void run() {}
+            });
+            Util.sleep(500); // the tasks of B have run
+            executor.retainAll(Collections.emptyList());
+            assert executor.numLanes() == 1 : "the busy lane of A must be kept until it has run its tasks";
+
+            executor.execute("A", new Runnable() {
+                public void run() {list.add(2); done.countDown();}
+            });
+            latch.countDown();
+            assert done.await(10, TimeUnit.SECONDS);
+            assert list.equals(Arrays.asList(1, 2)) : "tasks ran out of order: " + list;
+            for(int i=0; i < 20 && executor.numLanes() > 0; i++)
+                Util.sleep(100);
+            assert executor.numLanes() == 0 : "the lane of A should have been removed when it became idle";
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /** A regular handler blocks until an OOB message is received: the OOB message must not be starved */
+    @Test(dataProvider="types")
+    public void testBlockingHandler(String type) throws Exception {
+        JChannel a=null, b=null;
+        try {
+            a=createChannel("A", type);
+            b=createChannel("B", type);
+            final CountDownLatch latch=new CountDownLatch(1);
+            final List<Integer> mcasts=Collections.synchronizedList(new ArrayList<Integer>()),
+              ucasts=Collections.synchronizedList(new ArrayList<Integer>());
+            b.setReceiver(new ReceiverAdapter() {
+                public void receive(Message msg) {
+                    int num=(Integer)msg.getObject();
+                    if(num == 0) { // OOB message
+                        latch.countDown();
+                        return;
+                    }
+                    if(num == 1) {
+                        try {
+                            latch.await(10, TimeUnit.SECONDS);
+                        }
+                        catch(InterruptedException e) {
+                        }
+                    }
+                    (msg.getDest() == null? mcasts : ucasts).add(num);
+                }
+            });
+            a.connect("ThreadPoolTypeTest");
+            b.connect("ThreadPoolTypeTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            final int NUM=500;
+            for(int i=1; i <= NUM; i++) {
+                a.send(null, i);
+                a.send(b.getAddress(), i);
+            }
+            a.send(new Message(b.getAddress(), 0).setFlag(Message.Flag.OOB));
+
+            for(int i=0; i < 20 && (mcasts.size() < NUM || ucasts.size() < NUM); i++)
+                Util.sleep(500);
+            assert latch.getCount() == 0;
+            for(List<Integer> list: Arrays.asList(mcasts, ucasts)) {
+                assert list.size() == NUM : "received " + list.size() + " messages, expected " + NUM;
+                for(int i=0; i < list.size(); i++)
+                    assert list.get(i) == i+1 : "expected " + (i+1) + ", but got " + list.get(i);
+            }
+            TP tp=b.getProtocolStack().getTransport();
+            assert tp.getDefaultThreadPool() == tp.getOOBThreadPool() : "regular and OOB messages share an executor";
+            assert tp.getInternalThreadPool() != tp.getDefaultThreadPool();
+            System.out.printf("%s: thread pool is %s\n", type, tp.getDefaultThreadPool().getClass().getSimpleName());
+        }
+        finally {
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name, String type) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK().setValue("thread_pool_type", type).setValue("fork_join_parallelism", 2),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+}
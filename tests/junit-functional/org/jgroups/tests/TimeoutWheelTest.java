@@ -0,0 +1,106 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.blocks.MessageDispatcher;
+import org.jgroups.blocks.RequestHandler;
+import org.jgroups.blocks.RequestOptions;
+import org.jgroups.blocks.ResponseMode;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.SHARED_LOOPBACK_PING;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.NotifyingFuture;
+import org.jgroups.util.RspList;
+import org.jgroups.util.TimeoutWheel;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests {@link TimeoutWheel} and the expiry of requests which don't block the caller in RequestCorrelator
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class TimeoutWheelTest {
+
+    public void testExpiry() {
+        final List<Long> expired=Collections.synchronizedList(new ArrayList<Long>());
+        TimeoutWheel wheel=new TimeoutWheel(8, 10, TimeUnit.MILLISECONDS, new TimeoutWheel.Expirer() {
+            public void expired(long id) {expired.add(id);}
+        });
+        wheel.add(1, 50, TimeUnit.MILLISECONDS);
+        wheel.add(2, 200, TimeUnit.MILLISECONDS); // longer than a rotation (80 ms)
+        wheel.add(3, 0, TimeUnit.MILLISECONDS);
+        assert wheel.size() == 3;
+
+        Util.sleep(60);
+        wheel.tick();
+        assert expired.contains(1L) && expired.contains(3L) && !expired.contains(2L) : "expired: " + expired;
+        for(int i=0; i < 5; i++) {
+            Util.sleep(10);
+            wheel.tick();
+        }
+        assert !expired.contains(2L) : "2 expired too early";
+        Util.sleep(150);
+        wheel.tick();
+        assert expired.size() == 3 && expired.contains(2L);
+        assert wheel.size() == 0;
+    }
+
+    /** Futures which are never waited on need to be removed from the correlator when their timeout elapses */
+    public void testRequestExpiry() throws Exception {
+        JChannel a=null, b=null;
+        MessageDispatcher da=null, db=null;
+        try {
+            a=createChannel("A");
+            b=createChannel("B");
+            da=new MessageDispatcher(a, null, null, null);
+            db=new MessageDispatcher(b, null, null, new RequestHandler() {
+                public Object handle(Message msg) throws Exception {
+                    Util.sleep(2000);
+                    return null;
+                }
+            });
+            a.connect("TimeoutWheelTest");
+            b.connect("TimeoutWheelTest");
+            Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+            List<NotifyingFuture<RspList<Object>>> futures=new ArrayList<>();
+            List<Address> dests=Collections.singletonList(b.getAddress());
+            for(int i=0; i < 10; i++)
+                futures.add(da.<Object>castMessageWithFuture(dests, new Message(null, i),
+                                                             new RequestOptions(ResponseMode.GET_ALL, 300)));
+            assert da.getCorrelator().getNumPendingRequests() == 10;
+            for(int i=0; i < 20 && da.getCorrelator().getNumPendingRequests() > 0; i++)
+                Util.sleep(100);
+            assert da.getCorrelator().getNumPendingRequests() == 0;
+            for(NotifyingFuture<RspList<Object>> future: futures) {
+                assert future.isDone();
+                RspList<Object> rsps=future.get(1, TimeUnit.MILLISECONDS);
+                assert !rsps.isReceived(b.getAddress());
+            }
+        }
+        finally {
+            if(db != null) db.stop();
+            if(da != null) da.stop();
+            Util.close(b, a);
+        }
+    }
+
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new SHARED_LOOPBACK_PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+}
@@ -0,0 +1,93 @@
+package org.jgroups.tests;
+
+import org.jgroups.*;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+
+/**
+ * Tests UDP with use_nio=true, ie. receiving packets through DatagramChannels into direct buffers
+ * @author agent
+ */
+@Test(groups=Global.FUNCTIONAL,singleThreaded=true)
+public class UDP_NIOTest {
+    protected static final int NUM_MSGS=5000;
+    protected JChannel         a, b;
+    protected MyReceiver       ra, rb;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=createChannel("A");
+        a.setReceiver(ra=new MyReceiver());
+        a.connect("UDP_NIOTest");
+        b=createChannel("B");
+        b.setReceiver(rb=new MyReceiver());
+        b.connect("UDP_NIOTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    @AfterMethod protected void destroy() {Util.close(b, a);}
+
+
+    public void testMulticasts() throws Exception {
+        for(int i=1; i <= NUM_MSGS; i++)
+            a.send(null, i);
+        waitForMessages(NUM_MSGS, ra, rb);
+    }
+
+    public void testUnicasts() throws Exception {
+        for(int i=1; i <= NUM_MSGS; i++)
+            a.send(b.getAddress(), i);
+        waitForMessages(NUM_MSGS, rb);
+        assert ra.size() == 0;
+    }
+
+    public void testLargeMessages() throws Exception {
+        for(int i=1; i <= 10; i++)
+            a.send(b.getAddress(), new byte[50000]);
+        waitForMessages(10, rb);
+    }
+
+
+    protected static void waitForMessages(int expected, MyReceiver ... receivers) {
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(MyReceiver r: receivers)
+                if(r.size() < expected)
+                    done=false;
+            if(done)
+                break;
+            Util.sleep(500);
+        }
+        for(MyReceiver r: receivers)
+            assert r.size() == expected : "expected " + expected + " messages, but received " + r.size();
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return new JChannel(new UDP().setValue("use_nio", true).setValue("nio_receiver_threads", 2)
+                              .setValue("bind_addr", InetAddress.getLoopbackAddress()),
+                            new PING(),
+                            new NAKACK2(),
+                            new UNICAST3(),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false))
+          .name(name);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected int num_received;
+
+        public synchronized void receive(Message msg) {num_received++;}
+        public synchronized int  size()               {return num_received;}
+    }
+}